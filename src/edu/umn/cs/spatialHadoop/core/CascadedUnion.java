@@ -0,0 +1,215 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import com.esri.core.geometry.ogc.OGCConcreteGeometryCollection;
+import com.esri.core.geometry.ogc.OGCGeometry;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.TopologyException;
+
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Computes the union of a large set of polygons as a cascade of small
+ * unions. Polygons are first sorted by the Hilbert value of their centers so
+ * that each group of consecutive polygons is spatially close. Each level of
+ * the cascade replaces every group with its union until one geometry is left.
+ * Unions of small nearby groups are much cheaper than adding polygons one by
+ * one to an ever growing result. Groups in one level are independent and are
+ * processed in parallel if there are enough of them.
+ * @author Ahmed Eldawy
+ *
+ */
+public class CascadedUnion {
+  private static final Log LOG = LogFactory.getLog(CascadedUnion.class);
+
+  /**Number of consecutive geometries combined together in each level*/
+  private static final int GroupSize = 8;
+
+  /**Minimum number of groups in one level to process them in parallel*/
+  private static final int ParallelThreshold = 16;
+
+  /**
+   * The union operations on one type of geometries
+   * @author Ahmed Eldawy
+   *
+   * @param <G>
+   */
+  static abstract class UnionOperation<G> {
+    /**Returns the MBR of a geometry*/
+    abstract Rectangle getMBR(G geom);
+
+    /**Returns the union of all geometries in the given range*/
+    abstract G union(G[] geoms, int start, int end);
+  }
+
+  /**
+   * Union operations on JTS geometries. A group is combined using buffer(0)
+   * which is fast but might fail with a {@link TopologyException} for some
+   * inputs. In this case, only this group is combined again with pair-wise
+   * unions.
+   */
+  private static final UnionOperation<Geometry> JTSUnion = new UnionOperation<Geometry>() {
+    @Override
+    Rectangle getMBR(Geometry geom) {
+      Envelope mbr = geom.getEnvelopeInternal();
+      return new Rectangle(mbr.getMinX(), mbr.getMinY(), mbr.getMaxX(), mbr.getMaxY());
+    }
+
+    @Override
+    Geometry union(Geometry[] geoms, int start, int end) {
+      if (end - start == 1)
+        return geoms[start];
+      Geometry[] group = new Geometry[end - start];
+      System.arraycopy(geoms, start, group, 0, group.length);
+      try {
+        return new GeometryCollection(group, group[0].getFactory()).buffer(0);
+      } catch (TopologyException e) {
+        LOG.warn("Error combining "+group.length+" geometries with buffer(0)");
+      }
+      Geometry result = group[0];
+      for (int i = 1; i < group.length; i++) {
+        try {
+          result = result.union(group[i]);
+        } catch (TopologyException e) {
+          // Clean both geometries and try again
+          result = result.buffer(0).union(group[i].buffer(0));
+        }
+      }
+      return result;
+    }
+  };
+
+  /**
+   * Union operations on ESRI geometries
+   */
+  private static final UnionOperation<OGCGeometry> OGCUnion = new UnionOperation<OGCGeometry>() {
+    @Override
+    Rectangle getMBR(OGCGeometry geom) {
+      com.esri.core.geometry.Envelope mbr = new com.esri.core.geometry.Envelope();
+      geom.getEsriGeometry().queryEnvelope(mbr);
+      return new Rectangle(mbr.getXMin(), mbr.getYMin(), mbr.getXMax(), mbr.getYMax());
+    }
+
+    @Override
+    OGCGeometry union(OGCGeometry[] geoms, int start, int end) {
+      if (end - start == 1)
+        return geoms[start];
+      Vector<OGCGeometry> group = new Vector<OGCGeometry>(end - start);
+      for (int i = start; i < end; i++)
+        group.add(geoms[i]);
+      return new OGCConcreteGeometryCollection(group,
+          geoms[start].getEsriSpatialReference()).union(geoms[start]);
+    }
+  };
+
+  /**Enforce static only calls*/
+  private CascadedUnion() {}
+
+  /**
+   * Computes the union of a set of JTS geometries.
+   * @param geoms
+   * @return the union or <code>null</code> if the input is empty
+   */
+  public static Geometry union(Collection<Geometry> geoms) {
+    return union(geoms.toArray(new Geometry[geoms.size()]), JTSUnion);
+  }
+
+  /**
+   * Computes the union of a set of ESRI geometries.
+   * @param geoms
+   * @return the union or <code>null</code> if the input is empty
+   */
+  public static OGCGeometry unionOGC(Collection<OGCGeometry> geoms) {
+    return union(geoms.toArray(new OGCGeometry[geoms.size()]), OGCUnion);
+  }
+
+  /**
+   * Sorts the given geometries along the Hilbert curve then combines them
+   * level by level.
+   * @param geoms
+   * @param op
+   * @return
+   */
+  private static <G> G union(final G[] geoms, final UnionOperation<G> op) {
+    if (geoms.length == 0)
+      return null;
+    // 1- Sort all geometries by the Hilbert value of their centers
+    final double[] centers = new double[geoms.length * 2];
+    Rectangle allMBR = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (int i = 0; i < geoms.length; i++) {
+      Rectangle mbr = op.getMBR(geoms[i]);
+      centers[2 * i] = (mbr.x1 + mbr.x2) / 2;
+      centers[2 * i + 1] = (mbr.y1 + mbr.y2) / 2;
+      allMBR.expand(mbr);
+    }
+    final int[] hValues = new int[geoms.length];
+    for (int i = 0; i < geoms.length; i++)
+      hValues[i] = HilbertCurvePartitioner.computeHValue(allMBR,
+          centers[2 * i], centers[2 * i + 1]);
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        G tempGeom = geoms[i];
+        geoms[i] = geoms[j];
+        geoms[j] = tempGeom;
+        int tempH = hValues[i];
+        hValues[i] = hValues[j];
+        hValues[j] = tempH;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        return hValues[i] < hValues[j] ? -1 : (hValues[i] > hValues[j] ? 1 : 0);
+      }
+    }, 0, geoms.length);
+
+    // 2- Replace each group of consecutive geometries with their union
+    // until only one geometry is left
+    G[] level = geoms;
+    while (level.length > 1) {
+      final G[] input = level;
+      final G[] output = Arrays.copyOf(input, (input.length + GroupSize - 1) / GroupSize);
+      RunnableRange<Object> unionGroups = new RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          for (int group = i1; group < i2; group++) {
+            int start = group * GroupSize;
+            output[group] = op.union(input, start, Math.min(input.length, start + GroupSize));
+          }
+          return null;
+        }
+      };
+      if (output.length < ParallelThreshold) {
+        unionGroups.run(0, output.length);
+      } else {
+        try {
+          Parallel.forEach(output.length, unionGroups);
+        } catch (InterruptedException e) {
+          throw new RuntimeException("Interrupted while computing the union", e);
+        }
+      }
+      level = output;
+    }
+    return level[0];
+  }
+}
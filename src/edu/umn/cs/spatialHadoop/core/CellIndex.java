@@ -0,0 +1,215 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * An in-memory index over an array of cells that finds the cells overlapping
+ * a rectangle without testing all of them. The cells are bulk loaded once
+ * into a packed R-tree using the Sort-Tile-Recursive (STR) algorithm and the
+ * tree is stored in a few primitive arrays so that searching it does not
+ * allocate any objects.
+ *
+ * Search results are reported as positions in the array of cells given to
+ * the constructor. Null entries in that array are skipped.
+ * @author Ahmed Eldawy
+ *
+ */
+public class CellIndex {
+  /**Maximum number of children in each node of the tree*/
+  private static final int Capacity = 16;
+
+  /**The indexed cells as given to the constructor*/
+  private final CellInfo[] cells;
+
+  /**Coordinates of all entries in all levels with leaf entries first*/
+  private double[] x1s, y1s, x2s, y2s;
+
+  /**Position of the cell of each leaf entry in the array of cells*/
+  private int[] cellPositions;
+
+  /**Index of the first entry of each level. The last level is the root.*/
+  private int[] levelStart;
+
+  /**A reusable stack of (level, entry) pairs used while searching*/
+  private int[] stack;
+
+  public CellIndex(CellInfo[] cells) {
+    this.cells = cells;
+    int numOfCells = 0;
+    for (CellInfo cell : cells)
+      if (cell != null)
+        numOfCells++;
+    cellPositions = new int[numOfCells];
+    final double[] centers = new double[numOfCells * 2];
+    numOfCells = 0;
+    for (int i = 0; i < cells.length; i++) {
+      if (cells[i] != null) {
+        cellPositions[numOfCells] = i;
+        centers[numOfCells * 2] = (cells[i].x1 + cells[i].x2) / 2;
+        centers[numOfCells * 2 + 1] = (cells[i].y1 + cells[i].y2) / 2;
+        numOfCells++;
+      }
+    }
+
+    // Sort-Tile-Recursive. Sort by x then split into vertical slices, each
+    // one is sorted by y so that consecutive entries are close in space
+    final int[] sortAttr = new int[1];
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        int tempPosition = cellPositions[i];
+        cellPositions[i] = cellPositions[j];
+        cellPositions[j] = tempPosition;
+        for (int d = 0; d < 2; d++) {
+          double tempCenter = centers[i * 2 + d];
+          centers[i * 2 + d] = centers[j * 2 + d];
+          centers[j * 2 + d] = tempCenter;
+        }
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        double diff = centers[i * 2 + sortAttr[0]] - centers[j * 2 + sortAttr[0]];
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    };
+    QuickSort quickSort = new QuickSort();
+    int numOfLeafNodes = (numOfCells + Capacity - 1) / Capacity;
+    int numOfSlices = Math.max(1, (int) Math.ceil(Math.sqrt(numOfLeafNodes)));
+    int sliceSize = numOfSlices * Capacity;
+    if (numOfCells > 0)
+      quickSort.sort(sortable, 0, numOfCells);
+    sortAttr[0] = 1;
+    for (int sliceStart = 0; sliceStart < numOfCells; sliceStart += sliceSize)
+      quickSort.sort(sortable, sliceStart, Math.min(numOfCells, sliceStart + sliceSize));
+
+    // Compute the number of entries in all levels
+    int numOfLevels = 1;
+    int totalEntries = numOfCells;
+    int levelSize = numOfCells;
+    while (levelSize > 1) {
+      levelSize = (levelSize + Capacity - 1) / Capacity;
+      totalEntries += levelSize;
+      numOfLevels++;
+    }
+    levelStart = new int[numOfLevels + 1];
+    x1s = new double[totalEntries];
+    y1s = new double[totalEntries];
+    x2s = new double[totalEntries];
+    y2s = new double[totalEntries];
+    for (int i = 0; i < numOfCells; i++) {
+      CellInfo cell = cells[cellPositions[i]];
+      x1s[i] = cell.x1;
+      y1s[i] = cell.y1;
+      x2s[i] = cell.x2;
+      y2s[i] = cell.y2;
+    }
+    levelStart[0] = 0;
+    levelStart[1] = numOfCells;
+    // Each node covers the MBR of the next Capacity entries in the level below
+    for (int level = 1; level < numOfLevels; level++) {
+      int childStart = levelStart[level - 1];
+      int childEnd = levelStart[level];
+      int entry = levelStart[level];
+      for (int child = childStart; child < childEnd; child += Capacity) {
+        x1s[entry] = y1s[entry] = Double.MAX_VALUE;
+        x2s[entry] = y2s[entry] = -Double.MAX_VALUE;
+        for (int i = child; i < Math.min(childEnd, child + Capacity); i++) {
+          x1s[entry] = Math.min(x1s[entry], x1s[i]);
+          y1s[entry] = Math.min(y1s[entry], y1s[i]);
+          x2s[entry] = Math.max(x2s[entry], x2s[i]);
+          y2s[entry] = Math.max(y2s[entry], y2s[i]);
+        }
+        entry++;
+      }
+      levelStart[level + 1] = entry;
+    }
+    stack = new int[Math.max(1, numOfLevels * Capacity)];
+  }
+
+  /**
+   * Number of cells in the index
+   * @return
+   */
+  public int size() {
+    return cellPositions.length;
+  }
+
+  /**
+   * Finds all cells that overlap the given rectangle using the same test as
+   * {@link CellInfo#isIntersected(Shape)}. The positions of the matching
+   * cells are appended to the given array in no particular order.
+   * @param rect
+   * @param result
+   * @return number of matching cells
+   */
+  public int search(Rectangle rect, IntArray result) {
+    int numOfMatches = 0;
+    int topLevel = levelStart.length - 2;
+    if (cellPositions.length == 0)
+      return 0;
+    int top = 0;
+    stack[top++] = levelStart[topLevel];
+    while (top > 0) {
+      int entry = stack[--top];
+      if (entry < levelStart[1]) {
+        // A leaf entry. Use the exact test of the cell
+        CellInfo cell = cells[cellPositions[entry]];
+        if (cell.isIntersected(rect)) {
+          result.append(cellPositions[entry]);
+          numOfMatches++;
+        }
+      } else if (x2s[entry] >= rect.x1 && rect.x2 >= x1s[entry] &&
+          y2s[entry] >= rect.y1 && rect.y2 >= y1s[entry]) {
+        // Internal node. Push all its children
+        int level = 1;
+        while (entry >= levelStart[level + 1])
+          level++;
+        int firstChild = levelStart[level - 1] + (entry - levelStart[level]) * Capacity;
+        int lastChild = Math.min(levelStart[level], firstChild + Capacity);
+        for (int child = firstChild; child < lastChild; child++)
+          stack[top++] = child;
+      }
+    }
+    return numOfMatches;
+  }
+
+  /**
+   * Finds the cell that has the largest overlap area with the given rectangle.
+   * Ties are broken in favor of the cell that comes first in the array which
+   * gives the same answer as a linear scan over all cells.
+   * @param rect
+   * @param tempResult a temporary array used while searching
+   * @return the position of the cell in the array or -1 if no cells overlap
+   *  the given rectangle
+   */
+  public int searchMaxOverlap(Rectangle rect, IntArray tempResult) {
+    tempResult.clear();
+    search(rect, tempResult);
+    int bestCell = -1;
+    double maxOverlap = -1.0;
+    for (int i = 0; i < tempResult.size(); i++) {
+      int position = tempResult.get(i);
+      CellInfo cell = cells[position];
+      double overlapArea = (Math.min(cell.x2, rect.x2) - Math.max(cell.x1, rect.x1)) *
+          (Math.min(cell.y2, rect.y2) - Math.max(cell.y1, rect.y1));
+      if (bestCell == -1 || overlapArea > maxOverlap ||
+          (overlapArea == maxOverlap && position < bestCell)) {
+        maxOverlap = overlapArea;
+        bestCell = position;
+      }
+    }
+    return bestCell;
+  }
+}
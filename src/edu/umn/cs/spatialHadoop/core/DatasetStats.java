@@ -0,0 +1,493 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+
+/**
+ * Statistics of a non-indexed dataset that are computed once and stored in a
+ * hidden sidecar file next to the data. For each data file, it keeps the MBR,
+ * number of records, total (uncompressed) size of records and a uniform
+ * sample of points. A density histogram of the whole dataset is computed from
+ * the samples. The statistics of a file are valid as long as its length and
+ * modification time do not change, so that only new or modified files need to
+ * be processed when the dataset is updated.
+ * @author Ahmed Eldawy
+ *
+ */
+public class DatasetStats implements Writable {
+  private static final Log LOG = LogFactory.getLog(DatasetStats.class);
+
+  /**Configuration key for the number of sample points kept for a dataset*/
+  public static final String SampleSize = "spatialHadoop.stats.SampleSize";
+
+  /**Configuration key for the number of columns and rows of the histogram*/
+  public static final String HistogramSize = "spatialHadoop.stats.HistogramSize";
+
+  /**
+   * Configuration key (or the command line flag '-stats') that allows
+   * {@link edu.umn.cs.spatialHadoop.operations.FileMBR} to compute and store
+   * the statistics of its input. Otherwise, stored statistics are only used
+   * if they are up to date and nothing is written to the input.
+   */
+  public static final String Collect = "stats";
+
+  /**Name of the statistics file inside a directory*/
+  public static final String StatsFileName = "_stats";
+
+  /**Version of the file format to detect files written by older versions*/
+  private static final int Version = 1;
+
+  /**
+   * Statistics of one data file.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class FileStats implements Writable {
+    /**File name, MBR, record count and size of records in the file*/
+    public Partition partition;
+
+    /**Length of the file when the statistics were computed*/
+    public long length;
+
+    /**Modification time of the file when the statistics were computed*/
+    public long modificationTime;
+
+    /**Coordinates of the sample points drawn from this file*/
+    public double[] sampleXs, sampleYs;
+
+    public FileStats() {
+      this.partition = new Partition();
+    }
+
+    public FileStats(FileStatus status, Partition partition, List<Point> sample) {
+      this.partition = partition.clone();
+      this.partition.filename = status.getPath().getName();
+      this.length = status.getLen();
+      this.modificationTime = status.getModificationTime();
+      this.sampleXs = new double[sample.size()];
+      this.sampleYs = new double[sample.size()];
+      for (int i = 0; i < sample.size(); i++) {
+        sampleXs[i] = sample.get(i).x;
+        sampleYs[i] = sample.get(i).y;
+      }
+    }
+
+    /**
+     * Whether these statistics still describe the given file
+     * @param status
+     * @return
+     */
+    public boolean isUpToDate(FileStatus status) {
+      return status.getLen() == length &&
+          status.getModificationTime() == modificationTime;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      partition.write(out);
+      out.writeLong(length);
+      out.writeLong(modificationTime);
+      out.writeInt(sampleXs.length);
+      for (int i = 0; i < sampleXs.length; i++) {
+        out.writeDouble(sampleXs[i]);
+        out.writeDouble(sampleYs[i]);
+      }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      partition.readFields(in);
+      length = in.readLong();
+      modificationTime = in.readLong();
+      int sampleSize = in.readInt();
+      sampleXs = new double[sampleSize];
+      sampleYs = new double[sampleSize];
+      for (int i = 0; i < sampleSize; i++) {
+        sampleXs[i] = in.readDouble();
+        sampleYs[i] = in.readDouble();
+      }
+    }
+  }
+
+  /**Statistics of all data files ordered by file name*/
+  private Map<String, FileStats> files = new TreeMap<String, FileStats>();
+
+  /**Number of columns and rows in the histogram*/
+  private int histogramColumns, histogramRows;
+
+  /**Estimated number of records in each cell of the histogram in row-major order*/
+  private long[] histogram = new long[0];
+
+  /**The area covered by the histogram*/
+  private Rectangle histogramMBR = new Rectangle();
+
+  /**
+   * Returns the path of the statistics file of a dataset. For a directory,
+   * it is stored inside the directory. For a single file, it is stored as
+   * a hidden file next to it.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static Path getStatsPath(FileSystem fs, Path path) throws IOException {
+    if (fs.getFileStatus(path).isDir())
+      return new Path(path, StatsFileName);
+    return new Path(path.getParent(), StatsFileName + "." + path.getName());
+  }
+
+  /**
+   * Lists the data files of a dataset which are all visible files in a
+   * directory or the file itself.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static FileStatus[] listDataFiles(FileSystem fs, Path path) throws IOException {
+    FileStatus status = fs.getFileStatus(path);
+    if (!status.isDir())
+      return new FileStatus[] {status};
+    List<FileStatus> dataFiles = new ArrayList<FileStatus>();
+    for (FileStatus file : fs.listStatus(path, SpatialSite.NonHiddenFileFilter)) {
+      if (!file.isDir())
+        dataFiles.add(file);
+    }
+    return dataFiles.toArray(new FileStatus[dataFiles.size()]);
+  }
+
+  /**
+   * Whether the given dataset has a statistics file or not.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static boolean exists(FileSystem fs, Path path) throws IOException {
+    if (OperationsParams.isWildcard(path))
+      return false;
+    return fs.exists(getStatsPath(fs, path));
+  }
+
+  /**
+   * Reads the statistics stored for a dataset. Returns <code>null</code> if
+   * the dataset has no statistics file or if it cannot be read. The returned
+   * statistics might be out of date.
+   * @param fs
+   * @param path
+   * @return
+   */
+  public static DatasetStats read(FileSystem fs, Path path) {
+    FSDataInputStream in = null;
+    try {
+      if (!exists(fs, path))
+        return null;
+      in = fs.open(getStatsPath(fs, path));
+      if (in.readInt() != Version)
+        return null;
+      DatasetStats stats = new DatasetStats();
+      stats.readFields(in);
+      return stats;
+    } catch (IOException e) {
+      LOG.warn("Error reading statistics of "+path, e);
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.warn("Error closing statistics of "+path, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the statistics of a dataset only if they are up to date with all
+   * its data files. Returns <code>null</code> otherwise.
+   * @param conf
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static DatasetStats readUpToDate(Configuration conf, Path path) throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    DatasetStats stats = read(fs, path);
+    if (stats == null || !stats.invalidate(listDataFiles(fs, path)).isEmpty())
+      return null;
+    return stats;
+  }
+
+  /**
+   * Stores the statistics of a dataset. The file is written under a temporary
+   * name first so that readers never see a partially written file.
+   * @param fs
+   * @param path
+   * @throws IOException if the statistics cannot be stored, e.g., if the
+   *  dataset is in a read only directory
+   */
+  public void write(FileSystem fs, Path path) throws IOException {
+    Path statsPath = getStatsPath(fs, path);
+    Path tmpPath = new Path(statsPath.getParent(),
+        statsPath.getName() + "." + (int)(Math.random() * 1000000) + ".tmp");
+    boolean stored = false;
+    try {
+      FSDataOutputStream out = fs.create(tmpPath, true);
+      try {
+        out.writeInt(Version);
+        this.write(out);
+      } finally {
+        out.close();
+      }
+      fs.delete(statsPath, false);
+      if (!fs.rename(tmpPath, statsPath))
+        throw new IOException("Could not rename "+tmpPath+" to "+statsPath);
+      stored = true;
+    } finally {
+      if (!stored)
+        fs.delete(tmpPath, false);
+    }
+  }
+
+  /**
+   * Removes the statistics of files that no longer exist or have been
+   * modified and returns the files that need to be processed to bring the
+   * statistics up to date.
+   * @param dataFiles all current data files of the dataset
+   * @return
+   */
+  public List<FileStatus> invalidate(FileStatus[] dataFiles) {
+    Map<String, FileStats> newFiles = new TreeMap<String, FileStats>();
+    List<FileStatus> outdatedFiles = new ArrayList<FileStatus>();
+    for (FileStatus dataFile : dataFiles) {
+      FileStats fileStats = files.get(dataFile.getPath().getName());
+      if (fileStats != null && fileStats.isUpToDate(dataFile))
+        newFiles.put(dataFile.getPath().getName(), fileStats);
+      else
+        outdatedFiles.add(dataFile);
+    }
+    if (newFiles.size() != files.size())
+      histogram = new long[0];
+    files = newFiles;
+    return outdatedFiles;
+  }
+
+  /**
+   * Adds or replaces the statistics of one data file
+   * @param status
+   * @param partition the MBR, record count and size of the file
+   * @param sample points sampled from the file
+   */
+  public void addFile(FileStatus status, Partition partition, List<Point> sample) {
+    files.put(status.getPath().getName(), new FileStats(status, partition, sample));
+    histogram = new long[0];
+  }
+
+  public Collection<FileStats> getFiles() {
+    return files.values();
+  }
+
+  public boolean isEmpty() {
+    return files.isEmpty();
+  }
+
+  /**
+   * The MBR, number of records and total size of all files
+   * @return
+   */
+  public Partition getMBR() {
+    Partition mbr = new Partition();
+    mbr.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (FileStats fileStats : files.values())
+      mbr.expand(fileStats.partition);
+    return mbr;
+  }
+
+  public long getRecordCount() {
+    long recordCount = 0;
+    for (FileStats fileStats : files.values())
+      recordCount += fileStats.partition.recordCount;
+    return recordCount;
+  }
+
+  /**
+   * Total size of all records in bytes as if the files were not compressed
+   * @return
+   */
+  public long getTotalSize() {
+    long totalSize = 0;
+    for (FileStats fileStats : files.values())
+      totalSize += fileStats.partition.size;
+    return totalSize;
+  }
+
+  public double getAverageRecordSize() {
+    long recordCount = getRecordCount();
+    return recordCount == 0 ? 0 : (double) getTotalSize() / recordCount;
+  }
+
+  /**
+   * Number of sample points stored for all files
+   * @return
+   */
+  public int getSampleSize() {
+    int sampleSize = 0;
+    for (FileStats fileStats : files.values())
+      sampleSize += fileStats.sampleXs.length;
+    return sampleSize;
+  }
+
+  /**
+   * Returns a random subset of the stored sample where each file contributes
+   * a number of points proportional to its number of records. Fewer points
+   * are returned if the stored sample is not large enough.
+   * @param count
+   * @param seed
+   * @return
+   */
+  public List<Point> getSample(int count, long seed) {
+    Random random = new Random(seed);
+    long recordCount = getRecordCount();
+    List<Point> sample = new ArrayList<Point>();
+    for (FileStats fileStats : files.values()) {
+      int fileSampleSize = fileStats.sampleXs.length;
+      int fileCount = recordCount == 0 ? 0 :
+        (int) Math.min(fileSampleSize,
+            Math.round((double) count * fileStats.partition.recordCount / recordCount));
+      // A partial Fisher-Yates shuffle over the indexes of the stored points
+      int[] indexes = new int[fileSampleSize];
+      for (int i = 0; i < fileSampleSize; i++)
+        indexes[i] = i;
+      for (int i = 0; i < fileCount; i++) {
+        int j = i + random.nextInt(fileSampleSize - i);
+        int temp = indexes[i];
+        indexes[i] = indexes[j];
+        indexes[j] = temp;
+        sample.add(new Point(fileStats.sampleXs[indexes[i]], fileStats.sampleYs[indexes[i]]));
+      }
+    }
+    return sample;
+  }
+
+  /**
+   * Computes a uniform grid histogram over the MBR of the dataset that
+   * estimates the number of records in each cell. Each sample point of a
+   * file stands for an equal share of the records in that file.
+   * @param columns
+   * @param rows
+   */
+  public void computeHistogram(int columns, int rows) {
+    this.histogramColumns = columns;
+    this.histogramRows = rows;
+    this.histogramMBR = new Rectangle(getMBR());
+    double[] weights = new double[columns * rows];
+    double cellWidth = histogramMBR.getWidth() / columns;
+    double cellHeight = histogramMBR.getHeight() / rows;
+    for (FileStats fileStats : files.values()) {
+      int fileSampleSize = fileStats.sampleXs.length;
+      if (fileSampleSize == 0)
+        continue;
+      double weight = (double) fileStats.partition.recordCount / fileSampleSize;
+      for (int i = 0; i < fileSampleSize; i++) {
+        int column = cellWidth > 0 ? (int) ((fileStats.sampleXs[i] - histogramMBR.x1) / cellWidth) : 0;
+        int row = cellHeight > 0 ? (int) ((fileStats.sampleYs[i] - histogramMBR.y1) / cellHeight) : 0;
+        column = Math.max(0, Math.min(columns - 1, column));
+        row = Math.max(0, Math.min(rows - 1, row));
+        weights[row * columns + column] += weight;
+      }
+    }
+    histogram = new long[weights.length];
+    for (int i = 0; i < weights.length; i++)
+      histogram[i] = Math.round(weights[i]);
+  }
+
+  public int getHistogramColumns() {
+    return histogramColumns;
+  }
+
+  public int getHistogramRows() {
+    return histogramRows;
+  }
+
+  /**
+   * Estimated number of records in each cell of the histogram in row-major
+   * order. The array is empty if the histogram has not been computed since
+   * the last change.
+   * @return
+   */
+  public long[] getHistogram() {
+    return histogram;
+  }
+
+  public Rectangle getHistogramMBR() {
+    return histogramMBR;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(files.size());
+    for (FileStats fileStats : files.values())
+      fileStats.write(out);
+    out.writeInt(histogramColumns);
+    out.writeInt(histogramRows);
+    histogramMBR.write(out);
+    out.writeInt(histogram.length);
+    for (long count : histogram)
+      out.writeLong(count);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    files.clear();
+    int numOfFiles = in.readInt();
+    for (int i = 0; i < numOfFiles; i++) {
+      FileStats fileStats = new FileStats();
+      fileStats.readFields(in);
+      files.put(fileStats.partition.filename, fileStats);
+    }
+    histogramColumns = in.readInt();
+    histogramRows = in.readInt();
+    histogramMBR.readFields(in);
+    histogram = new long[in.readInt()];
+    for (int i = 0; i < histogram.length; i++)
+      histogram[i] = in.readLong();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder str = new StringBuilder();
+    str.append(getMBR());
+    str.append(" records: ").append(getRecordCount());
+    str.append(" size: ").append(getTotalSize());
+    str.append(" sample: ").append(getSampleSize());
+    str.append(" files: ").append(files.size());
+    return str.toString();
+  }
+}
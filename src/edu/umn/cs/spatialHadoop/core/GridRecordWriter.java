@@ -33,6 +33,7 @@ import org.apache.hadoop.util.ReflectionUtils;
 
 import edu.umn.cs.spatialHadoop.mapred.GridRecordWriter2;
 import edu.umn.cs.spatialHadoop.mapred.GridRecordWriter3;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * Writes a spatial file where objects are of type S. This class is used as a
@@ -56,6 +57,12 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   /**The spatial boundaries for each cell*/
   protected CellInfo[] cells;
   
+  /**Finds the cells overlapping a shape. Built when first needed*/
+  protected CellIndex cellIndex;
+
+  /**Positions of the cells overlapping the shape being written*/
+  protected IntArray overlappingCells = new IntArray();
+
   /**Paths of intermediate files*/
   protected Path[] intermediateCellPath;
   
@@ -256,11 +263,12 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
     } else {
       // Check which cells should contain the given shape
       Rectangle mbr = shape.getMBR();
-      for (int cellIndex = 0; cellIndex < cells.length; cellIndex++) {
-        if (cells[cellIndex] != null && mbr.isIntersected(cells[cellIndex])) {
-          writeInternal(cellIndex, shape);
-        }
-      }
+      if (cellIndex == null)
+        cellIndex = new CellIndex(cells);
+      overlappingCells.clear();
+      cellIndex.search(mbr, overlappingCells);
+      for (int i = 0; i < overlappingCells.size(); i++)
+        writeInternal(overlappingCells.get(i), shape);
     }
   }
 
@@ -274,10 +282,10 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    */
   @Override
   public synchronized void write(CellInfo cellInfo, S shape) throws IOException {
-    for (int i_cell = 0; i_cell < cells.length; i_cell++) {
-      if (cellInfo.equals(cells[i_cell]))
-        write(i_cell, shape);
-    }
+    // Cells are stored at the position of their IDs
+    int i_cell = cellInfo.cellId;
+    if (i_cell >= 0 && i_cell < cells.length && cellInfo.equals(cells[i_cell]))
+      write(i_cell, shape);
   }
 
   /**
@@ -302,6 +310,7 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       System.arraycopy(cells, 0, newCells, 0, cells.length);
       newCells[i_cell] = new CellInfo(i_cell, rect);
       cells = newCells;
+      cellIndex = null;
       
       // Expand auxiliary data structures too
       Path[] newIntermediateCellPath = new Path[cells.length];
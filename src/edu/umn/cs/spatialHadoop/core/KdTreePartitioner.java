@@ -25,9 +25,12 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A partitioner that partitioner data using a K-d tree-based partitioner.
+ * The arrays used while searching are reused which makes an instance unsafe
+ * to be searched by more than one thread at a time.
  * @author Ahmed Eldawy
  *
  */
@@ -40,6 +43,9 @@ public class KdTreePartitioner extends Partitioner {
    * a single array in a heap-like structure.
    */
   private double[] splits;
+
+  /**A reusable stack of splits to test. Enough for any depth of the tree*/
+  private final int[] splitStack = new int[64];
   
   /**
    * A default constructor to be able to dynamically instantiate it
@@ -179,44 +185,34 @@ public class KdTreePartitioner extends Partitioner {
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
     if (shape == null || shape.getMBR() == null)
       return;
-    Rectangle shapeMBR = shape.getMBR();
-    /**Information about a split to test*/
-    class SplitToTest {
-      /**The ID of the split in the array of splits in the KDTreePartitioner*/
-      int splitID;
-      /**Direction of the split. 0 is vertical (|) and 1 is horizontal (-)*/
-      int direction;
-      
-      public SplitToTest(int splitID, int direction) {
-        this.splitID = splitID;
-        this.direction = direction;
-      }
-    }
-    // A queue of all splits to test
-    Queue<SplitToTest> splitsToTest = new ArrayDeque<SplitToTest>();
-    // Start from the first (root) split
-    splitsToTest.add(new SplitToTest(1, 0));
-    
-    while (!splitsToTest.isEmpty()) {
-      SplitToTest splitToTest = splitsToTest.remove();
-      if (splitToTest.splitID >= splits.length) {
+    IntArray matches = new IntArray();
+    overlapPartitions(shape.getMBR(), matches);
+    for (int i = 0; i < matches.size(); i++)
+      matcher.collect(matches.get(i));
+  }
+
+  @Override
+  public void overlapPartitions(Rectangle shapeMBR, IntArray matches) {
+    if (shapeMBR == null)
+      return;
+    // A stack of all splits to test. Start from the first (root) split
+    int top = 0;
+    splitStack[top++] = 1;
+    while (top > 0) {
+      int splitID = splitStack[--top];
+      if (splitID >= splits.length) {
         // Matched a partition. return it
-        matcher.collect(splitToTest.splitID);
+        matches.append(splitID);
       } else {
-        // Need to test that split
-        if (splitToTest.direction == 0) {
-          // The corresponding split is vertical (along the x-axis). Like |
-          if (shapeMBR.x1 < splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2, 1 ^ splitToTest.direction)); // Go left
-          if (shapeMBR.x2 > splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2 + 1, 1 ^ splitToTest.direction)); // Go right
-        } else {
-          // The corresponding split is horizontal (along the y-axis). Like -
-          if (shapeMBR.y1 < splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2, 1 ^ splitToTest.direction));
-          if (shapeMBR.y2 > splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2 + 1, 1 ^ splitToTest.direction));
-        }
+        // Direction of the split. 0 is vertical (|) and 1 is horizontal (-)
+        int direction = (getNumberOfSignificantBits(splitID) - 1) & 1;
+        double split = splits[splitID];
+        double min = direction == 0 ? shapeMBR.x1 : shapeMBR.y1;
+        double max = direction == 0 ? shapeMBR.x2 : shapeMBR.y2;
+        if (max > split)
+          splitStack[top++] = splitID * 2 + 1; // Go right
+        if (min < split)
+          splitStack[top++] = splitID * 2; // Go left
       }
     }
   }
@@ -226,25 +222,27 @@ public class KdTreePartitioner extends Partitioner {
    * @return
    */
   public int overlapPartition(Shape shape) {
-    if (shape == null || shape.getMBR() == null)
+    if (shape == null)
+      return -1;
+    Rectangle shapeMBR = shape.getMBR();
+    if (shapeMBR == null)
       return -1;
-    Point pt = shape.getMBR().getCenterPoint();
+    return locate((shapeMBR.x1 + shapeMBR.x2) / 2, (shapeMBR.y1 + shapeMBR.y2) / 2);
+  }
+
+  /**
+   * Finds the ID of the partition that contains the given point
+   * @param x
+   * @param y
+   * @return
+   */
+  protected int locate(double x, double y) {
     int splitID = 1; // Start from the root
     int direction = 0;
     while (splitID < splits.length) {
-      if (direction == 0) {
-        // The corresponding split is vertical (along the x-axis). Like |
-        if (pt.x < splits[splitID])
-          splitID = splitID * 2; // Go left
-        else
-          splitID = splitID * 2 + 1; // Go right
-      } else {
-        // The corresponding split is horizontal (along the y-axis). Like -
-        if (pt.y < splits[splitID])
-          splitID = splitID * 2;
-        else
-          splitID = splitID * 2 + 1;
-      }
+      // A vertical split (|) compares x and a horizontal split (-) compares y
+      double value = direction == 0 ? x : y;
+      splitID = value < splits[splitID] ? splitID * 2 : splitID * 2 + 1;
       direction ^= 1;
     }
     return splitID;
@@ -19,6 +19,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 import org.mortbay.log.Log;
 
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
 /**
  * An interface for spatially partitioning data into partitions.
  * @author Ahmed Eldawy
@@ -57,7 +59,24 @@ public abstract class Partitioner implements Writable {
    * @return
    */
   public abstract int overlapPartition(Shape shape);
-  
+
+  /**
+   * Finds all partitions that overlap the given rectangle and appends their
+   * IDs to the given array. Unlike {@link #overlapPartitions(Shape, ResultCollector)}
+   * it does not box partition IDs. Partitioners override it to avoid creating
+   * any objects for each record.
+   * @param mbr
+   * @param matches
+   */
+  public void overlapPartitions(Rectangle mbr, final IntArray matches) {
+    overlapPartitions(mbr, new ResultCollector<Integer>() {
+      @Override
+      public void collect(Integer partitionID) {
+        matches.append(partitionID);
+      }
+    });
+  }
+
   /**
    * Returns the details of a specific partition given its ID.
    * @param partitionID
@@ -14,7 +14,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Queue;
+import java.util.Set;
 import java.util.Vector;
 
 import org.apache.hadoop.fs.Path;
@@ -24,9 +26,16 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
- * Partition the space based on a Quad tree
+ * Partition the space based on a Quad tree.
+ * Once created or read, the tree is compiled into arrays where the four
+ * children of a node are stored next to each other so that a record is
+ * assigned to its partitions without creating any objects. The arrays used
+ * while searching are reused which makes an instance unsafe to be searched
+ * by more than one thread at a time.
  * @author Ahmed Eldawy
  *
  */
@@ -36,6 +45,20 @@ public class QuadTreePartitioner extends Partitioner {
   /**ID of all leaf nodes in partition tree*/
   protected int[] leafNodeIDs;
 
+  /**
+   * Position of the first of the four children of each node in the compiled
+   * tree or -1 if the node has no children. The root is at position zero.
+   */
+  private int[] firstChild;
+  /**The ID of each node in the compiled tree*/
+  private int[] nodeIDs;
+  /**Marks the nodes of the compiled tree that are partitions*/
+  private BitArray leaves;
+  /**A reusable stack of nodes to search*/
+  private int[] nodeStack;
+  /**Boundaries (x1, y1, x2, y2) of each node in the stack*/
+  private double[] boundsStack;
+
   /**
    * A default constructor to be able to dynamically instantiate it
    * and deserialize it
@@ -122,6 +145,41 @@ public class QuadTreePartitioner extends Partitioner {
     for (int i = 0; i < leafNodeIDs.size(); i++)
       this.leafNodeIDs[i] = leafNodeIDs.get(i);
     Arrays.sort(this.leafNodeIDs);
+    compile();
+  }
+
+  /**
+   * Compiles the sorted list of leaf node IDs into a tree of arrays that can
+   * be searched without binary searches or allocating new objects.
+   */
+  protected void compile() {
+    // Internal nodes are all the ancestors of leaf nodes
+    Set<Integer> internalIDs = new HashSet<Integer>();
+    int maxLeafID = 1;
+    for (int leafNodeID : leafNodeIDs) {
+      maxLeafID = Math.max(maxLeafID, leafNodeID);
+      for (int id = leafNodeID >> 2; id >= 1 && internalIDs.add(id); id >>= 2);
+    }
+    // Assign positions in breadth-first order. Each internal node has four children
+    int numOfNodes = 1 + 4 * internalIDs.size();
+    firstChild = new int[numOfNodes];
+    nodeIDs = new int[numOfNodes];
+    leaves = new BitArray(numOfNodes);
+    nodeIDs[0] = 1;
+    int nextPosition = 1;
+    for (int node = 0; node < numOfNodes; node++) {
+      if (internalIDs.contains(nodeIDs[node])) {
+        firstChild[node] = nextPosition;
+        for (int iChild = 0; iChild < 4; iChild++)
+          nodeIDs[nextPosition++] = nodeIDs[node] * 4 + iChild;
+      } else {
+        firstChild[node] = -1;
+        leaves.set(node, Arrays.binarySearch(leafNodeIDs, nodeIDs[node]) >= 0);
+      }
+    }
+    int depth = (KdTreePartitioner.getNumberOfSignificantBits(maxLeafID) + 1) / 2;
+    nodeStack = new int[3 * depth + 4];
+    boundsStack = new double[nodeStack.length * 4];
   }
 
 
@@ -147,69 +205,95 @@ public class QuadTreePartitioner extends Partitioner {
     ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
     for (int i = 0; i < leafNodeIDs.length; i++)
       leafNodeIDs[i] = bbuffer.getInt();
+    compile();
   }
 
   @Override
   public int overlapPartition(Shape shape) {
-    if (shape == null || shape.getMBR() == null)
+    if (shape == null)
+      return -1;
+    Rectangle shapeMBR = shape.getMBR();
+    if (shapeMBR == null)
       return -1;
+    return locate((shapeMBR.x1 + shapeMBR.x2) / 2, (shapeMBR.y1 + shapeMBR.y2) / 2);
+  }
 
-    Point queryPoint = shape.getMBR().getCenterPoint();
-    int nodeToSearch = 1; // Start from the root
-    Rectangle nodeMBR = mbr.clone();
-    while (Arrays.binarySearch(leafNodeIDs, nodeToSearch) < 0) {
-      if (nodeToSearch > leafNodeIDs[leafNodeIDs.length - 1]) {
-        System.err.println("not found");
-        return -1;
+  /**
+   * Finds the ID of the partition that contains the given point
+   * @param x
+   * @param y
+   * @return the ID of the partition or -1 if not found
+   */
+  protected int locate(double x, double y) {
+    int node = 0; // Start from the root
+    double x1 = mbr.x1, y1 = mbr.y1, x2 = mbr.x2, y2 = mbr.y2;
+    while (firstChild[node] >= 0) {
+      double centerX = (x1 + x2) / 2;
+      double centerY = (y1 + y2) / 2;
+      // Children are ordered as (left, bottom), (left, top), (right, bottom), (right, top)
+      int iChild = 0;
+      if (x < centerX) {
+        x2 = centerX;
+      } else {
+        x1 = centerX;
+        iChild |= 2;
       }
-      Point nodeCenter = nodeMBR.getCenterPoint();
-      if (queryPoint.x < nodeCenter.x && queryPoint.y < nodeCenter.y) {
-        nodeToSearch = nodeToSearch * 4;
-        nodeMBR.x2 = nodeCenter.x;
-        nodeMBR.y2 = nodeCenter.y;
-      } else if (queryPoint.x < nodeCenter.x && queryPoint.y >= nodeCenter.y) {
-        nodeToSearch = nodeToSearch * 4 + 1;
-        nodeMBR.x2 = nodeCenter.x;
-        nodeMBR.y1 = nodeCenter.y;
-      } else if (queryPoint.x >= nodeCenter.x && queryPoint.y < nodeCenter.y) {
-        nodeToSearch = nodeToSearch * 4 + 2;
-        nodeMBR.x1 = nodeCenter.x;
-        nodeMBR.y2 = nodeCenter.y;
+      if (y < centerY) {
+        y2 = centerY;
       } else {
-        nodeToSearch = nodeToSearch * 4 + 3;
-        nodeMBR.x1 = nodeCenter.x;
-        nodeMBR.y1 = nodeCenter.y;
+        y1 = centerY;
+        iChild |= 1;
       }
+      node = firstChild[node] + iChild;
     }
-    return nodeToSearch;
+    return leaves.get(node) ? nodeIDs[node] : -1;
   }
   
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
     if (shape == null || shape.getMBR() == null)
       return;
-    Rectangle shapeMBR = shape.getMBR();
-    Queue<CellInfo> nodesToSearch = new ArrayDeque<CellInfo>();
-    nodesToSearch.add(new CellInfo(1, mbr));
-    
-    while (!nodesToSearch.isEmpty()) {
-      // Go down as necessary
-      CellInfo nodeToSearch = nodesToSearch.remove();
-      if (shapeMBR.isIntersected(nodeToSearch)) {
-        if (Arrays.binarySearch(leafNodeIDs, nodeToSearch.cellId) >= 0) {
-          // Reached a leaf node that overlaps the given shape
-          matcher.collect(nodeToSearch.cellId);
-        } else {
-          // Overlapping with a non-leaf node, go deeper to four children
-          Point centerPoint = nodeToSearch.getCenterPoint();
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4,
-              nodeToSearch.x1, nodeToSearch.y1, centerPoint.x, centerPoint.y));
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4 + 1,
-              nodeToSearch.x1, centerPoint.y, centerPoint.x, nodeToSearch.y2));
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4 + 2,
-              centerPoint.x, nodeToSearch.y1, nodeToSearch.x2, centerPoint.y));
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4 + 3,
-              centerPoint.x, centerPoint.y, nodeToSearch.x2, nodeToSearch.y2));
+    IntArray matches = new IntArray();
+    overlapPartitions(shape.getMBR(), matches);
+    for (int i = 0; i < matches.size(); i++)
+      matcher.collect(matches.get(i));
+  }
+
+  @Override
+  public void overlapPartitions(Rectangle shapeMBR, IntArray matches) {
+    if (shapeMBR == null)
+      return;
+    int top = 0;
+    nodeStack[top] = 0; // The root
+    boundsStack[0] = mbr.x1;
+    boundsStack[1] = mbr.y1;
+    boundsStack[2] = mbr.x2;
+    boundsStack[3] = mbr.y2;
+    top++;
+    while (top > 0) {
+      top--;
+      int node = nodeStack[top];
+      double x1 = boundsStack[top * 4];
+      double y1 = boundsStack[top * 4 + 1];
+      double x2 = boundsStack[top * 4 + 2];
+      double y2 = boundsStack[top * 4 + 3];
+      if (!(x2 > shapeMBR.x1 && shapeMBR.x2 > x1 && y2 > shapeMBR.y1 && shapeMBR.y2 > y1))
+        continue;
+      if (firstChild[node] < 0) {
+        // Reached a leaf node that overlaps the given shape
+        if (leaves.get(node))
+          matches.append(nodeIDs[node]);
+      } else {
+        // Overlapping with a non-leaf node, go deeper to four children
+        double centerX = (x1 + x2) / 2;
+        double centerY = (y1 + y2) / 2;
+        for (int iChild = 0; iChild < 4; iChild++) {
+          nodeStack[top] = firstChild[node] + iChild;
+          boundsStack[top * 4] = (iChild & 2) == 0 ? x1 : centerX;
+          boundsStack[top * 4 + 1] = (iChild & 1) == 0 ? y1 : centerY;
+          boundsStack[top * 4 + 2] = (iChild & 2) == 0 ? centerX : x2;
+          boundsStack[top * 4 + 3] = (iChild & 1) == 0 ? centerY : y2;
+          top++;
         }
       }
     }
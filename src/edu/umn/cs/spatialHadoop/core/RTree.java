@@ -26,7 +26,6 @@ import java.util.Vector;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.Reporter;
@@ -119,27 +118,84 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    *          - output stream to write the result to.
    * @param fast_sort
    *          - setting this to <code>true</code> allows the method to run
-   *          faster by materializing the offset of each element in the list
+   *          faster by materializing the MBR of each element in the list
    *          which speeds up the comparison. However, this requires an
-   *          additional 16 bytes per element. So, for each 1M elements, the
-   *          method will require an additional 16 M bytes (approximately).
+   *          additional 32 bytes per element. So, for each 1M elements, the
+   *          method will require an additional 32 M bytes (approximately).
    */
   public void bulkLoadWrite(final byte[] element_bytes, final int offset,
       final int len, final int degree, DataOutput dataOut,
       final boolean fast_sort) {
-    try {
-    
-      // Count number of elements in the given text
-      int i_start = offset;
-      final Text line = new Text();
-      while (i_start < offset + len) {
-        int i_end = skipToEOL(element_bytes, i_start);
-        // Extract the line without end of line character
+    // Count number of elements in the given text
+    int elementCount = 0;
+    int i_start = offset;
+    while (i_start < offset + len) {
+      i_start = skipToEOL(element_bytes, i_start);
+      elementCount++;
+    }
+
+    // Keep track of the offset of each element in the text and parse each
+    // element only once if MBRs are materialized
+    int[] offsets = new int[elementCount];
+    double[] x1s = fast_sort? new double[elementCount] : null;
+    double[] y1s = fast_sort? new double[elementCount] : null;
+    double[] x2s = fast_sort? new double[elementCount] : null;
+    double[] y2s = fast_sort? new double[elementCount] : null;
+    Text line = new Text();
+    i_start = offset;
+    for (int i = 0; i < elementCount; i++) {
+      offsets[i] = i_start;
+      int i_end = skipToEOL(element_bytes, i_start);
+      if (fast_sort) {
         line.set(element_bytes, i_start, i_end - i_start - 1);
         stockObject.fromText(line);
-        elementCount++;
-        i_start = i_end;
+        Rectangle mbr = stockObject.getMBR();
+        x1s[i] = mbr.x1;
+        y1s[i] = mbr.y1;
+        x2s[i] = mbr.x2;
+        y2s[i] = mbr.y2;
       }
+      i_start = i_end;
+    }
+    bulkLoadWrite(element_bytes, offset, len, offsets, elementCount,
+        x1s, y1s, x2s, y2s, degree, dataOut);
+  }
+
+  /**
+   * Builds the RTree given a serialized list of elements with the offset of
+   * each element already known and writes the created tree to the disk
+   * directly. Elements are stored consecutively in the given order, each one
+   * followed by a new line. If the MBRs of the elements are given, the tree is
+   * built without parsing any element. Otherwise, elements are parsed using
+   * the stockObject whenever their MBRs are needed.
+   * 
+   * @param element_bytes
+   *          - serialization of all elements separated by new lines
+   * @param offset
+   *          - offset of the first byte to use in elements_bytes
+   * @param len
+   *          - number of bytes to use in elements_bytes
+   * @param offsets
+   *          - offset of each element in element_bytes
+   * @param elementCount
+   *          - number of elements
+   * @param x1s
+   *          - the MBR of each element or <code>null</code> to parse elements
+   * @param y1s
+   * @param x2s
+   * @param y2s
+   * @param degree
+   *          - Degree of the R-tree to build in terms of number of children per
+   *          node
+   * @param dataOut
+   *          - output stream to write the result to.
+   */
+  public void bulkLoadWrite(final byte[] element_bytes, final int offset,
+      final int len, final int[] offsets, final int elementCount,
+      final double[] x1s, final double[] y1s, final double[] x2s,
+      final double[] y2s, final int degree, DataOutput dataOut) {
+    try {
+      this.elementCount = elementCount;
       LOG.info("Bulk loading an RTree with "+elementCount+" elements");
       
       // It turns out the findBestDegree returns the best degree when the whole
@@ -159,26 +215,21 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
       int nonLeafNodeCount = nodeCount - leafNodeCount;
 
-      // Keep track of the offset of each element in the text
-      final int[] offsets = new int[elementCount];
+      // The order of elements in the tree as positions in the offsets array
+      final int[] ids = new int[elementCount];
+      for (int i = 0; i < elementCount; i++)
+        ids[i] = i;
+      final boolean fast_sort = x1s != null;
       final double[] xs = fast_sort? new double[elementCount] : null;
       final double[] ys = fast_sort? new double[elementCount] : null;
-      
-      i_start = offset;
-      line.clear();
-      for (int i = 0; i < elementCount; i++) {
-        offsets[i] = i_start;
-        int i_end = skipToEOL(element_bytes, i_start);
-        if (xs != null) {
-          // Extract the line with end of line character
-          line.set(element_bytes, i_start, i_end - i_start - 1);
-          stockObject.fromText(line);
+      if (fast_sort) {
+        for (int i = 0; i < elementCount; i++) {
           // Sample center of the shape
-          xs[i] = (stockObject.getMBR().x1 + stockObject.getMBR().x2) / 2;
-          ys[i] = (stockObject.getMBR().y1 + stockObject.getMBR().y2) / 2;
+          xs[i] = (x1s[i] + x2s[i]) / 2;
+          ys[i] = (y1s[i] + y2s[i]) / 2;
         }
-        i_start = i_end;
       }
+      final Text line = new Text();
 
       /**A struct to store information about a split*/
       class SplitStruct extends Rectangle {
@@ -222,9 +273,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
                 ys[i] = ys[j];
                 ys[j] = tempY;
                 // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
+                int tempid = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tempid;
               }
               
               @Override
@@ -249,9 +300,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
                 ys[i] = ys[j];
                 ys[j] = tempY;
                 // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
+                int tempid = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tempid;
               }
               
               @Override
@@ -269,23 +320,17 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
               @Override
               public void swap(int i, int j) {
                 // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
+                int tempid = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tempid;
               }
               
               @Override
               public int compare(int i, int j) {
-                // Get end of line
-                int eol = skipToEOL(element_bytes, offsets[i]);
-                line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-                stockObject.fromText(line);
-                double xi = (stockObject.getMBR().x1 + stockObject.getMBR().x2) / 2;
-
-                eol = skipToEOL(element_bytes, offsets[j]);
-                line.set(element_bytes, offsets[j], eol - offsets[j] - 1);
-                stockObject.fromText(line);
-                double xj = (stockObject.getMBR().x1 + stockObject.getMBR().x2) / 2;
+                Rectangle mbr = parseElement(ids[i]);
+                double xi = (mbr.x1 + mbr.x2) / 2;
+                mbr = parseElement(ids[j]);
+                double xj = (mbr.x1 + mbr.x2) / 2;
                 if (xi < xj)
                   return -1;
                 if (xi > xj)
@@ -298,22 +343,17 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
               @Override
               public void swap(int i, int j) {
                 // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
+                int tempid = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tempid;
               }
               
               @Override
               public int compare(int i, int j) {
-                int eol = skipToEOL(element_bytes, offsets[i]);
-                line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-                stockObject.fromText(line);
-                double yi = (stockObject.getMBR().y1 + stockObject.getMBR().y2) / 2;
-
-                eol = skipToEOL(element_bytes, offsets[j]);
-                line.set(element_bytes, offsets[j], eol - offsets[j] - 1);
-                stockObject.fromText(line);
-                double yj = (stockObject.getMBR().y1 + stockObject.getMBR().y2) / 2;
+                Rectangle mbr = parseElement(ids[i]);
+                double yi = (mbr.y1 + mbr.y2) / 2;
+                mbr = parseElement(ids[j]);
+                double yj = (mbr.y1 + mbr.y2) / 2;
                 if (yi < yj)
                   return -1;
                 if (yi > yj)
@@ -341,6 +381,18 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             i1 = i2;
           }
         }
+
+        /**Deserializes an element and returns its MBR*/
+        Rectangle parseElement(int id) {
+          line.set(element_bytes, offsets[id], elementEnd(id) - offsets[id] - 1);
+          stockObject.fromText(line);
+          return stockObject.getMBR();
+        }
+
+        /**Returns the offset right after the end of line of an element*/
+        int elementEnd(int id) {
+          return id + 1 < elementCount ? offsets[id + 1] : offset + len;
+        }
       }
       
       // All nodes stored in level-order traversal
@@ -363,61 +415,34 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       
       // Now we have our data sorted in the required order. Start building
       // the tree.
-      // Store the offset of each leaf node in the tree
-      FSDataOutputStream fakeOut = null;
-      try {
-        fakeOut = new FSDataOutputStream(new java.io.OutputStream() {
-          // Null output stream
-          @Override
-          public void write(int b) throws IOException {
-            // Do nothing
-          }
-          @Override
-          public void write(byte[] b, int off, int len) throws IOException {
-            // Do nothing
-          }
-          @Override
-          public void write(byte[] b) throws IOException {
-            // Do nothing
-          }
-        }, null, TreeHeaderSize + nodes.size() * NodeSize);
-        for (int i_leaf = nonLeafNodeCount, i=0; i_leaf < nodes.size(); i_leaf++) {
-          nodes.elementAt(i_leaf).offsetOfFirstElement = (int)fakeOut.getPos();
-          if (i != nodes.elementAt(i_leaf).index1) throw new RuntimeException();
-          double x1, y1, x2, y2;
-          
-          // Initialize MBR to first object
-          int eol = skipToEOL(element_bytes, offsets[i]);
-          fakeOut.write(element_bytes, offsets[i],
-              eol - offsets[i]);
-          line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-          stockObject.fromText(line);
-          Rectangle mbr = stockObject.getMBR();
-          x1 = mbr.x1;
-          y1 = mbr.y1;
-          x2 = mbr.x2;
-          y2 = mbr.y2;
-          i++;
-          
-          while (i < nodes.elementAt(i_leaf).index2) {
-            eol = skipToEOL(element_bytes, offsets[i]);
-            fakeOut.write(element_bytes, offsets[i],
-                eol - offsets[i]);
-            line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-            stockObject.fromText(line);
-            mbr = stockObject.getMBR();
+      // Store the offset of each leaf node in the tree. Elements are written
+      // right after the tree structure in the sorted order.
+      int elementOffset = TreeHeaderSize + nodes.size() * NodeSize;
+      for (int i_leaf = nonLeafNodeCount, i=0; i_leaf < nodes.size(); i_leaf++) {
+        SplitStruct leaf = nodes.elementAt(i_leaf);
+        leaf.offsetOfFirstElement = elementOffset;
+        if (i != leaf.index1) throw new RuntimeException();
+        double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+        double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+        
+        while (i < leaf.index2) {
+          int id = ids[i];
+          elementOffset += leaf.elementEnd(id) - offsets[id];
+          if (fast_sort) {
+            if (x1s[id] < x1) x1 = x1s[id];
+            if (y1s[id] < y1) y1 = y1s[id];
+            if (x2s[id] > x2) x2 = x2s[id];
+            if (y2s[id] > y2) y2 = y2s[id];
+          } else {
+            Rectangle mbr = leaf.parseElement(id);
             if (mbr.x1 < x1) x1 = mbr.x1;
             if (mbr.y1 < y1) y1 = mbr.y1;
             if (mbr.x2 > x2) x2 = mbr.x2;
             if (mbr.y2 > y2) y2 = mbr.y2;
-            i++;
           }
-          nodes.elementAt(i_leaf).set(x1, y1, x2, y2);
+          i++;
         }
-        
-      } finally {
-        if (fakeOut != null)
-          fakeOut.close();
+        leaf.set(x1, y1, x2, y2);
       }
       
       // Calculate MBR and offsetOfFirstElement for non-leaves
@@ -460,10 +485,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         node.write(dataOut);
       }
       // write elements
+      SplitStruct root = nodes.elementAt(0);
       for (int element_i = 0; element_i < elementCount; element_i++) {
-        int eol = skipToEOL(element_bytes, offsets[element_i]);
-        dataOut.write(element_bytes, offsets[element_i],
-            eol - offsets[element_i]);
+        int id = ids[element_i];
+        dataOut.write(element_bytes, offsets[id], root.elementEnd(id) - offsets[id]);
       }
       
     } catch (IOException e) {
@@ -8,14 +8,12 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.core;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +32,9 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
   
   /**The maximum storage (in bytes) that can be accepted by the user*/
   protected int maximumStorageOverhead;
+  
+  /**Maximum number of closed cells kept in memory until their RTrees are built*/
+  private static final int MaxPendingCells = 2;
 
   /**
    * Initializes a new RTreeGridRecordWriter.
@@ -55,6 +56,78 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
         (int) (conf.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.1f) * blockSize);
   }
   
+  /**
+   * Collects the records of one cell in memory until the cell is closed.
+   * Records are kept in their text representation, each followed by a new
+   * line, along with the offset of each record and, optionally, its MBR. This
+   * allows the RTree to be bulk loaded without writing the records to a
+   * temporary file or parsing them again. It is stored as the intermediate
+   * stream of the cell so that it is closed the same way other cells are.
+   * @author Ahmed Eldawy
+   *
+   */
+  protected static class CellBuilder extends ByteArrayOutputStream {
+    /**Offset of each record in the buffer*/
+    private int[] offsets;
+    /**MBRs of all records or null if not materialized*/
+    private double[] x1s, y1s, x2s, y2s;
+    /**Number of records added*/
+    private int recordCount;
+
+    public CellBuilder(boolean materializeMBRs) {
+      super(64 * 1024);
+      offsets = new int[16];
+      if (materializeMBRs) {
+        x1s = new double[16];
+        y1s = new double[16];
+        x2s = new double[16];
+        y2s = new double[16];
+      }
+    }
+
+    /**
+     * Adds one record to this cell.
+     * @param mbr - the MBR of the record
+     * @param bytes - text representation of the record
+     * @param length - number of bytes in the text representation
+     * @param newLine - the new line marker written after the record
+     */
+    public void addRecord(Rectangle mbr, byte[] bytes, int length, byte[] newLine) {
+      if (recordCount == offsets.length) {
+        int newCapacity = offsets.length * 2;
+        offsets = Arrays.copyOf(offsets, newCapacity);
+        if (x1s != null) {
+          x1s = Arrays.copyOf(x1s, newCapacity);
+          y1s = Arrays.copyOf(y1s, newCapacity);
+          x2s = Arrays.copyOf(x2s, newCapacity);
+          y2s = Arrays.copyOf(y2s, newCapacity);
+        }
+      }
+      offsets[recordCount] = count;
+      if (x1s != null) {
+        x1s[recordCount] = mbr.x1;
+        y1s[recordCount] = mbr.y1;
+        x2s[recordCount] = mbr.x2;
+        y2s[recordCount] = mbr.y2;
+      }
+      recordCount++;
+      write(bytes, 0, length);
+      write(newLine, 0, newLine.length);
+    }
+
+    /**
+     * Bulk loads the given RTree from all records in this cell and writes it
+     * to the given output.
+     * @param rtree
+     * @param degree
+     * @param out
+     */
+    public void bulkLoadWrite(RTree<?> rtree, int degree, DataOutput out) {
+      rtree.bulkLoadWrite(buf, 0, count, offsets, recordCount,
+          x1s, y1s, x2s, y2s, degree, out);
+    }
+  }
+
   @Override
   protected synchronized void writeInternal(int cellIndex, S shape)
       throws IOException {
@@ -82,33 +155,49 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
             intermediateCellSize[cellIndex]);
         // Writing this element will get the degree above the threshold
         // Flush current file and start a new file
-        super.writeInternal(-cellIndex, null);
+        closeCell(cellIndex);
       }
     }
     
-    super.writeInternal(cellIndex, shape);
+    // Add the record to the cell using the text computed above
+    Rectangle mbr = shape.getMBR();
+    cellsMbr[cellIndex].expand(mbr);
+    CellBuilder cell = (CellBuilder) getIntermediateCellStream(cellIndex);
+    cell.addRecord(mbr, text.getBytes(), text.getLength(), NEW_LINE);
+    intermediateCellSize[cellIndex] += text.getLength() + NEW_LINE.length;
+    intermediateCellRecordCount[cellIndex]++;
   }
   
   /**
-   * Closes a cell by writing all outstanding objects and closing current file.
-   * Then, the file is read again, an RTree is built on top of it and, finally,
-   * the file is written again with the RTree built.
+   * Closes a cell and makes sure that only a few closed cells are kept in
+   * memory waiting for their RTrees to be built.
+   */
+  @Override
+  protected void closeCell(int cellIndex) throws IOException {
+    super.closeCell(cellIndex);
+    while (closingThreads.size() > MaxPendingCells) {
+      Thread t = closingThreads.get(0);
+      if (t.getState() == Thread.State.NEW)
+        t.start();
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while building an RTree", e);
+      }
+      closingThreads.remove(0);
+    }
+  }
+  
+  /**
+   * Closes a cell by building an RTree over all records collected in memory
+   * and writing it to the final cell file.
    */
   @Override
   protected Path flushAllEntries(Path intermediateCellPath,
       OutputStream intermediateCellStream, Path finalCellPath) throws IOException {
-    // Close stream to current intermediate file.
-    intermediateCellStream.close();
+    CellBuilder cell = (CellBuilder) intermediateCellStream;
 
-    // Read all data of the written file in memory
-    byte[] cellData = new byte[(int) new File(intermediateCellPath.toUri()
-        .getPath()).length()];
-    InputStream cellIn = new FileInputStream(intermediateCellPath.toUri()
-        .getPath());
-    cellIn.read(cellData);
-    cellIn.close();
-
-    // Build an RTree over the elements read from file
+    // Build an RTree over the elements collected in memory
     RTree<S> rtree = new RTree<S>();
     rtree.setStockObject((S) stockObject.clone());
     // It should create a new stream
@@ -116,10 +205,8 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
       (DataOutputStream) createFinalCellStream(finalCellPath);
     cellStream.writeLong(SpatialSite.RTreeFileMarker);
     int degree = 4096 / RTree.NodeSize;
-    rtree.bulkLoadWrite(cellData, 0, cellData.length, degree, cellStream,
-        fastRTree);
+    cell.bulkLoadWrite(rtree, degree, cellStream);
     cellStream.close();
-    cellData = null; // To allow GC to collect it
     
     return finalCellPath;
   }
@@ -127,13 +214,8 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
   @Override
   protected OutputStream getIntermediateCellStream(int cellIndex)
       throws IOException {
-    if (intermediateCellStreams[cellIndex] == null) {
-      // For grid file, we write directly to the final file
-      File tempFile = File.createTempFile(String.format("%05d", cellIndex), "rtree");
-      intermediateCellStreams[cellIndex] = new BufferedOutputStream(
-          new FileOutputStream(tempFile));
-      intermediateCellPath[cellIndex] = new Path(tempFile.getPath());
-    }
+    if (intermediateCellStreams[cellIndex] == null)
+      intermediateCellStreams[cellIndex] = new CellBuilder(fastRTree);
     return intermediateCellStreams[cellIndex];
   }
   
@@ -0,0 +1,197 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * A read-only in-memory R-tree over a set of shapes. The MBRs of the shapes
+ * are bulk loaded once using the Sort-Tile-Recursive (STR) algorithm and the
+ * tree is stored in a few primitive arrays. Unlike {@link RTree}, it does not
+ * need the shapes to be serialized and it can be searched concurrently by
+ * many threads, e.g., to probe it with all records of a large file in a
+ * broadcast join.
+ *
+ * Search results are reported as positions in the array of shapes given to
+ * the constructor. Shapes with no MBR are skipped.
+ * @author Ahmed Eldawy
+ *
+ */
+public class STRIndex<S extends Shape> {
+  /**Maximum number of children in each node of the tree*/
+  private static final int Capacity = 32;
+
+  /**The indexed shapes as given to the constructor*/
+  private final S[] shapes;
+
+  /**Coordinates of all entries in all levels with leaf entries first*/
+  private double[] x1s, y1s, x2s, y2s;
+
+  /**Position of the shape of each leaf entry in the array of shapes*/
+  private int[] positions;
+
+  /**Index of the first entry of each level. The last level is the root.*/
+  private int[] levelStart;
+
+  public STRIndex(S[] shapes) {
+    this.shapes = shapes;
+    Rectangle[] mbrs = new Rectangle[shapes.length];
+    int numOfShapes = 0;
+    for (int i = 0; i < shapes.length; i++) {
+      mbrs[i] = shapes[i].getMBR();
+      if (mbrs[i] != null)
+        numOfShapes++;
+    }
+    positions = new int[numOfShapes];
+    final double[] centers = new double[numOfShapes * 2];
+    numOfShapes = 0;
+    for (int i = 0; i < shapes.length; i++) {
+      if (mbrs[i] != null) {
+        positions[numOfShapes] = i;
+        centers[numOfShapes * 2] = (mbrs[i].x1 + mbrs[i].x2) / 2;
+        centers[numOfShapes * 2 + 1] = (mbrs[i].y1 + mbrs[i].y2) / 2;
+        numOfShapes++;
+      }
+    }
+
+    // Sort-Tile-Recursive. Sort by x then split into vertical slices, each
+    // one is sorted by y so that consecutive entries are close in space
+    final int[] sortAttr = new int[1];
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        int tempPosition = positions[i];
+        positions[i] = positions[j];
+        positions[j] = tempPosition;
+        for (int d = 0; d < 2; d++) {
+          double tempCenter = centers[i * 2 + d];
+          centers[i * 2 + d] = centers[j * 2 + d];
+          centers[j * 2 + d] = tempCenter;
+        }
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        double diff = centers[i * 2 + sortAttr[0]] - centers[j * 2 + sortAttr[0]];
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    };
+    QuickSort quickSort = new QuickSort();
+    int numOfLeafNodes = (numOfShapes + Capacity - 1) / Capacity;
+    int numOfSlices = Math.max(1, (int) Math.ceil(Math.sqrt(numOfLeafNodes)));
+    int sliceSize = numOfSlices * Capacity;
+    if (numOfShapes > 0)
+      quickSort.sort(sortable, 0, numOfShapes);
+    sortAttr[0] = 1;
+    for (int sliceStart = 0; sliceStart < numOfShapes; sliceStart += sliceSize)
+      quickSort.sort(sortable, sliceStart, Math.min(numOfShapes, sliceStart + sliceSize));
+
+    // Compute the number of entries in all levels
+    int numOfLevels = 1;
+    int totalEntries = numOfShapes;
+    int levelSize = numOfShapes;
+    while (levelSize > 1) {
+      levelSize = (levelSize + Capacity - 1) / Capacity;
+      totalEntries += levelSize;
+      numOfLevels++;
+    }
+    levelStart = new int[numOfLevels + 1];
+    x1s = new double[totalEntries];
+    y1s = new double[totalEntries];
+    x2s = new double[totalEntries];
+    y2s = new double[totalEntries];
+    for (int i = 0; i < numOfShapes; i++) {
+      Rectangle mbr = mbrs[positions[i]];
+      x1s[i] = mbr.x1;
+      y1s[i] = mbr.y1;
+      x2s[i] = mbr.x2;
+      y2s[i] = mbr.y2;
+    }
+    levelStart[0] = 0;
+    levelStart[1] = numOfShapes;
+    // Each node covers the MBR of the next Capacity entries in the level below
+    for (int level = 1; level < numOfLevels; level++) {
+      int childStart = levelStart[level - 1];
+      int childEnd = levelStart[level];
+      int entry = levelStart[level];
+      for (int child = childStart; child < childEnd; child += Capacity) {
+        x1s[entry] = y1s[entry] = Double.MAX_VALUE;
+        x2s[entry] = y2s[entry] = -Double.MAX_VALUE;
+        for (int i = child; i < Math.min(childEnd, child + Capacity); i++) {
+          x1s[entry] = Math.min(x1s[entry], x1s[i]);
+          y1s[entry] = Math.min(y1s[entry], y1s[i]);
+          x2s[entry] = Math.max(x2s[entry], x2s[i]);
+          y2s[entry] = Math.max(y2s[entry], y2s[i]);
+        }
+        entry++;
+      }
+      levelStart[level + 1] = entry;
+    }
+  }
+
+  /**
+   * Number of shapes in the index
+   * @return
+   */
+  public int size() {
+    return positions.length;
+  }
+
+  /**
+   * Returns the shape at the given position in the array of shapes
+   * @param position
+   * @return
+   */
+  public S get(int position) {
+    return shapes[position];
+  }
+
+  /**
+   * Finds all shapes with an MBR that overlaps or touches the given
+   * rectangle. The positions of the matching shapes are appended to the given
+   * array in no particular order. The caller is responsible for refining the
+   * results with the exact test of the shapes.
+   * This method is thread safe.
+   * @param rect
+   * @param result
+   * @return number of matching shapes
+   */
+  public int search(Rectangle rect, IntArray result) {
+    if (positions.length == 0)
+      return 0;
+    int numOfMatches = 0;
+    int topLevel = levelStart.length - 2;
+    // A stack of entries to visit which holds at most Capacity entries per level
+    int[] stack = new int[Math.max(1, (topLevel + 1) * Capacity)];
+    int top = 0;
+    stack[top++] = levelStart[topLevel];
+    while (top > 0) {
+      int entry = stack[--top];
+      if (x2s[entry] < rect.x1 || rect.x2 < x1s[entry] ||
+          y2s[entry] < rect.y1 || rect.y2 < y1s[entry])
+        continue;
+      if (entry < levelStart[1]) {
+        result.append(positions[entry]);
+        numOfMatches++;
+      } else {
+        int level = 1;
+        while (entry >= levelStart[level + 1])
+          level++;
+        int firstChild = levelStart[level - 1] + (entry - levelStart[level]) * Capacity;
+        int lastChild = Math.min(levelStart[level], firstChild + Capacity);
+        for (int child = firstChild; child < lastChild; child++)
+          stack[top++] = child;
+      }
+    }
+    return numOfMatches;
+  }
+}
@@ -8,12 +8,14 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.hdf;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
+import edu.umn.cs.spatialHadoop.io.InputSubstream;
+
 /**
  * A block that stores compressed data.
  * TagID DFTAG_COMPRESSED
@@ -36,19 +38,58 @@ public class DDCompressedBlock extends DataDescriptor {
   }
   
   protected InputStream decompressDeflate(int level) throws IOException {
-    // We need to retrieve the raw data first and then pass it to the
-    // decompressor. Otherwise, the decompressor will not be able to determine
-    // the end-of-file
-    // TODO try to create a wrapper stream that reads only the correct amount
-    // of bytes without having to load everything in memory
-    byte[] rawData = new byte[getLength()];
+    // Limit the input of the decompressor to the compressed bytes of this
+    // block so that it can determine the end-of-file. The compressed data is
+    // inflated as it is read without loading the whole block in memory.
     hdfFile.inStream.seek(offset);
-    hdfFile.inStream.readFully(rawData);
-    InputStream decompressedData =
-        new InflaterInputStream(new ByteArrayInputStream(rawData));
+    InputStream decompressedData = new BlockInflaterStream(
+        new InputSubstream(hdfFile.inStream, getLength()));
     return decompressedData;
   }
 
+  /**
+   * Inflates the data of one block. The inflater is released as soon as the
+   * compressed data is consumed or the stream is closed as the streams
+   * returned for data descriptors are not always closed. Closing this stream
+   * does not close the underlying file which is shared by all blocks.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class BlockInflaterStream extends InflaterInputStream {
+    private boolean ended;
+
+    BlockInflaterStream(InputStream in) {
+      super(in, new Inflater(), 64 * 1024);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (ended)
+        return -1;
+      int bytesRead = super.read(b, off, len);
+      if (inf.finished() || bytesRead == -1)
+        end();
+      return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return ended ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      end();
+    }
+
+    private void end() {
+      if (!ended) {
+        ended = true;
+        inf.end();
+      }
+    }
+  }
+
   public String toString() {
     return String.format("Compressed block <%d, %d>", tagID, refNo);
   }
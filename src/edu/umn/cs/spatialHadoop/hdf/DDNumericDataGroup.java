@@ -10,7 +10,7 @@ package edu.umn.cs.spatialHadoop.hdf;
 
 import java.io.DataInput;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
 import java.util.Arrays;
 
 /**
@@ -90,44 +90,49 @@ public class DDNumericDataGroup extends DataDescriptor {
   }
 
   
-  public Object getAsTypedArray() throws IOException {
+  /**
+   * Opens a stream over the raw values of this group. The values are
+   * decompressed while they are read. Use {@link NumericDataReader} to read
+   * them as primitive values.
+   * @return
+   * @throws IOException
+   */
+  InputStream openValuesStream() throws IOException {
     lazyLoad();
-    int overallSize = 0;
-    int type = 0;
-    byte[] rawData = null;
-    for (int i = 0; i < members.length; i++) {
-      if (members[i].tagID == HDFConstants.DFTAG_SDD) {
-        // Dimensions of the array
-        DDScientificDDR ddr = (DDScientificDDR)hdfFile.retrieveElementByID(members[i]);
-        overallSize = 1;
-        for (int dim : ddr.getDimensions())
-          overallSize *= dim;
-      } else if (members[i].tagID == HDFConstants.DFTAG_NT) {
-        // Number type
-        DDNumberType nt = (DDNumberType)hdfFile.retrieveElementByID(members[i]);
-        type = nt.getNumberType();
-      } else if (members[i].tagID == HDFConstants.DFTAG_SD) {
-        rawData = ((DDScientificData)hdfFile.retrieveElementByID(members[i])).getData();
-      }
-    }
-    if (rawData == null) {
-      return null;
-    }
-    ByteBuffer bbuffer = ByteBuffer.wrap(rawData);
+    for (int i = 0; i < members.length; i++)
+      if (members[i].tagID == HDFConstants.DFTAG_SD)
+        return hdfFile.retrieveElementByID(members[i]).openDataStream();
+    return null;
+  }
+
+  /**
+   * Returns all values as an array of the corresponding primitive type. The
+   * values are decoded directly from the decompressed stream without keeping
+   * a copy of the raw bytes.
+   * @return
+   * @throws IOException
+   */
+  public Object getAsTypedArray() throws IOException {
+    int type = getDataType();
+    NumericDataReader reader;
     switch (type) {
     case HDFConstants.DFNT_UINT16:
-      short[] values = new short[overallSize];
-      for (int i = 0; i < values.length; i++)
-        values[i] = bbuffer.getShort();
+      reader = new NumericDataReader(this);
+      short[] values = new short[reader.getNumValues()];
+      reader.read(values, 0, values.length);
       return values;
     case HDFConstants.DFNT_UINT8:
-      return rawData;
+      reader = new NumericDataReader(this);
+      byte[] bytes = new byte[reader.getNumValues()];
+      reader.read(bytes, 0, bytes.length);
+      return bytes;
     default:
       throw new RuntimeException("Unsupported type "+type);
     }
   }
   
   public int[] getDimensions() throws IOException {
+    lazyLoad();
     for (int i = 0; i < members.length; i++) {
       if (members[i].tagID == HDFConstants.DFTAG_SDD) {
         // Dimensions of the array
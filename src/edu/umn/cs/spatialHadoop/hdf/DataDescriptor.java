@@ -8,12 +8,13 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.hdf;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import edu.umn.cs.spatialHadoop.io.InputSubstream;
+
 /**
  * An abstract class for any data descriptor
  * @author Ahmed Eldawy
@@ -61,31 +62,47 @@ public abstract class DataDescriptor {
   
   protected void lazyLoad() throws IOException {
     if (!loaded) {
-      hdfFile.inStream.seek(offset);
       if (!extended) {
         // Read from the input file directly
+        hdfFile.inStream.seek(offset);
         readFields(hdfFile.inStream);
       } else {
         // Extended block. Need to retrieve extended data first
-        int extensionType = hdfFile.inStream.readUnsignedShort();
-        if (extensionType == HDFConstants.SPECIAL_COMP) {
-          readCompressedData();
-        } else if (extensionType == HDFConstants.SPECIAL_CHUNKED) {
-          // Chunked data
-          readChunkedData();
-        } else {
-          System.err.println("Unsupported extension type "+extensionType);
-        }
+        InputStream extendedData = openDataStream();
+        if (extendedData != null)
+          readFields(new DataInputStream(extendedData));
       }
       loaded = true;
     }
   }
+  
+  /**
+   * Opens a stream over the data of this descriptor. Compressed data is
+   * decompressed while it is read rather than being loaded in memory first.
+   * The returned stream reads directly from the underlying file and should be
+   * consumed before any other data descriptor in the same file is accessed.
+   * @return the data stream or <code>null</code> if the format of the data
+   *   is not supported.
+   * @throws IOException
+   */
+  protected InputStream openDataStream() throws IOException {
+    hdfFile.inStream.seek(offset);
+    if (!extended)
+      return new InputSubstream(hdfFile.inStream, length);
+    int extensionType = hdfFile.inStream.readUnsignedShort();
+    if (extensionType == HDFConstants.SPECIAL_COMP)
+      return openCompressedData();
+    if (extensionType == HDFConstants.SPECIAL_CHUNKED)
+      return openChunkedData();
+    System.err.println("Unsupported extension type "+extensionType);
+    return null;
+  }
 
   /**
-   * Read extended block that is available as compressed data
+   * Opens an extended block that is available as compressed data
    * @throws IOException
    */
-  private void readCompressedData() throws IOException {
+  private InputStream openCompressedData() throws IOException {
     int compressionVersion = hdfFile.inStream.readUnsignedShort();
     extendedLength = hdfFile.inStream.readInt();
     int linkedRefNo = hdfFile.inStream.readUnsignedShort();
@@ -97,18 +114,18 @@ public abstract class DataDescriptor {
       DDID linkedBlockID = new DDID(HDFConstants.DFTAG_COMPRESSED, linkedRefNo);
       DDCompressedBlock linkedBlock =
           (DDCompressedBlock) hdfFile.retrieveElementByID(linkedBlockID);
-      InputStream decompressedData = linkedBlock.decompressDeflate(deflateLevel);
-      readFields(new DataInputStream(decompressedData));
+      return linkedBlock.decompressDeflate(deflateLevel);
     } else {
       System.err.println("Unsupported compression "+compressionType);
+      return null;
     }
   }
   
   /**
-   * Read chunked data
+   * Opens chunked data
    * @throws IOException
    */
-  private void readChunkedData() throws IOException {
+  private InputStream openChunkedData() throws IOException {
     int sp_tag_head_len = hdfFile.inStream.readInt();
     int version = hdfFile.inStream.readUnsignedByte();
     int flag = hdfFile.inStream.readInt();
@@ -149,12 +166,11 @@ public abstract class DataDescriptor {
       Object[] chunkInformation = (Object[]) chunkTable.getEntryAt(0);
       DDID chunkedID = new DDID((Integer)chunkInformation[1], (Integer)chunkInformation[2]);
       DDChunkData chunkObject = (DDChunkData) hdfFile.retrieveElementByID(chunkedID);
-      byte[] dataInChunk = chunkObject.getData();
-      this.extendedLength = dataInChunk.length;
-      DataInputStream dis = new DataInputStream(new ByteArrayInputStream(dataInChunk));
-      this.readFields(dis);
-      dis.close();
+      InputStream dataInChunk = chunkObject.openDataStream();
+      this.extendedLength = chunkObject.getLength();
+      return dataInChunk;
     }
+    return null;
   }
   
   /**
@@ -0,0 +1,171 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.hdf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the values of a numeric data group as primitive values. The
+ * underlying data is decompressed chunk by chunk while values are read so
+ * that the caller can either load all values in one primitive array or
+ * iterate over them using a small reusable buffer. Values are read in the
+ * same order they are stored (row-major) and are treated as unsigned like
+ * {@link HDFConstants#readAsAinteger(byte[], int, int)}.
+ *
+ * While values are being read, no other data descriptor in the same
+ * {@link HDFFile} should be accessed because they share the same stream.
+ * @author Ahmed Eldawy
+ *
+ */
+public class NumericDataReader {
+
+  /**The stream of raw (decompressed) values*/
+  private InputStream in;
+
+  /**Number of bytes per value*/
+  private int valueSize;
+
+  /**Dimensions of the array of values*/
+  private int[] dimensions;
+
+  /**Total number of values*/
+  private int numValues;
+
+  /**Number of values read so far*/
+  private int valuesRead;
+
+  /**A reusable buffer for raw bytes read from the stream*/
+  private byte[] buffer;
+
+  public NumericDataReader(DDNumericDataGroup numericDataGroup) throws IOException {
+    this.valueSize = numericDataGroup.getDataSize();
+    if (valueSize < 1 || valueSize > 4)
+      throw new RuntimeException("Unsupported value size "+valueSize);
+    this.dimensions = numericDataGroup.getDimensions();
+    this.numValues = 1;
+    for (int dim : dimensions)
+      this.numValues *= dim;
+    // Open the stream last because it shares the file with other descriptors
+    this.in = numericDataGroup.openValuesStream();
+    if (this.in == null)
+      throw new RuntimeException("Cannot read values of "+numericDataGroup);
+    this.buffer = new byte[64 * 1024 / valueSize * valueSize];
+  }
+
+  public int getValueSize() {
+    return valueSize;
+  }
+
+  public int[] getDimensions() {
+    return dimensions;
+  }
+
+  public int getNumValues() {
+    return numValues;
+  }
+
+  /**
+   * Number of values that have not been read yet
+   * @return
+   */
+  public int getRemainingValues() {
+    return numValues - valuesRead;
+  }
+
+  /**
+   * Reads the raw bytes of the next values into the buffer.
+   * @param maxValues maximum number of values to read
+   * @return number of values available in the buffer
+   * @throws IOException
+   */
+  private int fillBuffer(int maxValues) throws IOException {
+    int values = Math.min(maxValues,
+        Math.min(buffer.length / valueSize, numValues - valuesRead));
+    int bytesToRead = values * valueSize;
+    int offset = 0;
+    while (offset < bytesToRead) {
+      int bytesRead = in.read(buffer, offset, bytesToRead - offset);
+      if (bytesRead < 0)
+        throw new EOFException("Data ended after "+(valuesRead * valueSize + offset)+" bytes");
+      offset += bytesRead;
+    }
+    valuesRead += values;
+    return values;
+  }
+
+  /**
+   * Reads values of one byte each.
+   * @param values
+   * @param offset
+   * @param length
+   * @return number of values read or -1 if all values have been read
+   * @throws IOException
+   */
+  public int read(byte[] values, int offset, int length) throws IOException {
+    if (valueSize != 1)
+      throw new RuntimeException("Cannot read values of size "+valueSize+" as bytes");
+    if (valuesRead == numValues)
+      return -1;
+    int totalValues = 0;
+    while (totalValues < length && valuesRead < numValues) {
+      int count = fillBuffer(length - totalValues);
+      System.arraycopy(buffer, 0, values, offset + totalValues, count);
+      totalValues += count;
+    }
+    return totalValues;
+  }
+
+  /**
+   * Reads values of two bytes each.
+   * @param values
+   * @param offset
+   * @param length
+   * @return number of values read or -1 if all values have been read
+   * @throws IOException
+   */
+  public int read(short[] values, int offset, int length) throws IOException {
+    if (valueSize != 2)
+      throw new RuntimeException("Cannot read values of size "+valueSize+" as shorts");
+    if (valuesRead == numValues)
+      return -1;
+    int totalValues = 0;
+    while (totalValues < length && valuesRead < numValues) {
+      int count = fillBuffer(length - totalValues);
+      int i = offset + totalValues;
+      for (int b = 0; b < count * 2; b += 2)
+        values[i++] = (short) (((buffer[b] & 0xff) << 8) | (buffer[b + 1] & 0xff));
+      totalValues += count;
+    }
+    return totalValues;
+  }
+
+  /**
+   * Reads values of any size as integers.
+   * @param values
+   * @param offset
+   * @param length
+   * @return number of values read or -1 if all values have been read
+   * @throws IOException
+   */
+  public int read(int[] values, int offset, int length) throws IOException {
+    if (valuesRead == numValues)
+      return -1;
+    int totalValues = 0;
+    while (totalValues < length && valuesRead < numValues) {
+      int count = fillBuffer(length - totalValues);
+      int i = offset + totalValues;
+      for (int b = 0; b < count * valueSize; b += valueSize)
+        values[i++] = HDFConstants.readAsAinteger(buffer, b, valueSize);
+      totalValues += count;
+    }
+    return totalValues;
+  }
+}
@@ -0,0 +1,164 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A least-recently-used cache of decompressed blocks of files written by
+ * {@link RandomCompressedOutputStream}. The cache is bounded by the total
+ * size of the cached blocks in bytes. One shared instance is used by all
+ * streams opened on the same files in one JVM so that random access over
+ * the same file costs a memory copy rather than decompressing the block again.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BlockCache {
+  private static final Log LOG = LogFactory.getLog(BlockCache.class);
+
+  /**Configuration key for the capacity of the shared cache in bytes*/
+  public static final String SharedCacheSize = "spatialHadoop.compress.BlockCacheSize";
+
+  /**Default capacity of the shared cache in bytes*/
+  public static final long DefaultSharedCacheSize = 128 * 1024 * 1024;
+
+  /**The cache shared by all streams in this JVM*/
+  private static BlockCache sharedCache;
+
+  /**Identifies a block in a specific version of a file*/
+  static class BlockKey {
+    final Object fileKey;
+    final int blockIndex;
+
+    BlockKey(Object fileKey, int blockIndex) {
+      this.fileKey = fileKey;
+      this.blockIndex = blockIndex;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BlockKey))
+        return false;
+      BlockKey other = (BlockKey) obj;
+      return this.blockIndex == other.blockIndex && this.fileKey.equals(other.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return fileKey.hashCode() * 31 + blockIndex;
+    }
+  }
+
+  /**Cached blocks in access order*/
+  private LinkedHashMap<BlockKey, byte[]> blocks;
+
+  /**Maximum total size of cached blocks in bytes*/
+  private long capacity;
+
+  /**Total size of currently cached blocks in bytes*/
+  private long size;
+
+  /**Number of lookups that found their block in the cache*/
+  private long hits;
+
+  /**Number of lookups that did not find their block in the cache*/
+  private long misses;
+
+  public BlockCache(long capacity) {
+    this.capacity = capacity;
+    this.blocks = new LinkedHashMap<BlockKey, byte[]>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the cache shared by all streams in this JVM. The capacity is
+   * taken from the configuration of the first caller. Returns
+   * <code>null</code> if the shared cache is disabled by setting its size
+   * to zero.
+   * @param conf
+   * @return
+   */
+  public static synchronized BlockCache getSharedCache(Configuration conf) {
+    if (sharedCache == null) {
+      long capacity = conf == null ? DefaultSharedCacheSize :
+        conf.getLong(SharedCacheSize, DefaultSharedCacheSize);
+      if (capacity <= 0)
+        return null;
+      LOG.info("Creating a shared block cache of "+capacity+" bytes");
+      sharedCache = new BlockCache(capacity);
+    }
+    return sharedCache;
+  }
+
+  /**
+   * Returns the decompressed data of a block or <code>null</code> if it is
+   * not cached.
+   * @param fileKey
+   * @param blockIndex
+   * @return
+   */
+  public synchronized byte[] get(Object fileKey, int blockIndex) {
+    byte[] data = blocks.get(new BlockKey(fileKey, blockIndex));
+    if (data == null)
+      misses++;
+    else
+      hits++;
+    return data;
+  }
+
+  /**
+   * Adds a decompressed block to the cache evicting the least recently used
+   * blocks if needed. Blocks larger than the whole cache are not cached.
+   * @param fileKey
+   * @param blockIndex
+   * @param data
+   */
+  public synchronized void put(Object fileKey, int blockIndex, byte[] data) {
+    if (data.length > capacity)
+      return;
+    byte[] oldData = blocks.put(new BlockKey(fileKey, blockIndex), data);
+    if (oldData != null)
+      size -= oldData.length;
+    size += data.length;
+    Iterator<Map.Entry<BlockKey, byte[]>> lru = blocks.entrySet().iterator();
+    while (size > capacity && lru.hasNext()) {
+      size -= lru.next().getValue().length;
+      lru.remove();
+    }
+  }
+
+  /**
+   * Removes a block from the cache.
+   * @param fileKey
+   * @param blockIndex
+   */
+  public synchronized void invalidate(Object fileKey, int blockIndex) {
+    byte[] oldData = blocks.remove(new BlockKey(fileKey, blockIndex));
+    if (oldData != null)
+      size -= oldData.length;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**Total size of currently cached blocks in bytes*/
+  public synchronized long getSize() {
+    return size;
+  }
+}
@@ -0,0 +1,366 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Compresses and decompresses the separate blocks of a file written by
+ * {@link RandomCompressedOutputStream}. A codec is identified by its name and
+ * a compression level which are both stored in the trailer of the file so that
+ * {@link RandomCompressedInputStream} can read it back with the same codec.
+ *
+ * A codec instance keeps some reusable state (e.g., a deflater) and should
+ * be used by one stream at a time.
+ * @author Ahmed Eldawy
+ *
+ */
+public abstract class BlockCodec {
+  private static final Log LOG = LogFactory.getLog(BlockCodec.class);
+
+  /**Blocks are compressed as separate gzip streams (the original format)*/
+  public static final String GZIP = "gzip";
+
+  /**Blocks are compressed as raw zlib streams with no gzip header*/
+  public static final String DEFLATE = "deflate";
+
+  /**Picks the fastest codec available in the classpath*/
+  public static final String FAST = "fast";
+
+  /**Configuration key for the codec used to compress new files*/
+  public static final String CodecName = "spatialHadoop.compress.BlockCodec";
+
+  /**Configuration key for the compression level of deflate-based codecs*/
+  public static final String CodecLevel = "spatialHadoop.compress.BlockCodecLevel";
+
+  /**Hadoop codecs tried, in order, when the fast codec is requested*/
+  private static final String[] FastCodecs = {
+    "org.apache.hadoop.io.compress.Lz4Codec",
+    "org.apache.hadoop.io.compress.SnappyCodec",
+  };
+
+  /**Name of the codec as stored in the file trailer*/
+  protected final String name;
+
+  /**Compression level or -1 for the default level of the codec*/
+  protected final int level;
+
+  protected BlockCodec(String name, int level) {
+    this.name = name;
+    this.level = level;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Starts a new compressed block that writes its compressed bytes to the
+   * given stream.
+   * @param out
+   * @return
+   * @throws IOException
+   */
+  public abstract OutputStream createOutputStream(OutputStream out) throws IOException;
+
+  /**
+   * Completes a block that was started with {@link #createOutputStream}
+   * without closing the underlying stream.
+   * @param blockOut
+   * @throws IOException
+   */
+  public abstract void finish(OutputStream blockOut) throws IOException;
+
+  /**
+   * Creates a stream that decompresses one block read from the given stream.
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public abstract InputStream createInputStream(InputStream in) throws IOException;
+
+  /**
+   * Decompresses one complete block into the given buffer. The length must
+   * be the number of decompressed bytes in the block. The given stream might
+   * be closed when done.
+   * @param in
+   * @param buffer
+   * @param offset
+   * @param length
+   * @throws IOException
+   */
+  public void decompress(InputStream in, byte[] buffer, int offset, int length)
+      throws IOException {
+    InputStream blockIn = createInputStream(in);
+    while (length > 0) {
+      int bytesRead = blockIn.read(buffer, offset, length);
+      if (bytesRead < 0)
+        throw new EOFException("Compressed block ended with "+length+" bytes missing");
+      offset += bytesRead;
+      length -= bytesRead;
+    }
+    releaseInputStream(blockIn);
+  }
+
+  /**
+   * Called when a stream created by {@link #createInputStream} is no longer
+   * used to give back any resources it holds.
+   * @param blockIn
+   */
+  protected void releaseInputStream(InputStream blockIn) {
+  }
+
+  /**
+   * Releases any native resources held by this codec.
+   */
+  public void release() {
+  }
+
+  @Override
+  public String toString() {
+    return level == -1? name : name + "(" + level + ")";
+  }
+
+  /**
+   * Returns the codec configured for new files in the given configuration.
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static BlockCodec getCodec(Configuration conf) throws IOException {
+    return getCodec(conf.get(CodecName, GZIP), conf.getInt(CodecLevel, -1), conf);
+  }
+
+  /**
+   * Returns a codec by its name as stored in the file trailer.
+   * @param name either {@link #GZIP}, {@link #DEFLATE}, {@link #FAST} or the
+   *  class name of a Hadoop {@link CompressionCodec}
+   * @param level
+   * @param conf
+   * @return
+   * @throws IOException if the codec is not available
+   */
+  public static BlockCodec getCodec(String name, int level, Configuration conf)
+      throws IOException {
+    if (name.equals(GZIP))
+      return new GZIPBlockCodec(level);
+    if (name.equals(DEFLATE))
+      return new DeflateBlockCodec(level);
+    if (conf == null)
+      conf = new Configuration();
+    if (name.equals(FAST))
+      return getFastCodec(conf);
+    try {
+      Class<? extends CompressionCodec> codecClass =
+          Class.forName(name).asSubclass(CompressionCodec.class);
+      return new HadoopBlockCodec(ReflectionUtils.newInstance(codecClass, conf));
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Block codec '"+name+"' is not available", e);
+    }
+  }
+
+  /**
+   * Returns the first Hadoop fast codec that works in this JVM or falls back
+   * to deflate with the fastest compression level.
+   * @param conf
+   * @return
+   */
+  private static BlockCodec getFastCodec(Configuration conf) {
+    for (String fastCodec : FastCodecs) {
+      try {
+        Class<? extends CompressionCodec> codecClass =
+            Class.forName(fastCodec).asSubclass(CompressionCodec.class);
+        BlockCodec codec = new HadoopBlockCodec(ReflectionUtils.newInstance(codecClass, conf));
+        // Native codecs fail only when used. Try a small block first
+        OutputStream probe = codec.createOutputStream(new ByteArrayOutputStream());
+        probe.write(0);
+        codec.finish(probe);
+        return codec;
+      } catch (Throwable e) {
+        LOG.debug("Codec "+fastCodec+" is not available", e);
+      }
+    }
+    return new DeflateBlockCodec(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * Compresses each block as a separate gzip stream. This is the format
+   * used by files that do not store a codec in their trailer.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class GZIPBlockCodec extends BlockCodec {
+
+    /**A gzip stream with a configurable compression level*/
+    static class LeveledGZIPOutputStream extends GZIPOutputStream {
+      LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+        super(out, 64 * 1024);
+        if (level != -1)
+          def.setLevel(level);
+      }
+
+      @Override
+      public void finish() throws IOException {
+        super.finish();
+        def.end();
+      }
+    }
+
+    GZIPBlockCodec(int level) {
+      super(GZIP, level);
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream out) throws IOException {
+      return new LeveledGZIPOutputStream(out, level);
+    }
+
+    @Override
+    public void finish(OutputStream blockOut) throws IOException {
+      ((GZIPOutputStream)blockOut).finish();
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream in) throws IOException {
+      return new GZIPInputStream(in, 64 * 1024);
+    }
+
+    @Override
+    protected void releaseInputStream(InputStream blockIn) {
+      try {
+        // Closing the stream is the only way to release its inflater
+        ((GZIPInputStream)blockIn).close();
+      } catch (IOException e) {
+        LOG.warn("Error releasing a gzip stream", e);
+      }
+    }
+  }
+
+  /**
+   * Compresses each block as a raw zlib stream. It reuses the same deflater
+   * and inflater for all blocks.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class DeflateBlockCodec extends BlockCodec {
+    private Deflater deflater;
+    private Inflater inflater;
+
+    DeflateBlockCodec(int level) {
+      super(DEFLATE, level);
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream out) throws IOException {
+      if (deflater == null)
+        deflater = new Deflater(level);
+      else
+        deflater.reset();
+      return new DeflaterOutputStream(out, deflater, 64 * 1024);
+    }
+
+    @Override
+    public void finish(OutputStream blockOut) throws IOException {
+      ((DeflaterOutputStream)blockOut).finish();
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream in) throws IOException {
+      if (inflater == null)
+        inflater = new Inflater();
+      else
+        inflater.reset();
+      return new InflaterInputStream(in, inflater, 64 * 1024);
+    }
+
+    @Override
+    public void release() {
+      if (deflater != null)
+        deflater.end();
+      if (inflater != null)
+        inflater.end();
+      deflater = null;
+      inflater = null;
+    }
+  }
+
+  /**
+   * Compresses blocks using a Hadoop codec, e.g., Lz4 or Snappy. The
+   * (de)compressors are borrowed from the {@link CodecPool}.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class HadoopBlockCodec extends BlockCodec {
+    private CompressionCodec codec;
+    private Compressor compressor;
+    private Decompressor decompressor;
+
+    HadoopBlockCodec(CompressionCodec codec) {
+      super(codec.getClass().getName(), -1);
+      this.codec = codec;
+    }
+
+    @Override
+    public OutputStream createOutputStream(OutputStream out) throws IOException {
+      if (compressor == null)
+        compressor = CodecPool.getCompressor(codec);
+      else
+        compressor.reset();
+      return codec.createOutputStream(out, compressor);
+    }
+
+    @Override
+    public void finish(OutputStream blockOut) throws IOException {
+      ((CompressionOutputStream)blockOut).finish();
+    }
+
+    @Override
+    public InputStream createInputStream(InputStream in) throws IOException {
+      if (decompressor == null)
+        decompressor = CodecPool.getDecompressor(codec);
+      else
+        decompressor.reset();
+      return codec.createInputStream(in, decompressor);
+    }
+
+    @Override
+    public void release() {
+      if (compressor != null)
+        CodecPool.returnCompressor(compressor);
+      if (decompressor != null)
+        CodecPool.returnDecompressor(decompressor);
+      compressor = null;
+      decompressor = null;
+    }
+  }
+}
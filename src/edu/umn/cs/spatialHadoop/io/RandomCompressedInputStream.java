@@ -8,11 +8,14 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.io;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PositionedReadable;
@@ -23,39 +26,108 @@ import org.apache.hadoop.fs.Seekable;
  * {@link RandomCompressedOutputStream}. The underlying stream should be
  * seekable and the total size of it should be known because the lookup table
  * that helps doing the random access is stored at the very end.
+ * Each block is decompressed as a whole when first accessed and kept in a
+ * {@link BlockCache}. Streams opened on a file by its path share the blocks
+ * of that file through the JVM-wide cache so that jumping back and forth
+ * between positions does not decompress the same block again. Positional
+ * reads do not change the position of the stream and can be called by
+ * multiple threads.
  * 
  * @author Ahmed Eldawy
  *
  */
 public class RandomCompressedInputStream extends InputStream implements Seekable, PositionedReadable {
+  /**Number of decompressed blocks cached by a stream that is not shared*/
+  private static final int NumOfCachedBlocks = 2;
+  
   /**The underlying stream of compressed data*/
   private FSDataInputStream compressedIn;
-  private InputStream decompressedIn;
+  
+  /**The codec that decompresses each block*/
+  private BlockCodec codec;
+  
+  /**Number of raw bytes in each block as stored in the file*/
+  private long blockSize;
 
   private long[] blockOffsetsInCompressedFile;
   private long[] blockOffsetsInRawFile;
   
   private long pos;
   private int currentBlock;
+  
+  /**Decompressed data of the current block*/
+  private byte[] currentBlockData;
+  
+  /**The cache of decompressed blocks*/
+  private BlockCache blockCache;
+  
+  /**Identifies this file (and version) in the block cache*/
+  private Object fileKey;
 
   public RandomCompressedInputStream(FileSystem fs, Path p) throws IOException {
-    this(fs.open(p), fs.getFileStatus(p).getLen());
+    this(fs.open(p), fs.getFileStatus(p), fs.getConf());
+  }
+  
+  private RandomCompressedInputStream(FSDataInputStream in, FileStatus status,
+      Configuration conf) throws IOException {
+    // The modification time makes sure a rewritten file is not served from
+    // the blocks cached for its older version
+    this(in, status.getLen(), conf,
+        status.getPath() + "@" + status.getModificationTime() + "@" + status.getLen());
   }
   
   public RandomCompressedInputStream(FSDataInputStream in, long totalLength) throws IOException {
+    this(in, totalLength, null, null);
+  }
+  
+  /**
+   * Opens a stream over a compressed file.
+   * @param in the underlying stream of compressed data
+   * @param totalLength total length of the compressed file
+   * @param conf used to pick the codec and the shared cache
+   * @param fileKey a key that identifies this version of the file. Blocks
+   *  are shared with other streams of the same key. If <code>null</code>,
+   *  the stream keeps a small cache of its own.
+   * @throws IOException
+   */
+  public RandomCompressedInputStream(FSDataInputStream in, long totalLength,
+      Configuration conf, Object fileKey) throws IOException {
     this.compressedIn = new FSDataInputStream(in);
-    // Read and cache the lookup table
+    // Check whether the codec and block size are stored in the trailer
+    String codecName = BlockCodec.GZIP;
+    int codecLevel = -1;
+    this.blockSize = RandomCompressedOutputStream.DefaultBlockSize;
+    long lookupTableEnd = totalLength;
     this.compressedIn.seek(totalLength - 4);
+    if (this.compressedIn.readInt() == RandomCompressedOutputStream.ExtendedTrailerMarker) {
+      this.compressedIn.seek(totalLength - 8);
+      int extendedTrailerSize = this.compressedIn.readInt();
+      lookupTableEnd = totalLength - 8 - extendedTrailerSize;
+      this.compressedIn.seek(lookupTableEnd);
+      codecName = this.compressedIn.readUTF();
+      codecLevel = this.compressedIn.readInt();
+      this.blockSize = this.compressedIn.readLong();
+    }
+    this.codec = BlockCodec.getCodec(codecName, codecLevel, conf);
+    // Read and cache the lookup table
+    this.compressedIn.seek(lookupTableEnd - 4);
     int numberOfBlocks = this.compressedIn.readInt();
     this.blockOffsetsInCompressedFile = new long[numberOfBlocks + 1];
     this.blockOffsetsInRawFile = new long[numberOfBlocks + 1];
-    this.compressedIn.seek(totalLength - 4 - numberOfBlocks * (8 + 8));
+    this.compressedIn.seek(lookupTableEnd - 4 - numberOfBlocks * (8 + 8));
     for (int i = 1; i <= numberOfBlocks; i++) {
       blockOffsetsInCompressedFile[i] = this.compressedIn.readLong();
       blockOffsetsInRawFile[i] = this.compressedIn.readLong();
     }
-    this.compressedIn.seek(0);
-    this.decompressedIn = new GZIPInputStream(this.compressedIn);
+    this.currentBlock = -1;
+    if (fileKey != null)
+      this.blockCache = BlockCache.getSharedCache(conf);
+    if (this.blockCache != null) {
+      this.fileKey = fileKey;
+    } else {
+      this.blockCache = new BlockCache(NumOfCachedBlocks * this.blockSize);
+      this.fileKey = this;
+    }
   }
 
   @Override
@@ -63,50 +135,84 @@ public class RandomCompressedInputStream extends InputStream implements Seekable
     return pos;
   }
   
-  private void gotoBlock(int blockIndex) throws IOException {
-    compressedIn.seek(this.blockOffsetsInCompressedFile[blockIndex]);
-    long blockSizeInCompressedFile = this.blockOffsetsInCompressedFile[blockIndex+1] - this.blockOffsetsInCompressedFile[blockIndex];
-    decompressedIn = new GZIPInputStream(new InputSubstream(this.compressedIn, blockSizeInCompressedFile));
-    this.pos = this.blockOffsetsInRawFile[blockIndex];
-    this.currentBlock = blockIndex;
+  /**
+   * Returns the codec used to compress the blocks of this file
+   * @return
+   */
+  public BlockCodec getCodec() {
+    return codec;
   }
-
-  @Override
-  public void seek(long newPos) throws IOException {
-    if (newPos >= getPos() && newPos < this.blockOffsetsInRawFile[currentBlock + 1]) {
-      // Just skip bytes to newPos if within the same block
-      this.skip(newPos - getPos());
-      return;
-    }
-    int newBlock = findBlock(newPos);
-    gotoBlock(newBlock);
-    this.skip(newPos - getPos());
+  
+  /**
+   * Returns the number of raw bytes in each block of this file
+   * @return
+   */
+  public long getBlockSize() {
+    return blockSize;
   }
-
-  private boolean gotoBlockNewSource(int blockIndex) throws IOException {
-    if (!compressedIn.seekToNewSource(this.blockOffsetsInCompressedFile[blockIndex]))
-      return false;
-    long remainingCompressedBytes = getCompressedLength() - this.blockOffsetsInCompressedFile[blockIndex];
-    decompressedIn = new GZIPInputStream(new InputSubstream(this.compressedIn, remainingCompressedBytes));
-    this.pos = this.blockOffsetsInRawFile[blockIndex];
-    this.currentBlock = blockIndex;
-    return true;
+  
+  /**
+   * Returns the decompressed data of the given block either from the cache
+   * or by decompressing it.
+   * @param blockIndex
+   * @return
+   * @throws IOException
+   */
+  private byte[] getBlockData(int blockIndex) throws IOException {
+    byte[] blockData = blockCache.get(fileKey, blockIndex);
+    if (blockData == null) {
+      long compressedStart = this.blockOffsetsInCompressedFile[blockIndex];
+      int compressedLength = (int) (this.blockOffsetsInCompressedFile[blockIndex+1] - compressedStart);
+      byte[] compressedData = new byte[compressedLength];
+      compressedIn.readFully(compressedStart, compressedData, 0, compressedLength);
+      blockData = new byte[(int) (this.blockOffsetsInRawFile[blockIndex+1]
+          - this.blockOffsetsInRawFile[blockIndex])];
+      synchronized (codec) {
+        // The codec reuses its decompression state across blocks
+        codec.decompress(new ByteArrayInputStream(compressedData), blockData, 0, blockData.length);
+      }
+      blockCache.put(fileKey, blockIndex, blockData);
+    }
+    return blockData;
   }
   
-  private long getCompressedLength() {
-    return blockOffsetsInCompressedFile[blockOffsetsInCompressedFile.length - 1];
+  /**
+   * Makes sure that the current block is the one that contains the current
+   * position and returns its decompressed data.
+   * @return
+   * @throws IOException
+   */
+  private byte[] getCurrentBlockData() throws IOException {
+    if (currentBlockData == null || pos < blockOffsetsInRawFile[currentBlock]
+        || pos >= blockOffsetsInRawFile[currentBlock + 1]) {
+      currentBlock = findBlock(pos);
+      currentBlockData = getBlockData(currentBlock);
+    }
+    return currentBlockData;
   }
 
+  @Override
+  public void seek(long newPos) throws IOException {
+    // Blocks are decompressed lazily when data is actually read
+    this.pos = newPos;
+  }
+  
   private long getDecompressedLength() {
     return blockOffsetsInRawFile[blockOffsetsInRawFile.length - 1];
   }
 
   @Override
   public boolean seekToNewSource(long newPos) throws IOException {
+    if (newPos >= getDecompressedLength())
+      return false;
     int newBlock = findBlock(newPos);
-    if (!gotoBlockNewSource(newBlock))
+    if (!compressedIn.seekToNewSource(this.blockOffsetsInCompressedFile[newBlock]))
       return false;
-    this.skip(newPos - this.blockOffsetsInRawFile[newBlock]);
+    // Drop the cached copy to force reading the block from the new source
+    blockCache.invalidate(fileKey, newBlock);
+    if (currentBlock == newBlock)
+      currentBlockData = null;
+    this.pos = newPos;
     return true;
   }
 
@@ -114,18 +220,33 @@ public class RandomCompressedInputStream extends InputStream implements Seekable
   public int read() throws IOException {
     if (pos >= getDecompressedLength())
       return -1;
-    int b = this.decompressedIn.read();
-    pos++;
-    if (pos >= blockOffsetsInRawFile[currentBlock+1]) {
-      currentBlock++;
+    byte[] blockData = getCurrentBlockData();
+    return blockData[(int) (pos++ - blockOffsetsInRawFile[currentBlock])] & 0xff;
+  }
+  
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (pos >= getDecompressedLength())
+      return -1;
+    int totalBytesRead = 0;
+    while (len > 0 && pos < getDecompressedLength()) {
+      byte[] blockData = getCurrentBlockData();
+      int offsetInBlock = (int) (pos - blockOffsetsInRawFile[currentBlock]);
+      int bytesToCopy = Math.min(len, blockData.length - offsetInBlock);
+      System.arraycopy(blockData, offsetInBlock, b, off, bytesToCopy);
+      pos += bytesToCopy;
+      off += bytesToCopy;
+      len -= bytesToCopy;
+      totalBytesRead += bytesToCopy;
     }
-    return b;
+    return totalBytesRead;
   }
   
   @Override
   public long skip(long n) throws IOException {
-    long canSkip = Math.min(n, getDecompressedLength() - getPos());
-    this.decompressedIn.skip(canSkip);
+    long canSkip = Math.max(0, Math.min(n, getDecompressedLength() - getPos()));
     pos += canSkip;
     return canSkip;
   }
@@ -134,6 +255,10 @@ public class RandomCompressedInputStream extends InputStream implements Seekable
   @Override
   public void close() throws IOException {
     this.compressedIn.close();
+    synchronized (codec) {
+      this.codec.release();
+    }
+    this.currentBlockData = null;
   }
   
   /**
@@ -143,36 +268,49 @@ public class RandomCompressedInputStream extends InputStream implements Seekable
    * @return
    */
   private int findBlock(long newPos) {
+    // Find the last block that starts at or before newPos
     int s = 0;
-    int e = blockOffsetsInRawFile.length;
-    while (s < e) {
+    int e = blockOffsetsInRawFile.length - 1;
+    while (e - s > 1) {
       int m = (s + e) / 2;
-      if (blockOffsetsInRawFile[m] < newPos) {
-        s = m + 1;
+      if (blockOffsetsInRawFile[m] <= newPos) {
+        s = m;
       } else {
         e = m;
       }
     }
-    return s - 1;
+    return s;
   }
 
   @Override
   public int read(long position, byte[] buffer, int offset, int length)
       throws IOException {
-    long oldPos = getPos();
-    seek(position);
-    int x = read(buffer, offset, length);
-    seek(oldPos);
-    return x;
+    // Reads directly from the blocks without touching the current position
+    if (length == 0)
+      return 0;
+    if (position >= getDecompressedLength())
+      return -1;
+    int totalBytesRead = 0;
+    while (length > 0 && position < getDecompressedLength()) {
+      int block = findBlock(position);
+      byte[] blockData = getBlockData(block);
+      int offsetInBlock = (int) (position - blockOffsetsInRawFile[block]);
+      int bytesToCopy = Math.min(length, blockData.length - offsetInBlock);
+      System.arraycopy(blockData, offsetInBlock, buffer, offset, bytesToCopy);
+      position += bytesToCopy;
+      offset += bytesToCopy;
+      length -= bytesToCopy;
+      totalBytesRead += bytesToCopy;
+    }
+    return totalBytesRead;
   }
 
   @Override
   public void readFully(long position, byte[] buffer, int offset, int length)
       throws IOException {
-    long oldPos = getPos();
-    seek(position);
-    read(buffer, offset, length);
-    seek(oldPos);
+    int x = read(position, buffer, offset, length);
+    if (x < length)
+      throw new EOFException("Reached end of file at position "+(position + Math.max(x, 0)));
   }
 
   @Override
@@ -182,6 +320,6 @@ public class RandomCompressedInputStream extends InputStream implements Seekable
 
   @Override
   public int available() throws IOException {
-    return (int) Math.min(getDecompressedLength() - pos, this.compressedIn.available());
+    return (int) Math.min(getDecompressedLength() - pos, Integer.MAX_VALUE);
   }
 }
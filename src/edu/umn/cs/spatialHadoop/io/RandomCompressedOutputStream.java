@@ -17,7 +17,6 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.Vector;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -26,18 +25,34 @@ import org.apache.hadoop.fs.Path;
 
 /**
  * An output stream that writes data in separate blocks each one is compressed
- * separately using gzip. It includes a lookup table that allows pseudo random
- * access to the file.
+ * separately using a {@link BlockCodec} (gzip by default). It includes a
+ * lookup table that allows pseudo random access to the file. The codec and
+ * the block size are stored in the trailer after the lookup table.
  * 
  * @author Ahmed Eldawy
  *
  */
 public class RandomCompressedOutputStream extends OutputStream {
   /**Default size for one block to be compressed separately*/
-  private static final long DefaultBlockSize = 10 * 1024 * 1024;
+  public static final long DefaultBlockSize = 10 * 1024 * 1024;
   
-  /**The output stream on which raw data is written (internally compressed)*/
-  private GZIPOutputStream rawOut;
+  /**Configuration key for the number of raw bytes in each compressed block*/
+  public static final String BlockSize = "spatialHadoop.compress.BlockSize";
+  
+  /**
+   * Marks a file that stores the codec and block size after the lookup table.
+   * Older files end with the number of blocks which is never negative.
+   */
+  static final int ExtendedTrailerMarker = 0xC0DEC0DE;
+  
+  /**Size of the buffer that collects small writes before compressing them*/
+  private static final int WriteBufferSize = 64 * 1024;
+  
+  /**The codec used to compress each block*/
+  private BlockCodec codec;
+  
+  /**The output stream on which raw data of the current block is written*/
+  private OutputStream rawOut;
   
   /**The output stream to which compressed bytes are written*/
   private TrackedOutputStream compressedOut;
@@ -51,33 +66,97 @@ public class RandomCompressedOutputStream extends OutputStream {
   /**The raw offset on which the last block was written*/
   private long rawOffsetOfLastBlock;
   
+  /**Small writes that are not yet passed to the codec*/
+  private byte[] writeBuffer;
+  
+  /**Number of bytes currently in the write buffer*/
+  private int writeBufferLength;
+  
   private Vector<Long> blockOffsetsInCompressedFile;
   private Vector<Long> blockOffsetsInRawFile;
 
   public RandomCompressedOutputStream(OutputStream out) throws IOException {
+    this(out, BlockCodec.getCodec(BlockCodec.GZIP, -1, null), DefaultBlockSize);
+  }
+  
+  /**
+   * Creates a stream with the codec and block size set in the given
+   * configuration.
+   * @param out
+   * @param conf
+   * @throws IOException
+   */
+  public RandomCompressedOutputStream(OutputStream out, Configuration conf) throws IOException {
+    this(out, BlockCodec.getCodec(conf), conf.getLong(BlockSize, DefaultBlockSize));
+  }
+  
+  public RandomCompressedOutputStream(OutputStream out, BlockCodec codec,
+      long blockSize) throws IOException {
     // out is the OutputStream to which compressed data is written.
     this.compressedOut = new TrackedOutputStream(out);
-    this.rawOut = new GZIPOutputStream(this.compressedOut);
-    this.blockSize = DefaultBlockSize;
+    this.codec = codec;
+    this.blockSize = blockSize;
+    this.writeBuffer = new byte[(int) Math.min(WriteBufferSize, blockSize)];
     this.blockOffsetsInCompressedFile = new Vector<Long>();
     this.blockOffsetsInRawFile = new Vector<Long>();
   }
 
   @Override
   public void write(int b) throws IOException {
-    this.rawOut.write(b);
-    rawOffset++;
-    
-    if (rawOffset - rawOffsetOfLastBlock >= blockSize) {
-      finishCurrentBlock();
-      // Start a new block
-      this.rawOut = new GZIPOutputStream(this.compressedOut);
+    if (writeBufferLength == writeBuffer.length)
+      flushWriteBuffer();
+    writeBuffer[writeBufferLength++] = (byte) b;
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len >= writeBuffer.length) {
+      // Large write. Pass it directly to the codec
+      flushWriteBuffer();
+      writeBlocks(b, off, len);
+    } else {
+      if (writeBufferLength + len > writeBuffer.length)
+        flushWriteBuffer();
+      System.arraycopy(b, off, writeBuffer, writeBufferLength, len);
+      writeBufferLength += len;
+    }
+  }
+  
+  private void flushWriteBuffer() throws IOException {
+    if (writeBufferLength > 0) {
+      writeBlocks(writeBuffer, 0, writeBufferLength);
+      writeBufferLength = 0;
+    }
+  }
+  
+  /**
+   * Compresses the given bytes splitting them at block boundaries.
+   * @param b
+   * @param off
+   * @param len
+   * @throws IOException
+   */
+  private void writeBlocks(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (rawOut == null)
+        rawOut = codec.createOutputStream(compressedOut);
+      int bytesToWrite = (int) Math.min(len,
+          blockSize - (rawOffset - rawOffsetOfLastBlock));
+      rawOut.write(b, off, bytesToWrite);
+      rawOffset += bytesToWrite;
+      off += bytesToWrite;
+      len -= bytesToWrite;
+      if (rawOffset - rawOffsetOfLastBlock >= blockSize)
+        finishCurrentBlock();
     }
   }
   
   @Override
   public void close() throws IOException {
-    this.finishCurrentBlock();
+    this.flushWriteBuffer();
+    if (this.rawOut != null)
+      this.finishCurrentBlock();
+    codec.release();
     // Store the lookup table at the end of the stream in uncompressed format
     DataOutputStream dout = new DataOutputStream(this.compressedOut);
     for (int i = 0; i < blockOffsetsInCompressedFile.size(); i++) {
@@ -85,14 +164,20 @@ public class RandomCompressedOutputStream extends OutputStream {
       dout.writeLong(blockOffsetsInRawFile.get(i));
     }
     dout.writeInt(blockOffsetsInCompressedFile.size());
+    // Store the codec and block size followed by their size and the marker
+    long extendedTrailerStart = this.compressedOut.getPos();
+    dout.writeUTF(codec.getName());
+    dout.writeInt(codec.getLevel());
+    dout.writeLong(blockSize);
+    dout.writeInt((int) (this.compressedOut.getPos() - extendedTrailerStart));
+    dout.writeInt(ExtendedTrailerMarker);
     dout.close();
   }
   
   private void finishCurrentBlock() throws IOException {
     // Write all the data to out and start a new block
-    this.rawOut.finish();
-    this.rawOut.flush();
-    this.compressedOut.flush();
+    codec.finish(this.rawOut);
+    this.rawOut = null;
     // Save the current checkpoint
     long compressedOffset = this.compressedOut.getPos();
     this.blockOffsetsInCompressedFile.add(compressedOffset);
@@ -0,0 +1,143 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * A shape in its binary {@link Writable} form preceded by its MBR and the
+ * index of the input file it comes from. It is used to shuffle shapes
+ * between map and reduce tasks of spatial joins. The reducer can test MBRs
+ * directly from the header and deserialize the full shape only if it is
+ * needed to refine a candidate pair.
+ * @author Ahmed Eldawy
+ *
+ */
+public class SerializedShape implements Writable {
+  /**Index of the input file of this shape*/
+  public byte index;
+
+  /**The MBR of the shape*/
+  public double x1, y1, x2, y2;
+
+  /**The shape serialized using its write method*/
+  private byte[] bytes = new byte[0];
+
+  /**Number of bytes used in the array of bytes*/
+  private int length;
+
+  /**A buffer used to serialize shapes*/
+  private transient DataOutputBuffer serializationBuffer;
+
+  /**A buffer used to deserialize shapes*/
+  private transient DataInputBuffer deserializationBuffer;
+
+  public SerializedShape() {
+  }
+
+  /**
+   * Serializes the given shape and stores its MBR
+   * @param index
+   * @param shape
+   * @throws IOException
+   */
+  public void set(byte index, Shape shape) throws IOException {
+    this.index = index;
+    Rectangle mbr = shape.getMBR();
+    this.x1 = mbr.x1;
+    this.y1 = mbr.y1;
+    this.x2 = mbr.x2;
+    this.y2 = mbr.y2;
+    if (serializationBuffer == null)
+      serializationBuffer = new DataOutputBuffer();
+    serializationBuffer.reset();
+    shape.write(serializationBuffer);
+    if (bytes.length < serializationBuffer.getLength())
+      bytes = new byte[serializationBuffer.getLength()];
+    System.arraycopy(serializationBuffer.getData(), 0, bytes, 0,
+        serializationBuffer.getLength());
+    this.length = serializationBuffer.getLength();
+  }
+
+  /**
+   * Returns the MBR stored in the header
+   * @return
+   */
+  public Rectangle getMBR() {
+    return new Rectangle(x1, y1, x2, y2);
+  }
+
+  /**
+   * Deserializes the shape into a new copy of the given stock shape
+   * @param stockShape
+   * @return
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public <S extends Shape> S getShape(S stockShape) throws IOException {
+    S shape = (S) stockShape.clone();
+    if (deserializationBuffer == null)
+      deserializationBuffer = new DataInputBuffer();
+    deserializationBuffer.reset(bytes, 0, length);
+    shape.readFields(deserializationBuffer);
+    return shape;
+  }
+
+  /**
+   * Returns a copy of this object that does not share its bytes. Used to
+   * keep values of a reducer as they are reused by the framework.
+   * @return
+   */
+  public SerializedShape copy() {
+    SerializedShape copy = new SerializedShape();
+    copy.index = this.index;
+    copy.x1 = this.x1;
+    copy.y1 = this.y1;
+    copy.x2 = this.x2;
+    copy.y2 = this.y2;
+    copy.bytes = new byte[this.length];
+    System.arraycopy(this.bytes, 0, copy.bytes, 0, this.length);
+    copy.length = this.length;
+    return copy;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(index);
+    out.writeDouble(x1);
+    out.writeDouble(y1);
+    out.writeDouble(x2);
+    out.writeDouble(y2);
+    WritableUtils.writeVInt(out, length);
+    out.write(bytes, 0, length);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    index = in.readByte();
+    x1 = in.readDouble();
+    y1 = in.readDouble();
+    x2 = in.readDouble();
+    y2 = in.readDouble();
+    length = WritableUtils.readVInt(in);
+    if (bytes.length < length)
+      bytes = new byte[length];
+    in.readFully(bytes, 0, length);
+  }
+}
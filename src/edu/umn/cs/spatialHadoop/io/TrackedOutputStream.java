@@ -29,6 +29,12 @@ public class TrackedOutputStream extends OutputStream {
     this.offset++;
   }
 
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    rawOut.write(b, off, len);
+    this.offset += len;
+  }
+
   public int hashCode() {
     return rawOut.hashCode();
   }
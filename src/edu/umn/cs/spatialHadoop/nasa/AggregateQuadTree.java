@@ -16,6 +16,7 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
@@ -37,7 +38,6 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.IndexedSortable;
@@ -45,6 +45,7 @@ import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.hdf.DDNumericDataGroup;
 import edu.umn.cs.spatialHadoop.hdf.DDVDataHeader;
 import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
@@ -52,7 +53,9 @@ import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
 import edu.umn.cs.spatialHadoop.hdf.HDFFile;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedInputStream;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
+import edu.umn.cs.spatialHadoop.temporal.TemporalIndex;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
@@ -346,6 +349,8 @@ public class AggregateQuadTree {
   private static final int ValueSize = 2;
   /**Node size = min + max + sum + count*/
   private static final int NodeSize = 2 + 2 + 8 + 8;
+  /**Maximum number of bytes read from each tree in one batch while merging*/
+  private static final int MergeBatchSize = 4 * 1024 * 1024;
   
   /**
    * Constructs an aggregate quad tree for an input HDF file on a selected
@@ -359,9 +364,10 @@ public class AggregateQuadTree {
   public static void build(Configuration conf, Path inFile, String datasetName,
       Path outFile) throws IOException {
     FileSystem inFs = inFile.getFileSystem(conf);
+    FileStatus inFileStatus = inFs.getFileStatus(inFile);
     if (inFs instanceof HTTPFileSystem) {
       // HDF files are really bad to read over HTTP due to seeks
-      inFile = new Path(FileUtil.copyFile(conf, inFile));
+      inFile = new Path(FileUtil.copyFile(conf, inFileStatus));
       inFs = FileSystem.getLocal(conf);
     }
     HDFFile hdfFile = null;
@@ -389,14 +395,12 @@ public class AggregateQuadTree {
       }
       
       // Retrieve meta data
-      String archiveMetadata = (String) hdfFile.findHeaderByName("ArchiveMetadata.0").getEntryAt(0);
-      String coreMetadata = (String) hdfFile.findHeaderByName("CoreMetadata.0").getEntryAt(0);
-      NASADataset nasaDataset = new NASADataset(coreMetadata, archiveMetadata);
+      NASADataset nasaDataset = HDFCache.getDatasetMetadata(inFileStatus, hdfFile);
 
       if (values instanceof short[]) {
         FileSystem outFs = outFile.getFileSystem(conf);
         DataOutputStream out = new DataOutputStream(
-            new RandomCompressedOutputStream(outFs.create(outFile, false)));
+            new RandomCompressedOutputStream(outFs.create(outFile, false), conf));
         build(nasaDataset, (short[])values, fillValue, out);
         out.close();
       } else {
@@ -527,7 +531,7 @@ public class AggregateQuadTree {
     
     FileSystem outFs = outFile.getFileSystem(conf);
     DataOutputStream outTree = new DataOutputStream(
-        new RandomCompressedOutputStream(outFs.create(outFile, false))); 
+        new RandomCompressedOutputStream(outFs.create(outFile, false), conf)); 
     
     merge(inTrees, outTree);
     
@@ -565,38 +569,331 @@ public class AggregateQuadTree {
       cardinality += (cardinalities[iTree] = inTrees[iTree].readInt());
     outTree.writeInt(cardinality);
     
-    // Write timestamps of all trees
+    // Write timestamps of all trees. A merged input tree has one timestamp
+    // for each of its cardinality entries
     for (int iTree = 0; iTree < inTrees.length; iTree++) {
-      outTree.writeLong(inTrees[iTree].readLong());
+      for (int iSlot = 0; iSlot < cardinalities[iTree]; iSlot++)
+        outTree.writeLong(inTrees[iTree].readLong());
     }
     
-    // Merge sorted values in all input trees
-    byte[] buffer = new byte[1024*1024];
-    int size = resolution * resolution;
-    while (size-- > 0) {
+    // Merge sorted values in all input trees. For each position, the values
+    // of all input trees are written consecutively. Read the values of many
+    // positions from each tree in one batch and interleave them in memory
+    int numOfPositions = resolution * resolution;
+    int bytesPerPosition = ValueSize * cardinality;
+    int positionsPerBatch = Math.max(1,
+        Math.min(numOfPositions, MergeBatchSize / bytesPerPosition));
+    byte[][] inBuffers = new byte[inTrees.length][];
+    for (int iTree = 0; iTree < inTrees.length; iTree++)
+      inBuffers[iTree] = new byte[positionsPerBatch * ValueSize * cardinalities[iTree]];
+    byte[] outBuffer = new byte[positionsPerBatch * bytesPerPosition];
+    for (int batchStart = 0; batchStart < numOfPositions; batchStart += positionsPerBatch) {
+      int batchSize = Math.min(positionsPerBatch, numOfPositions - batchStart);
+      for (int iTree = 0; iTree < inTrees.length; iTree++)
+        inTrees[iTree].readFully(inBuffers[iTree], 0,
+            batchSize * ValueSize * cardinalities[iTree]);
+      int outPos = 0;
+      for (int iPos = 0; iPos < batchSize; iPos++) {
+        for (int iTree = 0; iTree < inTrees.length; iTree++) {
+          int length = ValueSize * cardinalities[iTree];
+          byte[] inBuffer = inBuffers[iTree];
+          int inPos = iPos * length;
+          if (length <= 8) {
+            // Avoid the overhead of arraycopy for a few bytes
+            for (int b = 0; b < length; b++)
+              outBuffer[outPos + b] = inBuffer[inPos + b];
+          } else {
+            System.arraycopy(inBuffer, inPos, outBuffer, outPos, length);
+          }
+          outPos += length;
+        }
+      }
+      outTree.write(outBuffer, 0, outPos);
+    }
+    
+    // Merge aggregate values of all nodes. Nodes are read from all trees in
+    // batches and accumulated in primitive arrays
+    StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
+    int numOfNodes = stockQuadTree.nodesID.length;
+    int nodesPerBatch = Math.max(1, Math.min(numOfNodes, MergeBatchSize / NodeSize));
+    short[] mins = new short[nodesPerBatch];
+    short[] maxs = new short[nodesPerBatch];
+    long[] sums = new long[nodesPerBatch];
+    long[] counts = new long[nodesPerBatch];
+    ByteBuffer nodesBuffer = ByteBuffer.allocate(nodesPerBatch * NodeSize);
+    for (int batchStart = 0; batchStart < numOfNodes; batchStart += nodesPerBatch) {
+      int batchSize = Math.min(nodesPerBatch, numOfNodes - batchStart);
+      Arrays.fill(mins, 0, batchSize, Short.MAX_VALUE);
+      Arrays.fill(maxs, 0, batchSize, Short.MIN_VALUE);
+      Arrays.fill(sums, 0, batchSize, 0);
+      Arrays.fill(counts, 0, batchSize, 0);
       for (int iTree = 0; iTree < inTrees.length; iTree++) {
-        int sizeToRead = ValueSize * cardinalities[iTree]; // sizeof(short) * c
-        while (sizeToRead > 0) {
-          int bytesRead = inTrees[iTree].read(buffer, 0,
-              Math.min(sizeToRead, buffer.length));
-          outTree.write(buffer, 0, bytesRead);
-          sizeToRead -= bytesRead;
+        inTrees[iTree].readFully(nodesBuffer.array(), 0, batchSize * NodeSize);
+        for (int iNode = 0; iNode < batchSize; iNode++) {
+          int offset = iNode * NodeSize;
+          short min = nodesBuffer.getShort(offset);
+          short max = nodesBuffer.getShort(offset + 2);
+          if (min < mins[iNode])
+            mins[iNode] = min;
+          if (max > maxs[iNode])
+            maxs[iNode] = max;
+          sums[iNode] += nodesBuffer.getLong(offset + 4);
+          counts[iNode] += nodesBuffer.getLong(offset + 12);
         }
       }
+      for (int iNode = 0; iNode < batchSize; iNode++) {
+        int offset = iNode * NodeSize;
+        nodesBuffer.putShort(offset, mins[iNode]);
+        nodesBuffer.putShort(offset + 2, maxs[iNode]);
+        nodesBuffer.putLong(offset + 4, sums[iNode]);
+        nodesBuffer.putLong(offset + 12, counts[iNode]);
+      }
+      outTree.write(nodesBuffer.array(), 0, batchSize * NodeSize);
+    }
+  }
+  
+  /**
+   * Patches a merged tree with a few new trees and writes the patched tree to
+   * the output. Each new tree replaces all entries of the merged tree whose
+   * timestamps fall in the time range of the new tree, or gets inserted in
+   * its temporal order if there are no such entries. This is used to add or
+   * correct a day in a monthly or yearly tree without re-merging all days.
+   * @param conf
+   * @param mergedFile
+   * @param newFiles - new trees sorted by time with disjoint time ranges
+   * @param outFile
+   * @throws IOException
+   */
+  public static void patch(Configuration conf, Path mergedFile, Path[] newFiles,
+      Path outFile) throws IOException {
+    FileSystem mergedFs = mergedFile.getFileSystem(conf);
+    DataInputStream mergedTree = new FSDataInputStream(
+        new RandomCompressedInputStream(mergedFs, mergedFile));
+    DataInputStream[] newTrees = new DataInputStream[newFiles.length];
+    for (int i = 0; i < newFiles.length; i++) {
+      FileSystem inFs = newFiles[i].getFileSystem(conf);
+      newTrees[i] = new FSDataInputStream(
+          new RandomCompressedInputStream(inFs, newFiles[i]));
+    }
+    
+    FileSystem outFs = outFile.getFileSystem(conf);
+    DataOutputStream outTree = new DataOutputStream(
+        new RandomCompressedOutputStream(outFs.create(outFile, false), conf));
+    
+    patch(mergedTree, newTrees, outTree);
+    
+    mergedTree.close();
+    for (int i = 0; i < newFiles.length; i++)
+      newTrees[i].close();
+    outTree.close();
+  }
+  
+  /**
+   * Patches a merged tree with a few new trees. Values of replaced entries are
+   * dropped and values of the new trees are spliced in their place. The sum
+   * and count of each node are updated by applying the delta of the replaced
+   * and new entries to the aggregates stored in the merged tree. Since min and
+   * max cannot be updated by a delta, they are computed from the retained
+   * values and the aggregates of the new trees.
+   * @param mergedTree
+   * @param newTrees - new trees sorted by time with disjoint time ranges
+   * @param outTree
+   * @throws IOException
+   */
+  public static void patch(DataInputStream mergedTree, DataInputStream[] newTrees,
+      DataOutputStream outTree) throws IOException {
+    int resolution = mergedTree.readInt();
+    short fillValue = mergedTree.readShort();
+    int mergedCardinality = mergedTree.readInt();
+    long[] mergedTimestamps = new long[mergedCardinality];
+    for (int iSlot = 0; iSlot < mergedCardinality; iSlot++) {
+      mergedTimestamps[iSlot] = mergedTree.readLong();
+      if (iSlot > 0 && mergedTimestamps[iSlot] < mergedTimestamps[iSlot - 1])
+        throw new RuntimeException("Cannot patch a tree with unsorted timestamps");
+    }
+    int[] newCardinalities = new int[newTrees.length];
+    long[][] newTimestamps = new long[newTrees.length][];
+    for (int iTree = 0; iTree < newTrees.length; iTree++) {
+      int iResolution = newTrees[iTree].readInt();
+      short iFillValue = newTrees[iTree].readShort();
+      if (resolution != iResolution || fillValue != iFillValue)
+        throw new RuntimeException("Merged tree has a resolution of "+resolution
+            +" not compatible with resolution "+iResolution+" of new tree #"+iTree);
+      newCardinalities[iTree] = newTrees[iTree].readInt();
+      newTimestamps[iTree] = new long[newCardinalities[iTree]];
+      for (int iSlot = 0; iSlot < newCardinalities[iTree]; iSlot++)
+        newTimestamps[iTree][iSlot] = newTrees[iTree].readLong();
+    }
+    
+    // Plan the entries of the output tree as a list of segments where each
+    // segment is a range of entries in either the merged tree or a new tree
+    IntArray segmentSources = new IntArray(); // -1 for the merged tree
+    IntArray segmentStarts = new IntArray();
+    IntArray segmentLengths = new IntArray();
+    IntArray removedSlots = new IntArray();
+    int iMerged = 0;
+    for (int iTree = 0; iTree < newTrees.length; iTree++) {
+      long tStart = newTimestamps[iTree][0];
+      long tEnd = newTimestamps[iTree][newCardinalities[iTree] - 1];
+      if (iTree > 0 && tStart <= newTimestamps[iTree - 1][newCardinalities[iTree - 1] - 1])
+        throw new RuntimeException("New trees must be sorted and disjoint in time");
+      int insertPosition = iMerged;
+      while (insertPosition < mergedCardinality && mergedTimestamps[insertPosition] < tStart)
+        insertPosition++;
+      if (insertPosition > iMerged) {
+        segmentSources.append(-1);
+        segmentStarts.append(iMerged);
+        segmentLengths.append(insertPosition - iMerged);
+      }
+      iMerged = insertPosition;
+      // Entries in the time range of the new tree are replaced
+      while (iMerged < mergedCardinality && mergedTimestamps[iMerged] <= tEnd)
+        removedSlots.append(iMerged++);
+      segmentSources.append(iTree);
+      segmentStarts.append(0);
+      segmentLengths.append(newCardinalities[iTree]);
+    }
+    if (iMerged < mergedCardinality) {
+      segmentSources.append(-1);
+      segmentStarts.append(iMerged);
+      segmentLengths.append(mergedCardinality - iMerged);
     }
     
-    // Merge aggregate values of all nodes
-    Node treeNode = new Node();
+    // Write the header of the output tree
+    int cardinality = mergedCardinality - removedSlots.size();
+    for (int iTree = 0; iTree < newTrees.length; iTree++)
+      cardinality += newCardinalities[iTree];
+    outTree.writeInt(resolution);
+    outTree.writeShort(fillValue);
+    outTree.writeInt(cardinality);
+    for (int iSeg = 0; iSeg < segmentSources.size(); iSeg++) {
+      long[] timestamps = segmentSources.get(iSeg) == -1 ?
+          mergedTimestamps : newTimestamps[segmentSources.get(iSeg)];
+      for (int iSlot = 0; iSlot < segmentLengths.get(iSeg); iSlot++)
+        outTree.writeLong(timestamps[segmentStarts.get(iSeg) + iSlot]);
+    }
+    
+    // Find the leaf node that contains each position
     StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
     int numOfNodes = stockQuadTree.nodesID.length;
+    int numOfPositions = resolution * resolution;
+    int[] firstChildPositions = new int[numOfNodes];
+    int[] leafOfPosition = new int[numOfPositions];
     for (int iNode = 0; iNode < numOfNodes; iNode++) {
-      Node outputNode = new Node();
-      for (int iTree = 0; iTree < inTrees.length; iTree++) {
-        treeNode.readFields(inTrees[iTree]);
-        outputNode.accumulate(treeNode);
+      firstChildPositions[iNode] = Arrays.binarySearch(stockQuadTree.nodesID,
+          stockQuadTree.nodesID[iNode] * 4);
+      if (firstChildPositions[iNode] < 0) {
+        for (int iVal = stockQuadTree.nodesStartPosition[iNode];
+            iVal < stockQuadTree.nodesEndPosition[iNode]; iVal++)
+          leafOfPosition[iVal] = iNode;
+      }
+    }
+    
+    // Splice the values of the new trees into the merged values while
+    // collecting the aggregates of the removed and retained values of the
+    // merged tree in each leaf node
+    short[] retainedMins = new short[numOfNodes];
+    short[] retainedMaxs = new short[numOfNodes];
+    long[] removedSums = new long[numOfNodes];
+    long[] removedCounts = new long[numOfNodes];
+    Arrays.fill(retainedMins, Short.MAX_VALUE);
+    Arrays.fill(retainedMaxs, Short.MIN_VALUE);
+    int positionsPerBatch = Math.max(1, Math.min(numOfPositions, MergeBatchSize
+        / (ValueSize * Math.max(1, Math.max(mergedCardinality, cardinality)))));
+    ByteBuffer mergedBuffer = ByteBuffer.allocate(positionsPerBatch * ValueSize * mergedCardinality);
+    byte[][] newBuffers = new byte[newTrees.length][];
+    for (int iTree = 0; iTree < newTrees.length; iTree++)
+      newBuffers[iTree] = new byte[positionsPerBatch * ValueSize * newCardinalities[iTree]];
+    byte[] outBuffer = new byte[positionsPerBatch * ValueSize * cardinality];
+    for (int batchStart = 0; batchStart < numOfPositions; batchStart += positionsPerBatch) {
+      int batchSize = Math.min(positionsPerBatch, numOfPositions - batchStart);
+      mergedTree.readFully(mergedBuffer.array(), 0, batchSize * ValueSize * mergedCardinality);
+      for (int iTree = 0; iTree < newTrees.length; iTree++)
+        newTrees[iTree].readFully(newBuffers[iTree], 0,
+            batchSize * ValueSize * newCardinalities[iTree]);
+      int outPos = 0;
+      for (int iPos = 0; iPos < batchSize; iPos++) {
+        int leaf = leafOfPosition[batchStart + iPos];
+        int mergedOffset = iPos * ValueSize * mergedCardinality;
+        for (int iSeg = 0; iSeg < segmentSources.size(); iSeg++) {
+          int source = segmentSources.get(iSeg);
+          int length = ValueSize * segmentLengths.get(iSeg);
+          if (source == -1) {
+            int inPos = mergedOffset + ValueSize * segmentStarts.get(iSeg);
+            System.arraycopy(mergedBuffer.array(), inPos, outBuffer, outPos, length);
+            for (int offset = inPos; offset < inPos + length; offset += ValueSize) {
+              short value = mergedBuffer.getShort(offset);
+              if (value != fillValue) {
+                if (value < retainedMins[leaf])
+                  retainedMins[leaf] = value;
+                if (value > retainedMaxs[leaf])
+                  retainedMaxs[leaf] = value;
+              }
+            }
+          } else {
+            System.arraycopy(newBuffers[source], iPos * length, outBuffer, outPos, length);
+          }
+          outPos += length;
+        }
+        for (int iRemoved = 0; iRemoved < removedSlots.size(); iRemoved++) {
+          short value = mergedBuffer.getShort(mergedOffset + ValueSize * removedSlots.get(iRemoved));
+          if (value != fillValue) {
+            removedSums[leaf] += value;
+            removedCounts[leaf]++;
+          }
+        }
+      }
+      outTree.write(outBuffer, 0, outPos);
+    }
+    
+    // Aggregate the removed and retained values of inner nodes from their
+    // children. Go in reverse order to compute children before parents
+    for (int iNode = numOfNodes - 1; iNode >= 0; iNode--) {
+      int firstChildPos = firstChildPositions[iNode];
+      if (firstChildPos >= 0) {
+        for (int childPos = firstChildPos; childPos < firstChildPos + 4; childPos++) {
+          if (retainedMins[childPos] < retainedMins[iNode])
+            retainedMins[iNode] = retainedMins[childPos];
+          if (retainedMaxs[childPos] > retainedMaxs[iNode])
+            retainedMaxs[iNode] = retainedMaxs[childPos];
+          removedSums[iNode] += removedSums[childPos];
+          removedCounts[iNode] += removedCounts[childPos];
+        }
+      }
+    }
+    
+    // Apply the delta to the nodes of the merged tree
+    ByteBuffer nodesBuffer = ByteBuffer.allocate(numOfNodes * NodeSize);
+    mergedTree.readFully(nodesBuffer.array());
+    long[] sums = new long[numOfNodes];
+    long[] counts = new long[numOfNodes];
+    for (int iNode = 0; iNode < numOfNodes; iNode++) {
+      int offset = iNode * NodeSize;
+      sums[iNode] = nodesBuffer.getLong(offset + 4) - removedSums[iNode];
+      counts[iNode] = nodesBuffer.getLong(offset + 12) - removedCounts[iNode];
+    }
+    for (int iTree = 0; iTree < newTrees.length; iTree++) {
+      newTrees[iTree].readFully(nodesBuffer.array());
+      for (int iNode = 0; iNode < numOfNodes; iNode++) {
+        int offset = iNode * NodeSize;
+        short min = nodesBuffer.getShort(offset);
+        short max = nodesBuffer.getShort(offset + 2);
+        if (min < retainedMins[iNode])
+          retainedMins[iNode] = min;
+        if (max > retainedMaxs[iNode])
+          retainedMaxs[iNode] = max;
+        sums[iNode] += nodesBuffer.getLong(offset + 4);
+        counts[iNode] += nodesBuffer.getLong(offset + 12);
       }
-      outputNode.write(outTree);
     }
+    for (int iNode = 0; iNode < numOfNodes; iNode++) {
+      int offset = iNode * NodeSize;
+      nodesBuffer.putShort(offset, retainedMins[iNode]);
+      nodesBuffer.putShort(offset + 2, retainedMaxs[iNode]);
+      nodesBuffer.putLong(offset + 4, sums[iNode]);
+      nodesBuffer.putLong(offset + 12, counts[iNode]);
+    }
+    outTree.write(nodesBuffer.array());
   }
   
   /**
@@ -991,6 +1288,12 @@ public class AggregateQuadTree {
     final SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
     mergeIndexes(destFs, monthlyIndexDir, yearlyIndexDir, monthFormat, yearFormat, params);
     LOG.info("Done generating yearly indexes");
+    
+    // Write the catalogs of all temporal levels for queries
+    for (Path indexDir : new Path[] {dailyIndexDir, monthlyIndexDir, yearlyIndexDir}) {
+      if (destFs.exists(indexDir))
+        TemporalIndex.writeCatalog(destFs, indexDir);
+    }
   }
   
   /**
@@ -1011,11 +1314,19 @@ public class AggregateQuadTree {
       throws IOException, ParseException, InterruptedException {
     TimeRange timeRange = params.get("time") != null? new TimeRange(params.get("time")) : null;
     final FileStatus[] sourceIndexes = timeRange == null?
-        fs.listStatus(srcIndexDir) : fs.listStatus(srcIndexDir, timeRange);
+        fs.listStatus(srcIndexDir, SpatialSite.NonHiddenFileFilter) :
+        fs.listStatus(srcIndexDir, timeRange);
     Arrays.sort(sourceIndexes); // Alphabetical sort acts as sort-by-date here
     
-    // Scan the source indexes and merge each consecutive run belonging to the
-    // same unit
+    /*A regular expression to catch the tile identifier of a MODIS grid cell*/
+    Pattern MODISTileID = Pattern.compile("^.*(h\\d\\dv\\d\\d).*$");
+    
+    // Scan the source indexes and create one merge task for each tile in each
+    // consecutive run of source indexes belonging to the same unit. Tasks of
+    // all units are collected first so that they all run concurrently rather
+    // than one unit at a time.
+    final Vector<Path> destIndexFiles = new Vector<Path>();
+    final Vector<Path[]> filesToMerge = new Vector<Path[]>();
     int i1 = 0;
     while (i1 < sourceIndexes.length) {
       final String indexToCreate =
@@ -1027,104 +1338,105 @@ public class AggregateQuadTree {
         i2++;
 
       // Merge all source indexes in the range [i1, i2) into one dest index
+      Path destIndex = new Path(dstIndexDir, indexToCreate);
       
-      // Copy i1, i2 to other variables as final to be accessible from threads
-      final int firstIndex = i1;
-      final int lastIndex = i2;
-      
-      final Path destIndex = new Path(dstIndexDir, indexToCreate);
-      
-      // For each tile, merge all values in all source indexes
-      /*A regular expression to catch the tile identifier of a MODIS grid cell*/
-      final Pattern MODISTileID = Pattern.compile("^.*(h\\d\\dv\\d\\d).*$"); 
-      final FileStatus[] tilesInFirstDay = fs.listStatus(sourceIndexes[i1].getPath());
-      // Shuffle the array for better load balancing across threads
-      Random rand = new Random();
-      for (int i = 0; i < tilesInFirstDay.length - 1; i++) {
-        // Swap the entry at i with any following entry
-        int j = i + rand.nextInt(tilesInFirstDay.length - i - 1);
-        FileStatus temp = tilesInFirstDay[i];
-        tilesInFirstDay[i] = tilesInFirstDay[j];
-        tilesInFirstDay[j] = temp;
+      // List each source index once and group its files by tile ID
+      Map<String, Vector<Path>> tiles = new HashMap<String, Vector<Path>>();
+      Vector<String> tileIDs = new Vector<String>();
+      for (int iSrcIndex = i1; iSrcIndex < i2; iSrcIndex++) {
+        for (FileStatus tileFile : fs.listStatus(sourceIndexes[iSrcIndex].getPath())) {
+          Matcher matcher = MODISTileID.matcher(tileFile.getPath().getName());
+          if (!matcher.matches()) {
+            LOG.warn("Cannot extract tile id from file "+tileFile.getPath());
+            continue;
+          }
+          String tileID = matcher.group(1);
+          Vector<Path> tileFiles = tiles.get(tileID);
+          if (tileFiles == null) {
+            if (iSrcIndex > i1) {
+              // Only tiles in the first source index are merged
+              LOG.warn("Could not find tile "+tileID+" in dir "+sourceIndexes[i1].getPath());
+              continue;
+            }
+            tiles.put(tileID, tileFiles = new Vector<Path>(i2 - i1));
+            tileIDs.add(tileID);
+          }
+          tileFiles.add(tileFile.getPath());
+        }
       }
-      Parallel.forEach(tilesInFirstDay.length, new RunnableRange<Object>() {
-        @Override
-        public Object run(int i_file1, int i_file2) {
-          for (int i_file = i_file1; i_file < i_file2; i_file++) {
-            try {
-              FileStatus tileInFirstDay = tilesInFirstDay[i_file];
-              
-              // Extract tile ID
-              Matcher matcher = MODISTileID.matcher(tileInFirstDay.getPath().getName());
-              if (!matcher.matches()) {
-                LOG.warn("Cannot extract tile id from file "+tileInFirstDay.getPath());
-                continue;
-              }
-
-              final String tileID = matcher.group(1);
-              Path destIndexFile = new Path(destIndex, tileID);
-              
-              PathFilter tileFilter = new PathFilter() {
-                @Override
-                public boolean accept(Path path) {
-                  return path.getName().contains(tileID);
-                }
-              };
-
-              // Find matching tiles in all source indexes to merge
-              Vector<Path> filesToMerge = new Vector<Path>(lastIndex - firstIndex);
-              filesToMerge.add(tileInFirstDay.getPath());
-              for (int iDailyIndex = firstIndex + 1; iDailyIndex < lastIndex; iDailyIndex++) {
-                FileStatus[] matchedTileFile = fs.listStatus(sourceIndexes[iDailyIndex].getPath(), tileFilter);
-                if (matchedTileFile.length == 0)
-                  LOG.warn("Could not find tile "+tileID+" in dir "+sourceIndexes[iDailyIndex].getPath());
-                else if (matchedTileFile.length == 1)
-                  filesToMerge.add(matchedTileFile[0].getPath());
-              }
-              
-              if (fs.exists(destIndexFile)) {
-                // Destination file already exists
-                // Check the date of the destination and source files to see
-                // whether it needs to be updated or not
-                long destTimestamp = fs.getFileStatus(destIndexFile).getModificationTime();
-                boolean needsUpdate = false;
-                for (Path fileToMerge : filesToMerge) {
-                  long sourceTimestamp = fs.getFileStatus(fileToMerge).getModificationTime();
-                  if (sourceTimestamp > destTimestamp) {
-                    needsUpdate = true;
-                    break;
-                  }
+      for (String tileID : tileIDs) {
+        Vector<Path> tileFiles = tiles.get(tileID);
+        if (tileFiles.size() < i2 - i1)
+          LOG.warn("Tile "+tileID+" is missing in "+(i2 - i1 - tileFiles.size())
+              +" indexes of "+indexToCreate);
+        destIndexFiles.add(new Path(destIndex, tileID));
+        filesToMerge.add(tileFiles.toArray(new Path[tileFiles.size()]));
+      }
+      i1 = i2;
+    }
+    
+    // Shuffle the tasks for better load balancing across threads
+    final int[] tasks = new int[destIndexFiles.size()];
+    for (int i = 0; i < tasks.length; i++)
+      tasks[i] = i;
+    Random rand = new Random();
+    for (int i = tasks.length - 1; i > 0; i--) {
+      // Swap the entry at i with any preceding entry
+      int j = rand.nextInt(i + 1);
+      int temp = tasks[i];
+      tasks[i] = tasks[j];
+      tasks[j] = temp;
+    }
+    Parallel.forEach(tasks.length, new RunnableRange<Object>() {
+      @Override
+      public Object run(int i_task1, int i_task2) {
+        for (int i_task = i_task1; i_task < i_task2; i_task++) {
+          try {
+            Path destIndexFile = destIndexFiles.get(tasks[i_task]);
+            Path[] tileFiles = filesToMerge.get(tasks[i_task]);
+            
+            if (fs.exists(destIndexFile)) {
+              // Destination file already exists
+              // Check the date of the destination and source files to see
+              // whether it needs to be updated or not
+              long destTimestamp = fs.getFileStatus(destIndexFile).getModificationTime();
+              boolean needsUpdate = false;
+              for (Path fileToMerge : tileFiles) {
+                long sourceTimestamp = fs.getFileStatus(fileToMerge).getModificationTime();
+                if (sourceTimestamp > destTimestamp) {
+                  needsUpdate = true;
+                  break;
                 }
-                if (!needsUpdate)
-                  continue;
-                else
-                  LOG.info("Updating file "+destIndexFile.getName());
               }
+              if (!needsUpdate)
+                continue;
+              else
+                LOG.info("Updating file "+destIndexFile);
+            }
 
-              // Do the merge
-              Path tmpFile;
-              do {
-                tmpFile = new Path((int)(Math.random()* 1000000)+".tmp");
-              } while (fs.exists(tmpFile));
-              tmpFile = tmpFile.makeQualified(fs);
-              LOG.info("Merging tile "+tileID+" into file "+destIndexFile);
-              AggregateQuadTree.merge(params,
-                  filesToMerge.toArray(new Path[filesToMerge.size()]), tmpFile);
-              synchronized (fs) {
-                Path destDir = destIndexFile.getParent();
-                if (!fs.exists(destDir))
-                  fs.mkdirs(destDir);
-              }
-              fs.rename(tmpFile, destIndexFile);
-            } catch (IOException e) {
-              e.printStackTrace();
+            // Do the merge
+            Path tmpFile;
+            do {
+              tmpFile = new Path((int)(Math.random()* 1000000)+".tmp");
+            } while (fs.exists(tmpFile));
+            tmpFile = tmpFile.makeQualified(fs);
+            LOG.info("Merging "+tileFiles.length+" files into file "+destIndexFile);
+            AggregateQuadTree.merge(params, tileFiles, tmpFile);
+            synchronized (fs) {
+              Path destDir = destIndexFile.getParent();
+              if (!fs.exists(destDir))
+                fs.mkdirs(destDir);
             }
+            if (fs.exists(destIndexFile))
+              fs.delete(destIndexFile, false);
+            fs.rename(tmpFile, destIndexFile);
+          } catch (IOException e) {
+            e.printStackTrace();
           }
-          return null;
         }
-      });
-      i1 = i2;
-    }
+        return null;
+      }
+    });
   }
 
   /**
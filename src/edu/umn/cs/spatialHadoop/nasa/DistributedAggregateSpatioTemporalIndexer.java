@@ -11,6 +11,8 @@ package edu.umn.cs.spatialHadoop.nasa;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +34,7 @@ import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.temporal.TemporalIndex;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 import edu.umn.cs.spatialHadoop.util.NASADatasetUtil;
 import edu.umn.cs.spatialHadoop.util.TemporalIndexManager;
@@ -51,6 +54,12 @@ public class DistributedAggregateSpatioTemporalIndexer {
 
 	private static final String HDFSIndexPath = "DistributedAggregateSpatioTemporalIndexer.HDFSIndexPath";
 
+	/** Name of the indexed dataset in the HDF files */
+	private static final String DatasetName = "dataset";
+
+	/** Spatial resolution of the indexed dataset */
+	private static final String Resolution = "resolution";
+
 	private static Path hdfsIndexPath = null;
 
 	public static class AggregateQuadTreeMaper extends MapReduceBase implements
@@ -59,10 +68,15 @@ public class DistributedAggregateSpatioTemporalIndexer {
 		// private Text success = new Text("true");
 		// private Text failure = new Text("false");
 
+		private String datasetName;
+		private int resolution;
+
 		@Override
 		public void configure(JobConf job) {
 			super.configure(job);
 			setIndexPath(new Path(job.get(HDFSIndexPath)));
+			this.datasetName = job.get(DatasetName, "LST_Day_1km");
+			this.resolution = job.getInt(Resolution, 1200);
 		}
 
 		@Override
@@ -78,7 +92,7 @@ public class DistributedAggregateSpatioTemporalIndexer {
 			}
 
 			// create a template AggregateQuadTree node
-			AggregateQuadTree.getOrCreateStockQuadTree(1200);
+			AggregateQuadTree.getOrCreateStockQuadTree(resolution);
 
 			String hdfFilePathString = hdfFilePathText.toString();
 			Path hdfFilePath = new Path(hdfFilePathString);
@@ -89,7 +103,7 @@ public class DistributedAggregateSpatioTemporalIndexer {
 					+ hdfIndexFileName);
 			try {
 				AggregateQuadTree.build(new Configuration(), hdfFilePath,
-						"LST_Day_1km", hdfIndexFilePath);
+						datasetName, hdfIndexFilePath);
 				// output.collect(hdfFilePathText, success);
 			} catch (Exception e) {
 				throw new RuntimeException("Error in mapper", e);
@@ -105,6 +119,8 @@ public class DistributedAggregateSpatioTemporalIndexer {
 		System.out.println("<dataset path> - (*) Path to input dataset");
 		System.out.println("<index path> - (*) Path to index output");
 		System.out.println("time:yyyy.mm.dd..yyyy.mm.dd - (*) Time range");
+		System.out.println("dataset:<name> - Dataset to index (default: LST_Day_1km)");
+		System.out.println("resolution:<r> - Resolution of the dataset (default: 1200)");
 		System.out.println("-overwrite - Overwrite output file without notice");
 		GenericOptionsParser.printGenericCommandUsage(System.out);
 	}
@@ -171,6 +187,72 @@ public class DistributedAggregateSpatioTemporalIndexer {
 		DistributedAggregateSpatioTemporalIndexer.hdfsIndexPath = hdfsIndexPath;
 	}
 
+	/**
+	 * Patches the existing monthly and yearly indexes that enclose the given
+	 * daily indexes. Each monthly or yearly tile is patched once with all the
+	 * new daily tiles that fall in it.
+	 * 
+	 * @param temporalIndexManager
+	 * @param dailyIndexes
+	 *            - daily index directories sorted by date
+	 * @param params
+	 * @throws IOException
+	 */
+	private static void patchIndexes(TemporalIndexManager temporalIndexManager,
+			Path[] dailyIndexes, OperationsParams params) throws IOException {
+		// Group the daily tiles by the monthly and yearly tiles they patch
+		Map<Path, ArrayList<Path>> patches = new LinkedHashMap<Path, ArrayList<Path>>();
+		for (Path dailyIndexPath : dailyIndexes) {
+			String dateString = NASADatasetUtil
+					.extractDateStringFromPath(dailyIndexPath);
+			Path monthlyIndexPath = new Path(temporalIndexManager
+					.getMonthlyIndexesHomePath().toString()
+					+ "/"
+					+ NASADatasetUtil.getMonthFormat(dateString));
+			Path yearlyIndexPath = new Path(temporalIndexManager
+					.getYearlyIndexesHomePath().toString()
+					+ "/"
+					+ NASADatasetUtil.getYearFormat(dateString));
+			for (Path dailyIndexHDFFile : FileUtil
+					.getFilesListInPath(dailyIndexPath)) {
+				String tile = NASADatasetUtil
+						.getHDFfilePattern(dailyIndexHDFFile.getName());
+				for (Path indexPath : new Path[] {monthlyIndexPath, yearlyIndexPath}) {
+					Path indexHDFFile = new Path(indexPath, tile + ".hdf");
+					ArrayList<Path> newTiles = patches.get(indexHDFFile);
+					if (newTiles == null)
+						patches.put(indexHDFFile, newTiles = new ArrayList<Path>());
+					newTiles.add(dailyIndexHDFFile);
+				}
+			}
+		}
+
+		for (Map.Entry<Path, ArrayList<Path>> patch : patches.entrySet()) {
+			Path indexHDFFile = patch.getKey();
+			FileSystem currFileSystem = indexHDFFile.getFileSystem(params);
+			if (!currFileSystem.exists(indexHDFFile)) {
+				LOG.warn("Could not find " + indexHDFFile + " to patch");
+				continue;
+			}
+			// Write the patched tree outside the index directory so that
+			// queries never see a partially written tile
+			Path tmpFile;
+			do {
+				tmpFile = new Path((int) (Math.random() * 1000000) + ".tmp");
+			} while (currFileSystem.exists(tmpFile));
+			tmpFile = tmpFile.makeQualified(currFileSystem);
+			try {
+				AggregateQuadTree.patch(params, indexHDFFile, patch.getValue()
+						.toArray(new Path[patch.getValue().size()]), tmpFile);
+			} catch (IOException e) {
+				currFileSystem.delete(tmpFile, false);
+				throw e;
+			}
+			currFileSystem.delete(indexHDFFile, false);
+			currFileSystem.rename(tmpFile, indexHDFFile);
+		}
+	}
+
 	public static void main(String[] args) throws IOException, ParseException {
 
 		OperationsParams params = new OperationsParams(
@@ -224,6 +306,13 @@ public class DistributedAggregateSpatioTemporalIndexer {
 			currFileSystem.delete(dailyIndexDictionaryPath, false);
 		}
 
+		// Existing indexes need to be patched with the new daily indexes
+		Path[] patchingIndexes = temporalIndexManager.getPatchingIndexes();
+		LOG.info("Needs to patch " + patchingIndexes.length
+				+ " days into existing indexes");
+		if (patchingIndexes.length > 0)
+			patchIndexes(temporalIndexManager, patchingIndexes, params);
+
 		// Indexes need to be merged or re-merged
 		Path[] monthlyIndexes = temporalIndexManager.getNeededMonthlyIndexes();
 		LOG.info("Needs to index/re-index " + monthlyIndexes.length + " months");
@@ -280,6 +369,14 @@ public class DistributedAggregateSpatioTemporalIndexer {
 			}
 		}
 
+		// Write the catalogs of all temporal levels for queries
+		for (Path indexHomePath : new Path[] {
+				temporalIndexManager.getDailyIndexesHomePath(),
+				temporalIndexManager.getMonthlyIndexesHomePath(),
+				temporalIndexManager.getYearlyIndexesHomePath() }) {
+			TemporalIndex.writeCatalog(indexHomePath.getFileSystem(params),
+					indexHomePath);
+		}
 	}
 
 }
@@ -0,0 +1,349 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.nasa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.hdf.DDNumericDataGroup;
+import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
+import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
+import edu.umn.cs.spatialHadoop.hdf.HDFFile;
+import edu.umn.cs.spatialHadoop.hdf.NumericDataReader;
+import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.FileUtil;
+
+/**
+ * A JVM-wide cache of information extracted from HDF files that is reused
+ * across splits and jobs running in the same JVM. It caches:
+ *  - Decoded water masks (MOD44W) as a bit array of land pixels
+ *  - Listings of water mask directories
+ *  - Metadata of HDF files as {@link NASADataset} objects
+ * Entries are keyed by the path and the modification time of the file so that
+ * a new version of a file is never served from the cache. Decoded water masks
+ * can also be stored in a local directory to be shared by all JVMs on the
+ * same machine.
+ * @author Ahmed Eldawy
+ *
+ */
+public class HDFCache {
+  private static final Log LOG = LogFactory.getLog(HDFCache.class);
+
+  /**Configuration key for the maximum memory used by cached water masks*/
+  public static final String WaterMaskCacheSize = "HDFRecordReader.WaterMaskCacheSize";
+
+  /**Configuration key for a local directory to keep decoded water masks*/
+  public static final String LocalCacheDir = "HDFRecordReader.LocalCacheDir";
+
+  /**Default path to the water mask directory*/
+  public static final String DefaultWaterMaskPath =
+      "http://e4ftl01.cr.usgs.gov/MOLT/MOD44W.005/2000.02.24/";
+
+  /**Resolution of the water mask dataset*/
+  public static final int WaterMaskResolution = 4800;
+
+  /**Size of one decoded water mask in memory*/
+  private static final long WaterMaskSize =
+      (long) WaterMaskResolution * WaterMaskResolution / 8;
+
+  /**Maximum number of cached metadata entries*/
+  private static final int MaxMetadataEntries = 10000;
+
+  /**Decoded water masks in access order*/
+  private static final LinkedHashMap<String, BitArray> waterMasks =
+      new LinkedHashMap<String, BitArray>(16, 0.75f, true);
+
+  /**
+   * Time in milliseconds after which a cached listing of a water mask
+   * directory is refreshed to find water mask files that were replaced
+   */
+  private static final long WaterMaskListingTTL = 10 * 60 * 1000;
+
+  /**
+   * A cached listing of a water mask directory along with the time when
+   * it was listed
+   */
+  private static class WaterMaskListing {
+    final long listingTime;
+    final FileStatus[] files;
+
+    WaterMaskListing(long listingTime, FileStatus[] files) {
+      this.listingTime = listingTime;
+      this.files = files;
+    }
+
+    FileStatus find(String tileIdentifier) {
+      for (FileStatus wmFile : files) {
+        if (wmFile.getPath().getName().contains(tileIdentifier))
+          return wmFile;
+      }
+      return null;
+    }
+  }
+
+  /**Cached listings of water mask directories*/
+  private static final Map<Path, WaterMaskListing> waterMaskListings =
+      new HashMap<Path, WaterMaskListing>();
+
+  /**Cached metadata of HDF files*/
+  @SuppressWarnings("serial")
+  private static final LinkedHashMap<String, NASADataset> metadata =
+      new LinkedHashMap<String, NASADataset>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, NASADataset> eldest) {
+      return size() > MaxMetadataEntries;
+    }
+  };
+
+  /**Enforce static only calls*/
+  private HDFCache() {}
+
+  /**
+   * Returns a key that identifies a specific version of a file.
+   * @param status
+   * @return
+   */
+  private static String getFileKey(FileStatus status) {
+    return status.getPath() + "@" + status.getModificationTime();
+  }
+
+  /**
+   * Returns the metadata of an HDF file. If the file has been seen before,
+   * the cached metadata is returned without reading anything from the file.
+   * The returned object is a copy that can be modified by the caller.
+   * @param status the status of the HDF file
+   * @param hdfFile the opened HDF file to read the metadata from if not cached
+   * @return
+   * @throws IOException
+   */
+  public static NASADataset getDatasetMetadata(FileStatus status,
+      HDFFile hdfFile) throws IOException {
+    String key = getFileKey(status);
+    NASADataset dataset;
+    synchronized (metadata) {
+      dataset = metadata.get(key);
+    }
+    if (dataset == null) {
+      String archiveMetadata = (String) hdfFile.findHeaderByName("ArchiveMetadata.0").getEntryAt(0);
+      String coreMetadata = (String) hdfFile.findHeaderByName("CoreMetadata.0").getEntryAt(0);
+      dataset = new NASADataset(coreMetadata, archiveMetadata);
+      synchronized (metadata) {
+        metadata.put(key, dataset);
+      }
+    }
+    return new NASADataset(dataset);
+  }
+
+  /**
+   * Returns the water mask of the given MODIS tile as a bit array of
+   * {@link #WaterMaskResolution}<sup>2</sup> bits in row-major order where a
+   * set bit indicates land. The returned array is shared and must not be
+   * modified. Returns <code>null</code> if the water mask cannot be found.
+   * @param conf
+   * @param h
+   * @param v
+   * @return
+   * @throws IOException
+   */
+  public static BitArray getWaterMask(Configuration conf, int h, int v)
+      throws IOException {
+    Path wmPath = new Path(conf.get(HDFRecordReader.WATER_MASK_PATH, DefaultWaterMaskPath));
+    String tileIdentifier = String.format("h%02dv%02d", h, v);
+    FileStatus wmFile = findWaterMaskFile(conf, wmPath, tileIdentifier);
+    if (wmFile == null) {
+      LOG.warn("Could not find water mask for tile '"+tileIdentifier+"'");
+      return null;
+    }
+    String key = getFileKey(wmFile);
+    synchronized (waterMasks) {
+      BitArray waterMask = waterMasks.get(key);
+      if (waterMask != null)
+        return waterMask;
+    }
+
+    // Not in memory. Try the local cache directory before the file itself
+    File localFile = null;
+    String localCacheDir = conf.get(LocalCacheDir);
+    if (localCacheDir != null)
+      localFile = new File(localCacheDir, String.format("MOD44W-%s-%d.bits",
+          tileIdentifier, wmFile.getModificationTime()));
+    BitArray waterMask = null;
+    if (localFile != null && localFile.exists())
+      waterMask = readLocalWaterMask(localFile);
+    if (waterMask == null) {
+      waterMask = decodeWaterMask(conf, wmFile);
+      if (waterMask == null)
+        return null;
+      if (localFile != null)
+        writeLocalWaterMask(waterMask, localFile);
+    }
+
+    long capacity = conf.getLong(WaterMaskCacheSize, 256 * 1024 * 1024);
+    synchronized (waterMasks) {
+      waterMasks.put(key, waterMask);
+      // Evict least recently used masks to stay within the capacity
+      Iterator<BitArray> lru = waterMasks.values().iterator();
+      while (waterMasks.size() * WaterMaskSize > capacity && lru.hasNext()) {
+        lru.next();
+        lru.remove();
+      }
+    }
+    return waterMask;
+  }
+
+  /**
+   * Finds the water mask file of a tile using a cached directory listing.
+   * The directory is listed again if the tile is not in the cached listing,
+   * i.e., it was added later, or the listing is older than
+   * {@link #WaterMaskListingTTL}, i.e., the file might have been replaced.
+   * @param conf
+   * @param wmPath
+   * @param tileIdentifier
+   * @return
+   * @throws IOException
+   */
+  private static FileStatus findWaterMaskFile(Configuration conf, Path wmPath,
+      String tileIdentifier) throws IOException {
+    WaterMaskListing listing;
+    synchronized (waterMaskListings) {
+      listing = waterMaskListings.get(wmPath);
+    }
+    if (listing != null &&
+        System.currentTimeMillis() - listing.listingTime < WaterMaskListingTTL) {
+      FileStatus wmFile = listing.find(tileIdentifier);
+      if (wmFile != null)
+        return wmFile;
+    }
+    // Not listed before, expired or the tile was added after the listing
+    FileSystem wmFs = wmPath.getFileSystem(conf);
+    FileStatus[] files = wmFs.listStatus(wmPath);
+    if (files == null)
+      files = new FileStatus[0];
+    listing = new WaterMaskListing(System.currentTimeMillis(), files);
+    synchronized (waterMaskListings) {
+      waterMaskListings.put(wmPath, listing);
+    }
+    return listing.find(tileIdentifier);
+  }
+
+  /**
+   * Reads the water mask from the HDF file and decodes it into a bit array.
+   * @param conf
+   * @param wmFile
+   * @return
+   * @throws IOException
+   */
+  private static BitArray decodeWaterMask(Configuration conf, FileStatus wmFile)
+      throws IOException {
+    Path wmFileToLoad = wmFile.getPath();
+    FileSystem wmFs = wmFileToLoad.getFileSystem(conf);
+    boolean deleteOnEnd = false;
+    if (wmFs instanceof HTTPFileSystem) {
+      // HDF files are really bad to read over HTTP due to seeks
+      wmFileToLoad = new Path(FileUtil.copyFile(conf, wmFile));
+      wmFs = FileSystem.getLocal(conf);
+      deleteOnEnd = true;
+    }
+    HDFFile waterMaskFile = null;
+    try {
+      waterMaskFile = new HDFFile(wmFs.open(wmFileToLoad));
+      DDVGroup waterMaskGroup = waterMaskFile.findGroupByName("water_mask");
+      if (waterMaskGroup == null) {
+        LOG.warn("Water mask dataset 'water_mask' not found in file "+wmFile.getPath());
+        return null;
+      }
+      DDNumericDataGroup numericDataGroup = null;
+      for (DataDescriptor dd : waterMaskGroup.getContents()) {
+        if (dd instanceof DDNumericDataGroup)
+          numericDataGroup = (DDNumericDataGroup) dd;
+      }
+      if (numericDataGroup == null)
+        return null;
+      // Decode the mask chunk by chunk without loading the whole byte array
+      NumericDataReader reader = new NumericDataReader(numericDataGroup);
+      BitArray landMask = new BitArray(reader.getNumValues());
+      byte[] chunk = new byte[64 * 1024];
+      int i = 0;
+      int chunkSize;
+      while ((chunkSize = reader.read(chunk, 0, chunk.length)) > 0) {
+        for (int j = 0; j < chunkSize; j++, i++) {
+          // value = 0 means land
+          if (chunk[j] == 0)
+            landMask.set(i, true);
+        }
+      }
+      return landMask;
+    } finally {
+      if (waterMaskFile != null)
+        waterMaskFile.close();
+      if (deleteOnEnd)
+        wmFs.delete(wmFileToLoad, false);
+    }
+  }
+
+  private static BitArray readLocalWaterMask(File localFile) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(localFile)));
+      BitArray waterMask = new BitArray();
+      waterMask.readFields(in);
+      return waterMask;
+    } catch (IOException e) {
+      LOG.warn("Error reading cached water mask "+localFile, e);
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.warn("Error closing cached water mask "+localFile, e);
+        }
+      }
+    }
+  }
+
+  private static void writeLocalWaterMask(BitArray waterMask, File localFile) {
+    // Write to a temporary file first so that other JVMs never see a
+    // partially written file
+    File tmpFile = new File(localFile.getParentFile(),
+        localFile.getName() + "." + (int)(Math.random() * 1000000) + ".tmp");
+    try {
+      localFile.getParentFile().mkdirs();
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      try {
+        waterMask.write(out);
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(localFile))
+        tmpFile.delete();
+    } catch (IOException e) {
+      LOG.warn("Error caching water mask in "+localFile, e);
+      tmpFile.delete();
+    }
+  }
+}
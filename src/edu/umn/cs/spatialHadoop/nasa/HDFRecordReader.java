@@ -17,7 +17,6 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
@@ -31,8 +30,9 @@ import edu.umn.cs.spatialHadoop.hdf.DDNumericDataGroup;
 import edu.umn.cs.spatialHadoop.hdf.DDVDataHeader;
 import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
 import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
-import edu.umn.cs.spatialHadoop.hdf.HDFConstants;
 import edu.umn.cs.spatialHadoop.hdf.HDFFile;
+import edu.umn.cs.spatialHadoop.hdf.NumericDataReader;
+import edu.umn.cs.spatialHadoop.util.BitArray;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 
 /**
@@ -60,18 +60,33 @@ public class HDFRecordReader<S extends NASAShape>
   /**Set to true to skip non-set (fill) values in the input*/
   private boolean skipFillValue;
   
-  /**
-   * The raw data (unparsed) of the underlying dataset. We have to keep it as
-   * an unparsed byte array because Java has very limited support to generic
-   * arrays of primitive data types.
-   */
-  private byte[] unparsedDataArray;
+  /**Number of values to decode at a time when values are streamed*/
+  private static final int ChunkSize = 64 * 1024;
+  
+  /**Reads values of the underlying dataset chunk by chunk*/
+  private NumericDataReader valuesReader;
   
   /**Number of bytes per data entry*/
   private int valueSize;
   
-  /**Position to read next in the data array*/
-  private int position;
+  /**Total number of values in the dataset*/
+  private int numValues;
+  
+  /**
+   * Values of the underlying dataset that are currently in memory. Only the
+   * array that matches the value size is used. If fill values are recovered,
+   * all values are kept in memory. Otherwise, the array is reused to hold
+   * one chunk of values at a time.
+   */
+  private byte[] byteValues;
+  private short[] shortValues;
+  private int[] intValues;
+  
+  /**Index of the first value currently in memory*/
+  private int firstValueInMemory;
+  
+  /**Number of values currently in memory*/
+  private int numValuesInMemory;
 
   /**The iterator that is returned to MapReduce calls*/
   private NASAIterator value;
@@ -101,31 +116,26 @@ public class HDFRecordReader<S extends NASAShape>
       throw new RuntimeException("Dataset name should be provided");
     inFile = ((FileSplit) split).getPath();
     fs = inFile.getFileSystem(conf);
+    FileStatus inFileStatus = fs.getFileStatus(inFile);
     if (fs instanceof HTTPFileSystem) {
       // For performance reasons, we don't open HDF files from HTTP
-      inFile = new Path(FileUtil.copyFile(conf, inFile));
+      inFile = new Path(FileUtil.copyFile(conf, inFileStatus));
       fs = FileSystem.getLocal(conf);
       this.deleteOnEnd = true;
     }
     hdfFile = new HDFFile(fs.open(inFile));
     
     // Retrieve meta data
-    String archiveMetadata = (String) hdfFile.findHeaderByName("ArchiveMetadata.0").getEntryAt(0);
-    String coreMetadata = (String) hdfFile.findHeaderByName("CoreMetadata.0").getEntryAt(0);
-    nasaDataset = new NASADataset(coreMetadata, archiveMetadata);
+    nasaDataset = HDFCache.getDatasetMetadata(inFileStatus, hdfFile);
     
     // Retrieve the data array
     DDVGroup dataGroup = hdfFile.findGroupByName(datasetName);
     boolean fillValueFound = false;
     int resolution = 0;
+    DDNumericDataGroup numericDataGroup = null;
     for (DataDescriptor dd : dataGroup.getContents()) {
       if (dd instanceof DDNumericDataGroup) {
-        DDNumericDataGroup numericDataGroup = (DDNumericDataGroup) dd;
-        unparsedDataArray = numericDataGroup.getAsByteArray();
-        valueSize = numericDataGroup.getDataSize();
-        resolution = numericDataGroup.getDimensions()[0];
-        if (valueSize * resolution * resolution != unparsedDataArray.length)
-          throw new RuntimeException("Error parsing metadata");
+        numericDataGroup = (DDNumericDataGroup) dd;
       } else if (dd instanceof DDVDataHeader) {
         DDVDataHeader vheader = (DDVDataHeader) dd;
         if (vheader.getName().equals("_FillValue")) {
@@ -149,15 +159,31 @@ public class HDFRecordReader<S extends NASAShape>
         }
       }
     }
+    if (numericDataGroup == null)
+      throw new RuntimeException("Cannot find the values of dataset '"+datasetName+"' in "+inFile);
+    // Open the values after all headers are read as they share the same stream
+    valuesReader = new NumericDataReader(numericDataGroup);
+    valueSize = valuesReader.getValueSize();
+    resolution = valuesReader.getDimensions()[0];
+    numValues = valuesReader.getNumValues();
+    if (resolution * resolution != numValues)
+      throw new RuntimeException("Error parsing metadata");
     nasaDataset.resolution = resolution;
+    boolean recoverFillValues = false;
     if (!fillValueFound) {
       skipFillValue = false;
     } else {
       skipFillValue = conf.getBoolean("skipfill", true);
       // Whether we need to recover fill values or not
-      boolean recoverFillValues = conf.getBoolean("recoverholes", true);
-      if (recoverFillValues)
-        recoverFillValues(conf);
+      recoverFillValues = conf.getBoolean("recoverholes", true);
+    }
+    if (recoverFillValues) {
+      // Recovery needs random access to the whole dataset
+      allocateValues(numValues);
+      readValues();
+      recoverFillValues(conf);
+    } else {
+      allocateValues(Math.min(ChunkSize, numValues));
     }
     this.nasaShape = (S) OperationsParams.getShape(conf, "shape", new NASARectangle());
     this.nasaShape.setTimestamp(nasaDataset.time);
@@ -177,7 +203,7 @@ public class HDFRecordReader<S extends NASAShape>
 
   @Override
   public float getProgress() throws IOException, InterruptedException {
-    return unparsedDataArray == null? 0 : (float) position / unparsedDataArray.length;
+    return value == null || numValues == 0? 0 : (float) value.position / numValues;
   }
 
   @Override
@@ -188,6 +214,9 @@ public class HDFRecordReader<S extends NASAShape>
   @Override
   public void close() throws IOException {
     hdfFile.close();
+    byteValues = null;
+    shortValues = null;
+    intValues = null;
     if (deleteOnEnd) {
       fs.delete(inFile, true);
     }
@@ -197,10 +226,9 @@ public class HDFRecordReader<S extends NASAShape>
    * Sets the geometry information for the given object according to its
    * position in the array
    * @param p
-   * @param position
+   * @param position - the index of the value in the array
    */
   protected void setShapeGeometry(Shape s, int position) {
-    position /= valueSize;
     int row = position / nasaDataset.resolution;
     int col = position % nasaDataset.resolution;
     if (s instanceof Point) {
@@ -253,10 +281,8 @@ public class HDFRecordReader<S extends NASAShape>
     }
     
     private void skipFillValue() {
-      while (position < unparsedDataArray.length
-          && (!skipFillValue || HDFConstants.readAsAinteger(unparsedDataArray,
-              position, valueSize) == fillValue))
-        position += valueSize;
+      while (position < numValues && skipFillValue && getValue(position) == fillValue)
+        position++;
     }
 
 
@@ -267,14 +293,14 @@ public class HDFRecordReader<S extends NASAShape>
     
     @Override
     public boolean hasNext() {
-      return position < unparsedDataArray.length;
+      return position < numValues;
     }
     
     @Override
     public S next() {
-      shape.setValue(HDFConstants.readAsAinteger(unparsedDataArray, position, valueSize));
+      shape.setValue(getValue(position));
       setShapeGeometry(shape, position);
-      position += valueSize;
+      position++;
       skipFillValue();
       return shape;
     }
@@ -285,6 +311,57 @@ public class HDFRecordReader<S extends NASAShape>
     }
   }
   
+  /**
+   * Allocates the array that holds values in memory according to the value
+   * size.
+   * @param size
+   */
+  private void allocateValues(int size) {
+    if (valueSize == 1)
+      byteValues = new byte[size];
+    else if (valueSize == 2)
+      shortValues = new short[size];
+    else
+      intValues = new int[size];
+  }
+  
+  /**
+   * Decodes the next values from the dataset replacing the values currently
+   * in memory.
+   * @throws IOException
+   */
+  private void readValues() throws IOException {
+    firstValueInMemory += numValuesInMemory;
+    if (valueSize == 1)
+      numValuesInMemory = valuesReader.read(byteValues, 0, byteValues.length);
+    else if (valueSize == 2)
+      numValuesInMemory = valuesReader.read(shortValues, 0, shortValues.length);
+    else
+      numValuesInMemory = valuesReader.read(intValues, 0, intValues.length);
+  }
+  
+  /**
+   * Returns the value at the given index in the dataset. When values are
+   * streamed, values have to be retrieved in order.
+   * @param i
+   * @return
+   */
+  private int getValue(int i) {
+    if (i >= firstValueInMemory + numValuesInMemory) {
+      try {
+        readValues();
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading values of "+inFile, e);
+      }
+    }
+    i -= firstValueInMemory;
+    if (valueSize == 1)
+      return byteValues[i] & 0xff;
+    if (valueSize == 2)
+      return shortValues[i] & 0xffff;
+    return intValues[i];
+  }
+  
   /**
    * Return the value at the given offset in the array
    * @param x
@@ -292,13 +369,17 @@ public class HDFRecordReader<S extends NASAShape>
    * @return
    */
   private int getValueAt(int x, int y) {
-    int position = (y * nasaDataset.resolution + x) * valueSize;
-    return HDFConstants.readAsAinteger(unparsedDataArray, position, valueSize);
+    return getValue(y * nasaDataset.resolution + x);
   }
 
   private void setValueAt(int x, int y, int value) {
-    int position = (y * nasaDataset.resolution + x) * valueSize;
-    HDFConstants.writeAt(unparsedDataArray, position, value, valueSize);
+    int i = y * nasaDataset.resolution + x;
+    if (valueSize == 1)
+      byteValues[i] = (byte) value;
+    else if (valueSize == 2)
+      shortValues[i] = (short) value;
+    else
+      intValues[i] = value;
   }
   
   /**
@@ -309,53 +390,20 @@ public class HDFRecordReader<S extends NASAShape>
    */
   private void recoverFillValues(Configuration conf) throws IOException {
     // For now, we can only recover values of type short
-    HDFFile waterMaskFile = null;
-    try {
-      // Read water mask
-      Path wmPath = new Path(conf.get(WATER_MASK_PATH, "http://e4ftl01.cr.usgs.gov/MOLT/MOD44W.005/2000.02.24/"));
-      final String tileIdentifier = String.format("h%02dv%02d", nasaDataset.h, nasaDataset.v);
-      FileSystem wmFs = wmPath.getFileSystem(conf);
-      FileStatus[] wmFile = wmFs.listStatus(wmPath, new PathFilter() {
-        @Override
-        public boolean accept(Path path) {
-          return path.getName().contains(tileIdentifier);
-        }});   
-      if (wmFile.length == 0) {
-        LOG.warn("Could not find water mask for tile '"+tileIdentifier+"'");
-        return;
-      }
-      Path wmFileToLoad = wmFile[0].getPath();
-      if (wmFs instanceof HTTPFileSystem) {
-        wmFileToLoad = new Path(FileUtil.copyFile(conf, wmFileToLoad));
-        wmFs = FileSystem.getLocal(conf);
-      }
-      waterMaskFile = new HDFFile(wmFs.open(wmFileToLoad));
-      DDVGroup waterMaskGroup = waterMaskFile.findGroupByName("water_mask");
-      if (waterMaskGroup == null) {
-        LOG.warn("Water mask dataset 'water_mask' not found in file "+wmFile[0]);
-        return;
-      }
-      byte[] waterMask = null;
-      for (DataDescriptor dd : waterMaskGroup.getContents()) {
-        if (dd instanceof DDNumericDataGroup) {
-          DDNumericDataGroup numericDataGroup = (DDNumericDataGroup) dd;
-          waterMask = (byte[])numericDataGroup.getAsByteArray();
-        }
-      }
+    // The water mask is decoded once per JVM and shared by all splits
+    BitArray waterMask = HDFCache.getWaterMask(conf, nasaDataset.h, nasaDataset.v);
+    if (waterMask == null)
+      return;
 
-      // Stores which values has been recovered by copying a single value
-      // without interpolation in the x-direction
-      byte[] valueStatus = new byte[unparsedDataArray.length / valueSize];
-      
+    // Stores which values has been recovered by copying a single value
+    // without interpolation in the x-direction
+    byte[] valueStatus = new byte[numValues];
+    
+    recoverXDirection(waterMask, valueStatus);
+    int emptyColumns = recoverYDirection(waterMask, valueStatus);
+    // Do an additional round in x-direction to make sure there are no empty columns
+    if (emptyColumns > 10)
       recoverXDirection(waterMask, valueStatus);
-      int emptyColumns = recoverYDirection(waterMask, valueStatus);
-      // Do an additional round in x-direction to make sure there are no empty columns
-      if (emptyColumns > 10)
-        recoverXDirection(waterMask, valueStatus);
-    } finally {
-      if (waterMaskFile != null)
-        waterMaskFile.close();
-    }
   }
 
   /***
@@ -367,7 +415,7 @@ public class HDFRecordReader<S extends NASAShape>
    *  2 - the entry did not contain a value and its current value is copied<br/>
    *  3 - the entry did not contain a value and its current value is interpolated<br/>
    */
-  private void recoverXDirection(byte[] water_mask, byte[] valueStatus) {
+  private void recoverXDirection(BitArray water_mask, byte[] valueStatus) {
     // Resolution of the input dataset
     int inputRes = nasaDataset.resolution;
     // Recover in x-direction
@@ -420,7 +468,7 @@ public class HDFRecordReader<S extends NASAShape>
    *  2 - the entry did not contain a value and its current value is copied<br/>
    *  3 - the entry did not contain a value and its current value is interpolated<br/>
    */
-  private int recoverYDirection(byte[] water_mask, byte[] valueStatus) {
+  private int recoverYDirection(BitArray water_mask, byte[] valueStatus) {
     int emptyColumns = 0;
     // Resolution of the input dataset
     int inputRes = nasaDataset.resolution;
@@ -480,22 +528,21 @@ public class HDFRecordReader<S extends NASAShape>
   /***
    * Checks whether a value is on land or not. If a value is on land, it will
    * be recovered during the hole recovery process.
-   * @param water_mask
+   * @param water_mask - a bit array where set bits indicate land
    * @param x
    * @param y
    * @param inputRes
    * @return
    */
-  private static boolean onLand(byte[] water_mask, int x, int y, int resolution) {
+  private static boolean onLand(BitArray water_mask, int x, int y, int resolution) {
     int wm_x = x * 4800 / resolution;
     int wm_y = y * 4800 / resolution;
     int size = 4800 / resolution;
     byte wm_sum = 0;
     for (int xx = 0; xx < size; xx++) {
       for (int yy = 0; yy < size; yy++) {
-        byte wm_value = water_mask[(yy +wm_y) * 4800 + (xx+wm_x)];
-        if (wm_value == 0)
-          wm_sum++; // value = 0 means land
+        if (water_mask.get((yy +wm_y) * 4800 + (xx+wm_x)))
+          wm_sum++;
       }
     }
     if (wm_sum >= (size * size) / 2)
@@ -56,6 +56,18 @@ public class NASADataset extends Rectangle {
   
   public NASADataset() {}
   
+  public NASADataset(NASADataset other) {
+    super(other);
+    this.time = other.time;
+    this.cellName = other.cellName;
+    this.h = other.h;
+    this.v = other.v;
+    this.datasetName = other.datasetName;
+    this.resolution = other.resolution;
+    this.minValue = other.minValue;
+    this.maxValue = other.maxValue;
+  }
+  
   /**
    * Inititalizes the dataset from the metadata stored at the root of an HDF
    * file.
@@ -8,7 +8,7 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.nasa;
 
-import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.temporal.TemporalShape;
 
 /**
  * A shape coming from NASA datasets. It contains an extra value corresponding
@@ -16,7 +16,7 @@ import edu.umn.cs.spatialHadoop.core.Shape;
  * @author Ahmed Eldawy
  *
  */
-public interface NASAShape extends Shape {
+public interface NASAShape extends TemporalShape {
   public void setValue(int v);
   public int getValue();
   
@@ -17,6 +17,15 @@ import java.net.URLConnection;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -54,6 +63,7 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Node;
+import edu.umn.cs.spatialHadoop.nasa.SpatioAggregateQueries.QueryStats;
 
 /**
  * @author Ahmed Eldawy
@@ -81,6 +91,40 @@ public class ShahedServer extends AbstractHandler {
   private Path dataPath;
 
   private Path indexPath;
+
+  /**Runs image requests in the background in order of their estimated cost*/
+  private ThreadPoolExecutor imageExecutor;
+
+  /**Maximum number of image requests waiting for a worker*/
+  private int maxQueuedImageRequests;
+
+  /**Gives each image request a sequence number to break ties in priority*/
+  private final AtomicLong imageRequestSequence = new AtomicLong();
+
+  /**
+   * The largest possible cost of an image request, i.e., the whole world for
+   * the maximum allowed number of days
+   */
+  private static final double MaxImageRequestCost = 360.0 * 180.0 * 31;
+
+  /**
+   * Longest time in milliseconds an image request can be delayed due to its
+   * cost. A request is never overtaken by requests that arrive this long
+   * after it no matter how cheap they are.
+   */
+  private long maxImageRequestDelay;
+
+  /**Aggregate queries currently running keyed by their parameters*/
+  private final ConcurrentMap<String, FutureTask<AggregateResult>> inFlightAggregateQueries =
+      new ConcurrentHashMap<String, FutureTask<AggregateResult>>();
+
+  /**The answer of an aggregate query along with its statistics*/
+  private static class AggregateResult {
+    Node result;
+    QueryStats stats = new QueryStats();
+    long totalTime;
+  }
+
   
   static {
     MAIL_HOST = "mail.cs.umn.edu";
@@ -114,6 +158,11 @@ public class ShahedServer extends AbstractHandler {
     this.from = params.get("from", this.username);
     this.dataPath = dataPath;
     this.indexPath = indexPath;
+    int numOfWorkers = params.getInt("workers", 2);
+    this.maxQueuedImageRequests = params.getInt("queuesize", 20);
+    this.maxImageRequestDelay = params.getLong("maxdelay", 10 * 60) * 1000;
+    this.imageExecutor = new ThreadPoolExecutor(numOfWorkers, numOfWorkers,
+        0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
   }
 
   /**
@@ -146,11 +195,17 @@ public class ShahedServer extends AbstractHandler {
       LOG.info("Received request: '"+request.getRequestURL()+"'");
       if (target.endsWith("/generate_image.cgi")) {
         LOG.info("Generating image");
-        // Start a background thread that handles the request
-        new ImageRequestHandler(request).start();
-        response.setStatus(HttpServletResponse.SC_OK);
-        response.setContentType("text/plain;charset=utf-8");
-        response.getWriter().println("Image request received successfully");
+        // Queue the request to be handled by one of the background workers
+        if (submitImageRequest(request)) {
+          response.setStatus(HttpServletResponse.SC_OK);
+          response.setContentType("text/plain;charset=utf-8");
+          response.getWriter().println("Image request received successfully");
+        } else {
+          LOG.warn("Rejected image request. Too many requests in the queue");
+          response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          response.setContentType("text/plain;charset=utf-8");
+          response.getWriter().println("Server is busy. Please try again later");
+        }
       } else if (target.endsWith("/aggregate_query.cgi")) {
         handleAggregateQuery(request, response);
         LOG.info("Aggregate query results returned");
@@ -168,6 +223,55 @@ public class ShahedServer extends AbstractHandler {
     }
   }
 
+  /**
+   * Adds an image request to the queue of the background workers unless the
+   * queue is full.
+   * @param request
+   * @return <code>true</code> if the request was accepted
+   * @throws IOException
+   * @throws ParseException
+   */
+  private boolean submitImageRequest(HttpServletRequest request)
+      throws IOException, ParseException {
+    synchronized (imageExecutor) {
+      if (imageExecutor.getQueue().size() >= maxQueuedImageRequests)
+        return false;
+      imageExecutor.execute(new ImageRequestHandler(request));
+      return true;
+    }
+  }
+
+  /**
+   * Runs a query unless an identical query is already running in which case
+   * it waits for the running query and returns its answer.
+   * @param inFlight all queries of the same type that are currently running
+   * @param key uniquely identifies the query by its parameters
+   * @param query
+   * @return
+   * @throws Exception
+   */
+  private static <T> T runCoalesced(ConcurrentMap<String, FutureTask<T>> inFlight,
+      String key, Callable<T> query) throws Exception {
+    FutureTask<T> task = new FutureTask<T>(query);
+    FutureTask<T> runningTask = inFlight.putIfAbsent(key, task);
+    try {
+      if (runningTask != null) {
+        LOG.info("Waiting for a running query with the same parameters '"+key+"'");
+        return runningTask.get();
+      }
+      try {
+        task.run();
+        return task.get();
+      } finally {
+        inFlight.remove(key, task);
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
   /**
    * Handle a request for a spatio-temporal aggregate query.
    * @param request
@@ -190,13 +294,23 @@ public class ShahedServer extends AbstractHandler {
       LOG.info("Date range "+startDate+", "+endDate);
       
       // Create the query parameters
-      OperationsParams params = new OperationsParams(commonParams);
+      final OperationsParams params = new OperationsParams(commonParams);
       params.set("rect", west+','+south+','+east+','+north);
       params.set("time", startDate+".."+endDate);
       
-      long t1 = System.currentTimeMillis();
-      Node result = SpatioAggregateQueries.aggregateQuery(indexPath, params);
-      long t2 = System.currentTimeMillis();
+      AggregateResult answer = runCoalesced(inFlightAggregateQueries,
+          params.get("rect")+"@"+params.get("time"), new Callable<AggregateResult>() {
+        @Override
+        public AggregateResult call() throws Exception {
+          AggregateResult answer = new AggregateResult();
+          long t1 = System.currentTimeMillis();
+          answer.result = SpatioAggregateQueries.aggregateQuery(indexPath, params, answer.stats);
+          long t2 = System.currentTimeMillis();
+          answer.totalTime = t2 - t1;
+          return answer;
+        }
+      });
+      Node result = answer.result;
       // Report the answer and time
       response.setContentType("application/json;charset=utf-8");
       PrintWriter writer = response.getWriter();
@@ -210,9 +324,9 @@ public class ShahedServer extends AbstractHandler {
       }
       writer.print("},");
       writer.print("\"stats\":{");
-      writer.print("\"totaltime\":"+(t2-t1)+',');
-      writer.print("\"num-of-temporal-partitions\":"+SpatioAggregateQueries.numOfTemporalPartitionsInLastQuery+',');
-      writer.print("\"num-of-trees\":"+SpatioAggregateQueries.numOfTreesTouchesInLastRequest);
+      writer.print("\"totaltime\":"+answer.totalTime+',');
+      writer.print("\"num-of-temporal-partitions\":"+answer.stats.numOfTemporalPartitions+',');
+      writer.print("\"num-of-trees\":"+answer.stats.numOfTrees);
       writer.print("}");
       writer.print("}");
       writer.close();
@@ -246,18 +360,22 @@ public class ShahedServer extends AbstractHandler {
       String endDate = endDateParts[2] + '.' + endDateParts[1] + '.' + endDateParts[0];
       
       // Create the query parameters
-      OperationsParams params = new OperationsParams(commonParams);
+      final OperationsParams params = new OperationsParams(commonParams);
       params.set("point", lon+","+lat);
       params.set("time", startDate+".."+endDate);
       
+      // Points are written to the response as soon as they are found rather
+      // than buffered. Query threads call the collector concurrently.
       final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy");
       final PrintWriter writer = response.getWriter();
       response.setContentType("application/json;charset=utf-8");
+      response.setStatus(HttpServletResponse.SC_OK);
       writer.print("{");
       writer.print("\"results\":{");
       writer.print("\"points\":[");
+      QueryStats stats = new QueryStats();
       long t1 = System.currentTimeMillis();
-      long numOfResults = SpatioAggregateQueries.selectionQuery(indexPath, new ResultCollector<NASAPoint>() {
+      long resultSize = SpatioAggregateQueries.selectionQuery(indexPath, new ResultCollector<NASAPoint>() {
         @Override
         public void collect(NASAPoint r) {
           synchronized (writer) {
@@ -265,18 +383,19 @@ public class ShahedServer extends AbstractHandler {
                 r.y, r.x, dateFormat.format(r.timestamp), r.getValue());
           }
         }
-      }, params);
+      }, params, stats);
       long t2 = System.currentTimeMillis();
+      long totalTime = t2 - t1;
+
       writer.print("],");
-      writer.printf("\"result-size\":%d},", numOfResults);
+      writer.printf("\"result-size\":%d},", resultSize);
       writer.print("\"stats\":{");
-      writer.print("\"totaltime\":"+(t2-t1)+',');
-      writer.print("\"num-of-temporal-partitions\":"+SpatioAggregateQueries.numOfTemporalPartitionsInLastQuery+',');
-      writer.print("\"num-of-trees\":"+SpatioAggregateQueries.numOfTreesTouchesInLastRequest);
+      writer.print("\"totaltime\":"+totalTime+',');
+      writer.print("\"num-of-temporal-partitions\":"+stats.numOfTemporalPartitions+',');
+      writer.print("\"num-of-trees\":"+stats.numOfTrees);
       writer.print("}");
       writer.print("}");
       writer.close();
-      response.setStatus(HttpServletResponse.SC_OK);
     } catch (Exception e) {
       response.setContentType("text/plain;charset=utf-8");
       PrintWriter writer = response.getWriter();
@@ -321,8 +440,19 @@ public class ShahedServer extends AbstractHandler {
     }
   }
   
-  private class ImageRequestHandler extends Thread {
+  /**
+   * Handles an image request in the background. Each request gets a
+   * deadline of its arrival time plus a delay proportional to its estimated
+   * cost. Requests run in order of their deadlines so that small requests are
+   * not stuck behind big ones while big requests still age and cannot be
+   * starved by a stream of small ones.
+   */
+  private class ImageRequestHandler implements Runnable, Comparable<ImageRequestHandler> {
 
+    /**Order of this request among all received requests*/
+    private long sequence;
+    /**Time by which this request should start given its arrival and cost*/
+    private long deadline;
     /**A unique ID for this request*/
     private String datasetPath;
     private String requesterName;
@@ -368,6 +498,22 @@ public class ShahedServer extends AbstractHandler {
 
       // Create the query parameters
       this.rect = west+','+south+','+east+','+north;
+
+      this.sequence = imageRequestSequence.incrementAndGet();
+      double area = Math.abs(Double.parseDouble(east) - Double.parseDouble(west)) *
+          Math.abs(Double.parseDouble(north) - Double.parseDouble(south));
+      long numOfDays = (endDate - startDate) / (24L * 60 * 60 * 1000) + 1;
+      double cost = area * numOfDays;
+      this.deadline = System.currentTimeMillis() +
+          (long) (maxImageRequestDelay * Math.min(cost / MaxImageRequestCost, 1.0));
+    }
+
+    @Override
+    public int compareTo(ImageRequestHandler other) {
+      if (this.deadline != other.deadline)
+        return this.deadline < other.deadline ? -1 : 1;
+      // Equal deadlines are served in the order they were received
+      return this.sequence < other.sequence ? -1 : (this.sequence > other.sequence ? 1 : 0);
     }
     
     @Override
@@ -604,6 +750,9 @@ public class ShahedServer extends AbstractHandler {
     System.out.println("password:<pw> - (*) Password to authenticate with the mail server");
     System.out.println("from:<email> - (*) Email to send from");
     System.out.println("port:<p> - The port to start listening to. Default: 8889");
+    System.out.println("workers:<w> - Number of image requests handled concurrently. Default: 2");
+    System.out.println("queuesize:<q> - Maximum number of waiting image requests. Default: 20");
+    System.out.println("maxdelay:<s> - Longest time in seconds a costly image request waits for cheaper ones. Default: 600");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
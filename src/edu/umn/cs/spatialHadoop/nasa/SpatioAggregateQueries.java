@@ -28,7 +28,6 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Node;
 import edu.umn.cs.spatialHadoop.temporal.TemporalIndex;
-import edu.umn.cs.spatialHadoop.temporal.TemporalIndex.TemporalPartition;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
@@ -43,11 +42,24 @@ public class SpatioAggregateQueries {
   
   /**A regular expression to catch the tile identifier of a MODIS grid cell*/
   private static final Pattern MODISTileID = Pattern.compile("^.*h(\\d\\d)v(\\d\\d).*$");
-  /**Keeps track of total number of trees queries in last query as stats*/
-  public static int numOfTreesTouchesInLastRequest;
-  /**Keeps track of number of temporal partitions matched by last query as stats*/
-  public static int numOfTemporalPartitionsInLastQuery; 
 
+  /**
+   * Statistics collected while answering one query. Each query gets its own
+   * object so that concurrent queries do not overwrite each other's numbers.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class QueryStats {
+    /**Number of temporal partitions matched by the query*/
+    public int numOfTemporalPartitions;
+    /**Total number of trees queried*/
+    public int numOfTrees;
+
+    @Override
+    public String toString() {
+      return "temporal partitions: "+numOfTemporalPartitions+", trees: "+numOfTrees;
+    }
+  }
 
   /**
    * Performs a spatio-temporal aggregate query on an indexed directory
@@ -58,9 +70,25 @@ public class SpatioAggregateQueries {
    * @throws InterruptedException 
    */
   public static AggregateQuadTree.Node aggregateQuery(Path inFile, OperationsParams params) throws ParseException, IOException, InterruptedException {
+    return aggregateQuery(inFile, params, null);
+  }
+
+  /**
+   * Performs a spatio-temporal aggregate query on an indexed directory and
+   * fills in the statistics of this query.
+   * @param inFile
+   * @param params
+   * @param stats - an object to fill with query statistics or <code>null</code>
+   * @throws ParseException 
+   * @throws IOException 
+   * @throws InterruptedException 
+   */
+  public static AggregateQuadTree.Node aggregateQuery(Path inFile,
+      OperationsParams params, QueryStats stats)
+      throws ParseException, IOException, InterruptedException {
     // 1- Find matching temporal partitions
     final FileSystem fs = inFile.getFileSystem(params);
-    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params);
+    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params, stats);
     
     // 2- Find all matching files (AggregateQuadTrees) in matching partitions
     final Rectangle spatialRange = params.getShape("rect", new Rectangle()).getMBR();
@@ -109,6 +137,8 @@ public class SpatioAggregateQueries {
       }
     }
     
+    if (stats != null)
+      stats.numOfTrees = allMatchingFiles.size();
     if (allMatchingFiles.size() == 0)
       return null;
     
@@ -119,7 +149,6 @@ public class SpatioAggregateQueries {
       @Override
       public Node run(int i1, int i2) {
         Node threadResult = new AggregateQuadTree.Node();
-        if (i1 == 0)
         for (int i_file = i1; i_file < i2; i_file++) {
           Path matchingFile = allMatchingFiles.get(i_file);
           try {
@@ -147,7 +176,6 @@ public class SpatioAggregateQueries {
     for (Node threadResult : threadsResults) {
       finalResult.accumulate(threadResult);
     }
-    numOfTreesTouchesInLastRequest = allMatchingFiles.size();
     return finalResult;
   }
   
@@ -162,9 +190,28 @@ public class SpatioAggregateQueries {
   public static long selectionQuery(Path inFile,
       final ResultCollector<NASAPoint> output, OperationsParams params)
       throws ParseException, IOException, InterruptedException {
+    return selectionQuery(inFile, output, params, null);
+  }
+
+  /**
+   * Performs a spatio-temporal selection query on an indexed directory and
+   * fills in the statistics of this query.
+   * @param inFile
+   * @param output
+   * @param params
+   * @param stats - an object to fill with query statistics or <code>null</code>
+   * @return number of matching records
+   * @throws ParseException 
+   * @throws IOException 
+   * @throws InterruptedException 
+   */
+  public static long selectionQuery(Path inFile,
+      final ResultCollector<NASAPoint> output, OperationsParams params,
+      QueryStats stats)
+      throws ParseException, IOException, InterruptedException {
     // 1- Find matching temporal partitions
     final FileSystem fs = inFile.getFileSystem(params);
-    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params);
+    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params, stats);
     
     // 2- Find the matching tile and the position in that tile
     final Point queryPoint = (Point) params.getShape("point");
@@ -195,6 +242,11 @@ public class SpatioAggregateQueries {
       }
     }
     
+    if (stats != null)
+      stats.numOfTrees = allMatchingFiles.size();
+    if (allMatchingFiles.size() == 0)
+      return 0;
+
     // All matching files are supposed to have the same resolution
     final int resolution = AggregateQuadTree.getResolution(fs, allMatchingFiles.get(0));
     
@@ -224,7 +276,7 @@ public class SpatioAggregateQueries {
             Path matchingFile = allMatchingFiles.get(i_file);
                 java.awt.Rectangle query = new java.awt.Rectangle(
                     queryInMatchingTile.x, queryInMatchingTile.y, 1, 1);
-            AggregateQuadTree.selectionQuery(fs, matchingFile, query, internalOutput);
+            numOfResults += AggregateQuadTree.selectionQuery(fs, matchingFile, query, internalOutput);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -243,64 +295,28 @@ public class SpatioAggregateQueries {
    * Return all matching partitions according to a time range
    * @param inFile 
    * @param params
+   * @param stats - an object to fill with query statistics or <code>null</code>
    * @return
    * @throws ParseException
    * @throws IOException
    */
   private static Vector<Path> selectTemporalPartitions(Path inFile,
-      OperationsParams params) throws ParseException, IOException {
+      OperationsParams params, QueryStats stats) throws ParseException, IOException {
     // 1- Run a temporal filter step to find all matching temporal partitions
-    Vector<Path> matchingPartitions = new Vector<Path>();
-    // List of time ranges to check. Initially it contains one range as
-    // specified by the user. Eventually, it can be split into at most two
-    // partitions if partially matched by a partition.
-    Vector<TimeRange> temporalRanges = new Vector<TimeRange>();
-    System.out.println(new TimeRange(params.get("time")));
-    temporalRanges.add(new TimeRange(params.get("time")));
+    // starting from the coarsest level
+    TimeRange range = new TimeRange(params.get("time"));
+    System.out.println(range);
     Path[] temporalIndexes = new Path[] {
       new Path(inFile, "yearly"),
       new Path(inFile, "monthly"),
       new Path(inFile, "daily")
     };
-    int index = 0;
-    final FileSystem fs = inFile.getFileSystem(params);
-    while (index < temporalIndexes.length && !temporalRanges.isEmpty()) {
-      Path indexDir = temporalIndexes[index];
-      LOG.info("Checking index dir "+indexDir);
-      TemporalIndex temporalIndex = new TemporalIndex(fs, indexDir);
-      for (int iRange = 0; iRange < temporalRanges.size(); iRange++) {
-        TimeRange range = temporalRanges.get(iRange);
-        TemporalPartition[] matches = temporalIndex.selectContained(range.start, range.end);
-        if (matches != null) {
-          LOG.info("Matched "+matches.length+" partitions in "+indexDir);
-          for (TemporalPartition match : matches) {
-            matchingPartitions.add(new Path(indexDir, match.dirName));
-          }
-          // Update range to remove matching part
-          TemporalPartition firstMatch = matches[0];
-          TemporalPartition lastMatch = matches[matches.length - 1];
-          if (range.start < firstMatch.start && range.end > lastMatch.end) {
-            // Need to split the range into two
-            temporalRanges.setElementAt(
-                new TimeRange(range.start, firstMatch.start), iRange);
-            temporalRanges.insertElementAt(
-                new TimeRange(lastMatch.end, range.end), iRange);
-          } else if (range.start < firstMatch.start) {
-            // Update range in-place
-            range.end = firstMatch.start;
-          } else if (range.end > lastMatch.end) {
-            // Update range in-place
-            range.start = lastMatch.end;
-          } else {
-            // Current range was completely covered. Remove it
-            temporalRanges.remove(iRange);
-          }
-        }
-      }
-      index++;
-    }
+    FileSystem fs = inFile.getFileSystem(params);
+    Vector<Path> matchingPartitions =
+        TemporalIndex.selectPartitions(fs, temporalIndexes, range.start, range.end);
     
-    numOfTemporalPartitionsInLastQuery = matchingPartitions.size();
+    if (stats != null)
+      stats.numOfTemporalPartitions = matchingPartitions.size();
     return matchingPartitions;
   }
 
@@ -351,9 +367,11 @@ public class SpatioAggregateQueries {
     }
     
     long t1 = System.currentTimeMillis();
-    AggregateQuadTree.Node result = aggregateQuery(params.getInputPath(), params);
+    QueryStats stats = new QueryStats();
+    AggregateQuadTree.Node result = aggregateQuery(params.getInputPath(), params, stats);
     long t2 = System.currentTimeMillis();
     System.out.println("Final Result: "+result);
+    System.out.println("Query stats: "+stats);
     System.out.println("Aggregate query finished in "+(t2-t1)+" millis");
   }
 
@@ -32,8 +32,11 @@ public class TimeRange implements PathFilter {
     Matcher matcher = TimeRange.matcher(str);
     if (!matcher.matches())
       throw new RuntimeException("Illegal time range '"+str+"'");
-    start = DayFormat.parse(matcher.group(1)).getTime();
-    end = DayFormat.parse(matcher.group(2)).getTime();
+    // SimpleDateFormat is not thread-safe and the format is shared
+    synchronized (DayFormat) {
+      start = DayFormat.parse(matcher.group(1)).getTime();
+      end = DayFormat.parse(matcher.group(2)).getTime();
+    }
   }
   
   public TimeRange(long start, long end) {
@@ -0,0 +1,564 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.STRIndex;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
+import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Performs a spatial join between a small file and a large file as a
+ * map-only job. The small file is shipped to all tasks through the
+ * distributed cache and loaded once per JVM into an in-memory
+ * {@link STRIndex}. Each map task streams its part of the large file and
+ * probes the index with every record. Neither file is shuffled which makes it
+ * much faster than SJMR or the distributed join when one file is small enough
+ * to fit in memory.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BroadcastJoin {
+  private static final Log LOG = LogFactory.getLog(BroadcastJoin.class);
+
+  /**Comma separated list of the data files of the small file*/
+  private static final String SmallFiles = "BroadcastJoin.SmallFiles";
+
+  /**The master file of the small file if it is indexed*/
+  private static final String SmallMasterFile = "BroadcastJoin.SmallMasterFile";
+
+  /**Whether the small file is the first input of the join*/
+  private static final String SmallFirst = "BroadcastJoin.SmallFirst";
+
+  /**Whether the large file is indexed with replication*/
+  private static final String LargeReplicated = "BroadcastJoin.LargeReplicated";
+
+  /**
+   * The small file loaded in memory
+   * @author Ahmed Eldawy
+   *
+   */
+  static class SmallSide {
+    /**An index on all shapes of the small file*/
+    STRIndex<Shape> index;
+    /**
+     * The partition of each shape if the small file is indexed with
+     * replication, used to report each result only once. Null otherwise.
+     */
+    Partition[] partitions;
+
+    /**
+     * Joins one record of the large file with the small file. Results are
+     * reported in the order of the input files.
+     * @param large a record from the large file
+     * @param largeCell the partition of the large record if the large file is
+     *  indexed with replication or <code>null</code> otherwise
+     * @param smallFirst whether the small file is the first input
+     * @param tempResult a temporary array used while searching
+     * @param output
+     * @return number of results
+     */
+    int join(Shape large, Rectangle largeCell, boolean smallFirst,
+        IntArray tempResult, ResultCollector2<Shape, Shape> output) {
+      Rectangle largeMBR = large.getMBR();
+      if (largeMBR == null)
+        return 0;
+      tempResult.clear();
+      index.search(largeMBR, tempResult);
+      int count = 0;
+      for (int i = 0; i < tempResult.size(); i++) {
+        int position = tempResult.get(i);
+        Shape small = index.get(position);
+        if (!(smallFirst ? small.isIntersected(large) : large.isIntersected(small)))
+          continue;
+        if (partitions != null || largeCell != null) {
+          // Employ reference point duplicate avoidance technique
+          Rectangle smallMBR = small.getMBR();
+          double refX = Math.max(smallMBR.x1, largeMBR.x1);
+          double refY = Math.max(smallMBR.y1, largeMBR.y1);
+          if (partitions != null && !partitions[position].contains(refX, refY))
+            continue;
+          if (largeCell != null && !largeCell.contains(refX, refY))
+            continue;
+        }
+        if (output != null) {
+          if (smallFirst)
+            output.collect(small, large);
+          else
+            output.collect(large, small);
+        }
+        count++;
+      }
+      return count;
+    }
+  }
+
+  /**The small file loaded in this JVM along with the files it was read from*/
+  private static SmallSide cachedSmallSide;
+  private static String cachedSmallFiles;
+
+  /**
+   * Creates and initializes a record reader for one split
+   * @param inputFormat
+   * @param split
+   * @param conf
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @SuppressWarnings("rawtypes")
+  static RecordReader<Rectangle, Iterable<Shape>> createReader(
+      SpatialInputFormat3<Rectangle, Shape> inputFormat, FileSplit split,
+      Configuration conf) throws IOException, InterruptedException {
+    RecordReader<Rectangle, Iterable<Shape>> reader =
+        inputFormat.createRecordReader(split, null);
+    if (reader instanceof SpatialRecordReader3) {
+      ((SpatialRecordReader3)reader).initialize(split, conf);
+    } else if (reader instanceof RTreeRecordReader3) {
+      ((RTreeRecordReader3)reader).initialize(split, conf);
+    } else if (reader instanceof HDFRecordReader) {
+      ((HDFRecordReader)reader).initialize(split, conf);
+    } else {
+      throw new RuntimeException("Unknown record reader");
+    }
+    return reader;
+  }
+
+  /**
+   * Reads all records of the given data files into memory and builds an
+   * index on them.
+   * @param conf
+   * @param dataFiles
+   * @param gindex the global index of the small file or <code>null</code>
+   *  if it is not indexed
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  static SmallSide loadSmallSide(Configuration conf, Path[] dataFiles,
+      GlobalIndex<Partition> gindex) throws IOException, InterruptedException {
+    long t1 = System.currentTimeMillis();
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    List<Shape> shapes = new ArrayList<Shape>();
+    List<Partition> partitions = gindex != null && gindex.isReplicated() ?
+        new ArrayList<Partition>() : null;
+    for (Path dataFile : dataFiles) {
+      Partition partition = null;
+      if (partitions != null) {
+        for (Partition p : gindex) {
+          if (p.filename.equals(dataFile.getName()))
+            partition = p;
+        }
+        if (partition == null)
+          throw new RuntimeException("Cannot find the partition of "+dataFile);
+      }
+      FileSystem fs = dataFile.getFileSystem(conf);
+      FileSplit split = new FileSplit(dataFile, 0,
+          fs.getFileStatus(dataFile).getLen(), new String[0]);
+      RecordReader<Rectangle, Iterable<Shape>> reader =
+          createReader(inputFormat, split, conf);
+      try {
+        while (reader.nextKeyValue()) {
+          for (Shape shape : reader.getCurrentValue()) {
+            // Shapes are reused by the reader and need to be copied
+            shapes.add(shape.clone());
+            if (partitions != null)
+              partitions.add(partition);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    SmallSide smallSide = new SmallSide();
+    smallSide.index = new STRIndex<Shape>(shapes.toArray(new Shape[shapes.size()]));
+    if (partitions != null)
+      smallSide.partitions = partitions.toArray(new Partition[partitions.size()]);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Loaded "+smallSide.index.size()+" records from "+dataFiles.length+
+        " files of the small file in "+(t2-t1)+" millis");
+    return smallSide;
+  }
+
+  /**
+   * Lists the data files of the given file or directory
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  static Path[] listDataFiles(FileSystem fs, Path path) throws IOException {
+    if (!fs.getFileStatus(path).isDir())
+      return new Path[] {path};
+    FileStatus[] files = fs.listStatus(path, SpatialSite.NonHiddenFileFilter);
+    Path[] dataFiles = new Path[files.length];
+    for (int i = 0; i < files.length; i++)
+      dataFiles[i] = files[i].getPath();
+    return dataFiles;
+  }
+
+  /**
+   * Finds the master file of an indexed directory
+   * @param fs
+   * @param path
+   * @return the path of the master file or <code>null</code> if not found
+   * @throws IOException
+   */
+  static Path getMasterFile(FileSystem fs, Path path) throws IOException {
+    if (!fs.getFileStatus(path).isDir())
+      return null;
+    for (FileStatus file : fs.listStatus(path)) {
+      if (file.getPath().getName().startsWith("_master"))
+        return file.getPath();
+    }
+    return null;
+  }
+
+  /**
+   * The map function streams the records of the large file and joins each
+   * one of them with the small file.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BroadcastJoinMap extends
+      Mapper<Rectangle, Iterable<Shape>, Shape, Shape> {
+    private SmallSide smallSide;
+    private boolean smallFirst;
+    private boolean largeReplicated;
+    private IntArray tempResult = new IntArray();
+
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      smallFirst = conf.getBoolean(SmallFirst, true);
+      largeReplicated = conf.getBoolean(LargeReplicated, false);
+      String smallFiles = conf.get(SmallFiles);
+      synchronized (BroadcastJoin.class) {
+        if (cachedSmallSide == null || !smallFiles.equals(cachedSmallFiles)) {
+          // Release the previous small file before loading the new one
+          cachedSmallSide = null;
+          cachedSmallSide = loadCachedSmallSide(conf);
+          cachedSmallFiles = smallFiles;
+        }
+        smallSide = cachedSmallSide;
+      }
+    }
+
+    /**
+     * Loads the small file from the local copies in the distributed cache.
+     * Falls back to the original files if they are not in the cache.
+     * @param conf
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static SmallSide loadCachedSmallSide(Configuration conf)
+        throws IOException, InterruptedException {
+      String[] originalFiles = conf.getStrings(SmallFiles);
+      String masterFile = conf.get(SmallMasterFile);
+      Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+      FileSystem localFs = FileSystem.getLocal(conf);
+      Path[] dataFiles = new Path[originalFiles.length];
+      Path localMasterFile = null;
+      for (int i = 0; i < originalFiles.length; i++) {
+        dataFiles[i] = new Path(originalFiles[i]);
+        if (localFiles != null) {
+          for (Path localFile : localFiles) {
+            if (localFile.getName().equals(dataFiles[i].getName()))
+              dataFiles[i] = localFs.makeQualified(localFile);
+          }
+        }
+      }
+      if (masterFile != null) {
+        localMasterFile = new Path(masterFile);
+        if (localFiles != null) {
+          for (Path localFile : localFiles) {
+            if (localFile.getName().equals(localMasterFile.getName()))
+              localMasterFile = localFs.makeQualified(localFile);
+          }
+        }
+      }
+      GlobalIndex<Partition> gindex = localMasterFile == null ? null :
+          SpatialSite.getGlobalIndex(localMasterFile.getFileSystem(conf),
+              localMasterFile.getParent());
+      return loadSmallSide(conf, dataFiles, gindex);
+    }
+
+    @Override
+    protected void map(Rectangle cellMBR, Iterable<Shape> value,
+        final Context context) throws IOException, InterruptedException {
+      Rectangle largeCell = largeReplicated && cellMBR.isValid() ? cellMBR : null;
+      ResultCollector2<Shape, Shape> output = new ResultCollector2<Shape, Shape>() {
+        @Override
+        public void collect(Shape r, Shape s) {
+          try {
+            context.write(r, s);
+          } catch (IOException e) {
+            throw new RuntimeException("Error writing join result", e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Error writing join result", e);
+          }
+        }
+      };
+      for (Shape large : value) {
+        smallSide.join(large, largeCell, smallFirst, tempResult, output);
+        context.progress();
+      }
+    }
+  }
+
+  /**
+   * Joins the two files using a map-only MapReduce job.
+   * @param inFiles
+   * @param smallFile the index of the small file in the input files
+   * @param outFile
+   * @param params
+   * @return the job after it finishes
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public static Job broadcastJoinMapReduce(Path[] inFiles, int smallFile,
+      Path outFile, OperationsParams params) throws IOException,
+      InterruptedException, ClassNotFoundException {
+    Path smallPath = inFiles[smallFile], largePath = inFiles[1 - smallFile];
+    Job job = new Job(params, "BroadcastJoin");
+    job.setJarByClass(BroadcastJoin.class);
+    Configuration conf = job.getConfiguration();
+
+    // Ship the small file to all tasks through the distributed cache
+    FileSystem smallFs = smallPath.getFileSystem(conf);
+    Path[] smallDataFiles = listDataFiles(smallFs, smallPath);
+    String[] smallFileNames = new String[smallDataFiles.length];
+    for (int i = 0; i < smallDataFiles.length; i++) {
+      smallFileNames[i] = smallFs.makeQualified(smallDataFiles[i]).toString();
+      DistributedCache.addCacheFile(smallFs.makeQualified(smallDataFiles[i]).toUri(), conf);
+    }
+    conf.setStrings(SmallFiles, smallFileNames);
+    GlobalIndex<Partition> smallIndex = SpatialSite.getGlobalIndex(smallFs, smallPath);
+    if (smallIndex != null && smallIndex.isReplicated()) {
+      Path masterFile = smallFs.makeQualified(getMasterFile(smallFs, smallPath));
+      DistributedCache.addCacheFile(masterFile.toUri(), conf);
+      conf.set(SmallMasterFile, masterFile.toString());
+    }
+    conf.setBoolean(SmallFirst, smallFile == 0);
+    FileSystem largeFs = largePath.getFileSystem(conf);
+    GlobalIndex<Partition> largeIndex = SpatialSite.getGlobalIndex(largeFs, largePath);
+    conf.setBoolean(LargeReplicated, largeIndex != null && largeIndex.isReplicated());
+    // Use multithreading in case it is running locally
+    conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, Runtime.getRuntime().availableProcessors());
+
+    job.setInputFormatClass(SpatialInputFormat3.class);
+    SpatialInputFormat3.setInputPaths(job, largePath);
+    job.setMapperClass(BroadcastJoinMap.class);
+    job.setNumReduceTasks(0);
+    if (params.getBoolean("output", true) && outFile != null) {
+      job.setOutputFormatClass(TextOutputFormat3.class);
+      TextOutputFormat3.setOutputPath(job, outFile);
+    } else {
+      job.setOutputFormatClass(NullOutputFormat.class);
+    }
+    job.waitForCompletion(false);
+    return job;
+  }
+
+  /**
+   * Joins the two files on the local machine. The small file is loaded once
+   * and the splits of the large file are processed in parallel.
+   * @param inFiles
+   * @param smallFile the index of the small file in the input files
+   * @param outFile the output file or <code>null</code> to skip the output
+   * @param params
+   * @return number of results
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long broadcastJoinLocal(Path[] inFiles, final int smallFile,
+      Path outFile, final OperationsParams params) throws IOException, InterruptedException {
+    Path smallPath = inFiles[smallFile], largePath = inFiles[1 - smallFile];
+    FileSystem smallFs = smallPath.getFileSystem(params);
+    final SmallSide smallSide = loadSmallSide(params,
+        listDataFiles(smallFs, smallPath), SpatialSite.getGlobalIndex(smallFs, smallPath));
+    FileSystem largeFs = largePath.getFileSystem(params);
+    GlobalIndex<Partition> largeIndex = SpatialSite.getGlobalIndex(largeFs, largePath);
+    final boolean largeReplicated = largeIndex != null && largeIndex.isReplicated();
+
+    final SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3.setInputPaths(job, largePath);
+    final List<InputSplit> splits = inputFormat.getSplits(job);
+
+    final PrintStream out = outFile == null ? null :
+      new PrintStream(outFile.getFileSystem(params).create(outFile));
+    final ResultCollector2<Shape, Shape> output = out == null ? null :
+      new ResultCollector2<Shape, Shape>() {
+        final Text tempText = new Text2();
+        @Override
+        public synchronized void collect(Shape r, Shape s) {
+          tempText.clear();
+          r.toText(tempText);
+          tempText.append(new byte[] {'\t'}, 0, 1);
+          s.toText(tempText);
+          out.println(tempText);
+        }
+      };
+
+    try {
+      Vector<Long> results = Parallel.forEach(splits.size(), new RunnableRange<Long>() {
+        @Override
+        public Long run(int i1, int i2) {
+          long count = 0;
+          IntArray tempResult = new IntArray();
+          try {
+            for (int i = i1; i < i2; i++) {
+              RecordReader<Rectangle, Iterable<Shape>> reader =
+                  createReader(inputFormat, (FileSplit) splits.get(i), params);
+              try {
+                while (reader.nextKeyValue()) {
+                  Rectangle cellMBR = reader.getCurrentKey();
+                  Rectangle largeCell = largeReplicated && cellMBR.isValid() ? cellMBR : null;
+                  for (Shape large : reader.getCurrentValue())
+                    count += smallSide.join(large, largeCell, smallFile == 0,
+                        tempResult, output);
+                }
+              } finally {
+                reader.close();
+              }
+            }
+          } catch (IOException e) {
+            throw new RuntimeException("Error joining split", e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Error joining split", e);
+          }
+          return count;
+        }
+      });
+      long resultCount = 0;
+      for (Long count : results)
+        resultCount += count;
+      return resultCount;
+    } finally {
+      if (out != null)
+        out.close();
+    }
+  }
+
+  /**
+   * Joins the two files by broadcasting the small file to all tasks.
+   * @param inFiles
+   * @param smallFile the index of the small file in the input files
+   * @param outFile
+   * @param params
+   * @return number of results
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long broadcastJoin(Path[] inFiles, int smallFile, Path outFile,
+      OperationsParams params) throws IOException, InterruptedException {
+    if (OperationsParams.isLocal(params, inFiles))
+      return broadcastJoinLocal(inFiles, smallFile, outFile, params);
+    try {
+      Job job = broadcastJoinMapReduce(inFiles, smallFile, outFile, params);
+      if (!job.isSuccessful())
+        throw new RuntimeException("Broadcast join job failed");
+      return job.getCounters().findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getValue();
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException("Error running broadcast join", e);
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Performs a spatial join between a small file and a large file by broadcasting the small file");
+    System.out.println("Parameters: (* marks the required parameters)");
+    System.out.println("<input file 1> - (*) Path to the first input file");
+    System.out.println("<input file 2> - (*) Path to the second input file");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires at least two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    // Broadcast the smaller file if it is below the threshold
+    long[] sizes = new long[2];
+    for (int i = 0; i < 2; i++)
+      sizes[i] = inputPaths[i].getFileSystem(params).getContentSummary(inputPaths[i]).getLength();
+    int smallFile = sizes[0] <= sizes[1] ? 0 : 1;
+    long threshold = params.getLong(JoinPlanner.BroadcastThreshold, 32 * 1024 * 1024);
+    if (sizes[smallFile] > threshold) {
+      System.err.println("The smaller file "+inputPaths[smallFile]+" is larger than "+
+          threshold+" bytes. Set "+JoinPlanner.BroadcastThreshold+" to broadcast it anyway");
+      System.exit(1);
+    }
+
+    long t1 = System.currentTimeMillis();
+    long resultSize = broadcastJoin(inputPaths, smallFile, outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultSize);
+  }
+}
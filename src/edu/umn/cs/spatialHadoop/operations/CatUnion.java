@@ -38,11 +38,10 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.TextInputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
-import com.esri.core.geometry.ogc.OGCConcreteGeometryCollection;
 import com.esri.core.geometry.ogc.OGCGeometry;
-import com.esri.core.geometry.ogc.OGCGeometryCollection;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CascadedUnion;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.OGCESRIShape;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
@@ -166,10 +165,7 @@ public class CatUnion {
         shape.fromText(shape_lines.next());
         shapes.add(shape.geom);
       }
-      OGCGeometryCollection geo_collection = new OGCConcreteGeometryCollection(shapes,
-          shapes.firstElement().getEsriSpatialReference());
-      OGCGeometry union = geo_collection.union(shapes.firstElement());
-      geo_collection = null;
+      OGCGeometry union = CascadedUnion.unionOGC(shapes);
       shapes = null;
       temp_out.clear();
       output.collect(category, new OGCESRIShape(union).toText(temp_out));
@@ -281,9 +277,7 @@ public class CatUnion {
     for (Map.Entry<Integer, Vector<OGCGeometry>> category :
           categoryShapes.entrySet()) {
       if (!category.getValue().isEmpty()) {
-        OGCGeometryCollection geom_collection = new OGCConcreteGeometryCollection(category.getValue(),
-            category.getValue().firstElement().esriSR);
-        OGCGeometry union = geom_collection.union(category.getValue().firstElement());
+        OGCGeometry union = CascadedUnion.unionOGC(category.getValue());
         final_result.put(category.getKey(), union);
         // Free up some memory
         category.getValue().clear();
@@ -14,6 +14,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,11 +24,13 @@ import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.TextOutputFormat;
@@ -42,6 +45,8 @@ import edu.umn.cs.spatialHadoop.mapred.PairWritable;
 import edu.umn.cs.spatialHadoop.mapred.ShapeArrayInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 public class ClosestPair {
   
@@ -131,6 +136,209 @@ public class ClosestPair {
 		return delta;
 	}
 	
+	/**
+	 * A uniform grid over points stored in primitive arrays. Each non-empty
+	 * cell is stored in an open addressing hash table and points in one cell
+	 * are linked together in one array so that no objects are created per
+	 * point or per cell.
+	 * @author Ahmed Eldawy
+	 *
+	 */
+	static class PointGrid {
+	  final double[] xs, ys;
+	  /**The next point in the same cell or -1 for the last point*/
+	  final int[] next;
+	  /**Column and row of the cell stored in each slot of the hash table*/
+	  final long[] cellXs, cellYs;
+	  /**The first point in the cell stored in each slot or -1 if empty*/
+	  final int[] heads;
+	  /**Slots used since the last reset to clear them quickly*/
+	  final int[] usedSlots;
+	  int numUsedSlots;
+	  final int mask;
+	  /**Lower corner of all points. Cells are computed relative to it*/
+	  double minX, minY;
+	  double cellSize;
+
+	  /**
+	   * Largest cell index. Cells are clamped to it so that the indexes of
+	   * neighbor cells never overflow even for degenerate cell sizes.
+	   */
+	  static final long MaxCell = Long.MAX_VALUE / 2;
+
+	  PointGrid(double[] xs, double[] ys, int size) {
+	    this.xs = xs;
+	    this.ys = ys;
+	    this.next = new int[size];
+	    minX = minY = Double.POSITIVE_INFINITY;
+	    for (int i = 0; i < size; i++) {
+	      minX = Math.min(minX, xs[i]);
+	      minY = Math.min(minY, ys[i]);
+	    }
+	    // Keep the load factor at most 0.5 to keep the probe sequences short
+	    int capacity = Integer.highestOneBit(Math.max(2, size) * 4);
+	    this.mask = capacity - 1;
+	    this.cellXs = new long[capacity];
+	    this.cellYs = new long[capacity];
+	    this.heads = new int[capacity];
+	    this.usedSlots = new int[size];
+	    Arrays.fill(heads, -1);
+	  }
+
+	  /**
+	   * Removes all points and changes the size of the cells.
+	   * @param cellSize
+	   */
+	  void reset(double cellSize) {
+	    for (int i = 0; i < numUsedSlots; i++)
+	      heads[usedSlots[i]] = -1;
+	    numUsedSlots = 0;
+	    this.cellSize = cellSize;
+	  }
+
+	  /**
+	   * Returns the index of the cell that contains a coordinate
+	   * @param v
+	   * @param min the minimum value of the coordinate among all points
+	   * @return
+	   */
+	  private long cell(double v, double min) {
+	    double c = (v - min) / cellSize;
+	    // The comparison also maps NaN to zero
+	    return c > 0 ? (long) Math.min(c, MaxCell) : 0;
+	  }
+
+	  private int slot(long cx, long cy) {
+	    long h = cx * 0x9E3779B97F4A7C15L + cy;
+	    int slot = (int) (h ^ (h >>> 32)) & mask;
+	    while (heads[slot] != -1 && (cellXs[slot] != cx || cellYs[slot] != cy))
+	      slot = (slot + 1) & mask;
+	    return slot;
+	  }
+
+	  void insert(int i) {
+	    long cx = cell(xs[i], minX);
+	    long cy = cell(ys[i], minY);
+	    int slot = slot(cx, cy);
+	    if (heads[slot] == -1) {
+	      cellXs[slot] = cx;
+	      cellYs[slot] = cy;
+	      usedSlots[numUsedSlots++] = slot;
+	    }
+	    next[i] = heads[slot];
+	    heads[slot] = i;
+	  }
+
+	  /**
+	   * Finds the nearest point to point i in the nine cells around it.
+	   * @param i
+	   * @param maxDistance
+	   * @return the nearest point with a distance less than maxDistance or -1
+	   */
+	  int nearest(int i, double maxDistance) {
+	    long cx = cell(xs[i], minX);
+	    long cy = cell(ys[i], minY);
+	    int nearest = -1;
+	    double minDistance = maxDistance;
+	    for (long x = cx - 1; x <= cx + 1; x++) {
+	      for (long y = cy - 1; y <= cy + 1; y++) {
+	        for (int j = heads[slot(x, y)]; j != -1; j = next[j]) {
+	          double dx = xs[i] - xs[j];
+	          double dy = ys[i] - ys[j];
+	          double distance = Math.sqrt(dx * dx + dy * dy);
+	          if (distance < minDistance) {
+	            minDistance = distance;
+	            nearest = j;
+	          }
+	        }
+	      }
+	    }
+	    return nearest;
+	  }
+	}
+
+	/**
+	 * Finds the closest pair of points given as primitive arrays using a
+	 * randomized incremental algorithm. Points are inserted in a random order
+	 * into a grid with a cell size equal to the closest distance found so far
+	 * which means that each point is compared only to points in the nine cells
+	 * around it. The grid is rebuilt whenever a closer pair is found which
+	 * makes the expected running time linear.
+	 * @param xs
+	 * @param ys
+	 * @param size
+	 * @param upperBound - the distance of a known pair or
+	 *  {@link Double#POSITIVE_INFINITY} if no pair is known
+	 * @return the positions of the closest pair or <code>null</code> if no
+	 *  pair is closer than the given upper bound
+	 */
+	static int[] closestPair(double[] xs, double[] ys, int size, double upperBound) {
+	  if (size < 2)
+	    return null;
+	  int[] order = new int[size];
+	  for (int i = 0; i < size; i++)
+	    order[i] = i;
+	  Random random = new Random();
+	  for (int i = size - 1; i > 0; i--) {
+	    int j = random.nextInt(i + 1);
+	    int temp = order[i];
+	    order[i] = order[j];
+	    order[j] = temp;
+	  }
+	  int[] pair = null;
+	  double delta = upperBound;
+	  double dx = xs[order[0]] - xs[order[1]];
+	  double dy = ys[order[0]] - ys[order[1]];
+	  double distance = Math.sqrt(dx * dx + dy * dy);
+	  if (distance < delta) {
+	    delta = distance;
+	    pair = new int[] {order[0], order[1]};
+	  }
+	  if (delta == 0)
+	    return pair;
+	  PointGrid grid = new PointGrid(xs, ys, size);
+	  grid.reset(delta);
+	  grid.insert(order[0]);
+	  grid.insert(order[1]);
+	  for (int k = 2; k < size; k++) {
+	    int i = order[k];
+	    int j = grid.nearest(i, delta);
+	    if (j == -1) {
+	      grid.insert(i);
+	    } else {
+	      dx = xs[i] - xs[j];
+	      dy = ys[i] - ys[j];
+	      delta = Math.sqrt(dx * dx + dy * dy);
+	      pair = new int[] {j, i};
+	      if (delta == 0)
+	        break;
+	      // Rebuild the grid with the new cell size
+	      grid.reset(delta);
+	      for (int k2 = 0; k2 <= k; k2++)
+	        grid.insert(order[k2]);
+	    }
+	  }
+	  return pair;
+	}
+
+	/**
+	 * Computes the closest pair of a set of points using
+	 * {@link #closestPair(double[], double[], int, double)}.
+	 * @param points
+	 * @return the closest pair or <code>null</code> if less than two points
+	 */
+	static DistanceAndPair closestPair(Point[] points) {
+	  ConvexHull.PointArray coords = new ConvexHull.PointArray(Math.max(1, points.length));
+	  for (Point p : points)
+	    coords.add(p.x, p.y);
+	  int[] pair = closestPair(coords.xs, coords.ys, coords.size, Double.POSITIVE_INFINITY);
+	  if (pair == null)
+	    return null;
+	  Point p1 = points[pair[0]];
+	  Point p2 = points[pair[1]];
+	  return new DistanceAndPair(p1.distanceTo(p2), p1, p2);
+	}
+	
 	public static class Map extends MapReduceBase implements
 	Mapper<Rectangle, ArrayWritable, NullWritable, Point> {
 		@Override
@@ -144,12 +352,10 @@ public class ClosestPair {
 			  return;
 			}
 			
-			Point[] tmp = new Point[a.length];
-			Arrays.sort(a);
-			DistanceAndPair delta = nearestNeighbor(a, tmp, 0, a.length - 1);
-			if (delta.pair == null || delta.pair.first == null || delta.pair.second == null) {
-			  LOG.error("Error null closest pair for input of size: "+a.length);
-			}
+			Point[] points = new Point[a.length];
+			for (int i = 0; i < a.length; i++)
+			  points[i] = (Point) a[i];
+			DistanceAndPair delta = closestPair(points);
 			LOG.info("Found the closest pair: "+delta);
 			
 			Rectangle pruned_area = new Rectangle(mbr.x1 + delta.distance,
@@ -186,16 +392,18 @@ public class ClosestPair {
 				OutputCollector<NullWritable, DistanceAndPair> out,
 				Reporter reporter) throws IOException {
 		  
-		  ArrayList<Point> allPoints = new ArrayList<Point>();
+		  ConvexHull.PointArray points = new ConvexHull.PointArray();
 		  while (it.hasNext()) {
-		    allPoints.add(it.next());
+		    Point p = it.next();
+		    points.add(p.x, p.y);
+		  }
+		  int[] pair = closestPair(points.xs, points.ys, points.size,
+		      Double.POSITIVE_INFINITY);
+		  if (pair != null) {
+		    Point p1 = new Point(points.xs[pair[0]], points.ys[pair[0]]);
+		    Point p2 = new Point(points.xs[pair[1]], points.ys[pair[1]]);
+		    out.collect(Dummy, new DistanceAndPair(p1.distanceTo(p2), p1, p2));
 		  }
-		  
-		  Point[] all_points = allPoints.toArray(new Point[allPoints.size()]);
-			
-      DistanceAndPair delta = nearestNeighbor(all_points,
-          new Point[all_points.length], 0, all_points.length - 1);
-      out.collect(Dummy, delta);
 		}
 	}
 	
@@ -207,17 +415,114 @@ public class ClosestPair {
   public static <S extends Point> void closestPairStream(S p) throws IOException {
     ShapeRecordReader<S> reader =
         new ShapeRecordReader<S>(System.in, 0, Long.MAX_VALUE);
-    ArrayList<Point> points = new ArrayList<Point>();
+    ConvexHull.PointArray points = new ConvexHull.PointArray();
     
     Rectangle key = new Rectangle();
     while (reader.next(key, p)) {
-      points.add(p.clone());
+      points.add(p.x, p.y);
     }
-    Shape[] allPoints = points.toArray(new Shape[points.size()]);
-    nearestNeighbor(allPoints, new Point[allPoints.length], 0, allPoints.length-1);
+    int[] pair = closestPair(points.xs, points.ys, points.size, Double.POSITIVE_INFINITY);
+    if (pair != null)
+      LOG.info("Closest pair ("+points.xs[pair[0]]+","+points.ys[pair[0]]+") - ("+
+          points.xs[pair[1]]+","+points.ys[pair[1]]+")");
   }
 
 	
+	/**
+	 * Computes the closest pair of a file or a directory on the local machine.
+	 * Splits are read in parallel and the closest pair of each partition is
+	 * computed in parallel. If the input is indexed, only points within the
+	 * smallest distance found from the boundaries of their partitions are
+	 * combined to find the final answer.
+	 * @param inFile
+	 * @param params
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static DistanceAndPair closestPairLocal(Path inFile,
+	    OperationsParams params) throws IOException, InterruptedException {
+	  final JobConf job = new JobConf(params, ClosestPair.class);
+	  ShapeArrayInputFormat.setInputPaths(job, inFile);
+	  final ShapeArrayInputFormat inputFormat = new ShapeArrayInputFormat();
+	  final InputSplit[] splits = inputFormat.getSplits(job, 1);
+	  final Rectangle[] mbrs = new Rectangle[splits.length];
+	  final ConvexHull.PointArray[] splitPoints = new ConvexHull.PointArray[splits.length];
+	  final int[][] splitPairs = new int[splits.length][];
+
+	  // Find the closest pair in each split
+	  Parallel.forEach(splits.length, new RunnableRange<Object>() {
+	    @Override
+	    public Object run(int i1, int i2) {
+	      for (int i = i1; i < i2; i++) {
+	        try {
+	          RecordReader<Rectangle, ArrayWritable> reader =
+	              inputFormat.getRecordReader(splits[i], job, null);
+	          Rectangle key = reader.createKey();
+	          ArrayWritable value = reader.createValue();
+	          ConvexHull.PointArray points = new ConvexHull.PointArray();
+	          while (reader.next(key, value)) {
+	            for (Writable w : value.get()) {
+	              Point p = (Point) w;
+	              points.add(p.x, p.y);
+	            }
+	          }
+	          reader.close();
+	          mbrs[i] = key.isValid() ? key.clone() : null;
+	          splitPoints[i] = points;
+	          splitPairs[i] = closestPair(points.xs, points.ys, points.size,
+	              Double.POSITIVE_INFINITY);
+	        } catch (IOException e) {
+	          throw new RuntimeException("Error reading split "+splits[i], e);
+	        }
+	      }
+	      return null;
+	    }
+	  });
+
+	  double delta = Double.POSITIVE_INFINITY;
+	  double[] best = null;
+	  for (int i = 0; i < splits.length; i++) {
+	    if (splitPairs[i] != null) {
+	      ConvexHull.PointArray points = splitPoints[i];
+	      int[] pair = splitPairs[i];
+	      double dx = points.xs[pair[0]] - points.xs[pair[1]];
+	      double dy = points.ys[pair[0]] - points.ys[pair[1]];
+	      double distance = Math.sqrt(dx * dx + dy * dy);
+	      if (distance < delta) {
+	        delta = distance;
+	        best = new double[] {points.xs[pair[0]], points.ys[pair[0]],
+	            points.xs[pair[1]], points.ys[pair[1]]};
+	      }
+	    }
+	  }
+
+	  // Combine points that might be closer to points in other splits
+	  ConvexHull.PointArray candidates = new ConvexHull.PointArray();
+	  for (int i = 0; i < splits.length; i++) {
+	    ConvexHull.PointArray points = splitPoints[i];
+	    Rectangle prunedArea = mbrs[i] == null ? null :
+	      new Rectangle(mbrs[i].x1 + delta, mbrs[i].y1 + delta,
+	          mbrs[i].x2 - delta, mbrs[i].y2 - delta);
+	    for (int j = 0; j < points.size; j++) {
+	      if (prunedArea == null || !prunedArea.contains(points.xs[j], points.ys[j]))
+	        candidates.add(points.xs[j], points.ys[j]);
+	    }
+	    splitPoints[i] = null;
+	  }
+	  LOG.info("Combining "+candidates.size+" candidate points");
+	  int[] pair = closestPair(candidates.xs, candidates.ys, candidates.size, delta);
+	  if (pair != null) {
+	    best = new double[] {candidates.xs[pair[0]], candidates.ys[pair[0]],
+	        candidates.xs[pair[1]], candidates.ys[pair[1]]};
+	  }
+	  if (best == null)
+	    return null;
+	  Point p1 = new Point(best[0], best[1]);
+	  Point p2 = new Point(best[2], best[3]);
+	  return new DistanceAndPair(p1.distanceTo(p2), p1, p2);
+	}
+
 	public static <S extends Shape> void closestPairLocal(FileSystem fs,
 			Path file, S stockShape) throws IOException {
 		ShapeRecordReader<S> reader = new ShapeRecordReader<S>(fs.open(file), 0, fs.getFileStatus(file).getLen());
@@ -289,7 +594,7 @@ public class ClosestPair {
 	 * @param args
 	 * @throws IOException 
 	 */
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws IOException, InterruptedException {
 	  GenericOptionsParser parser = new GenericOptionsParser(args);
 	  OperationsParams params = new OperationsParams(parser);
 	  if (params.getPaths().length == 0 && params.getBoolean("local", false)) {
@@ -311,7 +616,9 @@ public class ClosestPair {
 		}
 
 		long t1 = System.currentTimeMillis();
-		if (SpatialSite.getGlobalIndex(fs, inputFile) != null)
+		if (OperationsParams.isLocal(params, inputFile))
+		  System.out.println(closestPairLocal(inputFile, params));
+		else if (SpatialSite.getGlobalIndex(fs, inputFile) != null)
 		  closestPair(inputFile, params);
 		else
 		  ClosestPairHadoop.cloesetPair(inputFile, params);
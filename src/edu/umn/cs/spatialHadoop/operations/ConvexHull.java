@@ -22,15 +22,18 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
@@ -39,12 +42,17 @@ import edu.umn.cs.spatialHadoop.core.Partition;
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat2;
 import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeIterInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Computes the convex hull for a set of shapes
@@ -103,49 +111,240 @@ public class ConvexHull {
   }
   
   /**
-   * Computes the convex hull of an input file using a single machine algorithm.
-   * The output is written to the output file. If output file is null, the
+   * A list of points stored as two primitive arrays of coordinates which
+   * avoids creating an object for each point.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class PointArray {
+    double[] xs;
+    double[] ys;
+    int size;
+
+    PointArray() {
+      this(16);
+    }
+
+    PointArray(int capacity) {
+      xs = new double[capacity];
+      ys = new double[capacity];
+    }
+
+    void add(double x, double y) {
+      if (size == xs.length) {
+        int newCapacity = Math.max(16, xs.length * 2);
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+      }
+      xs[size] = x;
+      ys[size] = y;
+      size++;
+    }
+
+    /**
+     * Sorts the points by x and then by y.
+     */
+    void sort() {
+      if (size == 0)
+        return;
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public void swap(int i, int j) {
+          double temp = xs[i];
+          xs[i] = xs[j];
+          xs[j] = temp;
+          temp = ys[i];
+          ys[i] = ys[j];
+          ys[j] = temp;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+          int cmp = Double.compare(xs[i], xs[j]);
+          return cmp != 0 ? cmp : Double.compare(ys[i], ys[j]);
+        }
+      }, 0, size);
+    }
+  }
+
+  /**
+   * Computes the convex hull of a set of points sorted by x then by y using
+   * Andrew's monotone chain algorithm. This takes linear time as the points
+   * are already sorted.
+   * @param points
+   * @return the positions of the hull vertices in counter-clockwise order
+   */
+  static int[] hullChain(PointArray points) {
+    double[] xs = points.xs;
+    double[] ys = points.ys;
+    int size = points.size;
+    if (size < 3) {
+      int[] hull = new int[size];
+      for (int i = 0; i < size; i++)
+        hull[i] = i;
+      return hull;
+    }
+    int[] hull = new int[2 * size];
+    int k = 0;
+    // Lower chain
+    for (int i = 0; i < size; i++) {
+      while (k >= 2 && cross(xs, ys, hull[k - 2], hull[k - 1], i) <= 0)
+        k--;
+      hull[k++] = i;
+    }
+    // Upper chain
+    int lowerSize = k + 1;
+    for (int i = size - 2; i >= 0; i--) {
+      while (k >= lowerSize && cross(xs, ys, hull[k - 2], hull[k - 1], i) <= 0)
+        k--;
+      hull[k++] = i;
+    }
+    // The last point is the same as the first one
+    return Arrays.copyOf(hull, k - 1);
+  }
+
+  private static double cross(double[] xs, double[] ys, int i1, int i2, int i3) {
+    return (xs[i2] - xs[i1]) * (ys[i3] - ys[i1]) - (ys[i2] - ys[i1]) * (xs[i3] - xs[i1]);
+  }
+
+  /**
+   * Removes all points that are not vertices of the convex hull of a set of
+   * sorted points. The remaining points stay sorted so that the result can
+   * be merged with other hulls in linear time.
+   * @param points
+   */
+  static void reduceToHull(PointArray points) {
+    int[] hull = hullChain(points);
+    boolean[] isVertex = new boolean[points.size];
+    for (int i : hull)
+      isVertex[i] = true;
+    int newSize = 0;
+    for (int i = 0; i < points.size; i++) {
+      if (isVertex[i]) {
+        points.xs[newSize] = points.xs[i];
+        points.ys[newSize] = points.ys[i];
+        newSize++;
+      }
+    }
+    points.size = newSize;
+  }
+
+  /**
+   * Merges two convex hulls given as sorted vertices into one hull in linear
+   * time. The vertices of both hulls are merged into one sorted list and the
+   * monotone chain algorithm is applied to them without sorting.
+   * @param hull1
+   * @param hull2
+   * @return
+   */
+  static PointArray mergeHulls(PointArray hull1, PointArray hull2) {
+    PointArray merged = new PointArray(Math.max(1, hull1.size + hull2.size));
+    int i1 = 0, i2 = 0;
+    while (i1 < hull1.size || i2 < hull2.size) {
+      boolean takeFirst;
+      if (i1 == hull1.size) {
+        takeFirst = false;
+      } else if (i2 == hull2.size) {
+        takeFirst = true;
+      } else {
+        int cmp = Double.compare(hull1.xs[i1], hull2.xs[i2]);
+        takeFirst = cmp < 0 || (cmp == 0 && hull1.ys[i1] <= hull2.ys[i2]);
+      }
+      if (takeFirst) {
+        merged.add(hull1.xs[i1], hull1.ys[i1]);
+        i1++;
+      } else {
+        merged.add(hull2.xs[i2], hull2.ys[i2]);
+        i2++;
+      }
+    }
+    reduceToHull(merged);
+    return merged;
+  }
+
+  /**
+   * Computes the convex hull of an input file on the local machine. The
+   * output is written to the output file. If output file is null, the
    * output is just thrown away.
    * @param inFile
    * @param outFile
    * @param overwrite
    * @throws IOException
+   * @throws InterruptedException
+   * @see #convexHullLocal(Path, Path, OperationsParams)
    */
   public static void convexHull(Path inFile, Path outFile,
-      boolean overwrite) throws IOException {
-    FileSystem inFs = inFile.getFileSystem(new Configuration());
-    long file_size = inFs.getFileStatus(inFile).getLen();
-    
-    ShapeRecordReader<Point> shapeReader = new ShapeRecordReader<Point>(
-        new Configuration(), new FileSplit(inFile, 0, file_size, new String[] {}));
-
-    Rectangle key = shapeReader.createKey();
-    Point point = new Point();
+      boolean overwrite) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new Configuration());
+    params.setClass("shape", Point.class, Shape.class);
+    params.setBoolean("overwrite", overwrite);
+    convexHullLocal(inFile, outFile, params);
+  }
+  
+  /**
+   * Computes the convex hull of an input file or directory on the local
+   * machine. Splits are processed in parallel where each split is reduced to
+   * its convex hull and the hulls are merged in linear time. The output is
+   * written to the output file. If output file is null, the output is just
+   * thrown away.
+   * @param inFile
+   * @param outFile
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void convexHullLocal(Path inFile, Path outFile,
+      OperationsParams params) throws IOException, InterruptedException {
+    final JobConf job = new JobConf(params, ConvexHull.class);
+    job.setClass(SpatialSite.FilterClass, ConvexHullFilter.class, BlockFilter.class);
+    ShapeInputFormat.setInputPaths(job, inFile);
+    final ShapeInputFormat<Point> inputFormat = new ShapeInputFormat<Point>();
+    final InputSplit[] splits = inputFormat.getSplits(job, 1);
 
-    Vector<Point> points = new Vector<Point>();
-    
-    while (shapeReader.next(key, point)) {
-      points.add(point.clone());
-    }
-    
-    Point[] arPoints = points.toArray(new Point[points.size()]);
-    
-    Point[] convex_hull = convexHull(arPoints);
+    Vector<PointArray> results = Parallel.forEach(splits.length,
+        new RunnableRange<PointArray>() {
+      @Override
+      public PointArray run(int i1, int i2) {
+        PointArray hull = new PointArray();
+        for (int i = i1; i < i2; i++) {
+          try {
+            RecordReader<Rectangle, Point> reader =
+                inputFormat.getRecordReader(splits[i], job, null);
+            Rectangle key = reader.createKey();
+            Point point = reader.createValue();
+            PointArray points = new PointArray();
+            while (reader.next(key, point))
+              points.add(point.x, point.y);
+            reader.close();
+            points.sort();
+            reduceToHull(points);
+            hull = mergeHulls(hull, points);
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading split "+splits[i], e);
+          }
+        }
+        return hull;
+      }
+    });
+    PointArray hull = new PointArray();
+    for (PointArray result : results)
+      hull = mergeHulls(hull, result);
+    int[] convexHull = hullChain(hull);
+    LOG.info("Convex hull computed with "+convexHull.length+" points");
 
     if (outFile != null) {
-      if (overwrite) {
+      if (params.getBoolean("overwrite", false)) {
         FileSystem outFs = outFile.getFileSystem(new Configuration());
         outFs.delete(outFile, true);
       }
       GridRecordWriter<Point> out = new GridRecordWriter<Point>(outFile, null, null, null);
-      for (Point pt : convex_hull) {
-        out.write(NullWritable.get(), pt);
+      for (int i : convexHull) {
+        out.write(NullWritable.get(), new Point(hull.xs[i], hull.ys[i]));
       }
       out.close(null);
     }
   }
   
-  
   /**
    * Computes the convex hull by reading points from stream
    * @param point 
@@ -187,30 +386,18 @@ public class ConvexHull {
     @Override
     public void selectCells(GlobalIndex<Partition> gIndex,
         ResultCollector<Partition> output) {
+      Partition[] partitions = new Partition[gIndex.size()];
+      int i = 0;
+      for (Partition p : gIndex)
+        partitions[i++] = p;
       Set<Partition> non_dominated_partitions_all = new HashSet<Partition>();
       for (OperationsParams.Direction dir : OperationsParams.Direction.values()) {
-        Vector<Partition> non_dominated_partitions = new Vector<Partition>();
-        for (Partition p : gIndex) {
-          boolean dominated = false;
-          int i = 0;
-          while (!dominated && i < non_dominated_partitions.size()) {
-            Partition p2 = non_dominated_partitions.get(i);
-            dominated = Skyline.skylineDominate(p2, p, dir, gIndex.isCompact());
-            
-            // Check if the new partition dominates the previously selected one
-            if (Skyline.skylineDominate(p, p2, dir, gIndex.isCompact())) {
-              // p2 is no longer non-dominated
-              non_dominated_partitions.remove(i);
-            } else {
-              // Skip to next non-dominated partition
-              i++;
-            }
-          }
-          if (!dominated) {
-            non_dominated_partitions.add(p);
-          }
+        boolean[] nonDominated = Skyline.nonDominatedRectangles(partitions,
+            dir, gIndex.isCompact());
+        for (i = 0; i < partitions.length; i++) {
+          if (nonDominated[i])
+            non_dominated_partitions_all.add(partitions[i]);
         }
-        non_dominated_partitions_all.addAll(non_dominated_partitions);
       }
       
       LOG.info("Processing "+non_dominated_partitions_all.size()+" out of "+gIndex.size()+" partition");
@@ -222,21 +409,37 @@ public class ConvexHull {
   }
   
   /**
-   * An identity map function that returns values as-is with a null key. This
-   * ensures that all values are reduced in one reducer.
+   * Computes the convex hull of each partition and emits only its vertices
+   * with a null key. This ensures that all candidate points are reduced in
+   * one reducer while points inside the local hulls never leave the mapper.
    * @author Ahmed Eldawy
    */
-  public static class IdentityMapper extends MapReduceBase implements
-  Mapper<Rectangle, Point, NullWritable, Point> {
+  public static class ConvexHullMapper extends MapReduceBase implements
+  Mapper<Rectangle, ShapeIterator, NullWritable, Point> {
     @Override
-    public void map(Rectangle dummy, Point point,
+    public void map(Rectangle dummy, ShapeIterator shapes,
         OutputCollector<NullWritable, Point> output, Reporter reporter)
         throws IOException {
-      output.collect(NullWritable.get(), point);
+      PointArray points = new PointArray();
+      for (Shape shape : shapes) {
+        Point point = (Point) shape;
+        points.add(point.x, point.y);
+      }
+      points.sort();
+      reduceToHull(points);
+      Point pt = new Point();
+      for (int i = 0; i < points.size; i++) {
+        pt.set(points.xs[i], points.ys[i]);
+        output.collect(NullWritable.get(), pt);
+      }
     }
-    
   }
   
+  /**
+   * Computes the convex hull of the vertices of all local hulls. Used as both
+   * a combiner and a reducer.
+   * @author Ahmed Eldawy
+   */
   public static class ConvexHullReducer extends MapReduceBase implements
   Reducer<NullWritable,Point,NullWritable,Point> {
     
@@ -244,12 +447,15 @@ public class ConvexHull {
     public void reduce(NullWritable dummy, Iterator<Point> points,
         OutputCollector<NullWritable, Point> output, Reporter reporter)
         throws IOException {
-      Vector<Point> vpoints = new Vector<Point>();
+      PointArray hull = new PointArray();
       while (points.hasNext()) {
-        vpoints.add(points.next().clone());
+        Point point = points.next();
+        hull.add(point.x, point.y);
       }
-      Point[] convex_hull = convexHull(vpoints.toArray(new Point[vpoints.size()]));
-      for (Point pt : convex_hull) {
+      hull.sort();
+      Point pt = new Point();
+      for (int i : hullChain(hull)) {
+        pt.set(hull.xs[i], hull.ys[i]);
         output.collect(dummy, pt);
       }
     }
@@ -278,13 +484,13 @@ public class ConvexHull {
     
     job.setJobName("ConvexHull");
     job.setClass(SpatialSite.FilterClass, ConvexHullFilter.class, BlockFilter.class);
-    job.setMapperClass(IdentityMapper.class);
+    job.setMapperClass(ConvexHullMapper.class);
     job.setCombinerClass(ConvexHullReducer.class);
     job.setReducerClass(ConvexHullReducer.class);
     job.setOutputKeyClass(NullWritable.class);
     job.setOutputValueClass(Point.class);
-    job.setInputFormat(ShapeInputFormat.class);
-    ShapeInputFormat.addInputPath(job, inFile);
+    job.setInputFormat(ShapeIterInputFormat.class);
+    ShapeIterInputFormat.addInputPath(job, inFile);
     job.setOutputFormat(GridOutputFormat2.class);
     GridOutputFormat2.setOutputPath(job, outPath);
     
@@ -305,7 +511,7 @@ public class ConvexHull {
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
   
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
     GenericOptionsParser parser = new GenericOptionsParser(args);
     OperationsParams params = new OperationsParams(parser);
     if (params.getBoolean("local", false) && params.getPaths().length == 0) {
@@ -329,7 +535,10 @@ public class ConvexHull {
     }
     
     long t1 = System.currentTimeMillis();
-    convexHullMapReduce(inFile, outFile, params);
+    if (OperationsParams.isLocal(params, inFile))
+      convexHullLocal(inFile, outFile, params);
+    else
+      convexHullMapReduce(inFile, outFile, params);
     long t2 = System.currentTimeMillis();
     System.out.println("Total time: "+(t2-t1)+" millis");
   }
@@ -18,7 +18,6 @@ import java.util.Vector;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ArrayWritable;
@@ -45,8 +44,6 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
-import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
@@ -57,7 +54,9 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.core.STRIndex;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.SerializedShape;
 import edu.umn.cs.spatialHadoop.mapred.BinaryRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.BinarySpatialInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
@@ -72,6 +71,7 @@ import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMap;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMapNoReplication;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * Performs a spatial join between two or more files using the redistribute-join
@@ -95,6 +95,7 @@ public class DistributedJoin {
 	private static final String InactiveMode = "DJ.InactiveMode";
 	private static final String isFilterOnlyMode = "DJ.FilterOnlyMode";
 	private static final String JoiningThresholdPerOnce = "DJ.JoiningThresholdPerOnce";
+	private static final String RepartitionJoinReplication = "DJ.RepartitionJoinReplication";
 	
 	public static class SpatialJoinFilter extends DefaultBlockFilter {
 		@Override
@@ -539,20 +540,12 @@ public class DistributedJoin {
 		long largest_size = 0;
 
 		for (int i_file = 0; i_file < files.length; i_file++) {
-			FileSystem fs = files[i_file].getFileSystem(params);
-			GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs,
-					files[i_file]);
-			if (gindex != null) {
-				// Compute total size (all files in directory)
-				long total_size = 0;
-				for (Partition p : gindex) {
-					Path file = new Path(files[i_file], p.filename);
-					total_size += fs.getFileStatus(file).getLen();
-				}
-				if (total_size > largest_size) {
-					largest_partitioned_file = i_file;
-					largest_size = total_size;
-				}
+			// Sizes of indexed files come from their global indexes
+			JoinPlanner.InputInfo info = JoinPlanner.getInputInfo(
+					files[i_file], params);
+			if (info.gindex != null && info.size > largest_size) {
+				largest_partitioned_file = i_file;
+				largest_size = info.size;
 			}
 		}
 		return largest_partitioned_file == -1 ? -1
@@ -757,8 +750,63 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * Repartitions the records of one file to match the partitions of the
+	 * other file. Records are sent to reducers in their binary form along with
+	 * their MBRs so that the reducer can filter them without deserialization.
+	 * 
+	 * @author Ahmed Eldawy
+	 *
+	 */
+	public static class RepartitionJoinMap<T extends Shape> extends
+			MapReduceBase implements
+			Mapper<Rectangle, T, IntWritable, SerializedShape> {
+
+		/**The map function that assigns records to partitions*/
+		private Mapper<Rectangle, T, IntWritable, T> repartitionMap;
+		
+		/**The output collector of the current call of the map function*/
+		private OutputCollector<IntWritable, SerializedShape> output;
+
+		/**Serializes the records assigned by the repartition map function*/
+		private OutputCollector<IntWritable, T> serializer;
+		
+		private SerializedShape outputValue = new SerializedShape();
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			if (job.getBoolean(RepartitionJoinReplication, true)) {
+				RepartitionMap<T> map = new RepartitionMap<T>();
+				map.configure(job);
+				repartitionMap = map;
+			} else {
+				RepartitionMapNoReplication<T> map = new RepartitionMapNoReplication<T>();
+				map.configure(job);
+				repartitionMap = map;
+			}
+			serializer = new OutputCollector<IntWritable, T>() {
+				@Override
+				public void collect(IntWritable cellId, T shape)
+						throws IOException {
+					outputValue.set((byte) 0, shape);
+					output.collect(cellId, outputValue);
+				}
+			};
+		}
+
+		@Override
+		public void map(Rectangle cellMbr, T shape,
+				OutputCollector<IntWritable, SerializedShape> output,
+				Reporter reporter) throws IOException {
+			this.output = output;
+			repartitionMap.map(cellMbr, shape, serializer, reporter);
+		}
+	}
+
 	public static class RepartitionJoinReduce<T extends Shape> extends
-			MapReduceBase implements Reducer<IntWritable, T, Shape, Shape> {
+			MapReduceBase implements
+			Reducer<IntWritable, SerializedShape, Shape, Shape> {
 
 		private Path indexDir;
 		private Shape shape;
@@ -778,7 +826,8 @@ public class DistributedJoin {
 		}
 
 		@Override
-		public void reduce(IntWritable cellIndex, Iterator<T> shapes,
+		public void reduce(IntWritable cellIndex,
+				Iterator<SerializedShape> records,
 				final OutputCollector<Shape, Shape> output, Reporter reporter)
 				throws IOException {
 		 if(!inactiveMode){
@@ -788,17 +837,22 @@ public class DistributedJoin {
 			GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs,
 					indexDir);
 			
-			
 			// Get collected shapes from the repartition phase
-			while (shapes.hasNext()) {
-					int currRShapes = 0;
-					final ArrayList<Shape> r = new ArrayList<Shape>();
+			while (records.hasNext()) {
+					// Keep a copy of the records as values are reused
+					final Vector<SerializedShape> r = new Vector<SerializedShape>();
 					do{
-						T rShape = shapes.next();
-						r.add(rShape.clone());	
-						currRShapes++;
-					} while(shapes.hasNext() && currRShapes < shapesThresholdPerOnce);
-
+						r.add(records.next().copy());
+					} while(records.hasNext() && r.size() < shapesThresholdPerOnce);
+
+					// Index the MBRs from the record headers and deserialize a
+					// shape only when it is part of a candidate pair
+					Rectangle[] rMBRs = new Rectangle[r.size()];
+					for (int i = 0; i < rMBRs.length; i++)
+						rMBRs[i] = r.get(i).getMBR();
+					STRIndex<Rectangle> rIndex = new STRIndex<Rectangle>(rMBRs);
+					Shape[] rShapes = new Shape[rMBRs.length];
+					IntArray candidates = new IntArray();
 					
 					for (Partition p : gIndex) {
 						if (p.cellId == cellIndex.get()) {
@@ -815,54 +869,28 @@ public class DistributedJoin {
 							ShapeIterator partitionShapes = shapeReader
 									.createValue();
 
-							// load shapes from the indexed dataset
+							// Probe the index with shapes of the indexed dataset
 							while (shapeReader.next(cellInfo, partitionShapes)) {
-								while(partitionShapes.hasNext()){
-									final ArrayList<Shape> selectedSShapes = new ArrayList<Shape>();
-									int currSShapes = 0;
-									do{
-										Shape shapeInPartition = partitionShapes.next();
-										selectedSShapes.add(shapeInPartition.clone());
-										currSShapes++;
-									} while(partitionShapes.hasNext() && currSShapes < shapesThresholdPerOnce);
-									LOG.info("Read "+selectedSShapes.size()+" shapes from partition");
-									
-									// Join two arrays using the plane sweep
-									// algorithm
-									if(isFilterOnly){
-										SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(
-												r, selectedSShapes,
-												new ResultCollector2<Shape, Shape>() {
-													@Override
-													public void collect(Shape r, Shape s) {
-													  try {
-													    output.collect(r, s);
-													  } catch (IOException e) {
-													    e.printStackTrace();
-													  }	
-													}
-												}, reporter);
-									}else{
-										SpatialAlgorithms.SpatialJoin_planeSweep(
-												r, selectedSShapes,
-												new ResultCollector2<Shape, Shape>() {
-													@Override
-													public void collect(Shape r, Shape s) {
-													  try {
-													    output.collect(r, s);
-													  } catch (IOException e) {
-													    e.printStackTrace();
-													  }	
-													}
-												}, reporter);										
+								while (partitionShapes.hasNext()) {
+									Shape s = partitionShapes.next();
+									Rectangle sMBR = s.getMBR();
+									if (sMBR == null)
+										continue;
+									candidates.clear();
+									rIndex.search(sMBR, candidates);
+									for (int i = 0; i < candidates.size(); i++) {
+										int iR = candidates.get(i);
+										if (!rMBRs[iR].isIntersected(sMBR))
+											continue;
+										if (rShapes[iR] == null)
+											rShapes[iR] = r.get(iR).getShape(shape);
+										if (isFilterOnly || rShapes[iR].isIntersected(s))
+											output.collect(rShapes[iR], s);
 									}
-									
-			
-									reporter.progress();	
 								}
+								reporter.progress();
 							}	
 							shapeReader.close();
-							
 
 							LOG.info("Finished joining of "+p);
 						}
@@ -897,7 +925,6 @@ public class DistributedJoin {
 			throws IOException {
 
 		boolean overwrite = params.getBoolean("overwrite", false);
-		Shape stockShape = params.getShape("shape");
 
 		// Do the repartition step
 		long t1 = System.currentTimeMillis();
@@ -944,17 +971,14 @@ public class DistributedJoin {
 					+ inputFiles[1 - fileToRepartition]);
 		params.set("sindex", sindex);
 
-		// Decide which map function to use based on the type of global index
-		if (sindex.equals("rtree") || sindex.equals("str")) {
-			// Repartition without replication
-			repartitionJoinJob
-					.setMapperClass(RepartitionMapNoReplication.class);
-		} else {
-			// Repartition with replication (grid and r+tree)
-			repartitionJoinJob.setMapperClass(RepartitionMap.class);
-		}
+		// Decide which map function to use based on the type of global index.
+		// Repartition without replication for rtree and str and with
+		// replication for grid and r+tree
+		repartitionJoinJob.setBoolean(RepartitionJoinReplication,
+				!(sindex.equals("rtree") || sindex.equals("str")));
+		repartitionJoinJob.setMapperClass(RepartitionJoinMap.class);
 		repartitionJoinJob.setMapOutputKeyClass(IntWritable.class);
-		repartitionJoinJob.setMapOutputValueClass(stockShape.getClass());
+		repartitionJoinJob.setMapOutputValueClass(SerializedShape.class);
 		ShapeInputFormat.setInputPaths(repartitionJoinJob,
 				inputFiles[fileToRepartition]);
 		repartitionJoinJob.setInputFormat(ShapeInputFormat.class);
@@ -999,20 +1023,18 @@ public class DistributedJoin {
 	}
 
 	/**
-	 * Spatially joins two files.
+	 * Spatially joins two files using the algorithm with the least estimated
+	 * cost as chosen by {@link JoinPlanner}.
 	 * 
-	 * @param fs
 	 * @param inputFiles
-	 * @param stockShape
-	 * @param output
+	 * @param userOutputPath
+	 * @param params
 	 * @return
 	 * @throws IOException
 	 * @throws InterruptedException 
 	 */
-	@SuppressWarnings("unchecked")
 	public static long distributedJoinSmart(final Path[] inputFiles,
 			Path userOutputPath, OperationsParams params) throws IOException, InterruptedException {
-		Path[] originalInputFiles = inputFiles.clone();
 		FileSystem outFs = inputFiles[0].getFileSystem(params);
 		Path outputPath = userOutputPath;
 		if (outputPath == null) {
@@ -1022,90 +1044,26 @@ public class DistributedJoin {
 			} while (outFs.exists(outputPath));
 		}
 
-		// Decide whether to do a repartition step or not
-		int cost_with_repartition, cost_without_repartition;
-		final FileStatus[] fStatus = new FileStatus[inputFiles.length];
-		for (int i_file = 0; i_file < inputFiles.length; i_file++) {
-			// TODO work with folders. Calculate size more accurately
-			FileSystem fs = inputFiles[i_file].getFileSystem(params);
-			fStatus[i_file] = fs.getFileStatus(inputFiles[i_file]);
-		}
-
-		// Sort files by length (size)
-		IndexedSortable filesBySize = new IndexedSortable() {
-			@Override
-			public void swap(int i, int j) {
-				Path tmp1 = inputFiles[i];
-				inputFiles[i] = inputFiles[j];
-				inputFiles[j] = tmp1;
-
-				FileStatus tmp2 = fStatus[i];
-				fStatus[i] = fStatus[j];
-				fStatus[j] = tmp2;
-			}
-
-			@Override
-			public int compare(int i, int j) {
-				if (fStatus[i].getLen() < fStatus[j].getLen())
-					return 0;
-				return fStatus[i].getLen() < fStatus[j].getLen() ? -1 : 1;
-			}
-		};
-
-		new QuickSort().sort(filesBySize, 0, inputFiles.length);
-		GlobalIndex<Partition>[] gIndexes = new GlobalIndex[fStatus.length];
-		int[] numBlocks = new int[fStatus.length];
-		for (int i_file = 0; i_file < fStatus.length; i_file++) {
-			gIndexes[i_file] = SpatialSite.getGlobalIndex(outFs,
-					fStatus[i_file].getPath());
-			if (gIndexes[i_file] != null) {
-				// Number of blocks is equal to number of partitions in global
-				// index
-				numBlocks[i_file] = gIndexes[i_file].size();
-			} else if (fStatus[i_file].isDir()) {
-				// Add up number of file system blocks in all subfiles of this
-				// directory
-				numBlocks[i_file] = 0;
-				FileStatus[] subfiles = outFs.listStatus(inputFiles[i_file],
-						SpatialSite.NonHiddenFileFilter);
-				for (FileStatus subfile : subfiles) {
-					numBlocks[i_file] += outFs.getFileBlockLocations(subfile,
-							0, subfile.getLen()).length;
-				}
-			} else {
-				// Number of file system blocks in input file
-				numBlocks[i_file] = outFs.getFileBlockLocations(
-						fStatus[i_file], 0, fStatus[i_file].getLen()).length;
-			}
-		}
-
-		cost_without_repartition = gIndexes[0] != null && gIndexes[1] != null ? GlobalIndex
-				.spatialJoin(gIndexes[0], gIndexes[1], null)
-				: (numBlocks[0] * numBlocks[1]);
-		// Total cost = Cost of repartition (=== 2 * numBlocks[0]) +
-		// cost of join (=== numBlocks[0] + numBlocks[1])
-		cost_with_repartition = numBlocks[0] * 3 + numBlocks[1];
-		LOG.info("Cost with repartition is estimated to "
-				+ cost_with_repartition);
-		LOG.info("Cost without repartition is estimated to "
-				+ cost_without_repartition);
-		boolean need_repartition = cost_with_repartition < cost_without_repartition;
-		if (need_repartition) {
-			int file_to_repartition = selectRepartition(inputFiles, params);
-			repartitionStep(inputFiles, file_to_repartition, params);
-		}
-
-		// Restore inputFiles to the original order by user
-		if (inputFiles[1] != originalInputFiles[1]) {
-			Path temp = inputFiles[0];
-			inputFiles[0] = inputFiles[1];
-			inputFiles[1] = temp;
+		// Choose the cheapest algorithm based on the global indexes
+		JoinPlanner.JoinPlan plan = JoinPlanner.plan(inputFiles, params,
+				JoinPlanner.Algorithm.SJMR,
+				JoinPlanner.Algorithm.DistributedJoin,
+				JoinPlanner.Algorithm.RepartitionJoin,
+				JoinPlanner.Algorithm.Broadcast);
+		long result_size;
+		if (plan.algorithm == JoinPlanner.Algorithm.Broadcast) {
+			result_size = BroadcastJoin.broadcastJoin(inputFiles, plan.file,
+					outputPath, params);
+		} else if (plan.algorithm == JoinPlanner.Algorithm.SJMR) {
+			result_size = SJMR.sjmr(inputFiles, outputPath, params);
+		} else {
+			Path[] joinFiles = inputFiles.clone();
+			if (plan.algorithm == JoinPlanner.Algorithm.RepartitionJoin)
+				repartitionStep(joinFiles, plan.file, params);
+			result_size = DistributedJoin.joinStep(joinFiles, outputPath,
+					params);
 		}
 
-		// Redistribute join the larger file and the partitioned file
-		long result_size = DistributedJoin.joinStep(inputFiles, outputPath,
-				params);
-
 		if (userOutputPath == null)
 			outFs.delete(outputPath, true);
 
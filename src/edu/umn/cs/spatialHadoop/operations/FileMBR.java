@@ -10,7 +10,12 @@ package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,16 +45,23 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.DatasetStats;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeLineRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Finds the minimal bounding rectangle for a file.
@@ -70,17 +82,70 @@ public class FileMBR {
   /**Last submitted MBR MapReduce job*/
   public static RunningJob lastSubmittedJob;
 
+  /**
+   * Parses one record and adds it to the MBR, record count and size of a file.
+   * @param partition
+   * @param shape a stock shape used to parse the record
+   * @param text the line of the record
+   */
+  private static void addRecord(Partition partition, Shape shape, Text text) {
+    int recordSize = text.getLength() + 1; // +1 for new line
+    shape.fromText(text);
+    Rectangle mbr = shape.getMBR();
+    if (mbr == null)
+      return;
+    if (mbr.x1 < partition.x1)
+      partition.x1 = mbr.x1;
+    if (mbr.y1 < partition.y1)
+      partition.y1 = mbr.y1;
+    if (mbr.x2 > partition.x2)
+      partition.x2 = mbr.x2;
+    if (mbr.y2 > partition.y2)
+      partition.y2 = mbr.y2;
+    partition.recordCount++;
+    partition.size += recordSize;
+  }
+
+  /**
+   * Returns the partition that aggregates the records of a file creating an
+   * empty one if needed.
+   * @param partitions
+   * @param filename
+   * @return
+   */
+  private static Partition getFilePartition(Map<String, Partition> partitions,
+      String filename) {
+    Partition partition = partitions.get(filename);
+    if (partition == null) {
+      partition = new Partition();
+      partition.filename = filename;
+      partition.set(Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE);
+      partitions.put(filename, partition);
+    }
+    return partition;
+  }
+
+  /**
+   * Computes the MBR of each file in the input split and emits one value
+   * per file when the map task is closed rather than one value per record.
+   * @author Ahmed Eldawy
+   *
+   */
   public static class FileMBRMapper extends MapReduceBase implements
       Mapper<Rectangle, Text, Text, Partition> {
     
     /**Last input split processed (initially null)*/
     private InputSplit lastSplit = null;
     
-    /**Name of the file currently being processed*/
-    private Text fileName;
+    /**The MBR of each file processed by this mapper*/
+    private Map<String, Partition> filePartitions = new HashMap<String, Partition>();
     
-    /**Shared value*/
-    private Partition value;
+    /**The MBR of the file currently being processed*/
+    private Partition currentPartition;
+
+    /**The output collector used to emit all values on close*/
+    private OutputCollector<Text, Partition> output;
 
     /**Stock shape to parse input file*/
     private Shape shape;
@@ -88,27 +153,28 @@ public class FileMBR {
     @Override
     public void configure(JobConf job) {
       super.configure(job);
-      value = new Partition();
-      value.recordCount = 1;
       this.shape = OperationsParams.getShape(job, "shape");
     }
     
     public void map(Rectangle dummy, Text text,
         OutputCollector<Text, Partition> output, Reporter reporter)
             throws IOException {
+      this.output = output;
       if (lastSplit != reporter.getInputSplit()) {
         lastSplit = reporter.getInputSplit();
-        value.filename = ((FileSplit)lastSplit).getPath().getName();
-        fileName = new Text(value.filename);
+        currentPartition = getFilePartition(filePartitions,
+            ((FileSplit)lastSplit).getPath().getName());
       }
-      value.size = text.getLength() + 1; // +1 for new line
-      shape.fromText(text);
-      Rectangle mbr = shape.getMBR();
+      addRecord(currentPartition, shape, text);
+    }
 
-      if (mbr != null) {
-        value.set(mbr);
-        output.collect(fileName, value);
+    @Override
+    public void close() throws IOException {
+      for (Partition partition : filePartitions.values()) {
+        if (partition.recordCount > 0)
+          output.collect(new Text(partition.filename), partition);
       }
+      super.close();
     }
   }
   
@@ -200,12 +266,13 @@ public class FileMBR {
    * 
    * @param inFile - Path to input file
    * @param params - Additional operation parameters
+   * @param filePartitions - If not null, the MBR of each file is added to it
    * @return
    * @throws IOException
    * @throws InterruptedException 
 //   */
   private static <S extends Shape> Partition fileMBRMapReduce(Path[] inFiles,
-      OperationsParams params) throws IOException, InterruptedException {
+      OperationsParams params, List<Partition> filePartitions) throws IOException, InterruptedException {
     JobConf job = new JobConf(params, FileMBR.class);
       
     Path outputPath;
@@ -220,7 +287,6 @@ public class FileMBR {
 
     job.setMapperClass(FileMBRMapper.class);
     job.setReducerClass(Reduce.class);
-    job.setCombinerClass(Combine.class);
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
     
@@ -266,6 +332,8 @@ public class FileMBR {
         Partition p = reader.createValue();
         while (reader.next(key, p)) {
           mbr.expand(p);
+          if (filePartitions != null)
+            filePartitions.add(p.clone());
         }
         reader.close();
       }
@@ -275,44 +343,309 @@ public class FileMBR {
     }
   }
 
+  /**
+   * Computes the MBR of the input files on the local machine by scanning all
+   * splits in parallel without running a MapReduce job.
+   * @param inFiles
+   * @param params
+   * @param filePartitions - If not null, the MBR of each file is added to it
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static Partition fileMBRLocal(Path[] inFiles,
+      final OperationsParams params, List<Partition> filePartitions)
+      throws IOException, InterruptedException {
+    final JobConf job = new JobConf(params, FileMBR.class);
+    ShapeLineInputFormat.setInputPaths(job, inFiles);
+    final InputSplit[] splits = new ShapeLineInputFormat().getSplits(job, 1);
+
+    Vector<Map<String, Partition>> results = Parallel.forEach(splits.length,
+        new RunnableRange<Map<String, Partition>>() {
+      @Override
+      public Map<String, Partition> run(int i1, int i2) {
+        Map<String, Partition> partitions = new HashMap<String, Partition>();
+        Shape shape = OperationsParams.getShape(job, "shape");
+        for (int i = i1; i < i2; i++) {
+          FileSplit fsplit = (FileSplit) splits[i];
+          try {
+            Partition partition = getFilePartition(partitions, fsplit.getPath().getName());
+            ShapeLineRecordReader reader = new ShapeLineRecordReader(job, fsplit);
+            Rectangle key = reader.createKey();
+            Text text = reader.createValue();
+            while (reader.next(key, text)) {
+              addRecord(partition, shape, text);
+            }
+            reader.close();
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading split "+fsplit, e);
+          }
+        }
+        return partitions;
+      }
+    });
+
+    // Combine the MBRs computed by all threads
+    Map<String, Partition> partitions = new HashMap<String, Partition>();
+    for (Map<String, Partition> result : results) {
+      for (Partition partition : result.values()) {
+        if (partition.recordCount > 0)
+          getFilePartition(partitions, partition.filename).expand(partition);
+      }
+    }
+    Partition mbr = new Partition();
+    mbr.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (Partition partition : partitions.values()) {
+      partition.cellId = Math.abs(new Text(partition.filename).hashCode());
+      mbr.expand(partition);
+      if (filePartitions != null)
+        filePartitions.add(partition);
+    }
+    sizeOfLastProcessedFile = mbr.size;
+
+    // Cache the answer in a master file like MBROutputCommitter does
+    Path inPath = inFiles[0];
+    FileSystem inFs = inPath.getFileSystem(params);
+    if (inFiles.length == 1 && !OperationsParams.isWildcard(inPath) &&
+        inFs.getFileStatus(inPath).isDir() &&
+        !inFs.exists(new Path(inPath, "_master.heap")))
+      writeMasterFile(inFs, inPath, partitions.values());
+    return mbr;
+  }
+
+  /**
+   * Computes the MBR of the input files either locally or using MapReduce.
+   * @param inFiles
+   * @param params
+   * @param filePartitions - If not null, the MBR of each file is added to it
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static Partition fileMBRCompute(Path[] inFiles,
+      OperationsParams params, List<Partition> filePartitions)
+      throws IOException, InterruptedException {
+    if (!params.getBoolean("background", false) &&
+        OperationsParams.isLocal(params, inFiles))
+      return fileMBRLocal(inFiles, params, filePartitions);
+    return fileMBRMapReduce(inFiles, params, filePartitions);
+  }
+
   /**
    * Returns the MBR of a file given that it is globally indexed.
    * @param file
    * @return
    * @throws IOException 
    */
-  private static Partition fileMBRCached(Path[] files, OperationsParams params) throws IOException {
+  private static Partition fileMBRCached(Path file, OperationsParams params) throws IOException {
+    FileSystem inFs = file.getFileSystem(params);
+    // Quickly get file MBR if it is globally indexed
+    GlobalIndex<Partition> globalIndex = SpatialSite.getGlobalIndex(inFs, file);
+    if (globalIndex == null)
+      return null;
     Partition p = new Partition();
-    for (Path file : files) {
-      FileSystem inFs = file.getFileSystem(params);
-      // Quickly get file MBR if it is globally indexed
-      GlobalIndex<Partition> globalIndex = SpatialSite.getGlobalIndex(inFs, file);
-      if (globalIndex == null)
-        return null;
-      p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
-      for (Partition part : globalIndex) {
-        p.expand(part);
-      }
-      sizeOfLastProcessedFile = p.size;
+    p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (Partition part : globalIndex) {
+      p.expand(part);
     }
     return p;
   }
 
+  /**
+   * Returns the statistics of a non-indexed dataset. Stored statistics are
+   * reused for all files that have not been modified since they were
+   * computed. New and modified files are processed with one MapReduce job
+   * and one sample is drawn from all of them, then the statistics are stored
+   * back for subsequent calls.
+   * @param path - a file or a directory of files
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static DatasetStats datasetStats(Path path, OperationsParams params)
+      throws IOException, InterruptedException {
+    FileSystem fs = path.getFileSystem(params);
+    FileStatus[] dataFiles = DatasetStats.listDataFiles(fs, path);
+    DatasetStats stats = DatasetStats.read(fs, path);
+    if (stats == null)
+      stats = new DatasetStats();
+    List<FileStatus> outdatedFiles = stats.invalidate(dataFiles);
+    if (outdatedFiles.isEmpty() && !stats.isEmpty())
+      return stats;
+
+    List<Partition> filePartitions = new ArrayList<Partition>();
+    if (outdatedFiles.size() == dataFiles.length) {
+      // Process the whole path so that the MBR of each file is also cached
+      // in a master file if the path is a directory
+      fileMBRCompute(new Path[] {path}, params, filePartitions);
+    } else if (!outdatedFiles.isEmpty()) {
+      LOG.info("Updating statistics of "+outdatedFiles.size()+" new or modified files in "+path);
+      Path[] outdatedPaths = new Path[outdatedFiles.size()];
+      for (int i = 0; i < outdatedPaths.length; i++)
+        outdatedPaths[i] = outdatedFiles.get(i).getPath();
+      fileMBRCompute(outdatedPaths, params, filePartitions);
+    }
+    Map<String, Partition> partitionsByName = new HashMap<String, Partition>();
+    for (Partition p : filePartitions)
+      partitionsByName.put(p.filename, p);
+
+    // Sample all outdated files at once. Each of them gets a share of the
+    // sample proportional to its size.
+    long totalLength = 0, outdatedLength = 0, outdatedRecords = 0;
+    for (FileStatus dataFile : dataFiles)
+      totalLength += dataFile.getLen();
+    for (FileStatus outdatedFile : outdatedFiles) {
+      outdatedLength += outdatedFile.getLen();
+      Partition p = partitionsByName.get(outdatedFile.getPath().getName());
+      if (p != null)
+        outdatedRecords += p.recordCount;
+    }
+    int sampleSize = params.getInt(DatasetStats.SampleSize, 10000);
+    int outdatedSampleSize = (int) Math.min(outdatedRecords,
+        Math.round((double) sampleSize * outdatedLength / Math.max(1, totalLength)));
+    final Map<String, List<Point>> samples = new HashMap<String, List<Point>>();
+    if (outdatedSampleSize > 0) {
+      Path[] outdatedPaths = new Path[outdatedFiles.size()];
+      for (int i = 0; i < outdatedPaths.length; i++)
+        outdatedPaths[i] = outdatedFiles.get(i).getPath();
+      OperationsParams sampleParams = new OperationsParams(params);
+      // Other sampling options of the caller would override the count
+      sampleParams.unset("ratio");
+      sampleParams.unset("size");
+      sampleParams.setInt("count", outdatedSampleSize);
+      sampleParams.setClass("outshape", Point.class, Shape.class);
+      Sampler.sampleByCount(outdatedPaths, new ResultCollector2<Path, Point>() {
+        @Override
+        public void collect(Path file, Point p) {
+          List<Point> sample = samples.get(file.getName());
+          if (sample == null)
+            samples.put(file.getName(), sample = new ArrayList<Point>());
+          sample.add(p.clone());
+        }
+      }, sampleParams);
+    }
+    for (FileStatus outdatedFile : outdatedFiles) {
+      Partition p = partitionsByName.get(outdatedFile.getPath().getName());
+      if (p == null) {
+        // A file with no records
+        p = new Partition();
+        p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+      }
+      List<Point> sample = samples.get(outdatedFile.getPath().getName());
+      stats.addFile(outdatedFile, p, sample == null ? new ArrayList<Point>() : sample);
+    }
+    int histogramSize = params.getInt(DatasetStats.HistogramSize, 64);
+    stats.computeHistogram(histogramSize, histogramSize);
+    stats.write(fs, path);
+    updateMasterFile(fs, path, stats);
+    return stats;
+  }
+
+  /**
+   * Writes the MBR of each file in a directory to a master file so that the
+   * directory can be used as if it were globally indexed.
+   * @param fs
+   * @param dir
+   * @param partitions
+   */
+  private static void writeMasterFile(FileSystem fs, Path dir,
+      Iterable<Partition> partitions) {
+    try {
+      PrintStream gout = new PrintStream(fs.create(new Path(dir, "_master.heap"), true));
+      Text text = new Text();
+      for (Partition partition : partitions) {
+        if (partition.recordCount == 0)
+          continue;
+        text.clear();
+        gout.println(partition.toText(text));
+      }
+      gout.close();
+    } catch (IOException e) {
+      // This might happen of the input directory is read only
+      LOG.info("Error caching the output of FileMBR");
+    }
+  }
+
+  /**
+   * Rewrites the master file cached in a directory, if any, to reflect files
+   * that have been added or modified.
+   * @param fs
+   * @param dir
+   * @param stats
+   * @throws IOException
+   */
+  private static void updateMasterFile(FileSystem fs, Path dir, DatasetStats stats)
+      throws IOException {
+    if (!fs.getFileStatus(dir).isDir() || !fs.exists(new Path(dir, "_master.heap")))
+      return;
+    List<Partition> partitions = new ArrayList<Partition>();
+    for (DatasetStats.FileStats fileStats : stats.getFiles()) {
+      Partition partition = fileStats.partition.clone();
+      partition.cellId = Math.abs(new Text(partition.filename).hashCode());
+      partitions.add(partition);
+    }
+    writeMasterFile(fs, dir, partitions);
+  }
+
   public static Partition fileMBR(Path file, OperationsParams params) throws IOException, InterruptedException {
     return fileMBR(new Path[] {file}, params);
   }
   
+  /**
+   * Computes the MBR of the given files. The answer is taken from the global
+   * index of indexed files or from the up to date statistics of non-indexed
+   * ones. Statistics are computed and stored only if the parameter
+   * {@link DatasetStats#Collect} is set. The returned partition also contains
+   * the total number of records and size of all files.
+   * @param files
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
   public static Partition fileMBR(Path[] files, OperationsParams params) throws IOException, InterruptedException {
-    Partition cachedMBR = fileMBRCached(files, params);
-    if (cachedMBR != null)
-      return cachedMBR;
-    if (!params.autoDetectShape()) {
-      LOG.error("shape of input files is not set and cannot be auto detected");
-      return null; 
+    Partition mbr = new Partition();
+    mbr.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+    List<Path> notCached = new ArrayList<Path>();
+    boolean collectStats = params.getBoolean(DatasetStats.Collect, false);
+    for (Path file : files) {
+      FileSystem inFs = file.getFileSystem(params);
+      // Statistics take precedence over the master file they keep up to date.
+      // A master file cached for a heap file does not have statistics.
+      boolean heapFile = !OperationsParams.isWildcard(file) &&
+          inFs.exists(new Path(file, "_master.heap"));
+      Partition cachedMBR = DatasetStats.exists(inFs, file) ||
+          (collectStats && heapFile) ? null : fileMBRCached(file, params);
+      if (cachedMBR != null)
+        mbr.expand(cachedMBR);
+      else
+        notCached.add(file);
     }
-    
-    // Process with MapReduce
-    return fileMBRMapReduce(files, params);
+    if (!notCached.isEmpty()) {
+      if (!params.autoDetectShape()) {
+        LOG.error("shape of input files is not set and cannot be auto detected");
+        return null; 
+      }
+      if (params.getBoolean("background", false)) {
+        // Process with MapReduce
+        return fileMBRMapReduce(notCached.toArray(new Path[notCached.size()]), params, null);
+      }
+      for (Path file : notCached) {
+        DatasetStats stats = null;
+        if (!OperationsParams.isWildcard(file)) {
+          // Statistics are only written to the input when explicitly asked
+          stats = collectStats ? datasetStats(file, params) :
+            DatasetStats.readUpToDate(params, file);
+        }
+        if (stats != null)
+          mbr.expand(stats.getMBR());
+        else
+          mbr.expand(fileMBRCompute(new Path[] {file}, params, null));
+      }
+    }
+    sizeOfLastProcessedFile = mbr.size;
+    return mbr;
   }
 
   private static void printUsage() {
@@ -320,6 +653,7 @@ public class FileMBR {
     System.out.println("Parameters: (* marks required parameters)");
     System.out.println("<input file>: (*) Path to input file");
     System.out.println("shape:<input shape>: (*) Input file format");
+    System.out.println("-stats: Compute and store statistics of the input to be reused later");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
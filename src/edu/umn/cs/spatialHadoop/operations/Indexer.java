@@ -44,6 +44,7 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.DatasetStats;
 import edu.umn.cs.spatialHadoop.core.GridPartitioner;
 import edu.umn.cs.spatialHadoop.core.HilbertCurvePartitioner;
 import edu.umn.cs.spatialHadoop.core.KdTreePartitioner;
@@ -63,6 +64,7 @@ import edu.umn.cs.spatialHadoop.mapred.IndexOutputFormat;
 import edu.umn.cs.spatialHadoop.mapred.IndexOutputFormat.IndexRecordWriter;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterInputFormat;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * @author Ahmed Eldawy
@@ -110,6 +112,8 @@ public class Indexer {
      * it to only one partition
      */
     private boolean replicate;
+    /**IDs of the partitions overlapping the current shape*/
+    private IntArray overlappingPartitions = new IntArray();
 
     @Override
     public void configure(JobConf job) {
@@ -126,17 +130,15 @@ public class Indexer {
       int i = 0;
       for (final Shape shape : shapes) {
         if (replicate) {
-          partitioner.overlapPartitions(shape, new ResultCollector<Integer>() {
-            @Override
-            public void collect(Integer r) {
-              partitionID.set(r);
-              try {
-                output.collect(partitionID, shape);
-              } catch (IOException e) {
-                LOG.warn("Error checking overlapping partitions", e);
-              }
+          Rectangle shapeMBR = shape.getMBR();
+          if (shapeMBR != null) {
+            overlappingPartitions.clear();
+            partitioner.overlapPartitions(shapeMBR, overlappingPartitions);
+            for (int iPartition = 0; iPartition < overlappingPartitions.size(); iPartition++) {
+              partitionID.set(overlappingPartitions.get(iPartition));
+              output.collect(partitionID, shape);
             }
-          });
+          }
         } else {
           partitionID.set(partitioner.overlapPartition(shape));
           if (partitionID.get() >= 0)
@@ -300,10 +302,21 @@ public class Indexer {
       
       long t1 = System.currentTimeMillis();
       final Rectangle inMBR = (Rectangle) OperationsParams.getShape(job, "mbr");
-      // Determine number of partitions
+      // Determine number of partitions. Use the statistics of the input, if
+      // stored, for the exact size of records even if files are compressed
+      DatasetStats[] inStats = new DatasetStats[ins.length];
       long inSize = 0;
-      for (Path in : ins) {
-        inSize += FileUtil.getPathSize(in.getFileSystem(job), in);
+      long inRecordCount = 0;
+      boolean allStatsAvailable = true;
+      for (int i = 0; i < ins.length; i++) {
+        inStats[i] = DatasetStats.readUpToDate(job, ins[i]);
+        if (inStats[i] != null) {
+          inSize += inStats[i].getTotalSize();
+          inRecordCount += inStats[i].getRecordCount();
+        } else {
+          inSize += FileUtil.getPathSize(ins[i].getFileSystem(job), ins[i]);
+          allStatsAvailable = false;
+        }
       }
       long estimatedOutSize = (long) (inSize * (1.0 + job.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.1f)));
       FileSystem outFS = out.getFileSystem(job);
@@ -315,18 +328,39 @@ public class Indexer {
       float sample_ratio = job.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
       long sample_size = job.getLong(SpatialSite.SAMPLE_SIZE, 100 * 1024 * 1024);
 
-      LOG.info("Reading a sample of "+(int)Math.round(sample_ratio*100) + "%");
-      ResultCollector<Point> resultCollector = new ResultCollector<Point>(){
-        @Override
-        public void collect(Point p) {
-          sample.add(p.clone());
+      // The sample stored in the statistics is used instead of reading a new
+      // one if it is at least as large as the sample that would be read
+      boolean useStoredSample = allStatsAvailable && inRecordCount > 0;
+      long storedSampleCount = 0;
+      if (useStoredSample) {
+        storedSampleCount = (long) Math.min(inRecordCount * (double) sample_ratio,
+            sample_size / ((double) inSize / inRecordCount));
+        for (DatasetStats stats : inStats) {
+          long count = Math.round((double) storedSampleCount * stats.getRecordCount() / inRecordCount);
+          if (stats.getSampleSize() < count)
+            useStoredSample = false;
+        }
+      }
+      if (useStoredSample) {
+        LOG.info("Using a sample of "+storedSampleCount+" records from the stored statistics");
+        for (DatasetStats stats : inStats) {
+          int count = (int) Math.round((double) storedSampleCount * stats.getRecordCount() / inRecordCount);
+          sample.addAll(stats.getSample(count, job.getLong("seed", System.currentTimeMillis())));
         }
-      };
-      OperationsParams params2 = new OperationsParams(job);
-      params2.setFloat("ratio", sample_ratio);
-      params2.setLong("size", sample_size);
-      params2.setClass("outshape", Point.class, Shape.class);
-      Sampler.sample(ins, resultCollector, params2);
+      } else {
+        LOG.info("Reading a sample of "+(int)Math.round(sample_ratio*100) + "%");
+        ResultCollector<Point> resultCollector = new ResultCollector<Point>(){
+          @Override
+          public void collect(Point p) {
+            sample.add(p.clone());
+          }
+        };
+        OperationsParams params2 = new OperationsParams(job);
+        params2.setFloat("ratio", sample_ratio);
+        params2.setLong("size", sample_size);
+        params2.setClass("outshape", Point.class, Shape.class);
+        Sampler.sample(ins, resultCollector, params2);
+      }
       long t2 = System.currentTimeMillis();
       System.out.println("Total time for sampling in millis: "+(t2-t1));
       LOG.info("Finished reading a sample of "+sample.size()+" records");
@@ -384,18 +418,17 @@ public class Indexer {
       while (reader.next(partitionMBR, shapes)) {
         if (replicate) {
           // Replicate each shape to all overlapping partitions
+          IntArray overlappingPartitions = new IntArray();
           for (final Shape s : shapes) {
-            partitioner.overlapPartitions(s, new ResultCollector<Integer>() {
-              @Override
-              public void collect(Integer id) {
-                partitionID.set(id);
-                try {
-                  recordWriter.write(partitionID, s);
-                } catch (IOException e) {
-                  throw new RuntimeException(e);
-                }
-              }
-            });
+            Rectangle shapeMBR = s.getMBR();
+            if (shapeMBR == null)
+              continue;
+            overlappingPartitions.clear();
+            partitioner.overlapPartitions(shapeMBR, overlappingPartitions);
+            for (int iPartition = 0; iPartition < overlappingPartitions.size(); iPartition++) {
+              partitionID.set(overlappingPartitions.get(iPartition));
+              recordWriter.write(partitionID, s);
+            }
           }
         } else {
           for (Shape s : shapes) {
@@ -0,0 +1,267 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.core.DatasetStats;
+import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * A cost-based planner that chooses an algorithm for a binary spatial join.
+ * It reads the sizes and record counts of partitions from the global indexes
+ * of the inputs (or their statistics if not indexed) and estimates the cost
+ * of each algorithm as the number of bytes it reads and moves plus a fixed
+ * cost per processed record. To account for skew, the cost of the largest
+ * task is added to each estimate as it delays the whole job.
+ * @author Ahmed Eldawy
+ *
+ */
+public class JoinPlanner {
+  private static final Log LOG = LogFactory.getLog(JoinPlanner.class);
+
+  /**Configuration key for the maximum size of a file to be broadcast*/
+  public static final String BroadcastThreshold = "JoinPlanner.BroadcastThreshold";
+
+  /**Cost of processing one record in the join relative to reading one byte*/
+  private static final long RecordCost = 64;
+
+  /**Fixed cost of running an additional MapReduce job, e.g., for repartitioning*/
+  private static final long JobOverhead = 64 * 1024 * 1024;
+
+  /**The join algorithms considered by the planner*/
+  public enum Algorithm {
+    /**Partition both files on the fly using a uniform grid*/
+    SJMR,
+    /**Join every pair of overlapping partitions (or blocks) directly*/
+    DistributedJoin,
+    /**Repartition one file to match the other then join partition pairs*/
+    RepartitionJoin,
+    /**Load the small file in memory in every map task of the large file*/
+    Broadcast,
+  };
+
+  /**
+   * Statistics of one input file collected for planning
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class InputInfo {
+    /**Path of the file*/
+    public Path path;
+    /**The global index or null if the file is not indexed*/
+    public GlobalIndex<Partition> gindex;
+    /**Total size in bytes*/
+    public long size;
+    /**Total number of records or zero if unknown*/
+    public long recordCount;
+    /**Number of map tasks needed to scan the file*/
+    public int numSplits;
+    /**Largest amount of work in one partition of the file*/
+    public long maxPartitionWork;
+
+    /**Work needed to process a partition of this file*/
+    long work(Partition p) {
+      return p.size + RecordCost * p.recordCount;
+    }
+
+    /**Total work needed to process the whole file*/
+    long work() {
+      return size + RecordCost * recordCount;
+    }
+  }
+
+  /**
+   * A plan chosen for the join along with its estimated cost
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class JoinPlan {
+    /**The algorithm to use*/
+    public Algorithm algorithm;
+    /**Index of the file to repartition or broadcast, -1 if not applicable*/
+    public int file;
+    /**Estimated cost in bytes-equivalent*/
+    public long cost;
+
+    public JoinPlan(Algorithm algorithm, int file, long cost) {
+      this.algorithm = algorithm;
+      this.file = file;
+      this.cost = cost;
+    }
+
+    @Override
+    public String toString() {
+      String str = algorithm.toString();
+      if (file != -1)
+        str += (algorithm == Algorithm.Broadcast ? " broadcasting" : " repartitioning")
+            + " file #" + file;
+      return str + " with estimated cost " + cost;
+    }
+  }
+
+  /**Enforce static only calls*/
+  private JoinPlanner() {}
+
+  /**
+   * Collects the statistics of a file needed for planning. For indexed files,
+   * all statistics come from the global index without accessing data files.
+   * @param file
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static InputInfo getInputInfo(Path file, Configuration conf) throws IOException {
+    FileSystem fs = file.getFileSystem(conf);
+    InputInfo info = new InputInfo();
+    info.path = file;
+    info.gindex = SpatialSite.getGlobalIndex(fs, file);
+    if (info.gindex != null) {
+      for (Partition p : info.gindex) {
+        info.size += p.size;
+        info.recordCount += p.recordCount;
+      }
+      if (info.size == 0) {
+        // An old index with no partition sizes. Distribute the total size
+        // over partitions based on their record counts
+        long totalSize = fs.getContentSummary(file).getLength();
+        for (Partition p : info.gindex)
+          p.size = info.recordCount > 0 ? totalSize * p.recordCount / info.recordCount
+              : totalSize / info.gindex.size();
+        info.size = totalSize;
+      }
+      info.numSplits = info.gindex.size();
+      for (Partition p : info.gindex)
+        info.maxPartitionWork = Math.max(info.maxPartitionWork, info.work(p));
+    } else {
+      info.size = fs.getContentSummary(file).getLength();
+      DatasetStats stats = DatasetStats.read(fs, file);
+      if (stats != null)
+        info.recordCount = stats.getRecordCount();
+      long blockSize = fs.getDefaultBlockSize(file);
+      info.numSplits = (int) Math.max(1, (info.size + blockSize - 1) / blockSize);
+      info.maxPartitionWork = info.work() / info.numSplits;
+    }
+    return info;
+  }
+
+  /**
+   * Estimates the cost of all applicable algorithms to join the given two
+   * files. The returned plans are sorted by their estimated cost.
+   * @param files
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static JoinPlan[] estimatePlans(Path[] files, Configuration conf) throws IOException {
+    final InputInfo[] inputs = new InputInfo[files.length];
+    for (int i = 0; i < files.length; i++)
+      inputs[i] = getInputInfo(files[i], conf);
+    Vector<JoinPlan> plans = new Vector<JoinPlan>();
+
+    // SJMR reads both files, shuffles them and reads them again in reducers
+    long work0 = inputs[0].work(), work1 = inputs[1].work();
+    plans.add(new JoinPlan(Algorithm.SJMR, -1,
+        3 * (inputs[0].size + inputs[1].size) + work0 + work1));
+
+    // Distributed join processes all pairs of overlapping partitions
+    if (inputs[0].gindex != null && inputs[1].gindex != null) {
+      final long[] pairsWork = new long[2]; // Total and maximum
+      GlobalIndex.spatialJoin(inputs[0].gindex, inputs[1].gindex,
+          new ResultCollector2<Partition, Partition>() {
+        @Override
+        public void collect(Partition r, Partition s) {
+          Rectangle intersection = r.getIntersection(s);
+          if (intersection == null || intersection.getWidth() * intersection.getHeight() <= 0)
+            return; // Skipped by the distributed join filter
+          long pairWork = inputs[0].work(r) + inputs[1].work(s);
+          pairsWork[0] += pairWork;
+          pairsWork[1] = Math.max(pairsWork[1], pairWork);
+        }
+      });
+      plans.add(new JoinPlan(Algorithm.DistributedJoin, -1, pairsWork[0] + pairsWork[1]));
+    } else {
+      // Every split in one file is joined with every split in the other file
+      long totalWork = work0 * inputs[1].numSplits + work1 * inputs[0].numSplits;
+      plans.add(new JoinPlan(Algorithm.DistributedJoin, -1,
+          totalWork + inputs[0].maxPartitionWork + inputs[1].maxPartitionWork));
+    }
+
+    // Repartition one file to match the index of the other file. The
+    // repartitioned file is read, shuffled and written then both are read
+    for (int i = 0; i < 2; i++) {
+      InputInfo repartitioned = inputs[i], target = inputs[1 - i];
+      if (target.gindex == null)
+        continue;
+      long cost = JobOverhead + 3 * repartitioned.size + repartitioned.work() + target.work();
+      // The largest partition of the target is joined with its share of the
+      // repartitioned file
+      double share = target.work() == 0 ? 0 : (double) repartitioned.work() / target.work();
+      cost += (long) (target.maxPartitionWork * (1 + share));
+      plans.add(new JoinPlan(Algorithm.RepartitionJoin, i, cost));
+    }
+
+    // Broadcast the small file to all map tasks of the large file
+    long broadcastThreshold = conf.getLong(BroadcastThreshold, 32 * 1024 * 1024);
+    for (int i = 0; i < 2; i++) {
+      InputInfo small = inputs[i], large = inputs[1 - i];
+      if (small.size > broadcastThreshold || small.size > large.size)
+        continue;
+      long cost = large.work() + small.work() * large.numSplits
+          + large.maxPartitionWork + small.work();
+      plans.add(new JoinPlan(Algorithm.Broadcast, i, cost));
+    }
+
+    JoinPlan[] sortedPlans = plans.toArray(new JoinPlan[plans.size()]);
+    Arrays.sort(sortedPlans, new Comparator<JoinPlan>() {
+      @Override
+      public int compare(JoinPlan p1, JoinPlan p2) {
+        return p1.cost < p2.cost ? -1 : (p1.cost > p2.cost ? 1 : 0);
+      }
+    });
+    for (JoinPlan plan : sortedPlans)
+      LOG.info("Join plan: " + plan);
+    return sortedPlans;
+  }
+
+  /**
+   * Returns the cheapest plan to join the given two files among the given
+   * algorithms.
+   * @param files
+   * @param conf
+   * @param algorithms the algorithms that can be used
+   * @return
+   * @throws IOException
+   */
+  public static JoinPlan plan(Path[] files, Configuration conf,
+      Algorithm ... algorithms) throws IOException {
+    for (JoinPlan plan : estimatePlans(files, conf)) {
+      for (Algorithm algorithm : algorithms) {
+        if (plan.algorithm == algorithm) {
+          LOG.info("Chosen join plan: " + plan);
+          return plan;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -19,6 +19,9 @@ import edu.umn.cs.spatialHadoop.nasa.HDFToText;
 import edu.umn.cs.spatialHadoop.nasa.MultiHDFPlot;
 import edu.umn.cs.spatialHadoop.nasa.ShahedServer;
 import edu.umn.cs.spatialHadoop.nasa.SpatioAggregateQueries;
+import edu.umn.cs.spatialHadoop.osm.OSMExtractor;
+import edu.umn.cs.spatialHadoop.temporal.SpatioTemporalIndexer;
+import edu.umn.cs.spatialHadoop.temporal.SpatioTemporalRangeQuery;
 
 /**
  * The main entry point to all queries.
@@ -51,7 +54,11 @@ public class Main {
       pgd.addClass("sjmr", SJMR.class,
           "Computes the spatial join between two input files using the " +
           "SJMR algorithm");
-      
+
+      pgd.addClass("bjoin", BroadcastJoin.class,
+          "Computes the spatial join between a small file and a large file " +
+          "by broadcasting the small file");
+
       pgd.addClass("index", Repartition.class,
           "Builds an index on an input file");
 
@@ -112,6 +119,15 @@ public class Main {
       pgd.addClass("shahedindexer", AggregateQuadTree.class,
           "Creates a multilevel spatio-temporal indexer for NASA data");
       
+      pgd.addClass("osmx", OSMExtractor.class,
+          "Extracts points, ways and road edges from an OSM XML file");
+      
+      pgd.addClass("stindex", SpatioTemporalIndexer.class,
+          "Builds a hierarchical spatio-temporal index for timestamped shapes");
+      
+      pgd.addClass("strangequery", SpatioTemporalRangeQuery.class,
+          "Runs a spatio-temporal range query on an index built by stindex");
+      
       pgd.driver(args);
       
       // Success
@@ -9,8 +9,16 @@
 package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,9 +50,6 @@ import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
-import edu.umn.cs.spatialHadoop.util.Parallel;
-import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
-import edu.umn.cs.spatialHadoop.util.ResultCollectorSynchronizer;
 
 /**
  * Performs a range query over a spatial file.
@@ -105,13 +110,43 @@ public class RangeQuery {
     return job;
   }
   
+  /**
+   * Counters of reading one split in a local range query.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class SplitCounters {
+    /**The split these counters belong to*/
+    public FileSplit split;
+    /**Number of bytes read from the split*/
+    public long bytesRead;
+    /**Number of results found in the split*/
+    public long resultCount;
+    /**Time spent reading the split in milliseconds*/
+    public long time;
+    /**Whether the whole split was read or reading stopped early*/
+    public boolean complete;
+
+    @Override
+    public String toString() {
+      return split.getPath().getName()+"["+split.getStart()+"+"+split.getLength()+
+          "] read "+bytesRead+" bytes, "+resultCount+" results in "+time+" millis"+
+          (complete ? "" : " (stopped early)");
+    }
+  }
+
+  /**Number of results passed at once from a reader to the consumer*/
+  private static final int ResultBatchSize = 100;
+
+  /**Marks the end of the results of one reader thread in the queue*/
+  private static final Object EndOfReader = new Object();
+
   /**
    * Runs a range query on the local machine (no MapReduce) and the output is
-   * streamed to the provided result collector. The query might run in parallel
-   * which makes it necessary to design the result collector to accept parallel
-   * calls to the method {@link ResultCollector#collect(Object)}.
-   * You can use {@link ResultCollectorSynchronizer} to synchronize calls to
-   * your ResultCollector if you cannot design yours to be thread safe.
+   * streamed to the provided result collector. Splits are read in parallel
+   * and all results are passed to the collector from the calling thread
+   * so the collector does not need to be thread safe. The number of results
+   * can be limited by setting the parameter 'limit'.
    * @param inFile
    * @param params
    * @param output
@@ -122,6 +157,36 @@ public class RangeQuery {
   public static <S extends Shape> long rangeQueryLocal(Path inPath,
       final Shape queryRange, final S shape,
       final OperationsParams params, final ResultCollector<S> output) throws IOException, InterruptedException {
+    return rangeQueryLocal(inPath, queryRange, shape, params, output,
+        params.getLong("limit", -1), null);
+  }
+
+  /**
+   * Runs a range query on the local machine (no MapReduce). A fixed number of
+   * reader threads take the next unprocessed split whenever they are done
+   * with one and pass the results through a bounded queue to the calling
+   * thread which streams them to the provided result collector. Once the
+   * given limit is reached, the remaining splits are skipped and the readers
+   * are stopped. If reading any split fails, the query is stopped and the
+   * error is thrown.
+   * @param inPath
+   * @param queryRange
+   * @param shape
+   * @param params
+   * @param output
+   * @param limit maximum number of results to return or a non-positive
+   *  number to return all results
+   * @param splitCounters if not null, the counters of each split that was
+   *  read are added to it
+   * @return number of results passed to the output
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  @SuppressWarnings("unchecked")
+  public static <S extends Shape> long rangeQueryLocal(Path inPath,
+      final Shape queryRange, final S shape,
+      final OperationsParams params, final ResultCollector<S> output,
+      final long limit, List<SplitCounters> splitCounters) throws IOException, InterruptedException {
     // Set MBR of query shape in job configuration to work with the spatial filter
     OperationsParams.setShape(params, SpatialInputFormat3.InputQueryRange, queryRange.getMBR());
     // 1- Split the input path/file to get splits that can be processed independently
@@ -130,48 +195,177 @@ public class RangeQuery {
     Job job = Job.getInstance(params);
     SpatialInputFormat3.setInputPaths(job, inPath);
     final List<InputSplit> splits = inputFormat.getSplits(job);
-    
-    // 2- Process splits in parallel
-    Vector<Long> results = Parallel.forEach(splits.size(), new RunnableRange<Long>() {
-      @Override
-      public Long run(int i1, int i2) {
-        long results = 0;
-        for (int i = i1; i < i2; i++) {
+    if (splits.isEmpty())
+      return 0;
+
+    // 2- Start reader threads that process the splits in turn
+    final AtomicInteger nextSplit = new AtomicInteger();
+    final AtomicBoolean stopped = new AtomicBoolean();
+    // Number of results counted by the readers when there is no output
+    final AtomicLong countedResults = new AtomicLong();
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(
+        params.getInt("queuesize", 64));
+    final SplitCounters[] counters = new SplitCounters[splits.size()];
+    Thread[] readers = new Thread[Math.min(splits.size(),
+        Runtime.getRuntime().availableProcessors())];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread("RangeQuery reader "+t) {
+        @Override
+        public void run() {
           try {
-            FileSplit fsplit = (FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<S>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
+            int i;
+            while (!isStopped() && (i = nextSplit.getAndIncrement()) < splits.size()) {
+              counters[i] = new SplitCounters();
+              readSplit((FileSplit) splits.get(i), counters[i]);
+            }
+            put(EndOfReader);
+          } catch (InterruptedException e) {
+            // Stopped by the consumer
+          } catch (Throwable e) {
+            try {
+              put(e);
+            } catch (InterruptedException e1) {
+              // Stopped by the consumer
             }
-            while (reader.nextKeyValue()) {
-              Iterable<S> shapes = reader.getCurrentValue();
-              for (Shape s : shapes) {
-                results++;
-                if (output != null)
-                  output.collect((S) s);
+          }
+        }
+
+        /**
+         * Whether the consumer stopped the query or, when only counting, the
+         * limit is reached
+         */
+        private boolean isStopped() {
+          return stopped.get() ||
+              (output == null && limit > 0 && countedResults.get() >= limit);
+        }
+
+        /**
+         * Adds an item to the queue. Never blocks after the query is stopped
+         * as the consumer no longer takes items from the queue.
+         * @return whether the item was added
+         */
+        private boolean put(Object item) throws InterruptedException {
+          while (!stopped.get()) {
+            if (queue.offer(item, 100, TimeUnit.MILLISECONDS))
+              return true;
+          }
+          return false;
+        }
+
+        private void readSplit(FileSplit fsplit, SplitCounters splitCounters)
+            throws IOException, InterruptedException {
+          long t1 = System.currentTimeMillis();
+          splitCounters.split = fsplit;
+          final RecordReader<Rectangle, Iterable<S>> reader =
+              inputFormat.createRecordReader(fsplit, null);
+          if (reader instanceof SpatialRecordReader3) {
+            ((SpatialRecordReader3)reader).initialize(fsplit, params);
+          } else if (reader instanceof RTreeRecordReader3) {
+            ((RTreeRecordReader3)reader).initialize(fsplit, params);
+          } else if (reader instanceof HDFRecordReader) {
+            ((HDFRecordReader)reader).initialize(fsplit, params);
+          } else {
+            throw new RuntimeException("Unknown record reader");
+          }
+          try {
+            if (output == null) {
+              // Only count the results without copying or passing them
+              while (!isStopped() && reader.nextKeyValue()) {
+                long count = 0;
+                for (Iterator<S> i = reader.getCurrentValue().iterator(); i.hasNext(); i.next())
+                  count++;
+                splitCounters.resultCount += count;
+                countedResults.addAndGet(count);
+              }
+            } else {
+              List<S> batch = new ArrayList<S>(ResultBatchSize);
+              while (!stopped.get() && reader.nextKeyValue()) {
+                for (S s : reader.getCurrentValue()) {
+                  // Shapes are reused by the reader and need to be copied
+                  batch.add((S) s.clone());
+                  splitCounters.resultCount++;
+                  if (batch.size() == ResultBatchSize) {
+                    if (!put(batch))
+                      break;
+                    batch = new ArrayList<S>(ResultBatchSize);
+                  }
+                }
               }
+              if (!batch.isEmpty())
+                put(batch);
             }
+            splitCounters.complete = !isStopped();
+          } finally {
+            splitCounters.bytesRead = (long) (reader.getProgress() * fsplit.getLength());
             reader.close();
-          } catch (IOException e) {
-            LOG.error("Error processing split "+splits.get(i), e);
-          } catch (InterruptedException e) {
-            LOG.error("Error processing split "+splits.get(i), e);
+            splitCounters.time = System.currentTimeMillis() - t1;
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    // 3- Stream the results to the output until all readers are done or the
+    // limit is reached
+    long resultCount = 0;
+    int finishedReaders = 0;
+    Throwable error = null;
+    try {
+      while (finishedReaders < readers.length && error == null &&
+          (limit <= 0 || resultCount < limit)) {
+        Object item = queue.take();
+        if (item == EndOfReader) {
+          finishedReaders++;
+        } else if (item instanceof Throwable) {
+          error = (Throwable) item;
+        } else {
+          for (S s : (List<S>) item) {
+            if (limit > 0 && resultCount >= limit)
+              break;
+            if (output != null)
+              output.collect(s);
+            resultCount++;
           }
         }
-        return results;
       }
-    });
-    long totalResultSize = 0;
-    for (long result : results)
-      totalResultSize += result;
-    return totalResultSize;
+    } finally {
+      // Stop all readers that are still running
+      stopped.set(true);
+      for (Thread reader : readers)
+        reader.interrupt();
+      // Drain the queue so that no reader stays blocked on a full queue
+      for (Thread reader : readers) {
+        while (reader.isAlive()) {
+          queue.clear();
+          reader.join(100);
+        }
+      }
+    }
+    if (output == null) {
+      resultCount = countedResults.get();
+      if (limit > 0 && resultCount > limit)
+        resultCount = limit;
+    }
+
+    long totalBytes = 0;
+    int splitsRead = 0;
+    for (SplitCounters splitCounter : counters) {
+      if (splitCounter == null || splitCounter.split == null)
+        continue;
+      splitsRead++;
+      totalBytes += splitCounter.bytesRead;
+      LOG.debug(splitCounter);
+      if (splitCounters != null)
+        splitCounters.add(splitCounter);
+    }
+    LOG.info("Read "+totalBytes+" bytes from "+splitsRead+" out of "+
+        splits.size()+" splits and returned "+resultCount+" results");
+    if (error != null) {
+      if (error instanceof IOException)
+        throw (IOException) error;
+      throw new IOException("Error running range query on "+inPath, error);
+    }
+    return resultCount;
   }
   
   private static void printUsage() {
@@ -180,6 +374,7 @@ public class RangeQuery {
     System.out.println("<input file> - (*) Path to input file");
     System.out.println("<output file> - Path to output file");
     System.out.println("rect:<x1,y1,x2,y2> - (*) Query rectangle");
+    System.out.println("limit:<n> - Return at most n results (local processing only)");
     System.out.println("-overwrite - Overwrite output file without notice");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
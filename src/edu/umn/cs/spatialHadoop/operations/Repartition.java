@@ -40,6 +40,7 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellIndex;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.GridInfo;
@@ -58,6 +59,7 @@ import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat;
 import edu.umn.cs.spatialHadoop.mapred.RTreeGridOutputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * Creates an index on an input file
@@ -76,6 +78,12 @@ public class Repartition {
       implements Mapper<Rectangle, T, IntWritable, T> {
     /**List of cells used by the mapper*/
     private CellInfo[] cellInfos;
+
+    /**Finds the cells overlapping each shape*/
+    private CellIndex cellIndex;
+
+    /**Positions of the cells overlapping the current shape*/
+    private IntArray overlappingCells = new IntArray();
     
     /**Used to output intermediate records*/
     private IntWritable cellId = new IntWritable();
@@ -84,6 +92,7 @@ public class Repartition {
     public void configure(JobConf job) {
       try {
         cellInfos = SpatialSite.getCells(job);
+        cellIndex = new CellIndex(cellInfos);
         super.configure(job);
       } catch (IOException e) {
         e.printStackTrace();
@@ -108,11 +117,11 @@ public class Repartition {
       // This ensures that a replicated shape in an already partitioned file
       // doesn't get send to output from all partitions
       if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
-        for (int cellIndex = 0; cellIndex < cellInfos.length; cellIndex++) {
-          if (cellInfos[cellIndex].isIntersected(shape_mbr)) {
-            cellId.set((int) cellInfos[cellIndex].cellId);
-            output.collect(cellId, shape);
-          }
+        overlappingCells.clear();
+        cellIndex.search(shape_mbr, overlappingCells);
+        for (int i = 0; i < overlappingCells.size(); i++) {
+          cellId.set((int) cellInfos[overlappingCells.get(i)].cellId);
+          output.collect(cellId, shape);
         }
       }
     }
@@ -127,6 +136,12 @@ public class Repartition {
       implements Mapper<Rectangle, T, IntWritable, T> {
     /**List of cells used by the mapper*/
     private CellInfo[] cellInfos;
+
+    /**Finds the cells overlapping each shape*/
+    private CellIndex cellIndex;
+
+    /**Positions of the cells overlapping the current shape*/
+    private IntArray overlappingCells = new IntArray();
     
     /**Used to output intermediate records*/
     private IntWritable cellId = new IntWritable();
@@ -135,6 +150,7 @@ public class Repartition {
     public void configure(JobConf job) {
       try {
         cellInfos = SpatialSite.getCells(job);
+        cellIndex = new CellIndex(cellInfos);
         super.configure(job);
       } catch (IOException e) {
         throw new RuntimeException("Error loading cells", e);
@@ -155,22 +171,12 @@ public class Repartition {
       Rectangle shape_mbr = shape.getMBR();
       if (shape_mbr == null)
         return;
-      double maxOverlap = -1.0;
       int bestCell = -1;
       // Only send shape to output if its lowest corner lies in the cellMBR
       // This ensures that a replicated shape in an already partitioned file
       // doesn't get send to output from all partitions
       if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
-        for (int cellIndex = 0; cellIndex < cellInfos.length; cellIndex++) {
-          Rectangle overlap = cellInfos[cellIndex].getIntersection(shape_mbr);
-          if (overlap != null) {
-            double overlapArea = overlap.getWidth() * overlap.getHeight();
-            if (bestCell == -1 || overlapArea > maxOverlap) {
-              maxOverlap = overlapArea;
-              bestCell = cellIndex;
-            }
-          }
-        }
+        bestCell = cellIndex.searchMaxOverlap(shape_mbr, overlappingCells);
       }
       if (bestCell != -1) {
         cellId.set((int) cellInfos[bestCell].cellId);
@@ -11,6 +11,7 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
@@ -21,7 +22,8 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
@@ -33,6 +35,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
@@ -41,15 +44,21 @@ import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellIndex;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.GridInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
-import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.core.STRIndex;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.SerializedShape;
+import edu.umn.cs.spatialHadoop.io.TextSerializable;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * An implementation of Spatial Join MapReduce as described in
@@ -69,33 +78,116 @@ public class SJMR {
   public static final String PartitioiningGridParam = "partition-grid-factor";
   private static final String InactiveMode = "SJMR.InactiveMode";
   private static final String isFilterOnlyMode = "DJ.FilterOnlyMode";
-  private static final String JoiningThresholdPerOnce = "DJ.JoiningThresholdPerOnce";
   public static boolean isReduceInactive = false;
   public static boolean isSpatialJoinOutputRequired = true;
   public static boolean isFilterOnly = false;
-  public static int joiningThresholdPerOnce = 50000;
-  
+
+  /**The reducer assigned to each cell as a comma separated list*/
+  private static final String CellReducers = "SJMR.CellReducers";
+
+  /**A cell is split if its estimated load is more than this times the average*/
+  private static final double OverloadFactor = 2.0;
+
+  /**Maximum number of times an overloaded cell can be split*/
+  private static final int MaxSplitDepth = 16;
   
 
   
-  public static class IndexedText implements Writable {
+  /**
+   * The key of intermediate records which is the ID of the cell along with
+   * the index of the file. Records are sorted by file index within each cell
+   * so that the reducer receives all records of the first file before the
+   * records of the second file.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class CellKey implements WritableComparable<CellKey> {
+    public int cellId;
     public byte index;
-    public Text text;
-    
-    IndexedText() {
-      text = new Text();
+
+    static {
+      WritableComparator.define(CellKey.class, new CellKeyComparator());
     }
-    
+
     @Override
     public void write(DataOutput out) throws IOException {
+      out.writeInt(cellId);
       out.writeByte(index);
-      text.write(out);
     }
-    
+
     @Override
     public void readFields(DataInput in) throws IOException {
+      cellId = in.readInt();
       index = in.readByte();
-      text.readFields(in);
+    }
+
+    @Override
+    public int compareTo(CellKey o) {
+      if (this.cellId != o.cellId)
+        return this.cellId < o.cellId ? -1 : 1;
+      return this.index - o.index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof CellKey && compareTo((CellKey) obj) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return cellId;
+    }
+
+    @Override
+    public String toString() {
+      return cellId + "#" + index;
+    }
+  }
+
+  /**
+   * Compares serialized cell keys without deserializing them
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class CellKeyComparator extends WritableComparator {
+    public CellKeyComparator() {
+      super(CellKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int cellId1 = readInt(b1, s1);
+      int cellId2 = readInt(b2, s2);
+      if (cellId1 != cellId2)
+        return cellId1 < cellId2 ? -1 : 1;
+      return b1[s1 + 4] - b2[s2 + 4];
+    }
+  }
+
+  /**
+   * Groups all records of the same cell in one reduce call regardless of
+   * their file index
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class CellGroupingComparator extends WritableComparator {
+    public CellGroupingComparator() {
+      super(CellKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int cellId1 = readInt(b1, s1);
+      int cellId2 = readInt(b2, s2);
+      return cellId1 < cellId2 ? -1 : (cellId1 > cellId2 ? 1 : 0);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public int compare(WritableComparable a, WritableComparable b) {
+      int cellId1 = ((CellKey) a).cellId;
+      int cellId2 = ((CellKey) b).cellId;
+      return cellId1 < cellId2 ? -1 : (cellId1 > cellId2 ? 1 : 0);
     }
   }
   
@@ -136,19 +228,26 @@ public class SJMR {
    */
   public static class SJMRMap extends MapReduceBase
   implements
-  Mapper<Rectangle, Text, IntWritable, IndexedText> {
+  Mapper<Rectangle, Text, CellKey, SerializedShape> {
     private Shape shape;
-    private IndexedText outputValue = new IndexedText();
-    private GridInfo gridInfo;
-    private IntWritable cellId = new IntWritable();
+    private SerializedShape outputValue = new SerializedShape();
+    private CellInfo[] cells;
+    private CellIndex cellIndex;
+    private IntArray overlappingCells = new IntArray();
+    private CellKey cellKey = new CellKey();
     private Path[] inputFiles;
     private InputSplit currentSplit;
     
     @Override
     public void configure(JobConf job) {
       super.configure(job);
-      // Retrieve grid to use for partitioning
-      gridInfo = (GridInfo) OperationsParams.getShape(job, PartitionGrid);
+      // Retrieve cells to use for partitioning
+      try {
+        cells = SpatialSite.getCells(job);
+      } catch (IOException e) {
+        throw new RuntimeException("Error retrieving partitioning cells", e);
+      }
+      cellIndex = new CellIndex(cells);
       // Create a stock shape for deserializing lines
       shape = SpatialSite.createStockShape(job);
       // Get input paths to determine file index for every record
@@ -157,39 +256,65 @@ public class SJMR {
 
     @Override
     public void map(Rectangle cellMbr, Text value,
-        OutputCollector<IntWritable, IndexedText> output,
+        OutputCollector<CellKey, SerializedShape> output,
         Reporter reporter) throws IOException {
       if (reporter.getInputSplit() != currentSplit) {
       	FileSplit fsplit = (FileSplit) reporter.getInputSplit();
       	for (int i = 0; i < inputFiles.length; i++) {
       		if (fsplit.getPath().toString().startsWith(inputFiles[i].toString())) {
-      			outputValue.index = (byte) i;
+      			cellKey.index = (byte) i;
       		}
       	}
       	currentSplit = reporter.getInputSplit();
       }
       
-
-      Text tempText = new Text(value);
-      outputValue.text = value;
-      shape.fromText(tempText);
+      shape.fromText(value);
       Rectangle shape_mbr = shape.getMBR();
+      if (shape_mbr == null)
+        return;
       // Do a reference point technique to avoid processing the same record twice
       if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
-        Rectangle shapeMBR = shape.getMBR();
-        if (shapeMBR == null)
+        overlappingCells.clear();
+        cellIndex.search(shape_mbr, overlappingCells);
+        if (overlappingCells.size() == 0)
           return;
-
-        java.awt.Rectangle cells = gridInfo.getOverlappingCells(shapeMBR);
-        for (int col = cells.x; col < cells.x + cells.width; col++) {
-          for (int row = cells.y; row < cells.y + cells.height; row++) {
-            cellId.set(row * gridInfo.columns + col + 1);
-            output.collect(cellId, outputValue);
-          }
+        // Serialize once and send the same bytes to all overlapping cells
+        outputValue.set(cellKey.index, shape);
+        for (int i = 0; i < overlappingCells.size(); i++) {
+          cellKey.cellId = cells[overlappingCells.get(i)].cellId;
+          output.collect(cellKey, outputValue);
         }
       }
     }
   }
+
+  /**
+   * Sends each cell to the reducer assigned to it based on its estimated
+   * load. Falls back to hashing cell IDs if no assignment is configured.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class SJMRPartitioner implements Partitioner<CellKey, SerializedShape> {
+    /**The reducer of each cell indexed by cell ID - 1*/
+    private int[] cellReducers;
+
+    @Override
+    public void configure(JobConf job) {
+      String[] reducers = job.getStrings(CellReducers);
+      if (reducers != null) {
+        cellReducers = new int[reducers.length];
+        for (int i = 0; i < reducers.length; i++)
+          cellReducers[i] = Integer.parseInt(reducers[i]);
+      }
+    }
+
+    @Override
+    public int getPartition(CellKey key, SerializedShape value, int numPartitions) {
+      if (cellReducers != null && key.cellId <= cellReducers.length)
+        return cellReducers[key.cellId - 1] % numPartitions;
+      return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+  }
   
   public static class SelfSJMRReduce<S extends Shape> extends MapReduceBase implements
   Reducer<IntWritable, S, S, S> {
@@ -233,114 +358,234 @@ public class SJMR {
     }
   }
   
+  /**
+   * Joins the records of the two files in one cell. Records of the first file
+   * arrive first and are indexed by their MBRs as stored in the record
+   * headers. Records of the second file are then streamed and probed against
+   * that index. A shape is deserialized only if it is part of a candidate pair
+   * that passes the MBR filter and the duplicate avoidance test.
+   * @author Ahmed Eldawy
+   *
+   */
   public static class SJMRReduce<S extends Shape> extends MapReduceBase implements
-  Reducer<IntWritable, IndexedText, S, S> {
+  Reducer<CellKey, SerializedShape, S, S> {
 	 /**Class logger*/
 	 private static final Log sjmrReduceLOG = LogFactory.getLog(SJMRReduce.class);
 	  
-    /**Number of files in the input*/
-    private int inputFileCount;
-    
     /**List of cells used by the reducer*/
-    private GridInfo grid;
+    private CellInfo[] cells;
     private boolean inactiveMode;
 	private boolean isFilterOnly;
-	private int shapesThresholdPerOnce;
 	
     private S shape;
     
     @Override
     public void configure(JobConf job) {
       super.configure(job);
-      grid = (GridInfo) OperationsParams.getShape(job, PartitionGrid);
+      try {
+        cells = SpatialSite.getCells(job);
+      } catch (IOException e) {
+        throw new RuntimeException("Error retrieving partitioning cells", e);
+      }
       shape = (S) SpatialSite.createStockShape(job);
-      inputFileCount = FileInputFormat.getInputPaths(job).length;
       inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 	  isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
-	  shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
       sjmrReduceLOG.info("configured the reduced task");
     }
 
     @Override
-    public void reduce(IntWritable cellId, Iterator<IndexedText> values,
+    public void reduce(CellKey cellKey, Iterator<SerializedShape> values,
         final OutputCollector<S, S> output, Reporter reporter)
         throws IOException {
-     if(!inactiveMode){
- 	  LOG.info("Start reduce() logic now !!!"); 
-      long t1 = System.currentTimeMillis();	
-      
-      // Extract CellInfo (MBR) for duplicate avoidance checking
-      final CellInfo cellInfo = grid.getCell(cellId.get());
-      
-      // Partition retrieved shapes (values) into lists for each file
-      List<S>[] shapeLists = new List[inputFileCount];
-      for (int i = 0; i < shapeLists.length; i++) {
-        shapeLists[i] = new Vector<S>();
+      if (inactiveMode) {
+        LOG.info("Nothing to do !!!");
+        return;
       }
-      
+      long t1 = System.currentTimeMillis();
+
+      // Extract CellInfo (MBR) for duplicate avoidance checking
+      final CellInfo cellInfo = cells[cellKey.cellId - 1];
+
+      // Keep a copy of all records of the first file as values are reused
+      Vector<SerializedShape> rRecords = new Vector<SerializedShape>();
+      SerializedShape value = null;
       while (values.hasNext()) {
-    	int currNumOfShapes = 0;
-    	do{
-    		IndexedText t = values.next();
-            S s = (S) shape.clone();
-            s.fromText(t.text);
-            shapeLists[t.index].add(s);	
-			currNumOfShapes++;
-		} while(values.hasNext() && currNumOfShapes < shapesThresholdPerOnce);
-    	  
-    	// Perform spatial join between the two lists
-        sjmrReduceLOG.info("Joining (" + shapeLists[0].size() +" X "+ shapeLists[1].size()+ ")...");
-        if(isFilterOnly){
-            SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
-                @Override
-                public void collect(S x, S y) {
-                	if(isSpatialJoinOutputRequired){
-                		try {
-                            Rectangle intersectionMBR = x.getMBR().getIntersection(y.getMBR());
-                            // Error: intersectionMBR may be null.
-                            if (intersectionMBR != null) {
-                              if (cellInfo.contains(intersectionMBR.x1, intersectionMBR.y1)) {
-                                // Report to the reduce result collector
-                                output.collect(x, y);
-                              }
-                            }
-                          } catch (IOException e) {
-                            e.printStackTrace();
-                          }	
-                	}
-                }
-              }, reporter);  
-        }else{
-            SpatialAlgorithms.SpatialJoin_planeSweep(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
-                @Override
-                public void collect(S x, S y) {
-                	if(isSpatialJoinOutputRequired){
-                		try {
-                            Rectangle intersectionMBR = x.getMBR().getIntersection(y.getMBR());
-                            // Error: intersectionMBR may be null.
-                            if (intersectionMBR != null) {
-                              if (cellInfo.contains(intersectionMBR.x1, intersectionMBR.y1)) {
-                                // Report to the reduce result collector
-                                output.collect(x, y);
-                              }
-                            }
-                          } catch (IOException e) {
-                            e.printStackTrace();
-                          }	
-                	}
-                }
-              }, reporter);
-        
-      }  
-    }
-      
+        value = values.next();
+        if (value.index != 0)
+          break;
+        rRecords.add(value.copy());
+        value = null;
+      }
+      if (rRecords.isEmpty() || value == null)
+        return; // One of the two files has no records in this cell
+
+      Rectangle[] rMBRs = new Rectangle[rRecords.size()];
+      for (int i = 0; i < rMBRs.length; i++)
+        rMBRs[i] = rRecords.get(i).getMBR();
+      STRIndex<Rectangle> rIndex = new STRIndex<Rectangle>(rMBRs);
+      // Shapes of the first file deserialized so far
+      S[] rShapes = (S[]) new Shape[rMBRs.length];
+
+      IntArray candidates = new IntArray();
+      Rectangle sMBR = new Rectangle();
+      long numOfSRecords = 0, numOfCandidates = 0;
+      while (value != null) {
+        numOfSRecords++;
+        sMBR.set(value.x1, value.y1, value.x2, value.y2);
+        S s = null;
+        candidates.clear();
+        rIndex.search(sMBR, candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+          int iR = candidates.get(i);
+          Rectangle rMBR = rMBRs[iR];
+          if (!rMBR.isIntersected(sMBR))
+            continue;
+          // Perform a reference point duplicate avoidance technique
+          double refX = Math.max(rMBR.x1, sMBR.x1);
+          double refY = Math.max(rMBR.y1, sMBR.y1);
+          if (!cellInfo.contains(refX, refY))
+            continue;
+          numOfCandidates++;
+          if (isFilterOnly && !isSpatialJoinOutputRequired)
+            continue;
+          if (rShapes[iR] == null)
+            rShapes[iR] = rRecords.get(iR).getShape(shape);
+          if (s == null)
+            s = value.getShape(shape);
+          if ((isFilterOnly || rShapes[iR].isIntersected(s)) && isSpatialJoinOutputRequired)
+            output.collect(rShapes[iR], s);
+        }
+        if ((numOfSRecords & 0xfff) == 0)
+          reporter.progress();
+        value = values.hasNext() ? values.next() : null;
+      }
+
       long t2 = System.currentTimeMillis();
-      System.out.println("Reducer finished in: "+(t2-t1)+" millis");
+      sjmrReduceLOG.info("Joined (" + rRecords.size() + " X " + numOfSRecords
+          + ") with " + numOfCandidates + " candidate pairs in " + (t2 - t1) + " millis");
+    }
+  }
+
+  /**
+   * Creates the cells to partition the input by splitting the overloaded cells
+   * of a uniform grid. The load of a cell is estimated from a sample of each
+   * input where each sample point stands for the same number of bytes in its
+   * file. An overloaded cell is split recursively at the median of the sample
+   * points along its longer side (kd-split) until its load is within the
+   * capacity. As the sub-cells of a cell cover it completely without
+   * overlapping, the reference point technique still reports each result once.
+   * @param grid the uniform grid to start with
+   * @param xs coordinates of the sample points of all inputs
+   * @param ys
+   * @param weights estimated number of bytes represented by each sample point
+   * @param capacity maximum load of a cell
+   * @param cellLoads (output) the estimated load of each returned cell
+   * @return
+   */
+  static CellInfo[] createSkewAwareCells(GridInfo grid, double[] xs,
+      double[] ys, double[] weights, double capacity, List<Double> cellLoads) {
+    // Assign each sample point to the grid cell that contains it
+    IntArray[] pointsInCells = new IntArray[grid.columns * grid.rows];
+    for (int i = 0; i < xs.length; i++) {
+      int cellId = grid.getOverlappingCell(xs[i], ys[i]);
+      if (cellId == -1)
+        continue;
+      if (pointsInCells[cellId - 1] == null)
+        pointsInCells[cellId - 1] = new IntArray();
+      pointsInCells[cellId - 1].append(i);
+    }
+    List<CellInfo> cells = new Vector<CellInfo>();
+    for (CellInfo gridCell : grid.getAllCells()) {
+      IntArray points = pointsInCells[gridCell.cellId - 1];
+      splitCell(gridCell, points == null ? new int[0] : Arrays.copyOf(points.array(), points.size()),
+          0, xs, ys, weights, capacity, cells, cellLoads);
+    }
+    return cells.toArray(new CellInfo[cells.size()]);
+  }
 
-    }else{
-      LOG.info("Nothing to do !!!");	
+  /**
+   * Adds the given cell to the list of cells if it is not overloaded.
+   * Otherwise, splits it into two halves and processes each one recursively.
+   */
+  private static void splitCell(Rectangle cell, int[] points, int depth,
+      double[] xs, double[] ys, double[] weights, double capacity,
+      List<CellInfo> cells, List<Double> cellLoads) {
+    double load = 0;
+    for (int point : points)
+      load += weights[point];
+    if (load > capacity && depth < MaxSplitDepth && points.length > 1) {
+      // Try the longer side first then the shorter side
+      boolean splitX = cell.getWidth() >= cell.getHeight();
+      for (int attempt = 0; attempt < 2; attempt++, splitX = !splitX) {
+        double[] coords = splitX ? xs : ys;
+        double[] values = new double[points.length];
+        for (int i = 0; i < points.length; i++)
+          values[i] = coords[points[i]];
+        Arrays.sort(values);
+        // Split at the median but make sure the lower half is not empty
+        double median = values[values.length / 2];
+        if (median == values[0]) {
+          int i = values.length / 2;
+          while (i < values.length && values[i] == values[0])
+            i++;
+          if (i == values.length)
+            continue; // All points have the same coordinate along this side
+          median = values[i];
+        }
+        IntArray lowerPoints = new IntArray(), upperPoints = new IntArray();
+        for (int point : points) {
+          if (coords[point] < median)
+            lowerPoints.append(point);
+          else
+            upperPoints.append(point);
+        }
+        Rectangle lower = cell.clone(), upper = cell.clone();
+        if (splitX) {
+          lower.x2 = upper.x1 = median;
+        } else {
+          lower.y2 = upper.y1 = median;
+        }
+        splitCell(lower, Arrays.copyOf(lowerPoints.array(), lowerPoints.size()),
+            depth + 1, xs, ys, weights, capacity, cells, cellLoads);
+        splitCell(upper, Arrays.copyOf(upperPoints.array(), upperPoints.size()),
+            depth + 1, xs, ys, weights, capacity, cells, cellLoads);
+        return;
+      }
     }
-   }
+    cells.add(new CellInfo(cells.size() + 1, cell));
+    cellLoads.add(load);
+  }
+
+  /**
+   * Assigns cells to reducers to balance their estimated loads. Cells are
+   * assigned in a descending order of their loads, each one to the reducer
+   * with the least total load so far.
+   * @param cellLoads
+   * @param numReducers
+   * @return the reducer assigned to each cell
+   */
+  static int[] assignCellsToReducers(final double[] cellLoads, int numReducers) {
+    Integer[] order = new Integer[cellLoads.length];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, new java.util.Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        return Double.compare(cellLoads[j], cellLoads[i]);
+      }
+    });
+    double[] reducerLoads = new double[numReducers];
+    int[] cellReducers = new int[cellLoads.length];
+    for (int cell : order) {
+      int minReducer = 0;
+      for (int r = 1; r < numReducers; r++) {
+        if (reducerLoads[r] < reducerLoads[minReducer])
+          minReducer = r;
+      }
+      cellReducers[cell] = minReducer;
+      reducerLoads[minReducer] += cellLoads[cell];
+    }
+    return cellReducers;
   }
 
   public static <S extends Shape> long sjmr(Path[] inFiles,
@@ -362,8 +607,11 @@ public class SJMR {
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setJobName("SJMR");
     job.setMapperClass(SJMRMap.class);
-    job.setMapOutputKeyClass(IntWritable.class);
-    job.setMapOutputValueClass(IndexedText.class);
+    job.setMapOutputKeyClass(CellKey.class);
+    job.setMapOutputValueClass(SerializedShape.class);
+    job.setOutputKeyComparatorClass(CellKeyComparator.class);
+    job.setOutputValueGroupingComparator(CellGroupingComparator.class);
+    job.setPartitionerClass(SJMRPartitioner.class);
     job.setNumMapTasks(5 * Math.max(1, clusterStatus.getMaxMapTasks()));
     job.setLong("mapred.min.split.size",
         Math.max(inFs.getFileStatus(inFiles[0]).getBlockSize(),
@@ -389,12 +637,14 @@ public class SJMR {
     
     // Calculate and set the dimensions of the grid to use in the map phase
     long total_size = 0;
+    long[] fileSizes = new long[inFiles.length];
     Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
         -Double.MAX_VALUE, -Double.MAX_VALUE);
-    for (Path file : inFiles) {
-      Rectangle file_mbr = FileMBR.fileMBR(file, params);
+    for (int i = 0; i < inFiles.length; i++) {
+      Rectangle file_mbr = FileMBR.fileMBR(inFiles[i], params);
       mbr.expand(file_mbr);
-      total_size += FileMBR.sizeOfLastProcessedFile;
+      fileSizes[i] = FileMBR.sizeOfLastProcessedFile;
+      total_size += fileSizes[i];
     }
     // If the largest file is globally indexed, use its partitions
     int sjmrPartitioningGridFactor = 20;
@@ -408,12 +658,70 @@ public class SJMR {
     LOG.info("Number of cells is configured to be " + num_cells);
 
     OperationsParams.setInactiveModeFlag(job, InactiveMode, isReduceInactive);
-    OperationsParams.setJoiningThresholdPerOnce(job, JoiningThresholdPerOnce, joiningThresholdPerOnce);
 	OperationsParams.setFilterOnlyModeFlag(job, isFilterOnlyMode, isFilterOnly);
 	
     GridInfo gridInfo = new GridInfo(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
     gridInfo.calculateCellDimensions(num_cells);
-    OperationsParams.setShape(job, PartitionGrid, gridInfo);
+    CellInfo[] cells;
+    if (params.getBoolean("skew", true)) {
+      // Split overloaded cells based on a sample of each input and assign
+      // cells to reducers based on their estimated loads
+      final Vector<Point> sample = new Vector<Point>();
+      IntArray sampleSizes = new IntArray();
+      OperationsParams params2 = new OperationsParams(params);
+      params2.setFloat("ratio", params.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f));
+      params2.setLong("size", params.getLong(SpatialSite.SAMPLE_SIZE, 100*1024*1024));
+      params2.setClass("outshape", Point.class, TextSerializable.class);
+      for (Path file : inFiles) {
+        int sizeBefore = sample.size();
+        Sampler.sample(new Path[] {file}, new ResultCollector<Point>() {
+          @Override
+          public void collect(Point p) {
+            sample.add(p.clone());
+          }
+        }, params2);
+        sampleSizes.append(sample.size() - sizeBefore);
+      }
+      double[] xs = new double[sample.size()];
+      double[] ys = new double[sample.size()];
+      double[] weights = new double[sample.size()];
+      int i_point = 0;
+      for (int i_file = 0; i_file < inFiles.length; i_file++) {
+        double weight = (double) fileSizes[i_file] / Math.max(1, sampleSizes.get(i_file));
+        for (int i = 0; i < sampleSizes.get(i_file); i++, i_point++) {
+          xs[i_point] = sample.get(i_point).x;
+          ys[i_point] = sample.get(i_point).y;
+          weights[i_point] = weight;
+        }
+      }
+      // Loads are estimated from the raw sizes of all inputs
+      long inputSize = 0;
+      for (long fileSize : fileSizes)
+        inputSize += fileSize;
+      double capacity = OverloadFactor * inputSize / Math.max(1, num_cells);
+      List<Double> loads = new Vector<Double>();
+      cells = createSkewAwareCells(gridInfo, xs, ys, weights, capacity, loads);
+      double[] cellLoads = new double[loads.size()];
+      for (int i = 0; i < cellLoads.length; i++)
+        cellLoads[i] = loads.get(i);
+      int[] cellReducers = assignCellsToReducers(cellLoads, job.getNumReduceTasks());
+      String[] reducers = new String[cellReducers.length];
+      for (int i = 0; i < reducers.length; i++)
+        reducers[i] = Integer.toString(cellReducers[i]);
+      job.setStrings(CellReducers, reducers);
+      LOG.info("Split "+gridInfo.columns * gridInfo.rows+" grid cells into "+cells.length+" cells");
+    } else {
+      cells = gridInfo.getAllCells();
+    }
+    // Extend the cells on the boundary so that records on the boundary of
+    // the input MBR are not lost
+    for (CellInfo cell : cells) {
+      if (cell.x1 <= mbr.x1) cell.x1 = -Double.MAX_VALUE;
+      if (cell.y1 <= mbr.y1) cell.y1 = -Double.MAX_VALUE;
+      if (cell.x2 >= mbr.x2) cell.x2 = Double.MAX_VALUE;
+      if (cell.y2 >= mbr.y2) cell.y2 = Double.MAX_VALUE;
+    }
+    SpatialSite.setCells(job, cells);
     
     TextOutputFormat.setOutputPath(job, outputPath);
     
@@ -438,6 +746,7 @@ public class SJMR {
     System.out.println("<input file 2> - (*) Path to the second input file");
     System.out.println("<output file> - Path to output file");
     System.out.println("partition-grid-factor:<value> - Patitioning grid factor (its default value is 20)");
+    System.out.println("-no-skew - Use a uniform grid without splitting overloaded cells");
     System.out.println("-overwrite - Overwrite output file without notice");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
@@ -479,11 +788,6 @@ public class SJMR {
 	}
     
 
-	if (params.get("joining-per-once") != null) {
-		System.out.println("joining-per-once is set to: " + params.get("joining-per-once"));
-		joiningThresholdPerOnce = Integer.parseInt(params.get("joining-per-once"));
-	}
-	
 	if (params.get("filter-only") != null) {
 		System.out.println("filer-only mode is set to: " + params.get("filter-only"));
 		if (params.get("filter-only").equals("yes")) {
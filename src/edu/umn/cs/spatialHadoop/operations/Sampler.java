@@ -16,6 +16,8 @@ import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -24,6 +26,7 @@ import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
@@ -42,15 +45,19 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.DatasetStats;
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Reads a random sample of a file.
@@ -65,6 +72,12 @@ public class Sampler {
    * directory.
    */
   public static long sizeOfLastProcessedFile;
+
+  /**Maximum number of records sampled concurrently before they are reported*/
+  private static final int SampleBatchSize = 64 * 1024;
+
+  /**Number of bytes that can be scanned in the time of one random seek*/
+  private static final long SeekCost = 64 * 1024;
   
   public static class Map extends MapReduceBase implements
   Mapper<Rectangle, Text, IntWritable, Text> {
@@ -421,6 +434,12 @@ public class Sampler {
     // TODO handle compressed files
     // TODO Use a global index to determine the exact size quickly
     for (Path file : files) {
+      // Stored statistics give the exact size even for compressed files
+      DatasetStats stats = DatasetStats.readUpToDate(params, file);
+      if (stats != null) {
+        total_size += stats.getTotalSize();
+        continue;
+      }
       FileSystem fs = file.getFileSystem(params);
       FileStatus fStatus = fs.getFileStatus(file);
       if (fStatus.isDir()) {
@@ -441,6 +460,33 @@ public class Sampler {
 
   private static <T extends TextSerializable> int sampleLocalByCount(Path[] files,
       ResultCollector<T> output, OperationsParams params) throws IOException {
+    return sampleLocalByCount(files, output, null, params);
+  }
+
+  /**
+   * Draws a sample of the number of records given in the parameter 'count'
+   * from the given files and reports each record along with the file it was
+   * read from. Records are drawn from all files at once so that each file
+   * gets a share of the sample proportional to its size.
+   * @param files
+   * @param output
+   * @param params
+   * @return number of sampled records
+   * @throws IOException
+   */
+  public static <T extends TextSerializable> int sampleByCount(Path[] files,
+      ResultCollector2<Path, T> output, OperationsParams params) throws IOException {
+    return sampleLocalByCount(files, null, output, params);
+  }
+
+  /**
+   * Samples a number of records given in the parameter 'count' from the
+   * given files. Records are reported to output or, if it is null, to
+   * fileOutput along with the file they were read from.
+   */
+  private static <T extends TextSerializable> int sampleLocalByCount(Path[] files,
+      ResultCollector<T> output, final ResultCollector2<Path, T> fileOutput,
+      OperationsParams params) throws IOException {
 
     ArrayList<Path> data_files = new ArrayList<Path>();
     for (Path file : files) {
@@ -489,47 +535,225 @@ public class Sampler {
     }
     Arrays.sort(offsets);
 
+    CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(params);
     int record_i = 0; // Number of records read so far
     int records_returned = 0;
 
-    int file_i = 0; // Index of the current file being sampled
-    while (record_i < offsets.length) {
-      // Skip to the file that contains the next sample
-      while (offsets[record_i] > files_start_offset[file_i+1])
-        file_i++;
-
-      long current_file_size = files_start_offset[file_i+1] - files_start_offset[file_i];
-      FileSystem fs = files[file_i].getFileSystem(params);
-      ShapeLineRecordReader reader = new ShapeLineRecordReader(fs.getConf(),
-          new FileSplit(files[file_i], 0, current_file_size, new String[] {}));
-      Rectangle key = reader.createKey();
-      Text line = reader.createValue();
-      long pos = files_start_offset[file_i];
-      
-      while (record_i < offsets.length &&
-          offsets[record_i] <= files_start_offset[file_i+1] &&
-          reader.next(key, line)) {
-        pos += line.getLength();
-        if (pos > offsets[record_i]) {
-          // Passed the offset of record_i
-          // Report this element to output
-          if (converter != null) {
-            inObj.fromText(line);
-            converter.collect(inObj);
+    for (int file_i = 0; file_i < files.length && record_i < offsets.length; file_i++) {
+      // Find all offsets that fall in this file
+      int first_record = record_i;
+      while (record_i < offsets.length && offsets[record_i] < files_start_offset[file_i+1])
+        record_i++;
+      if (first_record == record_i)
+        continue;
+      ResultCollector<TextSerializable> fileConverter = converter;
+      if (fileOutput != null) {
+        final Path file = files[file_i];
+        fileConverter = createConverter(new ResultCollector<T>() {
+          @Override
+          public void collect(T r) {
+            fileOutput.collect(file, r);
           }
-          record_i++;
-          records_returned++;
+        }, inObj, outObj);
+      }
+      long file_length = files_start_offset[file_i+1] - files_start_offset[file_i];
+      if (compressionCodecs.getCodec(files[file_i]) != null ||
+          (long)(record_i - first_record) * SeekCost >= file_length) {
+        // Cannot seek in a compressed file and it is cheaper to scan a small
+        // file than to seek too many times. Scan it from the beginning
+        records_returned += sampleByScan(files[file_i], offsets, first_record,
+            record_i, files_start_offset[file_i], files_start_offset[file_i+1],
+            inObj, fileConverter, params);
+      } else {
+        records_returned += sampleBySeek(files[file_i], offsets, first_record,
+            record_i, files_start_offset[file_i], files_start_offset[file_i+1],
+            inObj, fileConverter, params);
+      }
+    }
+    return records_returned;
+  }
+
+  /**
+   * Samples one file by reading the line that follows each offset. Offsets
+   * are split into consecutive ranges that are read by concurrent threads
+   * using positional reads. As offsets are sorted, each thread reads from
+   * nearby locations which are mostly in the same HDFS blocks. Offsets that
+   * fall in the same line lead to the same next line which is reported once.
+   * @param file the file to sample
+   * @param offsets sorted offsets in all sampled files
+   * @param first_record the index of the first offset in this file
+   * @param last_record the index after the last offset in this file
+   * @param file_start the offset of the start of this file in all files
+   * @param file_end the offset of the end of this file in all files
+   * @param inObj
+   * @param converter
+   * @param conf
+   * @return number of sampled records
+   * @throws IOException
+   */
+  private static int sampleBySeek(final Path file, final long[] offsets,
+      int first_record, int last_record, final long file_start, long file_end,
+      TextSerializable inObj, ResultCollector<TextSerializable> converter,
+      Configuration conf) throws IOException {
+    final FileSystem fs = file.getFileSystem(conf);
+    final long file_length = file_end - file_start;
+    int records_returned = 0;
+    // Start of the last reported line to skip lines reached from many offsets
+    long last_line_start = -1;
+    // Report sampled records every batch to avoid keeping all of them in memory
+    for (int batch_start = first_record; batch_start < last_record; batch_start += SampleBatchSize) {
+      final int batch_first = batch_start;
+      int batch_end = Math.min(last_record, batch_start + SampleBatchSize);
+      // The line read for each offset in the batch and where it starts
+      final Text[] lines = new Text[batch_end - batch_start];
+      final long[] line_starts = new long[batch_end - batch_start];
+      try {
+        Parallel.forEach(batch_start, batch_end, new RunnableRange<Object>() {
+          @Override
+          public Object run(int i1, int i2) {
+            FSDataInputStream in = null;
+            try {
+              in = fs.open(file);
+              byte[] buffer = new byte[4096];
+              for (int i = i1; i < i2; i++) {
+                Text line = new Text();
+                line_starts[i - batch_first] =
+                    readLineAfter(in, offsets[i] - file_start, file_length, buffer, line);
+                if (line_starts[i - batch_first] >= 0)
+                  lines[i - batch_first] = line;
+              }
+            } catch (IOException e) {
+              throw new RuntimeException("Error sampling file "+file, e);
+            } finally {
+              if (in != null) {
+                try {
+                  in.close();
+                } catch (IOException e) {
+                  LOG.warn("Error closing file "+file, e);
+                }
+              }
+            }
+            return null;
+          }
+        });
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while sampling file "+file, e);
+      }
+      // Offsets are sorted so duplicate lines are next to each other
+      for (int i = 0; i < lines.length; i++) {
+        if (lines[i] == null || line_starts[i] == last_line_start)
+          continue;
+        last_line_start = line_starts[i];
+        if (converter != null) {
+          inObj.fromText(lines[i]);
+          converter.collect(inObj);
         }
+        records_returned++;
       }
-      reader.close();
-      
-      // Skip any remaining records that were supposed to be read from this file
-      // This case might happen if a generated random position was in the middle
-      // of the last line.
-      while (record_i < offsets.length &&
-          offsets[record_i] <= files_start_offset[file_i+1])
+    }
+    return records_returned;
+  }
+
+  /**
+   * Reads the first complete line that starts at or after the given offset.
+   * A line that starts exactly at the offset is returned as is while a line
+   * that contains the offset is skipped. This way, all lines can be sampled
+   * including the first one in the file.
+   * @param in
+   * @param offset
+   * @param file_length
+   * @param buffer a temporary buffer used while reading
+   * @param line the line read without the end of line characters
+   * @return the offset of the start of the line read or -1 if no non-empty
+   *  line was found
+   * @throws IOException
+   */
+  private static long readLineAfter(FSDataInputStream in, long offset,
+      long file_length, byte[] buffer, Text line) throws IOException {
+    long pos = offset;
+    if (pos > 0) {
+      // Skip until the end of the line that contains the previous byte
+      pos--;
+      byte eol = 0;
+      while (eol == 0) {
+        if (pos >= file_length)
+          return -1;
+        int length = (int) Math.min(buffer.length, file_length - pos);
+        in.readFully(pos, buffer, 0, length);
+        int i = 0;
+        while (i < length && buffer[i] != '\n' && buffer[i] != '\r')
+          i++;
+        pos += i;
+        if (i < length)
+          eol = buffer[i];
+      }
+      pos++;
+      if (eol == '\r' && pos < file_length) {
+        // Skip the line feed of a CR-LF line ending
+        in.readFully(pos, buffer, 0, 1);
+        if (buffer[0] == '\n')
+          pos++;
+      }
+    }
+    // Read the line
+    long line_start = pos;
+    while (pos < file_length) {
+      int length = (int) Math.min(buffer.length, file_length - pos);
+      in.readFully(pos, buffer, 0, length);
+      int i = 0;
+      while (i < length && buffer[i] != '\n' && buffer[i] != '\r')
+        i++;
+      line.append(buffer, 0, i);
+      if (i < length)
+        break;
+      pos += length;
+    }
+    return line.getLength() > 0 ? line_start : -1;
+  }
+
+  /**
+   * Samples one file by scanning it from the beginning and reporting each
+   * line that contains one of the offsets. Used for files that do not
+   * support random access such as compressed files.
+   * @param file the file to sample
+   * @param offsets sorted offsets in all sampled files
+   * @param first_record the index of the first offset in this file
+   * @param last_record the index after the last offset in this file
+   * @param file_start the offset of the start of this file in all files
+   * @param file_end the offset of the end of this file in all files
+   * @param inObj
+   * @param converter
+   * @param conf
+   * @return number of sampled records
+   * @throws IOException
+   */
+  private static int sampleByScan(Path file, long[] offsets, int first_record,
+      int last_record, long file_start, long file_end, TextSerializable inObj,
+      ResultCollector<TextSerializable> converter, Configuration conf)
+      throws IOException {
+    FileSystem fs = file.getFileSystem(conf);
+    ShapeLineRecordReader reader = new ShapeLineRecordReader(fs.getConf(),
+        new FileSplit(file, 0, file_end - file_start, new String[] {}));
+    Rectangle key = reader.createKey();
+    Text line = reader.createValue();
+    long pos = file_start;
+    int record_i = first_record;
+    int records_returned = 0;
+    while (record_i < last_record && reader.next(key, line)) {
+      pos += line.getLength();
+      if (pos > offsets[record_i]) {
+        // Passed the offset of record_i
+        // Report this element to output
+        if (converter != null) {
+          inObj.fromText(line);
+          converter.collect(inObj);
+        }
         record_i++;
+        records_returned++;
+      }
     }
+    reader.close();
+    // Any remaining offsets were in the middle of the last line and are skipped
     return records_returned;
   }
   
@@ -10,6 +10,7 @@ package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Vector;
 
@@ -20,15 +21,18 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapred.FileInputFormat;
-import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.OperationsParams.Direction;
@@ -45,8 +49,9 @@ import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat2;
 import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterInputFormat;
-import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Computes the skyline of a set of points
@@ -57,18 +62,78 @@ public class Skyline {
   
   private static final Log LOG = LogFactory.getLog(Skyline.class);
   
+  /**Minimum number of points to compute their skyline in parallel*/
+  private static final int ParallelThreshold = 100000;
+
+  /**
+   * Returns 1 if the skyline prefers larger x coordinates or -1 otherwise.
+   * @param dir
+   * @return
+   */
+  private static int xSign(Direction dir) {
+    return dir == Direction.MaxMax || dir == Direction.MaxMin ? 1 : -1;
+  }
+
+  /**
+   * Returns 1 if the skyline prefers larger y coordinates or -1 otherwise.
+   * @param dir
+   * @return
+   */
+  private static int ySign(Direction dir) {
+    return dir == Direction.MaxMax || dir == Direction.MinMax ? 1 : -1;
+  }
+
+  /**
+   * Sorts points such that each point is never dominated by a point that comes
+   * before it. That is, points are sorted by x from the worst to the best
+   * value and ties are sorted by y in the same way.
+   * @param points
+   * @param dir
+   */
+  private static void sortForSkyline(Point[] points, Direction dir) {
+    final int xSign = xSign(dir);
+    final int ySign = ySign(dir);
+    Arrays.sort(points, new Comparator<Point>() {
+      @Override
+      public int compare(Point p1, Point p2) {
+        int cmp = Double.compare(p1.x * xSign, p2.x * xSign);
+        return cmp != 0 ? cmp : Double.compare(p1.y * ySign, p2.y * ySign);
+      }
+    });
+  }
+
   /**
    * Computes the skyline of a set of points using a divided and conquer
    * in-memory algorithm. The algorithm recursively splits the points into
    * half, computes the skyline of each half, and finally combines the two
-   * skylines.
+   * skylines. Large inputs are split into as many chunks as processors, the
+   * skyline of each chunk is computed in parallel and the chunk skylines are
+   * then merged in order.
    * @param points
    * @param dir
    * @return
    */
-  public static Point[] skyline(Point[] points, Direction dir) {
-    Arrays.sort(points);
-    return skyline(points, 0, points.length, dir);
+  public static Point[] skyline(final Point[] points, final Direction dir) {
+    if (points.length == 0)
+      return points;
+    sortForSkyline(points, dir);
+    if (points.length < ParallelThreshold)
+      return skyline(points, 0, points.length, dir);
+    try {
+      Vector<Point[]> chunkSkylines = Parallel.forEach(points.length,
+          new RunnableRange<Point[]>() {
+        @Override
+        public Point[] run(int i1, int i2) {
+          return skyline(points, i1, i2, dir);
+        }
+      });
+      Point[] skyline = chunkSkylines.firstElement();
+      for (int i = 1; i < chunkSkylines.size(); i++)
+        skyline = mergeSkylines(skyline, chunkSkylines.get(i), dir);
+      return skyline;
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while computing the skyline", e);
+    }
   }
   
   /**
@@ -88,7 +153,19 @@ public class Skyline {
     // Find the skyline of each half
     Point[] skyline1 = skyline(points, start, mid, dir);
     Point[] skyline2 = skyline(points, mid, end, dir);
-    // Merge the two skylines
+    return mergeSkylines(skyline1, skyline2, dir);
+  }
+
+  /**
+   * Merges the skylines of two consecutive ranges of sorted points. Since no
+   * point in skyline1 can dominate a point in skyline2, only a suffix of
+   * skyline1 that is dominated by the first point of skyline2 is removed.
+   * @param skyline1
+   * @param skyline2
+   * @param dir
+   * @return
+   */
+  private static Point[] mergeSkylines(Point[] skyline1, Point[] skyline2, Direction dir) {
     int cut_point = 0;
     while (cut_point < skyline1.length && !skylineDominate(skyline2[0], skyline1[cut_point], dir))
       cut_point++;
@@ -150,7 +227,7 @@ public class Skyline {
                        (r1.x1 >= r2.x2 && r1.y2 <= r2.y1);
     case MinMax:
       return compact ? (r1.x2 <= r2.x1 && r1.y2 >= r2.y2) ||
-                       (r1.x1 <= r2.x1 && r1.y2 >= r2.y2) :
+                       (r1.x1 <= r2.x1 && r1.y1 >= r2.y2) :
                        (r1.x2 <= r2.x1 && r1.y1 >= r2.y2);
     case MinMin:
       return compact ? (r1.x2 <= r2.x1 && r1.y1 <= r2.y1) ||
@@ -160,36 +237,165 @@ public class Skyline {
     }
   }
   
+  /**
+   * Finds all rectangles that are not dominated by any other rectangle
+   * according to the rules of
+   * {@link #skylineDominate(Rectangle, Rectangle, Direction, boolean)}.
+   * All rectangles are first mapped to the MaxMax space. A rectangle is
+   * dominated if one of the corners used by these rules in another rectangle
+   * is greater than or equal to its highest corner. Both the corners and the
+   * rectangles are sorted by x and swept once in decreasing x while keeping
+   * the maximum y of all corners seen so far. This takes O(n log n) instead
+   * of comparing all pairs of rectangles.
+   * Rectangles with exactly the same highest corner do not dominate each
+   * other so that the answer never misses a skyline point.
+   * @param rects
+   * @param dir
+   * @param compact - whether the input rectangles are compact or not
+   * @return an array that marks the non-dominated rectangles
+   */
+  public static boolean[] nonDominatedRectangles(Rectangle[] rects,
+      Direction dir, boolean compact) {
+    int xSign = xSign(dir);
+    int ySign = ySign(dir);
+    int n = rects.length;
+    int cornersPerRect = compact ? 2 : 1;
+    // The highest corner of each rectangle
+    double[] qxs = new double[n];
+    double[] qys = new double[n];
+    int[] qIds = new int[n];
+    // The corners that can dominate other rectangles
+    double[] wxs = new double[n * cornersPerRect];
+    double[] wys = new double[n * cornersPerRect];
+    for (int i = 0; i < n; i++) {
+      Rectangle r = rects[i];
+      double lx = xSign > 0 ? r.x1 : -r.x2;
+      double hx = xSign > 0 ? r.x2 : -r.x1;
+      double ly = ySign > 0 ? r.y1 : -r.y2;
+      double hy = ySign > 0 ? r.y2 : -r.y1;
+      qxs[i] = hx;
+      qys[i] = hy;
+      qIds[i] = i;
+      if (compact) {
+        // The two semi-lowest corners
+        wxs[2 * i] = hx;
+        wys[2 * i] = ly;
+        wxs[2 * i + 1] = lx;
+        wys[2 * i + 1] = hy;
+      } else {
+        // The lowest corner
+        wxs[i] = lx;
+        wys[i] = ly;
+      }
+    }
+    sortDescending(qxs, qys, qIds);
+    sortDescending(wxs, wys, null);
+
+    boolean[] nonDominated = new boolean[n];
+    // Maximum y of all corners with an x greater than the current x
+    double maxYGreater = Double.NEGATIVE_INFINITY;
+    int w = 0;
+    int q = 0;
+    while (q < n) {
+      double x = qxs[q];
+      while (w < wxs.length && wxs[w] > x)
+        maxYGreater = Math.max(maxYGreater, wys[w++]);
+      // Corners with the same x dominate only if they have a greater y
+      double maxYEqual = Double.NEGATIVE_INFINITY;
+      for (int w2 = w; w2 < wxs.length && wxs[w2] == x; w2++)
+        maxYEqual = Math.max(maxYEqual, wys[w2]);
+      while (q < n && qxs[q] == x) {
+        nonDominated[qIds[q]] = maxYGreater < qys[q] && maxYEqual <= qys[q];
+        q++;
+      }
+    }
+    return nonDominated;
+  }
+
+  /**
+   * Sorts points given as two arrays of coordinates by x in descending order.
+   * @param xs
+   * @param ys
+   * @param ids - an optional array of identifiers moved along with points
+   */
+  private static void sortDescending(final double[] xs, final double[] ys,
+      final int[] ids) {
+    if (xs.length == 0)
+      return;
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        double temp = xs[i];
+        xs[i] = xs[j];
+        xs[j] = temp;
+        temp = ys[i];
+        ys[i] = ys[j];
+        ys[j] = temp;
+        if (ids != null) {
+          int tempId = ids[i];
+          ids[i] = ids[j];
+          ids[j] = tempId;
+        }
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(xs[j], xs[i]);
+      }
+    }, 0, xs.length);
+  }
+
   /**
    * Computes the skyline of an input file using a single machine algorithm.
-   * The output is written to the output file. If output file is null, the
-   * output is just thrown away.
+   * Partitions that cannot contribute to the answer are skipped and the
+   * remaining splits are processed in parallel where each thread computes
+   * the skyline of its splits. The output is written to the output file. If
+   * output file is null, the output is just thrown away.
    * @param inFile
    * @param outFile
-   * @param dir
-   * @param overwrite
+   * @param params
    * @throws IOException
+   * @throws InterruptedException
    */
   public static void skylineLocal(Path inFile, Path outFile,
-      OperationsParams params) throws IOException {
-    FileSystem inFs = inFile.getFileSystem(new Configuration());
-    long file_size = inFs.getFileStatus(inFile).getLen();
-    
-    ShapeRecordReader<Point> shapeReader = new ShapeRecordReader<Point>(
-        new Configuration(), new FileSplit(inFile, 0, file_size, new String[] {}));
+      OperationsParams params) throws IOException, InterruptedException {
+    final JobConf job = new JobConf(params, Skyline.class);
+    job.setClass(SpatialSite.FilterClass, SkylineFilter.class, BlockFilter.class);
+    ShapeInputFormat.setInputPaths(job, inFile);
+    final ShapeInputFormat<Point> inputFormat = new ShapeInputFormat<Point>();
+    final InputSplit[] splits = inputFormat.getSplits(job, 1);
+    final Direction dir = params.getDirection("dir", Direction.MaxMax);
 
-    Rectangle key = shapeReader.createKey();
-    Point point = new Point();
+    Vector<Point[]> results = Parallel.forEach(splits.length,
+        new RunnableRange<Point[]>() {
+      @Override
+      public Point[] run(int i1, int i2) {
+        Vector<Point> points = new Vector<Point>();
+        for (int i = i1; i < i2; i++) {
+          try {
+            RecordReader<Rectangle, Point> reader =
+                inputFormat.getRecordReader(splits[i], job, null);
+            Rectangle key = reader.createKey();
+            Point point = reader.createValue();
+            Vector<Point> splitPoints = new Vector<Point>();
+            while (reader.next(key, point)) {
+              splitPoints.add(point.clone());
+            }
+            reader.close();
+            points.addAll(Arrays.asList(
+                skyline(splitPoints.toArray(new Point[splitPoints.size()]), dir)));
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading split "+splits[i], e);
+          }
+        }
+        return skyline(points.toArray(new Point[points.size()]), dir);
+      }
+    });
 
-    Vector<Point> points = new Vector<Point>();
-    
-    while (shapeReader.next(key, point)) {
-      points.add(point.clone());
-    }
-    
-    Point[] arPoints = points.toArray(new Point[points.size()]);
-    Direction dir = params.getDirection("dir", Direction.MaxMax);
-    Point[] skyline = skyline(arPoints, dir);
+    Vector<Point> candidates = new Vector<Point>();
+    for (Point[] result : results)
+      candidates.addAll(Arrays.asList(result));
+    Point[] skyline = skyline(candidates.toArray(new Point[candidates.size()]), dir);
 
     if (outFile != null) {
       if (params.getBoolean("overwrite", false)) {
@@ -217,50 +423,53 @@ public class Skyline {
     @Override
     public void selectCells(GlobalIndex<Partition> gIndex,
         ResultCollector<Partition> output) {
-      Vector<Partition> non_dominated_partitions = new Vector<Partition>();
-      
-      for (Partition p : gIndex) {
-        boolean dominated = false;
-        int i = 0;
-        while (!dominated && i < non_dominated_partitions.size()) {
-          Partition p2 = non_dominated_partitions.get(i);
-          dominated = skylineDominate(p2, p, dir, gIndex.isCompact());
-          
-          // Check if the new partition dominates the previously selected one
-          if (skylineDominate(p, p2, dir, gIndex.isCompact())) {
-            // p2 is no longer non-dominated
-            non_dominated_partitions.remove(i);
-          } else {
-            // Skip to next non-dominated partition
-            i++;
-          }
-        }
-        if (!dominated) {
-          non_dominated_partitions.add(p);
-        }
-      }
+      Partition[] partitions = new Partition[gIndex.size()];
+      int i = 0;
+      for (Partition p : gIndex)
+        partitions[i++] = p;
+      boolean[] nonDominated = nonDominatedRectangles(partitions, dir, gIndex.isCompact());
       
-      LOG.info("Processing "+non_dominated_partitions.size()+" out of "+gIndex.size()+" partition");
+      int numOfSelectedPartitions = 0;
+      for (boolean selected : nonDominated)
+        if (selected)
+          numOfSelectedPartitions++;
+      LOG.info("Processing "+numOfSelectedPartitions+" out of "+gIndex.size()+" partition");
       // Output all non-dominated partitions
-      for (Partition p : non_dominated_partitions) {
-        output.collect(p);
+      for (i = 0; i < partitions.length; i++) {
+        if (nonDominated[i])
+          output.collect(partitions[i]);
       }
     }
   }
   
   /**
-   * An identity map function that returns values as-is with a null key. This
-   * ensures that all values are reduced in one reducer.
+   * Computes the skyline of each partition and emits only the points in it
+   * with a null key. This ensures that all candidate points are reduced in
+   * one reducer while most of the dominated points never leave the mapper.
    * @author Ahmed Eldawy
    */
-  public static class IdentityMapper extends MapReduceBase implements
+  public static class SkylineMapper extends MapReduceBase implements
   Mapper<Rectangle, ShapeIterator, NullWritable, Point> {
+    
+    private Direction dir;
+    
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      dir = OperationsParams.getDirection(job, "dir", Direction.MaxMax);
+    }
+    
     @Override
     public void map(Rectangle dummy, ShapeIterator points,
         OutputCollector<NullWritable, Point> output, Reporter reporter)
         throws IOException {
+      Vector<Point> vpoints = new Vector<Point>();
       for (Shape point : points) {
-        output.collect(NullWritable.get(), (Point)point);
+        vpoints.add(((Point)point).clone());
+      }
+      Point[] skyline = skyline(vpoints.toArray(new Point[vpoints.size()]), dir);
+      for (Point pt : skyline) {
+        output.collect(NullWritable.get(), pt);
       }
     }
   }
@@ -307,7 +516,7 @@ public class Skyline {
     
     job.setJobName("Skyline");
     job.setClass(SpatialSite.FilterClass, SkylineFilter.class, BlockFilter.class);
-    job.setMapperClass(IdentityMapper.class);
+    job.setMapperClass(SkylineMapper.class);
     job.setCombinerClass(SkylineReducer.class);
     job.setReducerClass(SkylineReducer.class);
     job.setOutputKeyClass(NullWritable.class);
@@ -324,7 +533,8 @@ public class Skyline {
       outFs.delete(outPath, true);
   }
   
-  public static void skyline(Path inFile, Path outFile, OperationsParams params) throws IOException {
+  public static void skyline(Path inFile, Path outFile, OperationsParams params)
+      throws IOException, InterruptedException {
     JobConf job = new JobConf(params, FileMBR.class);
     FileInputFormat.addInputPath(job, inFile);
     ShapeInputFormat<Shape> inputFormat = new ShapeInputFormat<Shape>();
@@ -351,7 +561,7 @@ public class Skyline {
     GenericOptionsParser.printGenericCommandUsage(System.err);
   }
   
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
     OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
     Path[] paths = params.getPaths();
     if (paths.length <= 1 && !params.checkInput()) {
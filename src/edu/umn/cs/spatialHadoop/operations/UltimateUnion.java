@@ -32,11 +32,11 @@ import org.apache.hadoop.util.GenericOptionsParser;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.TopologyException;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CascadedUnion;
 import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
@@ -58,58 +58,6 @@ public class UltimateUnion {
   /**Logger for this class*/
   private static final Log LOG = LogFactory.getLog(UltimateUnion.class);
 
-  /**
-   * Computes the union of all given shapes and return one shape with all
-   * segments on the boundaries of the union. This method computes the union
-   * using the buffer(0) method which should be faster but is not stable.
-   * Sometimes, it breaks with input polygons of very high precision.
-   * @param collections
-   * @return
-   */
-  private static Geometry combineIntoOneGeometryBroken(Collection<Geometry> collections) {
-    GeometryFactory factory = new GeometryFactory();
-    GeometryCollection geometryCollection = (GeometryCollection)factory.buildGeometry(collections);
-    return geometryCollection.buffer(0);
-  }
-  
-  /**
-   * Computes the union of the given set of shapes. This method starts with
-   * one polygon and adds other polygons one by one computing the union at
-   * each step. This method is safer than using the buffer(0) method but it
-   * might be slower.
-   * @param collections
-   * @return
-   */
-  private static Geometry combineIntoOneGeometrySafe(Collection<Geometry> collections) {
-    Geometry res = null;
-    for (Geometry g : collections)
-      if (res == null) res = g;
-      else res = res.union(g);
-    return res;
-  }
-  
-  /**
-   * Similar to the {@link #combineIntoOneGeometrySafe(Collection)}, it computes
-   * the union of a set of shapes. However, it keeps doing pair-wise union
-   * between every pair of consecutive shapes (in the given list order) until
-   * we end up with one polygon. This method could be faster if we can perform
-   * independent pair-wise unions in parallel.
-   * @param collections
-   * @return
-   */
-  private static Geometry combineIntoOneGeometryFast(Collection<Geometry> collections) {
-    Geometry[] input = collections.toArray(new Geometry[collections.size()]);
-    int n = input.length; 
-    while(n > 1) {
-      int cnt = 0;
-      for (int i=0; i<n; i+=2) 
-        if (i + 1 < n) input[cnt++] = input[i].union(input[i + 1]);
-        else input[cnt++] = input[i];
-      n = cnt;
-    }
-    return input[0];
-  }
-
   /**
    * Computes the union between the given shape with all overlapping shapes
    * and return only the segments in the result that overlap with the shape.
@@ -119,12 +67,13 @@ public class UltimateUnion {
    * @return
    */
   public static Geometry partialUnion(Geometry shape, Collection<Geometry> overlappingShapes) {
+    Geometry overlapsUnion = CascadedUnion.union(overlappingShapes);
     Geometry partialResult;
     try {
-      partialResult = shape.union(combineIntoOneGeometryBroken(overlappingShapes));
+      partialResult = shape.union(overlapsUnion);
     } catch (TopologyException e) {
       LOG.warn("Error computing union");
-      partialResult = shape.union(combineIntoOneGeometrySafe(overlappingShapes));
+      partialResult = shape.buffer(0).union(overlapsUnion.buffer(0));
     }
     return shape.getBoundary().intersection(partialResult.getBoundary());
   }
@@ -141,7 +90,7 @@ public class UltimateUnion {
   public static Geometry partialUnion(Rectangle partition, Collection<Geometry> shapes) {
     Geometry shapesUnion;
     try {
-      shapesUnion = combineIntoOneGeometryFast(shapes);
+      shapesUnion = CascadedUnion.union(shapes);
       Coordinate[] coords = new Coordinate[5];
       coords[0] = new Coordinate(partition.x1, partition.y1);
       coords[1] = new Coordinate(partition.x2, partition.y1);
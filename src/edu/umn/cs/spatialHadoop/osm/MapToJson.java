@@ -35,6 +35,15 @@ public class MapToJson extends EvalFunc<String> {
       throw new IOException("Invalid argument type "+input.get(0).getClass());
     
     Map<String, String> tags = (Map<String, String>) input.get(0);
+    return mapToJson(tags);
+  }
+
+  /**
+   * Converts the given map of tags to the format used in road network files
+   * @param tags
+   * @return
+   */
+  public static String mapToJson(Map<String, String> tags) {
     StringBuffer result = new StringBuffer();
     for (Map.Entry<String, String> entry : tags.entrySet()) {
       result.append("{");
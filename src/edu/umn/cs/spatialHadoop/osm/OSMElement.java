@@ -0,0 +1,123 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.osm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * An element parsed from an OSM XML file which is either a node, a way or a
+ * relation. Only the attributes needed to build shapes are kept, i.e., the ID,
+ * the location of nodes, the tags and the IDs of the nodes of a way or the
+ * members of a relation.
+ * @author Ahmed Eldawy
+ *
+ */
+public class OSMElement implements Writable {
+  public static final byte NODE = 0;
+  public static final byte WAY = 1;
+  public static final byte RELATION = 2;
+
+  /**The type of this element, one of NODE, WAY or RELATION*/
+  public byte type;
+  public long id;
+  /**Location of a node*/
+  public double lon, lat;
+  public Map<String, String> tags = new HashMap<String, String>();
+  /**IDs of the nodes of a way or the members of a relation in order*/
+  public long[] refs = new long[16];
+  /**Number of used entries in refs*/
+  public int numRefs;
+
+  /**
+   * Clears all the fields to reuse this object for another element
+   */
+  public void clear() {
+    id = 0;
+    lon = lat = 0;
+    tags.clear();
+    numRefs = 0;
+  }
+
+  public void addRef(long ref) {
+    if (numRefs == refs.length)
+      refs = Arrays.copyOf(refs, refs.length * 2);
+    refs[numRefs++] = ref;
+  }
+
+  /**
+   * Creates a point out of this element if it is a node
+   * @return
+   */
+  public OSMPoint toPoint() {
+    if (type != NODE)
+      throw new RuntimeException("Cannot create a point out of a non-node element");
+    OSMPoint point = new OSMPoint();
+    point.id = id;
+    point.x = lon;
+    point.y = lat;
+    point.tags = new HashMap<String, String>(tags);
+    return point;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(type);
+    out.writeLong(id);
+    if (type == NODE) {
+      out.writeDouble(lon);
+      out.writeDouble(lat);
+    }
+    out.writeInt(tags.size());
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      out.writeUTF(tag.getKey());
+      out.writeUTF(tag.getValue());
+    }
+    out.writeInt(numRefs);
+    for (int i = 0; i < numRefs; i++)
+      out.writeLong(refs[i]);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    clear();
+    type = in.readByte();
+    id = in.readLong();
+    if (type == NODE) {
+      lon = in.readDouble();
+      lat = in.readDouble();
+    }
+    int size = in.readInt();
+    while (size-- > 0) {
+      String key = in.readUTF();
+      String value = in.readUTF();
+      tags.put(key, value);
+    }
+    size = in.readInt();
+    while (size-- > 0)
+      addRef(in.readLong());
+  }
+
+  @Override
+  public String toString() {
+    String str = type == NODE ? "node" : (type == WAY ? "way" : "relation");
+    str += " #" + id;
+    if (type == NODE)
+      str += " (" + lon + "," + lat + ")";
+    if (numRefs > 0)
+      str += " " + Arrays.toString(Arrays.copyOf(refs, numRefs));
+    return str + " " + tags;
+  }
+}
@@ -0,0 +1,444 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.osm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.MultipleOutputs;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+
+/**
+ * Extracts shapes from an OSM XML file in two MapReduce jobs without Pig.
+ * <ol>
+ *  <li>Node-way join: nodes and the node references of ways are joined by
+ *  node ID to find the location of each node in each way. Nodes with tags
+ *  are written as {@link OSMPoint}s.</li>
+ *  <li>Way assembly: the located nodes of each way are grouped by way ID,
+ *  ordered by their position and turned into a line string or a polygon
+ *  (for closed ways) which is written as an {@link OSMPolygon}. Each segment
+ *  of a road is also written as an {@link OSMEdge} to form the road network.
+ *  </li>
+ * </ol>
+ * The output directory contains three subdirectories, points, ways and edges.
+ * @author Ahmed Eldawy
+ *
+ */
+public class OSMExtractor {
+  private static final Log LOG = LogFactory.getLog(OSMExtractor.class);
+
+  /**Keys of tags that mark a way as a road*/
+  public static final String RoadKeys = "highway,junction,ford,route,cutting,tunnel,amenity";
+  /**Values of tags that mark a way as a road*/
+  public static final String RoadValues = "yes,street,highway,service,parking_aisle,motorway,motorway_link,trunk,trunk_link,primary,primary_link,secondary,secondary_link,tertiary,tertiary_link,living_street,residential,unclassified,track,road,roundabout,escape,mini_roundabout,motorway_junction,passing_place,rest_area,turning_circle,detour,parking_entrance";
+
+  private static final String PointsOutput = "points";
+  private static final String EdgesOutput = "edges";
+
+  /**
+   * An intermediate record of the node-way join
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class JoinRecord implements Writable {
+    /**The location of a node. id is the node ID*/
+    public static final byte NODE = 0;
+    /**A reference from a way to a node. id is the way ID*/
+    public static final byte NODE_REF = 1;
+    /**The tags of a way. id is the way ID*/
+    public static final byte WAY_TAGS = 2;
+    /**A node of a way after it has been located. id is the node ID*/
+    public static final byte WAY_NODE = 3;
+
+    public byte type;
+    public long id;
+    /**Position of the node in the way*/
+    public int pos;
+    public double lon, lat;
+    public Map<String, String> tags = new HashMap<String, String>();
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeByte(type);
+      out.writeLong(id);
+      if (type == NODE_REF || type == WAY_NODE)
+        out.writeInt(pos);
+      if (type == NODE || type == WAY_NODE) {
+        out.writeDouble(lon);
+        out.writeDouble(lat);
+      }
+      if (type == WAY_TAGS) {
+        out.writeInt(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+          out.writeUTF(tag.getKey());
+          out.writeUTF(tag.getValue());
+        }
+      }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      type = in.readByte();
+      id = in.readLong();
+      if (type == NODE_REF || type == WAY_NODE)
+        pos = in.readInt();
+      if (type == NODE || type == WAY_NODE) {
+        lon = in.readDouble();
+        lat = in.readDouble();
+      }
+      tags.clear();
+      if (type == WAY_TAGS) {
+        int size = in.readInt();
+        while (size-- > 0) {
+          String key = in.readUTF();
+          String value = in.readUTF();
+          tags.put(key, value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the location of each node and each node reference of a way to the
+   * node ID. The tags of each way are sent to the way ID. Node IDs and way IDs
+   * are both stored in the key, shifted one bit left, with the lowest bit set
+   * for way IDs so that they do not collide.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class NodeWayJoinMap extends MapReduceBase implements
+      Mapper<LongWritable, OSMElement, LongWritable, JoinRecord> {
+    private MultipleOutputs mos;
+    private LongWritable outKey = new LongWritable();
+    private JoinRecord outValue = new JoinRecord();
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      mos = new MultipleOutputs(job);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void map(LongWritable key, OSMElement element,
+        OutputCollector<LongWritable, JoinRecord> output, Reporter reporter)
+        throws IOException {
+      if (element.type == OSMElement.NODE) {
+        outKey.set(element.id << 1);
+        outValue.type = JoinRecord.NODE;
+        outValue.id = element.id;
+        outValue.lon = element.lon;
+        outValue.lat = element.lat;
+        output.collect(outKey, outValue);
+        if (!element.tags.isEmpty())
+          mos.getCollector(PointsOutput, reporter).collect(NullWritable.get(),
+              element.toPoint());
+      } else if (element.type == OSMElement.WAY) {
+        outValue.type = JoinRecord.NODE_REF;
+        outValue.id = element.id;
+        for (int i = 0; i < element.numRefs; i++) {
+          outKey.set(element.refs[i] << 1);
+          outValue.pos = i;
+          output.collect(outKey, outValue);
+        }
+        outKey.set((element.id << 1) | 1);
+        outValue.type = JoinRecord.WAY_TAGS;
+        outValue.tags = element.tags;
+        output.collect(outKey, outValue);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      mos.close();
+    }
+  }
+
+  /**
+   * Joins the location of each node with all the ways referencing it. The
+   * output is keyed by the way ID.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class NodeWayJoinReduce extends MapReduceBase implements
+      Reducer<LongWritable, JoinRecord, LongWritable, JoinRecord> {
+    private LongWritable outKey = new LongWritable();
+    private JoinRecord outValue = new JoinRecord();
+    private long[] wayIds = new long[16];
+    private int[] positions = new int[16];
+
+    @Override
+    public void reduce(LongWritable key, Iterator<JoinRecord> values,
+        OutputCollector<LongWritable, JoinRecord> output, Reporter reporter)
+        throws IOException {
+      if ((key.get() & 1) != 0) {
+        // Tags of a way are passed as is
+        outKey.set(key.get() >> 1);
+        while (values.hasNext())
+          output.collect(outKey, values.next());
+        return;
+      }
+      boolean located = false;
+      int numRefs = 0;
+      while (values.hasNext()) {
+        JoinRecord record = values.next();
+        if (record.type == JoinRecord.NODE) {
+          located = true;
+          outValue.lon = record.lon;
+          outValue.lat = record.lat;
+        } else {
+          if (numRefs == wayIds.length) {
+            wayIds = Arrays.copyOf(wayIds, numRefs * 2);
+            positions = Arrays.copyOf(positions, numRefs * 2);
+          }
+          wayIds[numRefs] = record.id;
+          positions[numRefs] = record.pos;
+          numRefs++;
+        }
+      }
+      // Nodes that are not in the file, e.g., outside an extract, are dropped
+      if (!located)
+        return;
+      outValue.type = JoinRecord.WAY_NODE;
+      outValue.id = key.get() >> 1;
+      for (int i = 0; i < numRefs; i++) {
+        outKey.set(wayIds[i]);
+        outValue.pos = positions[i];
+        output.collect(outKey, outValue);
+      }
+    }
+  }
+
+  /**
+   * Creates the shape of each way out of its located nodes
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class WayAssemblyReduce extends MapReduceBase implements
+      Reducer<LongWritable, JoinRecord, NullWritable, OSMPolygon> {
+    private MultipleOutputs mos;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    /**Node IDs and locations indexed by their position in the way*/
+    private long[] nodeIds = new long[16];
+    private double[] lons = new double[16];
+    private double[] lats = new double[16];
+    private boolean[] located = new boolean[16];
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      mos = new MultipleOutputs(job);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void reduce(LongWritable wayId, Iterator<JoinRecord> values,
+        OutputCollector<NullWritable, OSMPolygon> output, Reporter reporter)
+        throws IOException {
+      Map<String, String> tags = null;
+      int maxPos = -1;
+      Arrays.fill(located, false);
+      while (values.hasNext()) {
+        JoinRecord record = values.next();
+        if (record.type == JoinRecord.WAY_TAGS) {
+          tags = new HashMap<String, String>(record.tags);
+        } else {
+          if (record.pos >= located.length) {
+            int newLength = Math.max(located.length * 2, record.pos + 1);
+            nodeIds = Arrays.copyOf(nodeIds, newLength);
+            lons = Arrays.copyOf(lons, newLength);
+            lats = Arrays.copyOf(lats, newLength);
+            located = Arrays.copyOf(located, newLength);
+          }
+          nodeIds[record.pos] = record.id;
+          lons[record.pos] = record.lon;
+          lats[record.pos] = record.lat;
+          located[record.pos] = true;
+          maxPos = Math.max(maxPos, record.pos);
+        }
+      }
+      if (tags == null)
+        tags = new HashMap<String, String>();
+      // Collect the located nodes in order
+      int numPoints = 0;
+      int[] order = new int[maxPos + 1];
+      for (int pos = 0; pos <= maxPos; pos++)
+        if (located[pos])
+          order[numPoints++] = pos;
+      if (numPoints < 2)
+        return;
+
+      Coordinate[] coords = new Coordinate[numPoints];
+      for (int i = 0; i < numPoints; i++)
+        coords[i] = new Coordinate(lons[order[i]], lats[order[i]]);
+      Geometry geom;
+      if (numPoints >= 4 && nodeIds[order[0]] == nodeIds[order[numPoints - 1]])
+        geom = geometryFactory.createPolygon(geometryFactory.createLinearRing(coords), null);
+      else
+        geom = geometryFactory.createLineString(coords);
+      OSMPolygon way = new OSMPolygon(geom);
+      way.id = wayId.get();
+      way.tags = tags;
+      output.collect(NullWritable.get(), way);
+
+      if (HasTag.hasTag(tags, RoadKeys, RoadValues)) {
+        // Write each segment of the road as an edge
+        String jsonTags = MapToJson.mapToJson(tags);
+        OutputCollector<NullWritable, OSMEdge> edges = mos.getCollector(EdgesOutput, reporter);
+        OSMEdge edge = new OSMEdge();
+        edge.wayId = wayId.get();
+        edge.tags = jsonTags;
+        for (int i = 1; i < numPoints; i++) {
+          edge.edgeId = Long.parseLong(Long.toString(wayId.get()) + i);
+          edge.nodeId1 = nodeIds[order[i - 1]];
+          edge.lon1 = lons[order[i - 1]];
+          edge.lat1 = lats[order[i - 1]];
+          edge.nodeId2 = nodeIds[order[i]];
+          edge.lon2 = lons[order[i]];
+          edge.lat2 = lats[order[i]];
+          edges.collect(NullWritable.get(), edge);
+        }
+      }
+      reporter.progress();
+    }
+
+    @Override
+    public void close() throws IOException {
+      mos.close();
+    }
+  }
+
+  /**
+   * Extracts points, ways and road edges from the given OSM file
+   * @param inFile
+   * @param outDir
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void extract(Path inFile, Path outDir, OperationsParams params)
+      throws IOException, InterruptedException {
+    FileSystem outFs = outDir.getFileSystem(params);
+    Path joinDir = new Path(outDir, "node_way_join");
+    boolean local = OperationsParams.isLocal(params, inFile);
+
+    // Step 1: node-way join
+    JobConf joinJob = new JobConf(params, OSMExtractor.class);
+    joinJob.setJobName("OSMNodeWayJoin");
+    joinJob.setInputFormat(OSMInputFormat.class);
+    OSMInputFormat.setInputPaths(joinJob, inFile);
+    joinJob.setMapperClass(NodeWayJoinMap.class);
+    joinJob.setMapOutputKeyClass(LongWritable.class);
+    joinJob.setMapOutputValueClass(JoinRecord.class);
+    joinJob.setReducerClass(NodeWayJoinReduce.class);
+    joinJob.setOutputKeyClass(LongWritable.class);
+    joinJob.setOutputValueClass(JoinRecord.class);
+    joinJob.setOutputFormat(SequenceFileOutputFormat.class);
+    SequenceFileOutputFormat.setOutputPath(joinJob, joinDir);
+    MultipleOutputs.addNamedOutput(joinJob, PointsOutput, TextOutputFormat.class,
+        NullWritable.class, OSMPoint.class);
+    ClusterStatus clusterStatus = new JobClient(joinJob).getClusterStatus();
+    joinJob.setNumReduceTasks(Math.max(1, clusterStatus.getMaxReduceTasks() * 9 / 10));
+    if (local)
+      joinJob.set("mapred.job.tracker", "local");
+    JobClient.runJob(joinJob);
+    moveNamedOutput(outFs, joinDir, PointsOutput, new Path(outDir, PointsOutput));
+
+    // Step 2: assemble ways
+    JobConf wayJob = new JobConf(params, OSMExtractor.class);
+    wayJob.setJobName("OSMWayAssembly");
+    wayJob.setInputFormat(SequenceFileInputFormat.class);
+    SequenceFileInputFormat.setInputPaths(wayJob, joinDir);
+    wayJob.setMapperClass(IdentityMapper.class);
+    wayJob.setMapOutputKeyClass(LongWritable.class);
+    wayJob.setMapOutputValueClass(JoinRecord.class);
+    wayJob.setReducerClass(WayAssemblyReduce.class);
+    wayJob.setOutputKeyClass(NullWritable.class);
+    wayJob.setOutputValueClass(OSMPolygon.class);
+    wayJob.setOutputFormat(TextOutputFormat.class);
+    Path waysDir = new Path(outDir, "ways");
+    TextOutputFormat.setOutputPath(wayJob, waysDir);
+    MultipleOutputs.addNamedOutput(wayJob, EdgesOutput, TextOutputFormat.class,
+        NullWritable.class, OSMEdge.class);
+    wayJob.setNumReduceTasks(Math.max(1, clusterStatus.getMaxReduceTasks() * 9 / 10));
+    if (local)
+      wayJob.set("mapred.job.tracker", "local");
+    JobClient.runJob(wayJob);
+    moveNamedOutput(outFs, waysDir, EdgesOutput, new Path(outDir, EdgesOutput));
+
+    outFs.delete(joinDir, true);
+  }
+
+  /**
+   * Moves the files of a named output out of the output directory of a job
+   * @throws IOException
+   */
+  private static void moveNamedOutput(FileSystem fs, Path jobDir, String name,
+      Path destDir) throws IOException {
+    fs.mkdirs(destDir);
+    FileStatus[] files = fs.globStatus(new Path(jobDir, name + "-*"));
+    if (files == null)
+      return;
+    for (FileStatus file : files)
+      fs.rename(file.getPath(), new Path(destDir, file.getPath().getName()));
+    LOG.info("Moved " + files.length + " files of '" + name + "' to " + destDir);
+  }
+
+  private static void printUsage() {
+    System.out.println("Extracts points, ways and road edges from an OSM XML file");
+    System.out.println("Parameters (* marks required parameters):");
+    System.out.println("<input file> - (*) Path to the OSM XML file (optionally compressed)");
+    System.out.println("<output dir> - (*) Path to the output directory");
+    System.out.println("-overwrite - Overwrite output directory without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    if (!params.checkInputOutput(true)) {
+      printUsage();
+      System.exit(1);
+    }
+    long t1 = System.currentTimeMillis();
+    extract(params.getInputPath(), params.getOutputPath(), params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: " + (t2 - t1) + " millis");
+  }
+}
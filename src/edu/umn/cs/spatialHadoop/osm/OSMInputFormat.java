@@ -0,0 +1,48 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.osm;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * An input format that reads nodes, ways and relations from OSM XML files.
+ * Uncompressed files and files compressed with a splittable codec (e.g.,
+ * bzip2 which is used for planet files) are split and parsed in parallel.
+ * @author Ahmed Eldawy
+ *
+ */
+public class OSMInputFormat extends FileInputFormat<LongWritable, OSMElement> {
+
+  @Override
+  protected boolean isSplitable(FileSystem fs, Path file) {
+    CompressionCodec codec = new CompressionCodecFactory(fs.getConf()).getCodec(file);
+    return codec == null || codec instanceof SplittableCompressionCodec;
+  }
+
+  @Override
+  public RecordReader<LongWritable, OSMElement> getRecordReader(
+      InputSplit split, JobConf job, Reporter reporter) throws IOException {
+    if (reporter != null)
+      reporter.setStatus(split.toString());
+    return new OSMRecordReader(job, (FileSplit) split);
+  }
+}
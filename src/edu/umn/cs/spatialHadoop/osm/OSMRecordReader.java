@@ -0,0 +1,476 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.osm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplitCompressionInputStream;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.RecordReader;
+
+/**
+ * Reads nodes, ways and relations from an OSM XML file. The file is parsed
+ * as a stream of bytes in one pass and each element is parsed directly into
+ * an {@link OSMElement} without building an XML document for it. Attributes
+ * that are not needed are skipped without being decoded.
+ *
+ * An element belongs to the split that contains the first byte of its start
+ * tag. The reader skips any partial element at the beginning of the split and
+ * reads beyond the end of the split to complete the last element.
+ *
+ * Tag keys and values are cleaned in the same way the Pig UDFs do, i.e.,
+ * white spaces are replaced with a space and characters that are used as
+ * separators in text files (quotes, hash and comma) are replaced with an
+ * underscore.
+ * @author Ahmed Eldawy
+ *
+ */
+public class OSMRecordReader implements RecordReader<LongWritable, OSMElement> {
+  private static final Log LOG = LogFactory.getLog(OSMRecordReader.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte[] NodeTag = "node".getBytes();
+  private static final byte[] WayTag = "way".getBytes();
+  private static final byte[] RelationTag = "relation".getBytes();
+  private static final byte[] TagTag = "tag".getBytes();
+  private static final byte[] NdTag = "nd".getBytes();
+  private static final byte[] MemberTag = "member".getBytes();
+
+  /**First offset to read from the input*/
+  private long start;
+  /**Elements with a start tag at or after this offset are not read*/
+  private long end;
+  /**Position of the next byte to read from the (decompressed) stream*/
+  private long pos;
+
+  private InputStream in;
+  private Seekable filePosition;
+  private Decompressor decompressor;
+  /**Whether positions are reported by the compressed stream*/
+  private boolean compressed;
+
+  /**A buffer of bytes read from the input but not parsed yet*/
+  private byte[] buffer = new byte[64 * 1024];
+  private int bufferPos, bufferLength;
+
+  /**Name of the current tag*/
+  private byte[] tagName = new byte[64];
+  private int tagNameLength;
+
+  /**Name and raw (escaped) value of the last attribute read*/
+  private byte[] attrName = new byte[64];
+  private int attrNameLength;
+  private byte[] attrValue = new byte[1024];
+  private int attrValueLength;
+
+  /**Whether the last tag ended with '/>'*/
+  private boolean selfClosing;
+
+  /**Position of the start tag of the last element read*/
+  private long elementPos;
+
+  public OSMRecordReader(Configuration job, FileSplit split) throws IOException {
+    this.start = split.getStart();
+    this.end = split.getStart() + split.getLength();
+    Path path = split.getPath();
+    FileSystem fs = path.getFileSystem(job);
+    FSDataInputStream directIn = fs.open(path);
+    CompressionCodec codec = new CompressionCodecFactory(job).getCodec(path);
+    if (codec != null) {
+      decompressor = CodecPool.getDecompressor(codec);
+      if (codec instanceof SplittableCompressionCodec) {
+        SplitCompressionInputStream cIn =
+            ((SplittableCompressionCodec) codec).createInputStream(directIn,
+                decompressor, start, end, SplittableCompressionCodec.READ_MODE.BYBLOCK);
+        in = cIn;
+        start = cIn.getAdjustedStart();
+        end = cIn.getAdjustedEnd();
+        filePosition = cIn;
+        compressed = true;
+      } else {
+        // Not splittable. The whole file is read in one split
+        in = codec.createInputStream(directIn, decompressor);
+        filePosition = directIn;
+        end = Long.MAX_VALUE;
+      }
+    } else {
+      directIn.seek(start);
+      in = directIn;
+      filePosition = directIn;
+    }
+    this.pos = start;
+    LOG.info("Reading OSM elements from " + path + " [" + start + ", " + end + ")");
+  }
+
+  @Override
+  public boolean next(LongWritable key, OSMElement value) throws IOException {
+    byte type = skipToNextElement();
+    if (type == -1)
+      return false;
+    key.set(elementPos);
+    value.clear();
+    value.type = type;
+    // Attributes of the element itself
+    while (readAttribute()) {
+      if (attrNameIs("id"))
+        value.id = parseLong(attrValue, attrValueLength);
+      else if (attrNameIs("lat"))
+        value.lat = Double.parseDouble(new String(attrValue, 0, attrValueLength));
+      else if (attrNameIs("lon"))
+        value.lon = Double.parseDouble(new String(attrValue, 0, attrValueLength));
+    }
+    if (selfClosing)
+      return true;
+    // Nested tags until the end tag of the element
+    byte[] elementName = type == OSMElement.NODE ? NodeTag
+        : (type == OSMElement.WAY ? WayTag : RelationTag);
+    while (skipToByte('<') != -1) {
+      if (peekByte() == '/') {
+        readByte();
+        readTagName();
+        skipToByte('>');
+        if (tagNameIs(elementName))
+          return true;
+        continue;
+      }
+      readTagName();
+      if (tagNameLength == 0 || tagName[0] == '!' || tagName[0] == '?') {
+        skipSpecialTag();
+      } else if (tagNameIs(TagTag)) {
+        String k = null, v = null;
+        while (readAttribute()) {
+          if (attrNameIs("k"))
+            k = decodeAttrValue();
+          else if (attrNameIs("v"))
+            v = decodeAttrValue();
+        }
+        if (k != null && v != null)
+          value.tags.put(k, v);
+      } else if (tagNameIs(NdTag) || tagNameIs(MemberTag)) {
+        while (readAttribute()) {
+          if (attrNameIs("ref"))
+            value.addRef(parseLong(attrValue, attrValueLength));
+        }
+      } else {
+        while (readAttribute());
+      }
+    }
+    // The file ended in the middle of an element
+    LOG.warn("Skipping an incomplete element at the end of the file " + value);
+    return false;
+  }
+
+  /**
+   * Skips to the start tag of the next node, way or relation and returns its
+   * type. The tag name is consumed. Returns -1 if there are no more elements
+   * in this split.
+   * @return
+   * @throws IOException
+   */
+  private byte skipToNextElement() throws IOException {
+    while (true) {
+      if (skipToByte('<') == -1)
+        return -1;
+      // Position of the '<' that starts the tag
+      long tagPos = compressed ? filePosition.getPos() : pos - 1;
+      if (compressed ? tagPos > end : tagPos >= end)
+        return -1;
+      elementPos = tagPos;
+      readTagName();
+      if (tagNameLength > 0 && tagName[0] == '!') {
+        skipSpecialTag();
+        continue;
+      }
+      if (tagNameIs(NodeTag))
+        return OSMElement.NODE;
+      if (tagNameIs(WayTag))
+        return OSMElement.WAY;
+      if (tagNameIs(RelationTag))
+        return OSMElement.RELATION;
+    }
+  }
+
+  /**
+   * Skips a comment, a declaration or a processing instruction after its
+   * name has been read. Comments are skipped until '-->' as they might
+   * contain other tags.
+   * @throws IOException
+   */
+  private void skipSpecialTag() throws IOException {
+    boolean comment = tagNameLength >= 3 && tagName[0] == '!' &&
+        tagName[1] == '-' && tagName[2] == '-';
+    if (!comment) {
+      skipToByte('>');
+      return;
+    }
+    // Number of consecutive dashes seen so far including the ones in the name
+    int dashes = 0;
+    for (int i = 3; i < tagNameLength; i++)
+      dashes = tagName[i] == '-' ? dashes + 1 : 0;
+    int b;
+    while ((b = readByte()) != -1) {
+      if (b == '>' && dashes >= 2)
+        return;
+      dashes = b == '-' ? dashes + 1 : 0;
+    }
+  }
+
+  /**
+   * Reads the name of a tag right after its '<'
+   * @throws IOException
+   */
+  private void readTagName() throws IOException {
+    tagNameLength = 0;
+    int b;
+    while ((b = peekByte()) != -1 && !isWhitespace(b) && b != '>' && b != '/') {
+      if (tagNameLength == tagName.length)
+        tagName = Arrays.copyOf(tagName, tagName.length * 2);
+      tagName[tagNameLength++] = (byte) readByte();
+    }
+  }
+
+  /**
+   * Reads the next attribute in the current tag. Returns false if the end of
+   * the tag is reached instead. In this case, {@link #selfClosing} indicates
+   * whether the tag is closed with '/>'.
+   * @return
+   * @throws IOException
+   */
+  private boolean readAttribute() throws IOException {
+    int b = readByte();
+    while (isWhitespace(b))
+      b = readByte();
+    if (b == -1 || b == '>') {
+      selfClosing = false;
+      return false;
+    }
+    if (b == '/' || b == '?') {
+      skipToByte('>');
+      selfClosing = true;
+      return false;
+    }
+    attrNameLength = 0;
+    while (b != -1 && b != '=' && !isWhitespace(b)) {
+      if (attrNameLength == attrName.length)
+        attrName = Arrays.copyOf(attrName, attrName.length * 2);
+      attrName[attrNameLength++] = (byte) b;
+      b = readByte();
+    }
+    while (b != -1 && b != '=')
+      b = readByte();
+    int quote = readByte();
+    while (isWhitespace(quote))
+      quote = readByte();
+    attrValueLength = 0;
+    while ((b = readByte()) != -1 && b != quote) {
+      if (attrValueLength == attrValue.length)
+        attrValue = Arrays.copyOf(attrValue, attrValue.length * 2);
+      attrValue[attrValueLength++] = (byte) b;
+    }
+    return true;
+  }
+
+  /**
+   * Decodes the value of the last attribute read. XML entities are resolved
+   * and the value is cleaned to be safely stored in text files.
+   * @return
+   */
+  private String decodeAttrValue() {
+    String str = new String(attrValue, 0, attrValueLength, UTF8);
+    StringBuilder decoded = null;
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      int next = i + 1;
+      if (c == '&') {
+        int semicolon = str.indexOf(';', i);
+        if (semicolon != -1) {
+          String entity = str.substring(i + 1, semicolon);
+          next = semicolon + 1;
+          if (entity.equals("amp"))
+            c = '&';
+          else if (entity.equals("lt"))
+            c = '<';
+          else if (entity.equals("gt"))
+            c = '>';
+          else if (entity.equals("quot"))
+            c = '"';
+          else if (entity.equals("apos"))
+            c = '\'';
+          else if (entity.startsWith("#")) {
+            int codePoint = parseCodePoint(entity);
+            if (codePoint == -1) {
+              next = i + 1; // Malformed entity, keep it as is
+            } else if (Character.isSupplementaryCodePoint(codePoint)) {
+              // Characters outside the BMP, e.g., emoji, need two chars
+              if (decoded == null) {
+                decoded = new StringBuilder(str.length());
+                decoded.append(str, 0, i);
+              }
+              decoded.append(Character.toChars(codePoint));
+              i = next - 1;
+              continue;
+            } else {
+              c = (char) codePoint;
+            }
+          } else
+            next = i + 1; // Unknown entity, keep it as is
+        }
+      }
+      char cleaned = c;
+      if (Character.isWhitespace(c))
+        cleaned = ' ';
+      else if (c == '\'' || c == '"' || c == '#' || c == ',')
+        cleaned = '_';
+      if (decoded == null && (cleaned != str.charAt(i) || next != i + 1)) {
+        decoded = new StringBuilder(str.length());
+        decoded.append(str, 0, i);
+      }
+      if (decoded != null)
+        decoded.append(cleaned);
+      i = next - 1;
+    }
+    return decoded == null ? str : decoded.toString();
+  }
+
+  /**
+   * Parses a numeric character reference without the leading '&amp;' and
+   * trailing ';', e.g., '#65' or '#x1F600'.
+   * @param entity
+   * @return the code point or -1 if the entity is malformed
+   */
+  private static int parseCodePoint(String entity) {
+    try {
+      int codePoint = entity.startsWith("#x") ?
+          Integer.parseInt(entity.substring(2), 16) :
+          Integer.parseInt(entity.substring(1));
+      return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private boolean attrNameIs(String name) {
+    if (attrNameLength != name.length())
+      return false;
+    for (int i = 0; i < attrNameLength; i++)
+      if (attrName[i] != name.charAt(i))
+        return false;
+    return true;
+  }
+
+  private boolean tagNameIs(byte[] name) {
+    if (tagNameLength != name.length)
+      return false;
+    for (int i = 0; i < tagNameLength; i++)
+      if (tagName[i] != name[i])
+        return false;
+    return true;
+  }
+
+  private static long parseLong(byte[] bytes, int length) {
+    long value = 0;
+    boolean negative = length > 0 && bytes[0] == '-';
+    for (int i = negative ? 1 : 0; i < length; i++) {
+      if (bytes[i] < '0' || bytes[i] > '9')
+        throw new NumberFormatException("Invalid number "+new String(bytes, 0, length));
+      value = value * 10 + (bytes[i] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  private static boolean isWhitespace(int b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  /**
+   * Consumes bytes until the given byte is consumed. Returns the byte or -1
+   * if the end of the stream is reached.
+   */
+  private int skipToByte(int target) throws IOException {
+    int b;
+    while ((b = readByte()) != -1 && b != target);
+    return b;
+  }
+
+  private int readByte() throws IOException {
+    if (bufferPos == bufferLength && !fillBuffer())
+      return -1;
+    pos++;
+    return buffer[bufferPos++] & 0xff;
+  }
+
+  private int peekByte() throws IOException {
+    if (bufferPos == bufferLength && !fillBuffer())
+      return -1;
+    return buffer[bufferPos] & 0xff;
+  }
+
+  private boolean fillBuffer() throws IOException {
+    bufferPos = 0;
+    bufferLength = in.read(buffer);
+    if (bufferLength <= 0) {
+      bufferLength = 0;
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public LongWritable createKey() {
+    return new LongWritable();
+  }
+
+  @Override
+  public OSMElement createValue() {
+    return new OSMElement();
+  }
+
+  @Override
+  public long getPos() throws IOException {
+    return pos;
+  }
+
+  @Override
+  public float getProgress() throws IOException {
+    if (start == end || end == Long.MAX_VALUE)
+      return 0.0f;
+    long position = compressed ? filePosition.getPos() : pos;
+    return Math.min(1.0f, (position - start) / (float) (end - start));
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (in != null)
+        in.close();
+    } finally {
+      if (decompressor != null) {
+        CodecPool.returnDecompressor(decompressor);
+        decompressor = null;
+      }
+    }
+  }
+}
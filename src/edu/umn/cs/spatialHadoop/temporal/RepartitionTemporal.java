@@ -260,13 +260,25 @@ public class RepartitionTemporal extends Repartition {
 
 		bulkLoadSpatioTemporalIndexesLevel(params.getPaths()[0],
 				temporalIndexManager.getNeededDailyIndexes(), "daily", params);
+		// Spatial partitions cannot be patched, so existing months and years
+		// that enclose updated days are rebuilt
 		bulkLoadSpatioTemporalIndexesLevel(
 				temporalIndexManager.getDailyIndexesHomePath(),
-				temporalIndexManager.getNeededMonthlyIndexes(), "monthly",
-				params);
+				concat(temporalIndexManager.getNeededMonthlyIndexes(),
+						temporalIndexManager.getPatchingMonthlyIndexes()),
+				"monthly", params);
 		bulkLoadSpatioTemporalIndexesLevel(
 				temporalIndexManager.getMonthlyIndexesHomePath(),
-				temporalIndexManager.getNeededYearlyIndexes(), "yearly", params);
+				concat(temporalIndexManager.getNeededYearlyIndexes(),
+						temporalIndexManager.getPatchingYearlyIndexes()),
+				"yearly", params);
+	}
+
+	private static Path[] concat(Path[] paths1, Path[] paths2) {
+		Path[] paths = new Path[paths1.length + paths2.length];
+		System.arraycopy(paths1, 0, paths, 0, paths1.length);
+		System.arraycopy(paths2, 0, paths, paths1.length, paths2.length);
+		return paths;
 	}
 
 	protected static void printUsage() {
@@ -321,6 +333,15 @@ public class RepartitionTemporal extends Repartition {
 		long t2 = System.currentTimeMillis();
 		System.out.println("Total indexing time in millis " + (t2 - t1));
 
+		// Write the catalogs of all temporal levels for queries
+		for (Path indexHomePath : new Path[] {
+				temporalIndexManager.getDailyIndexesHomePath(),
+				temporalIndexManager.getMonthlyIndexesHomePath(),
+				temporalIndexManager.getYearlyIndexesHomePath() }) {
+			TemporalIndex.writeCatalog(indexHomePath.getFileSystem(params),
+					indexHomePath);
+		}
+
 	}
 
 }
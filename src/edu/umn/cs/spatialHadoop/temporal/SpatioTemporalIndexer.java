@@ -0,0 +1,251 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.temporal;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.MultipleOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Progressable;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.operations.FileMBR;
+import edu.umn.cs.spatialHadoop.operations.Indexer;
+
+/**
+ * Builds a hierarchical spatio-temporal index for timestamped shapes, e.g.,
+ * tweets or GPS traces. Shapes are sliced by time into daily, monthly and
+ * yearly partitions, each stored in a directory named after its time range
+ * under the directory of its level, i.e., 'daily/yyyy.MM.dd', 'monthly/yyyy.MM'
+ * and 'yearly/yyyy'. Each partition is indexed spatially using the chosen
+ * partitioner which stores the number of records of each spatial partition in
+ * its master file. A query picks the coarsest partitions that cover its time
+ * range using {@link TemporalIndex#selectPartitions}.
+ * @author Ahmed Eldawy
+ *
+ */
+public class SpatioTemporalIndexer {
+  private static final Log LOG = LogFactory.getLog(SpatioTemporalIndexer.class);
+
+  /**Names of the supported temporal levels from the finest to the coarsest*/
+  public static final String[] LevelNames = {"daily", "monthly", "yearly"};
+
+  /**Formats of the names of temporal partitions in each level*/
+  private static final String[] LevelFormats = {"yyyy.MM.dd", "yyyy.MM", "yyyy"};
+
+  /**Configuration line for the indexes of levels to build*/
+  private static final String BuiltLevels = "SpatioTemporalIndexer.Levels";
+
+  /**Name of the temporary directory that holds the data of time slices*/
+  private static final String SlicesDir = "slices";
+
+  /**
+   * Assigns each shape to the time slice that contains it in each level
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class TimeSliceMap extends MapReduceBase implements
+      Mapper<Rectangle, Shape, Text, Shape> {
+    /**Formats used to generate slice names. Not shared across threads*/
+    private SimpleDateFormat[] formats;
+    /**Names of the levels to generate slices in*/
+    private String[] levels;
+    private Text sliceName = new Text();
+    private Date date = new Date();
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      levels = job.getStrings(BuiltLevels);
+      formats = new SimpleDateFormat[levels.length];
+      for (int i = 0; i < levels.length; i++)
+        formats[i] = new SimpleDateFormat(LevelFormats[getLevelIndex(levels[i])]);
+    }
+
+    @Override
+    public void map(Rectangle dummy, Shape shape,
+        OutputCollector<Text, Shape> output, Reporter reporter)
+        throws IOException {
+      date.setTime(((TemporalShape) shape).getTimestamp());
+      for (int i = 0; i < levels.length; i++) {
+        sliceName.set(levels[i] + "/" + formats[i].format(date));
+        output.collect(sliceName, shape);
+      }
+    }
+  }
+
+  /**
+   * Writes the shapes of each time slice to a directory named after the slice
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class TimeSliceOutputFormat extends MultipleOutputFormat<Text, Shape> {
+    @Override
+    protected RecordWriter<Text, Shape> getBaseRecordWriter(FileSystem fs,
+        JobConf job, String name, Progressable progress) throws IOException {
+      return new TextOutputFormat<Text, Shape>().getRecordWriter(fs, job, name, progress);
+    }
+
+    @Override
+    protected String generateFileNameForKeyValue(Text sliceName, Shape shape,
+        String name) {
+      return sliceName + "/" + name;
+    }
+
+    @Override
+    protected Text generateActualKey(Text sliceName, Shape shape) {
+      // Write only the shape
+      return null;
+    }
+  }
+
+  /**
+   * Returns the position of a level in {@link #LevelNames}
+   * @param levelName
+   * @return
+   */
+  private static int getLevelIndex(String levelName) {
+    for (int i = 0; i < LevelNames.length; i++) {
+      if (LevelNames[i].equalsIgnoreCase(levelName))
+        return i;
+    }
+    throw new RuntimeException("Unknown temporal level '" + levelName + "'");
+  }
+
+  /**
+   * Builds the spatio-temporal index of the input in the output directory
+   * @param inPath
+   * @param outPath
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ParseException
+   */
+  public static void index(Path inPath, Path outPath, OperationsParams params)
+      throws IOException, InterruptedException, ParseException {
+    String[] levels = params.getStrings("levels", LevelNames);
+    for (int i = 0; i < levels.length; i++)
+      levels[i] = LevelNames[getLevelIndex(levels[i])];
+    Shape shape = params.getShape("shape");
+    if (!(shape instanceof TemporalShape))
+      throw new RuntimeException("Shape " + shape.getClass().getName()
+          + " does not have timestamps. It must implement "
+          + TemporalShape.class.getName());
+    FileSystem outFs = outPath.getFileSystem(params);
+    Path slicesPath = new Path(outPath, SlicesDir);
+
+    // Step 1: Slice the input by time in all levels
+    JobConf job = new JobConf(params, SpatioTemporalIndexer.class);
+    job.setJobName("TimeSlicing");
+    job.setStrings(BuiltLevels, levels);
+    job.setInputFormat(ShapeInputFormat.class);
+    ShapeInputFormat.setInputPaths(job, inPath);
+    job.setMapperClass(TimeSliceMap.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(shape.getClass());
+    job.setOutputFormat(TimeSliceOutputFormat.class);
+    TimeSliceOutputFormat.setOutputPath(job, slicesPath);
+    job.setNumReduceTasks(0);
+    if (OperationsParams.isLocal(params, inPath))
+      job.set("mapred.job.tracker", "local");
+    JobClient.runJob(job);
+
+    // Step 2: Index each time slice spatially. All slices share the MBR of
+    // the input so it is computed only once.
+    if (params.getShape("mbr") == null)
+      OperationsParams.setShape(params, "mbr",
+          FileMBR.fileMBR(inPath, new OperationsParams(params)).getMBR());
+    for (String level : levels) {
+      Path levelSlicesPath = new Path(slicesPath, level);
+      if (!outFs.exists(levelSlicesPath))
+        continue;
+      FileStatus[] slices = outFs.listStatus(levelSlicesPath,
+          SpatialSite.NonHiddenFileFilter);
+      LOG.info("Indexing " + slices.length + " partitions in level " + level);
+      Path levelPath = new Path(outPath, level);
+      for (FileStatus slice : slices) {
+        Path partitionPath = new Path(levelPath, slice.getPath().getName());
+        Indexer.index(slice.getPath(), partitionPath, new OperationsParams(params));
+      }
+      // Store the time ranges of all partitions for queries
+      TemporalIndex.writeCatalog(outFs, levelPath);
+    }
+
+    outFs.delete(slicesPath, true);
+  }
+
+  /**
+   * Returns the directories of all levels of the index in the given path
+   * from the coarsest to the finest level.
+   * @param indexPath
+   * @return
+   */
+  public static Path[] getLevels(Path indexPath) {
+    Vector<Path> levels = new Vector<Path>();
+    for (int i = LevelNames.length - 1; i >= 0; i--)
+      levels.add(new Path(indexPath, LevelNames[i]));
+    return levels.toArray(new Path[levels.size()]);
+  }
+
+  protected static void printUsage() {
+    System.out.println("Builds a hierarchical spatio-temporal index for timestamped shapes");
+    System.out.println("Parameters (* marks required parameters):");
+    System.out.println("<input file> - (*) Path to input file");
+    System.out.println("<output file> - (*) Path to output file");
+    System.out.println("shape:<class> - (*) Type of shapes; must implement "
+        + TemporalShape.class.getName());
+    System.out.println("sindex:<index> - (*) Type of spatial index of each partition (grid|str|str+|quadtree|zcurve|kdtree)");
+    System.out.println("levels:<l1,l2,...> - Temporal levels to build (daily,monthly,yearly)");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws Exception {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+
+    if (!params.checkInputOutput(true)) {
+      printUsage();
+      return;
+    }
+    if (params.get("sindex") == null) {
+      System.err.println("Please specify type of index to build (grid, str, str+, quadtree, zcurve, kdtree)");
+      printUsage();
+      return;
+    }
+    Path inputPath = params.getInputPath();
+    Path outputPath = params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    index(inputPath, outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total indexing time in millis " + (t2 - t1));
+  }
+}
@@ -0,0 +1,219 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.temporal;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.nasa.TimeRange;
+import edu.umn.cs.spatialHadoop.operations.RangeQuery;
+
+/**
+ * Runs a spatio-temporal range query on an index built by
+ * {@link SpatioTemporalIndexer}. The temporal partitions that cover the query
+ * time range are selected starting from the coarsest level and a spatial range
+ * query is run on each of them.
+ * @author Ahmed Eldawy
+ *
+ */
+public class SpatioTemporalRangeQuery {
+  private static final Log LOG = LogFactory.getLog(SpatioTemporalRangeQuery.class);
+
+  /**
+   * Selects the temporal partitions that cover the time range given in the
+   * parameter 'time'.
+   * @param indexPath
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws ParseException
+   */
+  public static Vector<Path> selectTemporalPartitions(Path indexPath,
+      OperationsParams params) throws IOException, ParseException {
+    TimeRange range = new TimeRange(params.get("time"));
+    FileSystem fs = indexPath.getFileSystem(params);
+    return TemporalIndex.selectPartitions(fs,
+        SpatioTemporalIndexer.getLevels(indexPath), range.start, range.end);
+  }
+
+  /**
+   * Estimates the number of results of a query from the master files of the
+   * given temporal partitions without reading any data. The estimate is the
+   * total number of records in spatial partitions that overlap the query
+   * range which is an upper bound of the actual number of results.
+   * @param fs
+   * @param partitions
+   * @param queryRange
+   * @return
+   */
+  public static long estimateResultSize(FileSystem fs, Vector<Path> partitions,
+      Shape queryRange) {
+    final long[] estimate = new long[1];
+    for (Path partition : partitions) {
+      GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs, partition);
+      if (gIndex == null)
+        continue;
+      gIndex.rangeQuery(queryRange, new ResultCollector<Partition>() {
+        @Override
+        public void collect(Partition p) {
+          estimate[0] += p.recordCount;
+        }
+      });
+    }
+    return estimate[0];
+  }
+
+  /**
+   * Runs the query on the local machine and streams the results to the given
+   * collector.
+   * @param indexPath
+   * @param params
+   * @param output
+   * @return number of results
+   * @throws IOException
+   * @throws ParseException
+   * @throws InterruptedException
+   */
+  @SuppressWarnings("unchecked")
+  public static <S extends Shape> long spatioTemporalQueryLocal(Path indexPath,
+      OperationsParams params, ResultCollector<S> output)
+      throws IOException, ParseException, InterruptedException {
+    Vector<Path> partitions = selectTemporalPartitions(indexPath, params);
+    Rectangle queryRange = params.getShape("rect", new Rectangle()).getMBR();
+    S shape = (S) params.getShape("shape");
+    long resultCount = 0;
+    for (Path partition : partitions) {
+      resultCount += RangeQuery.rangeQueryLocal(partition, queryRange, shape,
+          new OperationsParams(params), output);
+    }
+    return resultCount;
+  }
+
+  /**
+   * Runs the query using MapReduce. One job is run for each matching temporal
+   * partition and its output is written to a subdirectory of the output
+   * named after the partition, e.g., 'monthly-2015.03'.
+   * @param indexPath
+   * @param outPath
+   * @param params
+   * @throws IOException
+   * @throws ParseException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public static void spatioTemporalQueryMapReduce(Path indexPath, Path outPath,
+      OperationsParams params) throws IOException, ParseException,
+      InterruptedException, ClassNotFoundException {
+    Vector<Path> partitions = selectTemporalPartitions(indexPath, params);
+    for (Path partition : partitions) {
+      Path partitionOut = outPath == null ? null : new Path(outPath,
+          partition.getParent().getName() + "-" + partition.getName());
+      RangeQuery.rangeQueryMapReduce(partition, partitionOut,
+          new OperationsParams(params));
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Performs a spatio-temporal range query on an index built by stindex");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file> - (*) Path to the spatio-temporal index");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<class> - (*) Type of shapes stored in the index");
+    System.out.println("rect:<x1,y1,x2,y2> - (*) Query rectangle");
+    System.out.println("time:<yyyy.mm.dd..yyyy.mm.dd> - (*) Query time range");
+    System.out.println("-estimate - Only estimate the number of results from the index");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException,
+      ParseException, InterruptedException, ClassNotFoundException {
+    final OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+
+    final Path[] paths = params.getPaths();
+    if (paths.length <= 1 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (paths.length >= 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (params.get("rect") == null || params.get("time") == null) {
+      System.err.println("You must provide both a query range and a time range");
+      printUsage();
+      System.exit(1);
+    }
+    final Path inPath = params.getInputPath();
+    final Path outPath = params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    Vector<Path> partitions = selectTemporalPartitions(inPath, params);
+    Rectangle queryRange = params.getShape("rect", new Rectangle()).getMBR();
+    long estimate = estimateResultSize(inPath.getFileSystem(params),
+        partitions, queryRange);
+    LOG.info("Selected " + partitions.size() + " temporal partitions");
+    System.out.println("Estimated result size is at most " + estimate);
+    if (params.getBoolean("estimate", false))
+      return;
+
+    if (OperationsParams.isLocal(new JobConf(params), inPath)) {
+      FSDataOutputStream outFile = null;
+      ResultCollector<Shape> collector = null;
+      if (outPath != null) {
+        final FSDataOutputStream foutFile = outFile =
+            outPath.getFileSystem(params).create(outPath);
+        final byte[] newLine = System.getProperty("line.separator", "\n").getBytes();
+        collector = new ResultCollector<Shape>() {
+          final Text tempText = new Text2();
+          @Override
+          public void collect(Shape r) {
+            try {
+              tempText.clear();
+              r.toText(tempText);
+              foutFile.write(tempText.getBytes(), 0, tempText.getLength());
+              foutFile.write(newLine);
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          }
+        };
+      }
+      try {
+        long resultCount = spatioTemporalQueryLocal(inPath, params, collector);
+        System.out.println("Result size: " + resultCount);
+      } finally {
+        if (outFile != null)
+          outFile.close();
+      }
+    } else {
+      spatioTemporalQueryMapReduce(inPath, outPath, params);
+    }
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time for spatio-temporal query " + (t2 - t1) + " millis");
+  }
+}
@@ -9,19 +9,23 @@
 package edu.umn.cs.spatialHadoop.temporal;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
@@ -29,12 +33,16 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
  * Stores and retrieves a temporal index which partitions data into disjoint
- * temporal partitions each stored in a separate directory.
+ * temporal partitions each stored in a separate directory. The partitions are
+ * persisted in a catalog file in the index directory and the index is
+ * searched using binary searches over primitive arrays of start and end times.
  * 
  * @author Ahmed Eldawy
  *
  */
 public class TemporalIndex {
+	private static final Log LOG = LogFactory.getLog(TemporalIndex.class);
+
 	/***
 	 * Stores the information of one partition in the temporal index.
 	 * 
@@ -91,7 +99,8 @@ public class TemporalIndex {
 
 		@Override
 		public String toString() {
-			return DayFormat.format(start) + " .. " + DayFormat.format(end)
+			SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy.MM.dd");
+			return dayFormat.format(start) + " .. " + dayFormat.format(end)
 					+ " [" + dirName + "]";
 		}
 	}
@@ -101,12 +110,34 @@ public class TemporalIndex {
 	 */
 	private TemporalPartition[] partitions;
 
+	/** Start time of each partition in the same order of partitions */
+	private long[] starts;
+
+	/** End time of each partition in the same order of partitions */
+	private long[] ends;
+
+	/**
+	 * Modification time of the directory at the time this index was loaded.
+	 * Used to detect changes in the directory that invalidate this index.
+	 */
+	private long modificationTime;
+
 	/**
 	 * The path to the directory that contains all partitions.
 	 */
 	@SuppressWarnings("unused")
 	private Path path;
 
+	/**
+	 * Name of the catalog file that stores all partitions of a temporal index
+	 * in its directory. Being a hidden file, it is skipped when the directory
+	 * is listed or processed as an input.
+	 */
+	public static final String CatalogFileName = "_temporal_index";
+
+	/** Temporal indexes loaded in this JVM keyed by their qualified paths */
+	private static final Map<Path, TemporalIndex> CachedIndexes = new HashMap<Path, TemporalIndex>();
+
 	/** Pattern for date format of a day as it appears in NASA LP DAAC archive */
 	final static Pattern DayPattern = Pattern
 			.compile("^\\d{4}\\.\\d{2}\\.\\d{2}$");
@@ -121,7 +152,8 @@ public class TemporalIndex {
 	 * standard naming convention for subdirectories. For a partitions which
 	 * spans a whole day, the name is 'yyyy.mm.dd'. For a partitions which spans
 	 * a whole month, the name is 'yyyy.mm'. For a partitions which spans a
-	 * whole year, the name is 'yyyy'.
+	 * whole year, the name is 'yyyy'. If the directory contains an up-to-date
+	 * catalog file, partitions are read from it without listing the directory.
 	 * 
 	 * @param path
 	 * @throws IOException
@@ -130,6 +162,115 @@ public class TemporalIndex {
 	public TemporalIndex(FileSystem fs, Path path) throws IOException,
 			ParseException {
 		this.path = path;
+		this.modificationTime = fs.getFileStatus(path).getModificationTime();
+		Path catalogFile = new Path(path, CatalogFileName);
+		FileStatus catalogStatus = fs.exists(catalogFile) ? fs
+				.getFileStatus(catalogFile) : null;
+		if (catalogStatus != null
+				&& catalogStatus.getModificationTime() >= this.modificationTime) {
+			this.partitions = readCatalog(fs, catalogFile);
+		} else {
+			this.partitions = listPartitions(fs, path);
+		}
+		// Sort partitions based on time
+		Arrays.sort(this.partitions);
+		this.starts = new long[this.partitions.length];
+		this.ends = new long[this.partitions.length];
+		for (int i = 0; i < this.partitions.length; i++) {
+			this.starts[i] = this.partitions[i].start;
+			this.ends[i] = this.partitions[i].end;
+		}
+	}
+
+	/**
+	 * Returns the temporal index of the given directory. Indexes are loaded
+	 * once per JVM and reloaded only when the modification time of the
+	 * directory changes, i.e., when partitions are added or removed. The
+	 * returned index is never modified and can be shared by concurrent
+	 * queries.
+	 * 
+	 * @param fs
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static TemporalIndex getIndex(FileSystem fs, Path path)
+			throws IOException, ParseException {
+		path = path.makeQualified(fs);
+		long modificationTime = fs.getFileStatus(path).getModificationTime();
+		TemporalIndex index;
+		synchronized (CachedIndexes) {
+			index = CachedIndexes.get(path);
+		}
+		if (index == null || index.modificationTime != modificationTime) {
+			index = new TemporalIndex(fs, path);
+			synchronized (CachedIndexes) {
+				CachedIndexes.put(path, index);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the catalog file of the temporal index in the given directory by
+	 * listing all its partitions. Should be called by indexers after they add
+	 * or remove partitions so that queries do not need to list the directory.
+	 * 
+	 * @param fs
+	 * @param path
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static void writeCatalog(FileSystem fs, Path path)
+			throws IOException, ParseException {
+		TemporalPartition[] partitions = listPartitions(fs, path);
+		Arrays.sort(partitions);
+		// Write the file in place rather than renaming a temporary file so
+		// that its modification time follows that of the directory
+		PrintStream out = new PrintStream(fs.create(new Path(path,
+				CatalogFileName), true));
+		Text text = new Text();
+		for (TemporalPartition partition : partitions) {
+			text.clear();
+			out.println(partition.toText(text));
+		}
+		out.close();
+	}
+
+	/**
+	 * Reads all partitions stored in a catalog file.
+	 * 
+	 * @param fs
+	 * @param catalogFile
+	 * @return
+	 * @throws IOException
+	 */
+	private static TemporalPartition[] readCatalog(FileSystem fs,
+			Path catalogFile) throws IOException {
+		Vector<TemporalPartition> vpartitions = new Vector<TemporalPartition>();
+		LineReader in = new LineReader(fs.open(catalogFile));
+		Text line = new Text();
+		while (in.readLine(line) > 0) {
+			TemporalPartition p = new TemporalPartition();
+			p.fromText(line);
+			vpartitions.add(p);
+		}
+		in.close();
+		return vpartitions.toArray(new TemporalPartition[vpartitions.size()]);
+	}
+
+	/**
+	 * Creates the partitions of a directory by listing its subdirectories and
+	 * parsing their names.
+	 * 
+	 * @param fs
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	private static TemporalPartition[] listPartitions(FileSystem fs, Path path)
+			throws IOException {
 		FileStatus[] subdirs = fs.listStatus(path,
 				SpatialSite.NonHiddenFileFilter);
 		Calendar calendar = Calendar.getInstance();
@@ -142,44 +283,90 @@ public class TemporalIndex {
 			TemporalPartition p = new TemporalPartition();
 			vpartitions.add(p);
 			p.dirName = subdir.getPath().getName();
-			Matcher matcher = DayPattern.matcher(p.dirName);
-			if (matcher.matches()) {
-				// Day
-				Date date = DayFormat.parse(p.dirName);
-				calendar.setTime(date);
-				p.start = calendar.getTimeInMillis();
-				calendar.add(Calendar.DAY_OF_MONTH, 1);
-				p.end = calendar.getTimeInMillis();
-				continue;
-			}
-			matcher = MonthPattern.matcher(p.dirName);
-			if (matcher.matches()) {
-				// Month
-				Date date = MonthFormat.parse(p.dirName);
-				calendar.setTime(date);
-				p.start = calendar.getTimeInMillis();
-				calendar.add(Calendar.MONTH, 1);
-				p.end = calendar.getTimeInMillis();
-				continue;
+			// Parse the name directly rather than using the shared date
+			// formats which are not thread-safe
+			int calendarField;
+			if (DayPattern.matcher(p.dirName).matches()) {
+				calendarField = Calendar.DAY_OF_MONTH;
+			} else if (MonthPattern.matcher(p.dirName).matches()) {
+				calendarField = Calendar.MONTH;
+			} else if (YearPattern.matcher(p.dirName).matches()) {
+				calendarField = Calendar.YEAR;
+			} else {
+				throw new RuntimeException(
+						"Cannot detect time range for directory: '"
+								+ subdir.getPath() + "'");
 			}
-			matcher = YearPattern.matcher(p.dirName);
-			if (matcher.matches()) {
-				// Month
-				Date date = YearFormat.parse(p.dirName);
-				calendar.setTime(date);
-				p.start = calendar.getTimeInMillis();
-				calendar.add(Calendar.YEAR, 1);
-				p.end = calendar.getTimeInMillis();
+			calendar.clear();
+			calendar.set(Calendar.YEAR,
+					Integer.parseInt(p.dirName.substring(0, 4)));
+			if (calendarField != Calendar.YEAR)
+				calendar.set(Calendar.MONTH,
+						Integer.parseInt(p.dirName.substring(5, 7)) - 1);
+			if (calendarField == Calendar.DAY_OF_MONTH)
+				calendar.set(Calendar.DAY_OF_MONTH,
+						Integer.parseInt(p.dirName.substring(8, 10)));
+			p.start = calendar.getTimeInMillis();
+			calendar.add(calendarField, 1);
+			p.end = calendar.getTimeInMillis();
+		}
+		return vpartitions.toArray(new TemporalPartition[vpartitions.size()]);
+	}
+
+	/**
+	 * Selects the partitions that cover a time range from a hierarchy of
+	 * temporal indexes given from the coarsest to the finest level, e.g.,
+	 * yearly, monthly and daily. Each level covers as much as possible of the
+	 * parts of the range that are not covered by coarser levels using
+	 * partitions totally contained in them, which minimizes the number of
+	 * selected partitions. Levels that do not exist are skipped.
+	 * 
+	 * @param fs
+	 * @param levels
+	 * @param start
+	 * @param end
+	 * @return - paths of the selected partitions
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static Vector<Path> selectPartitions(FileSystem fs, Path[] levels,
+			long start, long end) throws IOException, ParseException {
+		Vector<Path> matchingPartitions = new Vector<Path>();
+		// Parts of the query range that are not covered yet
+		Vector<long[]> ranges = new Vector<long[]>();
+		ranges.add(new long[] { start, end });
+		for (int iLevel = 0; iLevel < levels.length && !ranges.isEmpty(); iLevel++) {
+			Path levelDir = levels[iLevel];
+			if (!fs.exists(levelDir))
 				continue;
+			LOG.info("Checking index dir " + levelDir);
+			TemporalIndex temporalIndex = getIndex(fs, levelDir);
+			Vector<long[]> remainingRanges = new Vector<long[]>();
+			for (long[] range : ranges) {
+				TemporalPartition[] matches = temporalIndex.selectContained(
+						range[0], range[1]);
+				if (matches == null) {
+					remainingRanges.add(range);
+					continue;
+				}
+				LOG.info("Matched " + matches.length + " partitions in "
+						+ levelDir);
+				// Keep the parts of the range before, between and after the
+				// matched partitions to be covered by finer levels
+				long uncoveredStart = range[0];
+				for (TemporalPartition match : matches) {
+					matchingPartitions.add(new Path(levelDir, match.dirName));
+					if (uncoveredStart < match.start)
+						remainingRanges.add(new long[] { uncoveredStart,
+								match.start });
+					uncoveredStart = match.end;
+				}
+				if (uncoveredStart < range[1])
+					remainingRanges.add(new long[] { uncoveredStart, range[1] });
 			}
-			throw new RuntimeException(
-					"Cannot detect time range for directory: '"
-							+ subdir.getPath() + "'");
+			ranges = remainingRanges;
 		}
-		// Sort partitions based on time
-		this.partitions = vpartitions.toArray(new TemporalPartition[vpartitions
-				.size()]);
-		Arrays.sort(this.partitions);
+		return matchingPartitions;
 	}
 
 	/**
@@ -196,8 +383,8 @@ public class TemporalIndex {
 		int endIndex = binarySearch(end);
 		// Make sure that all overlapping partitions are contained in the range
 		// [startIndex, endIndex); open ended
-		if (endIndex < this.partitions.length
-				&& this.partitions[endIndex].contains(end))
+		if (endIndex < this.starts.length && end >= this.starts[endIndex]
+				&& end < this.ends[endIndex])
 			endIndex++;
 		if (startIndex >= endIndex)
 			return null; // No matches
@@ -221,14 +408,12 @@ public class TemporalIndex {
 		// If startIndex points to a partially overlapping partition, skip it
 		// and
 		// match the next one (which has to be totally contained in given range)
-		if (startIndex < this.partitions.length
-				&& this.partitions[startIndex].start < start)
+		if (startIndex < this.starts.length && this.starts[startIndex] < start)
 			startIndex++;
 		// If endIndex points to a partition that is totally contained, include
 		// it in the range by incrementing endIndex
 		int endIndex = binarySearch(end);
-		if (endIndex < this.partitions.length
-				&& this.partitions[endIndex].end < end)
+		if (endIndex < this.ends.length && this.ends[endIndex] < end)
 			endIndex++;
 		if (startIndex >= endIndex)
 			return null; // No matches
@@ -251,13 +436,13 @@ public class TemporalIndex {
 	 */
 	private int binarySearch(long time) {
 		int s = 0;
-		int e = this.partitions.length;
+		int e = this.starts.length;
 		while (s < e) {
 			int m = (s + e) / 2;
-			if (this.partitions[m].contains(time)) {
+			if (time >= this.starts[m] && time < this.ends[m]) {
 				return m;
 			}
-			if (this.partitions[m].start > time) {
+			if (this.starts[m] > time) {
 				e = m;
 			} else {
 				s = m + 1;
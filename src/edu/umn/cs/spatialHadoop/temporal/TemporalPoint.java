@@ -0,0 +1,83 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.temporal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
+/**
+ * A point with a timestamp, e.g., a geotagged tweet or a GPS reading. Its
+ * text representation is 'x,y,timestamp' where the timestamp is given in
+ * milliseconds since the epoch.
+ * @author Ahmed Eldawy
+ *
+ */
+public class TemporalPoint extends Point implements TemporalShape {
+  
+  private static final byte[] Separator = {','};
+  
+  /**Time of this point in milliseconds since the epoch*/
+  public long timestamp;
+  
+  public TemporalPoint() {}
+  
+  public TemporalPoint(double x, double y, long timestamp) {
+    super(x, y);
+    this.timestamp = timestamp;
+  }
+  
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeLong(timestamp);
+  }
+  
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    this.timestamp = in.readLong();
+  }
+  
+  @Override
+  public Text toText(Text text) {
+    super.toText(text);
+    text.append(Separator, 0, Separator.length);
+    TextSerializerHelper.serializeLong(timestamp, text, '\0');
+    return text;
+  }
+  
+  @Override
+  public void fromText(Text text) {
+    super.fromText(text);
+    byte[] bytes = text.getBytes();
+    text.set(bytes, 1, text.getLength() - 1);
+    timestamp = TextSerializerHelper.consumeLong(text, '\0');
+  }
+  
+  @Override
+  public TemporalPoint clone() {
+    return new TemporalPoint(this.x, this.y, this.timestamp);
+  }
+  
+  @Override
+  public String toString() {
+    return super.toString() + " @" + timestamp;
+  }
+}
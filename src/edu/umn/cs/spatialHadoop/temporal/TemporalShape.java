@@ -0,0 +1,25 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.temporal;
+
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * A shape associated with the time it was recorded at. Shapes of this type
+ * can be indexed by {@link SpatioTemporalIndexer}.
+ * @author Ahmed Eldawy
+ *
+ */
+public interface TemporalShape extends Shape {
+  /**
+   * Returns the time of this shape in milliseconds since the epoch
+   * @return
+   */
+  public long getTimestamp();
+}
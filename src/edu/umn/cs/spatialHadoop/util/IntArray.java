@@ -106,6 +106,13 @@ public class IntArray implements Writable {
   public int size() {
     return size;
   }
+
+  /**
+   * Removes all elements while keeping the allocated memory for reuse
+   */
+  public void clear() {
+    size = 0;
+  }
   
   public int[] array() {
     return array;
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -28,7 +29,9 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 
 /**
  * Temporal index manager that can determine which files need to be
- * indexed/reindexed on the daily, monthly, and yearly levels.
+ * indexed/reindexed on the daily, monthly, and yearly levels. A day that is
+ * added to or corrected in an already indexed month or year is only reindexed
+ * on the daily level and then patched into the enclosing indexes.
  * 
  * @author ibrahimsabek
  *
@@ -55,10 +58,16 @@ public class TemporalIndexManager {
 	private HashMap<String, Boolean> existDailyIndexes;
 	private HashMap<String, Boolean> existMonthlyIndexes;
 	private HashMap<String, Boolean> existYearlyIndexes;
+	private HashMap<String, Boolean> patchingDailyIndexes;
+	private HashMap<String, Boolean> patchingMonthlyIndexes;
+	private HashMap<String, Boolean> patchingYearlyIndexes;
 
 	private Path[] neededDailyIndexes;
 	private Path[] neededMonthlyIndexes;
 	private Path[] neededYearlyIndexes;
+	private Path[] patchingIndexes;
+	private Path[] patchingMonthlyIndexesArr;
+	private Path[] patchingYearlyIndexesArr;
 
 	public TemporalIndexManager(Path datasetPath, Path indexesPath)
 			throws ParseException {
@@ -85,6 +94,9 @@ public class TemporalIndexManager {
 			existDailyIndexes = new HashMap<String, Boolean>();
 			existMonthlyIndexes = new HashMap<String, Boolean>();
 			existYearlyIndexes = new HashMap<String, Boolean>();
+			patchingDailyIndexes = new HashMap<String, Boolean>();
+			patchingMonthlyIndexes = new HashMap<String, Boolean>();
+			patchingYearlyIndexes = new HashMap<String, Boolean>();
 
 			loadExistIndexesDictionary();
 		} catch (IOException e) {
@@ -171,55 +183,38 @@ public class TemporalIndexManager {
 		for (FileStatus matchingDir : matchingDirs) {
 			String matchingDirDateString = NASADatasetUtil
 					.extractDateStringFromFileStatus(matchingDir);
-			if (existYearlyIndexes.containsKey(NASADatasetUtil
-					.getYearFormat(matchingDirDateString))) {
-				// needs to re-build year, month and year indexes
-				existYearlyIndexes.put(
-						NASADatasetUtil.getYearFormat(matchingDirDateString),
-						true);
-				existMonthlyIndexes.put(
-						NASADatasetUtil.getMonthFormat(matchingDirDateString),
-						true);
-				existDailyIndexes.put(
-						NASADatasetUtil.getDayFormat(matchingDirDateString),
-						true);
-			} else if (existMonthlyIndexes.containsKey(NASADatasetUtil
-					.getMonthFormat(matchingDirDateString))) {
-				// needs to re-build month and day indexes
-				existMonthlyIndexes.put(
-						NASADatasetUtil.getMonthFormat(matchingDirDateString),
-						true);
-				existDailyIndexes.put(
-						NASADatasetUtil.getDayFormat(matchingDirDateString),
-						true);
-			} else if (existDailyIndexes.containsKey(NASADatasetUtil
-					.getDayFormat(matchingDirDateString))) {
-				// needs to re-build day index
-				existDailyIndexes.put(
-						NASADatasetUtil.getDayFormat(matchingDirDateString),
-						true);
-			} else {
+			String dayString = NASADatasetUtil
+					.getDayFormat(matchingDirDateString);
+			String monthString = NASADatasetUtil
+					.getMonthFormat(matchingDirDateString);
+			String yearString = NASADatasetUtil
+					.getYearFormat(matchingDirDateString);
+			boolean dayExists = existDailyIndexes.containsKey(dayString);
+			// Only the daily index of the matching day is (re)built
+			existDailyIndexes.put(dayString, true);
+
+			if (existMonthlyIndexes.containsKey(monthString)
+					|| existYearlyIndexes.containsKey(yearString)) {
+				// The enclosing month or year is already indexed, patch it
+				// with the new daily index instead of re-merging all days
+				patchingDailyIndexes.put(dayString, true);
+				if (existMonthlyIndexes.containsKey(monthString))
+					patchingMonthlyIndexes.put(monthString, true);
+				if (existYearlyIndexes.containsKey(yearString))
+					patchingYearlyIndexes.put(yearString, true);
+			} else if (!dayExists) {
 				// needs to build a new index
-				existDailyIndexes.put(
-						NASADatasetUtil.getDayFormat(matchingDirDateString),
-						true);
-
 				int daysCountInMonth = getMatchesCountFromMap(
-						existDailyIndexes,
-						NASADatasetUtil.getMonthFormat(matchingDirDateString));
+						existDailyIndexes, monthString);
 
 				if (daysCountInMonth >= getNumDaysPerMonth(NASADatasetUtil
 						.extractMonthFromDate(matchingDirDateString))) {
-					existMonthlyIndexes.put(NASADatasetUtil
-							.getMonthFormat(matchingDirDateString), true);
+					existMonthlyIndexes.put(monthString, true);
 
 					int monthsCountInYear = getMatchesCountFromMap(
-							existMonthlyIndexes,
-							NASADatasetUtil
-									.getYearFormat(matchingDirDateString));
+							existMonthlyIndexes, yearString);
 					if (monthsCountInYear >= getNumMonthsPerYear()) {
-						existYearlyIndexes.put(NASADatasetUtil
-								.getYearFormat(matchingDirDateString), true);
+						existYearlyIndexes.put(yearString, true);
 					}
 				}
 			}
@@ -235,6 +230,14 @@ public class TemporalIndexManager {
 				monthlyIndexesHomePath);
 		neededYearlyIndexes = convertFromMapToArray(existYearlyIndexes,
 				yearlyIndexesHomePath);
+		patchingIndexes = convertFromMapToArray(patchingDailyIndexes,
+				dailyIndexesHomePath);
+		// Sort by date to patch the enclosing indexes in temporal order
+		Arrays.sort(patchingIndexes);
+		patchingMonthlyIndexesArr = convertFromMapToArray(
+				patchingMonthlyIndexes, monthlyIndexesHomePath);
+		patchingYearlyIndexesArr = convertFromMapToArray(
+				patchingYearlyIndexes, yearlyIndexesHomePath);
 	}
 
 	private Path[] convertFromMapToArray(HashMap<String, Boolean> pathsMap,
@@ -407,6 +410,36 @@ public class TemporalIndexManager {
 		return neededYearlyIndexes;
 	}
 
+	/**
+	 * Returns the daily indexes that need to be patched into the existing
+	 * monthly and yearly indexes that enclose them, sorted by date.
+	 * 
+	 * @return
+	 */
+	public Path[] getPatchingIndexes() {
+		return patchingIndexes;
+	}
+
+	/**
+	 * Returns the existing monthly indexes that enclose the days to patch.
+	 * Indexes that cannot be patched need to rebuild them instead.
+	 * 
+	 * @return
+	 */
+	public Path[] getPatchingMonthlyIndexes() {
+		return patchingMonthlyIndexesArr;
+	}
+
+	/**
+	 * Returns the existing yearly indexes that enclose the days to patch.
+	 * Indexes that cannot be patched need to rebuild them instead.
+	 * 
+	 * @return
+	 */
+	public Path[] getPatchingYearlyIndexes() {
+		return patchingYearlyIndexesArr;
+	}
+
 	public Path getDailyIndexesHomePath() {
 		return dailyIndexesHomePath;
 	}
@@ -475,6 +508,12 @@ public class TemporalIndexManager {
 			System.out.println(path.toString());
 		}
 
+		System.out.println("Patching Indexes: ");
+		Path[] patchingIndexes = temporalIndexManager.getPatchingIndexes();
+		for (Path path : patchingIndexes) {
+			System.out.println(path.toString());
+		}
+
 	}
 
 }
@@ -35,7 +35,6 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.Partitioner;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
-import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
@@ -44,6 +43,7 @@ import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
 import edu.umn.cs.spatialHadoop.operations.Indexer;
 import edu.umn.cs.spatialHadoop.operations.RangeFilter;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
@@ -179,6 +179,8 @@ public class SingleLevelPlot {
     extends Mapper<Rectangle, Iterable<? extends Shape>, IntWritable, Shape> {
     /**The partitioner used to partitioner the data across reducers*/
     private Partitioner partitioner;
+    /**IDs of the partitions overlapping the current shape*/
+    private IntArray overlappingPartitions = new IntArray();
     
     @Override
     protected void setup(Context context) throws IOException,
@@ -195,19 +197,15 @@ public class SingleLevelPlot {
       final IntWritable partitionID = new IntWritable();
       int i = 0;
       for (final Shape shape : shapes) {
-        partitioner.overlapPartitions(shape, new ResultCollector<Integer>() {
-          @Override
-          public void collect(Integer r) {
-            partitionID.set(r);
-            try {
-              context.write(partitionID, shape);
-            } catch (IOException e) {
-              LOG.warn("Error checking overlapping partitions", e);
-            } catch (InterruptedException e) {
-              LOG.warn("Error checking overlapping partitions", e);
-            }
+        Rectangle shapeMBR = shape.getMBR();
+        if (shapeMBR != null) {
+          overlappingPartitions.clear();
+          partitioner.overlapPartitions(shapeMBR, overlappingPartitions);
+          for (int iPartition = 0; iPartition < overlappingPartitions.size(); iPartition++) {
+            partitionID.set(overlappingPartitions.get(iPartition));
+            context.write(partitionID, shape);
           }
-        });
+        }
         if (((++i) & 0xff) == 0) {
           context.progress();
         }